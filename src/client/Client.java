@@ -1,15 +1,18 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.net.ConnectException;
 
+import protocol.BinaryProtocol;
+import protocol.FrameReader;
 import protocol.Protocol;
 
 // updated 09 Mar 2018
@@ -17,8 +20,12 @@ import protocol.Protocol;
 public class Client {
 
 	protected Socket clientSocket; // socket connecting to server
+	protected OutputStream rawToServer; // raw output stream to server (binary frames)
 	protected PrintWriter outToServer; // output stream to server
-	protected BufferedReader inFromServer; // input stream from server
+	protected FrameReader inFromServer; // input stream from server
+	protected boolean binary = false; // set once the server has agreed to use the binary protocol
+	protected LocalMaze localMaze = new LocalMaze(); // the whole maze, if the server sends move deltas
+	protected QueueRoster queueRoster = new QueueRoster(); // the players in the queue, if the server sends queue deltas
 								// latest message
 	private String host = ""; // IP address of server
 	private Integer port = 0; // Port number of server
@@ -69,8 +76,15 @@ public class Client {
 	 */
 	protected String[] signin(String user, String pass) {
 		
-		String string = Protocol.encode( Protocol.P_LOGIN , user, pass);
+		// Offer the optional features after the password. Servers that don't know about them ignore the extra fields
+		ArrayList<String> request = new ArrayList<String>( Arrays.asList( Protocol.P_LOGIN , user, pass ) );
+		if( GUIConstants.useBinaryProtocol ) { request.add( Protocol.CODEC_BINARY ); }
+		if( GUIConstants.useDeltaUpdates ) { request.add( Protocol.FEATURE_DELTA ); }
+		if( GUIConstants.useQueueDeltas ) { request.add( Protocol.FEATURE_QUEUE_DELTA ); }
+		
+		String string = Protocol.encode( request.toArray( new String[ request.size() ] ) );
 	 
+		binary = false;
 		outToServer.println(string);
 		outToServer.flush();
 	 
@@ -79,6 +93,14 @@ public class Client {
 		 
 			System.out.println("Sign-in successful.");
 			
+			// The accepted features follow the number of active players
+			// The login response is the last text message if the server accepted the binary protocol
+			for( int i = 4 ; i < response.length ; i++ ) {
+				if( response[i].equals( Protocol.CODEC_BINARY ) ) {
+					binary = true;
+				}
+			}
+			
 		} else {
 			
 			System.out.println(response[2]);
@@ -88,13 +110,46 @@ public class Client {
 		
 	}
 	
-	protected void sendReq( String data ) {
+	/**
+	 * Send a request to the server
+	 * 
+	 * @param data The request encoded with Protocol.encode (converted to a frame when the binary protocol is used)
+	 */
+	protected synchronized void sendReq( String data ) {
+		
+		if( binary ) {
+			
+			try {
+				
+				rawToServer.write( BinaryProtocol.fromText( data ) );
+				rawToServer.flush();
+				
+			} catch ( IOException e ) {
+				
+				e.printStackTrace();
+				
+			}
+			
+			return;
+			
+		}
 		
 		outToServer.println( data );
 		outToServer.flush();
 		
 	}
 	
+	/**
+	 * Read the next message from the server in whichever protocol is being used
+	 * 
+	 * @return The frame (binary protocol) or line (text protocol), null at the end of the stream
+	 */
+	protected Object readMessage() throws IOException {
+		
+		return binary ? inFromServer.readFrame() : inFromServer.readLine();
+		
+	}
+	
 	/**
 	 * Move the player that just logged in to the queue
 	 */
@@ -162,6 +217,19 @@ public class Client {
 		
 	}
 	
+	/**
+	 * Get the top scores of the day, the week and the season and add them to the leaderboard panel
+	 */
+	protected void requestPeriodScores() {
+		
+		setSent( 2 );
+		
+		String string = Protocol.encode( Protocol.P_GET_PERIOD_SCORES );
+		
+		sendReq( string );
+		
+	}
+	
 	/**
 	 * Leave a lobby and go back to the main menu
 	 */
@@ -250,9 +318,8 @@ public class Client {
 				 // Therefore we send a dummy request and wait for a response. If nothing comes, then the connection is broken.
 				  try {
 					 
-					 outToServer.println( Protocol.encode( Protocol.P_CONNECTION_TEST ) );
-					 outToServer.flush();
-					 inFromServer.readLine();
+					 sendReq( Protocol.encode( Protocol.P_CONNECTION_TEST ) );
+					 readMessage();
 					 
 				 } catch ( IOException e ) {
 					   
@@ -309,13 +376,35 @@ public class Client {
 	 
 			try {
 				
-				String in = inFromServer.readLine();
+				Object in = readMessage();
 				
 				if( in == null ) {
 					continue;
 				}
 				
-				String[] decoded = Protocol.decode( in );
+				String[] decoded;
+				
+				if( in instanceof byte[] ) {
+					
+					byte[] frame = (byte[]) in;
+					int type = BinaryProtocol.type( frame );
+					
+					// Typed in-game messages don't have a text form
+					if( type == BinaryProtocol.T_MOVE || type == BinaryProtocol.T_GAME_START ) {
+						
+						sent = false;
+						receiveTypedFrame( frame );
+						continue;
+						
+					}
+					
+					decoded = BinaryProtocol.decode( frame );
+					
+				} else {
+					
+					decoded = Protocol.decode( (String) in );
+					
+				}
 				 
 				if( decoded.length < 1 ) {
 					continue;
@@ -335,11 +424,32 @@ public class Client {
 				// The player has been moved to the queue. Therefore switch panels from main to queue
 				if( channel.equals( Protocol.P_MOVE_TO_QUEUE ) ) {
 					
+					queueRoster.clear();
 					app.setQueue();
 					
 				} else if( channel.equals( Protocol.P_QUEUE_UPDATE ) ) {
 					   
-					app.queue.queueData = decoded[ 1 ];
+					app.queue.queueData = decoded.length > 1 ? decoded[ 1 ] : "";
+					app.queue.repaint();
+					
+				} else if( channel.equals( Protocol.P_QUEUE_SNAPSHOT ) ) {
+					
+					queueRoster.snapshot( decoded );
+					
+					app.queue.queueData = queueRoster.toString();
+					app.queue.repaint();
+					
+				} else if( channel.equals( Protocol.P_QUEUE_DELTA ) ) {
+					
+					// Missed a change - ask for the whole queue again
+					if( !queueRoster.update( decoded ) ) {
+						
+						sendReq( Protocol.encode( Protocol.P_QUEUE_RESYNC ) );
+						continue;
+						
+					}
+					
+					app.queue.queueData = queueRoster.toString();
 					app.queue.repaint();
 					
 				} else if( channel.equals( Protocol.P_SESSION_START ) ) {
@@ -388,20 +498,15 @@ public class Client {
 					int[][] maze = convertTo2DArray( decoded[ 5 ] , '|' , ',' );
 					int[][] coins = convertTo2DArray( decoded[ 6 ] , '|' , ',' );
 					
-					app.game.playerStatuses = decoded[ 7 ];
-					app.game.playerCoins = decoded[8];
-					 
-					 
-					app.setGame( decoded[ 1 ] );
+					startGame( decoded[ 1 ] , pIndex , decoded[ 4 ] , null , maze , coins , decoded[ 7 ] , decoded[ 8 ] );
 					
-					app.game.playerIndex = pIndex;
-					app.game.setPlayerPositions( decoded[ 4 ] , '|' );
-					app.game.setData( maze , coins );
+				} else if ( channel.equals( Protocol.P_GAME_START_FULL ) ) {
 					
-					app.game.STARTED = false;
-					app.game.FINISHED = false;
+					localMaze.start( decoded );
 					
-					//app.game.repaint();
+					int[] bounds = localMaze.boundaries();
+					startGame( decoded[ 1 ] , localMaze.getPlayerIndex() , null , localMaze.relativePositions( bounds ) , 
+							   localMaze.croppedMaze( bounds ) , localMaze.croppedCoins( bounds ) , localMaze.statuses , localMaze.playerCoins );
 					
 				} else if( channel.equals( Protocol.P_GAME_START_COUNTDOWN ) ) {
 					
@@ -451,42 +556,18 @@ public class Client {
 					int[][] maze = convertTo2DArray( decoded[ 4 ] , '|' , ',' );
 					int[][] coins = convertTo2DArray( decoded[ 5 ] , '|' , ',' );
 					
-					app.game.playerStatuses = decoded[ 6 ];
-					app.game.playerOrientations = decoded[ 7 ];
-					
-					app.game.trapsList = decoded[9];
-					
-					int firesLeft = Integer.parseInt(decoded[10]);
-					if( app.game.firesLeft > firesLeft ) {
-						app.game.audioLibrary.play("fire");
-					}
-					app.game.firesLeft = firesLeft;
+					applyMove( decoded[ 1 ] , decoded[ 3 ] , null , maze , coins , decoded[ 6 ] , decoded[ 7 ] , decoded[ 2 ] ,
+							   Integer.parseInt( decoded[ 8 ] ) , decoded[ 9 ] , Integer.parseInt( decoded[ 10 ] ) , decoded.length >= 12 ? decoded[ 11 ] : null );
+					 
 					
-					app.game.setPlayerPositions( decoded[ 3 ] , '|' );
-					app.game.setData( maze , coins );
+				} else if( channel.equals( Protocol.P_MOVE_DELTA ) ) {
 					
-					if( decoded[1].equals( app.username ) ) {
-						app.game.audioLibrary.play("move");
-					}
+					localMaze.update( decoded );
 					
-					if( decoded.length >= 12 ) {
-						app.game.message = decoded[11];
-						if( decoded[11].length() > 5 ) {
-							if( decoded[11].substring(0,5).equals("[HIT]") ) {
-								app.game.audioLibrary.play("hit");
-							}
-						}
-					}
-					
-					app.game.playerCoins = decoded[ 2 ];
-
-					int newCoins = Integer.parseInt( decoded[ 8 ] );
-					// Collect coin sound
-					if( app.game.collectedCoins < newCoins ) {
-						app.game.audioLibrary.play("coin");
-					}
-					app.game.collectedCoins = newCoins;
-					 
+					int[] bounds = localMaze.boundaries();
+					applyMove( decoded[ 1 ] , null , localMaze.relativePositions( bounds ) , localMaze.croppedMaze( bounds ) , localMaze.croppedCoins( bounds ) , 
+							   localMaze.statuses , localMaze.orientations , localMaze.playerCoins , Integer.parseInt( decoded[ 8 ] ) , 
+							   localMaze.relativeTraps( bounds ) , Integer.parseInt( decoded[ 9 ] ) , decoded.length > 10 && !decoded[ 10 ].isEmpty() ? decoded[ 10 ] : null );
 					
 				} else if ( channel.equals( Protocol.P_PLAYER_FINISHED ) ) {
 					
@@ -505,6 +586,8 @@ public class Client {
 					
 					app.main.playerStats = decoded[1];
 					app.main.playerLast = decoded[2];
+					// Servers that don't rank the players don't send the third argument
+					app.main.playerRanks = decoded.length > 3 ? decoded[3] : "";
 					
 					app.main.repaint();
 					
@@ -528,6 +611,15 @@ public class Client {
 					
 					app.main.repaint();
 					
+				}  else if ( channel.equals( Protocol.P_GET_PERIOD_SCORES ) ) {
+					
+					// Most points and most coins of the day, the week and the season
+					for( int i = 0 ; i < 6 && i + 1 < decoded.length ; i++ ) {
+						app.main.periodScores[ i ] = decoded[ i + 1 ].equals("none") ? "" : decoded[ i + 1 ];
+					}
+					
+					app.main.repaint();
+					
 				}
 			
 			} catch ( IOException e ) {
@@ -544,6 +636,180 @@ public class Client {
 		
 	}
 	
+	/**
+	 * Switch to the game panel with the initial game state
+	 * 
+	 * @param positionsText The player positions in text form, or null if positions is given
+	 * @param positions The player positions already decoded (binary protocol), or null
+	 */
+	private void startGame( String theme , int pIndex , String positionsText , ArrayList<int[]> positions , int[][] maze , int[][] coins , String statuses , String playerCoins ) {
+		
+		app.game.playerStatuses = statuses;
+		app.game.playerCoins = playerCoins;
+		 
+		 
+		app.setGame( theme );
+		
+		app.game.playerIndex = pIndex;
+		if( positionsText != null ) {
+			app.game.setPlayerPositions( positionsText , '|' );
+		} else {
+			app.game.setPlayerPositions( positions );
+		}
+		app.game.setData( maze , coins );
+		
+		app.game.STARTED = false;
+		app.game.FINISHED = false;
+		
+		//app.game.repaint();
+		
+	}
+	
+	/**
+	 * Update the game panel after a player has moved (or left a trap)
+	 * 
+	 * @param positionsText The player positions in text form, or null if positions is given
+	 * @param positions The player positions already decoded (binary protocol), or null
+	 * @param message An optional message to show, null if there isn't one
+	 */
+	private void applyMove( String username , String positionsText , ArrayList<int[]> positions , int[][] maze , int[][] coins , 
+							String statuses , String orientations , String playerCoins , int newCoins , String traps , int firesLeft , String message ) {
+		
+		app.game.playerStatuses = statuses;
+		app.game.playerOrientations = orientations;
+		
+		app.game.trapsList = traps;
+		
+		if( app.game.firesLeft > firesLeft ) {
+			app.game.audioLibrary.play("fire");
+		}
+		app.game.firesLeft = firesLeft;
+		
+		if( positionsText != null ) {
+			app.game.setPlayerPositions( positionsText , '|' );
+		} else {
+			app.game.setPlayerPositions( positions );
+		}
+		app.game.setData( maze , coins );
+		
+		if( username.equals( app.username ) ) {
+			app.game.audioLibrary.play("move");
+		}
+		
+		if( message != null ) {
+			app.game.message = message;
+			if( message.length() > 5 ) {
+				if( message.substring(0,5).equals("[HIT]") ) {
+					app.game.audioLibrary.play("hit");
+				}
+			}
+		}
+		
+		app.game.playerCoins = playerCoins;
+
+		// Collect coin sound
+		if( app.game.collectedCoins < newCoins ) {
+			app.game.audioLibrary.play("coin");
+		}
+		app.game.collectedCoins = newCoins;
+		
+	}
+	
+	/**
+	 * Handle a T_MOVE or T_GAME_START frame (see the layouts in the server's constructMoveFrame and constructGameStartFrame)
+	 */
+	private void receiveTypedFrame( byte[] frame ) {
+		
+		BinaryProtocol.Reader in = new BinaryProtocol.Reader( frame );
+		int type = in.readByte();
+		
+		if( type == BinaryProtocol.T_GAME_START ) {
+			
+			String theme = in.readString();
+			in.readVarInt(); // The time limit, shown by the countdown messages
+			int pIndex = in.readVarInt();
+			PlayerSlots slots = new PlayerSlots( in );
+			int[][] maze = in.readGrid();
+			int[][] coins = in.readBitGrid();
+			
+			startGame( theme , pIndex , null , slots.positions , maze , coins , slots.statuses , slots.coins );
+			
+		} else if( type == BinaryProtocol.T_MOVE ) {
+			
+			String username = in.readString();
+			PlayerSlots slots = new PlayerSlots( in );
+			int[][] maze = in.readGrid();
+			int[][] coins = in.readBitGrid();
+			int newCoins = in.readSignedVarInt();
+			
+			StringBuilder traps = new StringBuilder();
+			int trapCount = in.readVarInt();
+			for( int i = 0 ; i < trapCount ; i++ ) {
+				
+				if( i > 0 ) { traps.append( '|' ); }
+				traps.append( in.readVarInt() ).append( ',' ).append( in.readVarInt() ).append( ',' ).append( in.readString() );
+				
+			}
+			
+			int firesLeft = in.readSignedVarInt();
+			String message = in.readString();
+			
+			applyMove( username , null , slots.positions , maze , coins , slots.statuses , slots.orientations , slots.coins ,
+					   newCoins , traps.toString() , firesLeft , message.isEmpty() ? null : message );
+			
+		}
+		
+	}
+	
+	/**
+	 * The player slots of a typed frame, converted to the '|' delimited strings the game panel draws from
+	 */
+	private static class PlayerSlots {
+		
+		String statuses, coins, orientations;
+		ArrayList<int[]> positions = new ArrayList<int[]>();
+		
+		PlayerSlots( BinaryProtocol.Reader in ) {
+			
+			StringBuilder statuses = new StringBuilder();
+			StringBuilder coins = new StringBuilder();
+			StringBuilder orientations = new StringBuilder();
+			
+			int count = in.readVarInt();
+			
+			for( int i = 0 ; i < count ; i++ ) {
+				
+				if( i > 0 ) {
+					statuses.append( '|' );
+					coins.append( '|' );
+					orientations.append( '|' );
+				}
+				
+				if( !in.readBoolean() ) {
+					
+					statuses.append( '.' );
+					coins.append( '.' );
+					orientations.append( '.' );
+					positions.add( new int[] { -1 , -1 } );
+					continue;
+					
+				}
+				
+				statuses.append( in.readString() );
+				positions.add( new int[] { in.readSignedVarInt() , in.readSignedVarInt() } );
+				coins.append( in.readSignedVarInt() );
+				orientations.append( in.readByte() );
+				
+			}
+			
+			this.statuses = statuses.toString();
+			this.coins = coins.toString();
+			this.orientations = orientations.toString();
+			
+		}
+		
+	}
+	
 	private static int[][] convertTo2DArray( String data , char rowDelimiter , char colDelimiter ) {
 		
 		String[] rows = data.split("\\"+rowDelimiter);
@@ -576,8 +842,10 @@ public class Client {
 			
 			app = ClientApp.frame;
 			clientSocket = new Socket(this.host, this.port);
-			outToServer = new PrintWriter(clientSocket.getOutputStream());
-			inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+			binary = false;
+			rawToServer = clientSocket.getOutputStream();
+			outToServer = new PrintWriter(rawToServer);
+			inFromServer = new FrameReader(clientSocket.getInputStream());
 			
 		} catch ( UnknownHostException e ) {
 			
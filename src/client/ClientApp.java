@@ -120,8 +120,7 @@ public class ClientApp extends JFrame {
 							
 							if( client.outToServer != null ) {
 								
-								client.outToServer.println( Protocol.encode( Protocol.P_QUIT , "terminate" ) );
-								client.outToServer.flush();
+								client.sendReq( Protocol.encode( Protocol.P_QUIT , "terminate" ) );
 								
 							}
 							// If there is an open socket, send a server request to shutdown the client's socket
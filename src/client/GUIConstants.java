@@ -65,5 +65,12 @@ public class GUIConstants {
 	public static final int fireKey = KeyEvent.VK_SPACE;
 	public static final int quitKey = KeyEvent.VK_Q; // keyCodes
 	
+	// Offer the binary protocol to the server at login (the text protocol is used if the server doesn't support it)
+	public static final boolean useBinaryProtocol = true;
+	// Ask the server for the whole maze at game start and only the changes after each move (the viewport is cropped locally)
+	public static final boolean useDeltaUpdates = true;
+	// Ask the server for only the players who joined and left the queue instead of the whole queue after every change
+	public static final boolean useQueueDeltas = true;
+	
 	
 }
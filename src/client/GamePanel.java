@@ -170,7 +170,7 @@ public class GamePanel extends JPanel {
 		
 		if( players.length == 0 ) { return; }
 		
-		playerPositions = new ArrayList<int[]>();
+		ArrayList<int[]> positions = new ArrayList<int[]>();
 		
 		String[] pos;
 		for( int i = 0 ; i < players.length; i ++ ) {
@@ -181,10 +181,25 @@ public class GamePanel extends JPanel {
 			int x = Integer.parseInt( pos[0] );
 			int y = Integer.parseInt( pos[1] );
 			
-			playerPositions.add( new int[] { x , y } );
+			positions.add( new int[] { x , y } );
 			
 		}
 		
+		setPlayerPositions( positions );
+		
+	}
+	
+	/**
+	 * Set the player positions that have already been decoded (binary protocol)
+	 * 
+	 * @param positions One [row, column] pair per player slot, [-1, -1] for empty slots
+	 */
+	protected void setPlayerPositions( ArrayList<int[]> positions ) {
+		
+		if( positions == null || positions.isEmpty() ) { return; }
+		
+		playerPositions = positions;
+		
 	}
 	
 	public void removeListener() {
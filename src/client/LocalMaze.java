@@ -0,0 +1,204 @@
+package client;
+
+import java.util.ArrayList;
+
+import protocol.GridFormat;
+import protocol.Viewport;
+
+/**
+ * The whole maze of the current game, kept by clients that receive move deltas (Protocol.FEATURE_DELTA).
+ * The server sends the maze once at the start of the game and then only what changes.
+ * The viewport shown by the GamePanel is cropped from it here, the same way the server would crop it.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class LocalMaze {
+
+	private int mazeSize;
+	private int visibleRows, visibleCols;
+	private int playerIndex;
+
+	private int[][] maze;
+	private int[][] coins;
+
+	// Per player slot. Empty slots have the position -1,-1
+	private String[] usernames;
+	private int[][] positions;
+
+	// row, column, owner (maze coordinates)
+	private ArrayList<String[]> traps = new ArrayList<String[]>();
+
+	// The '|' delimited per-player values, in the form the GamePanel draws from
+	protected String statuses = "";
+	protected String orientations = "";
+	protected String playerCoins = "";
+
+	/**
+	 * Set up a new game from a P_GAME_START_FULL message
+	 *
+	 * @param decoded The decoded message (see Server.constructFullGameStartArguments for the format)
+	 */
+	protected void start( String[] decoded ) {
+
+		playerIndex = Integer.parseInt( decoded[ 3 ] );
+		visibleRows = Integer.parseInt( decoded[ 4 ] );
+		visibleCols = Integer.parseInt( decoded[ 5 ] );
+		mazeSize = Integer.parseInt( decoded[ 6 ] );
+
+		maze = GridFormat.decodeDigits( decoded[ 7 ] , mazeSize , mazeSize );
+		coins = GridFormat.decodeBits( decoded[ 8 ] , mazeSize , mazeSize );
+
+		usernames = decoded[ 9 ].split("\\|");
+		traps.clear();
+
+		setPlayers( decoded[ 10 ] , decoded[ 11 ] , decoded[ 12 ] );
+
+	}
+
+	/**
+	 * Apply a P_MOVE_DELTA message
+	 *
+	 * @param decoded The decoded message (see Server.constructMoveDeltaArguments for the format)
+	 */
+	protected void update( String[] decoded ) {
+
+		setPlayers( field( decoded , 2 ) , field( decoded , 3 ) , field( decoded , 4 ) );
+
+		for( String coin : split( field( decoded , 5 ) ) ) {
+
+			String[] pos = coin.split(",");
+			coins[ Integer.parseInt( pos[ 0 ] ) ][ Integer.parseInt( pos[ 1 ] ) ] = 0;
+
+		}
+
+		for( String trap : split( field( decoded , 6 ) ) ) {
+
+			String[] t = trap.split( "," , 3 );
+			if( t.length == 3 ) {
+				traps.add( t );
+			}
+
+		}
+
+		for( String trap : split( field( decoded , 7 ) ) ) {
+
+			String[] pos = trap.split(",");
+
+			for( int i = 0 ; i < traps.size() ; i++ ) {
+
+				if( traps.get( i )[ 0 ].equals( pos[ 0 ] ) && traps.get( i )[ 1 ].equals( pos[ 1 ] ) ) {
+					traps.remove( i );
+					break;
+				}
+
+			}
+
+		}
+
+	}
+
+	private void setPlayers( String positionData , String orientationData , String coinData ) {
+
+		String[] pos = positionData.split("\\|");
+
+		positions = new int[ pos.length ][];
+		StringBuilder status = new StringBuilder();
+
+		for( int i = 0 ; i < pos.length ; i++ ) {
+
+			String[] xy = pos[ i ].split(",");
+			positions[ i ] = new int[] { Integer.parseInt( xy[ 0 ] ) , Integer.parseInt( xy[ 1 ] ) };
+
+			if( i > 0 ) { status.append( '|' ); }
+
+			// A player who has left the game no longer has a position
+			boolean present = positions[ i ][ 0 ] >= 0 && usernames != null && i < usernames.length;
+			status.append( present ? usernames[ i ] : "." );
+
+		}
+
+		statuses = status.toString();
+		orientations = orientationData;
+		playerCoins = coinData;
+
+	}
+
+	/**
+	 * @return The visible part of the maze around this client's player
+	 */
+	protected int[] boundaries() {
+
+		int[] own = positions[ playerIndex ];
+		return Viewport.boundaries( mazeSize , own[ 0 ] , own[ 1 ] , visibleRows , visibleCols );
+
+	}
+
+	protected int[][] croppedMaze( int[] boundaries ) {
+
+		return Viewport.crop( maze , boundaries );
+
+	}
+
+	protected int[][] croppedCoins( int[] boundaries ) {
+
+		return Viewport.crop( coins , boundaries );
+
+	}
+
+	/**
+	 * @return The player positions relative to the viewport (-1,-1 if not visible)
+	 */
+	protected ArrayList<int[]> relativePositions( int[] boundaries ) {
+
+		ArrayList<int[]> result = new ArrayList<int[]>();
+
+		for( int[] pos : positions ) {
+			result.add( Viewport.relative( pos[ 0 ] , pos[ 1 ] , boundaries ) );
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * @return The visible traps relative to the viewport, in the form the GamePanel draws from
+	 */
+	protected String relativeTraps( int[] boundaries ) {
+
+		StringBuilder result = new StringBuilder();
+
+		for( String[] trap : traps ) {
+
+			int[] pos = Viewport.relative( Integer.parseInt( trap[ 0 ] ) , Integer.parseInt( trap[ 1 ] ) , boundaries );
+			if( pos[ 0 ] < 0 ) { continue; }
+
+			if( result.length() > 0 ) { result.append( '|' ); }
+			result.append( pos[ 0 ] ).append( ',' ).append( pos[ 1 ] ).append( ',' ).append( trap[ 2 ] );
+
+		}
+
+		return result.toString();
+
+	}
+
+	protected int getPlayerIndex() {
+
+		return playerIndex;
+
+	}
+
+	private static String field( String[] decoded , int index ) {
+
+		// Empty fields at the end of a message are dropped by the protocol
+		return index < decoded.length ? decoded[ index ] : "";
+
+	}
+
+	private static String[] split( String list ) {
+
+		return list.isEmpty() ? new String[ 0 ] : list.split("\\|");
+
+	}
+
+}
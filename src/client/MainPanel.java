@@ -29,17 +29,24 @@ public class MainPanel extends JPanel {
 	protected FontMetrics fm;
 	protected String message = "";
 	protected int textWidth;
-	protected JButton bQueue, bLeader, bQuit, bLeaderBack;
+	protected JButton bQueue, bLeader, bQuit, bLeaderBack, bLeaderPeriod;
 	
 	protected BufferedImage coin;
 	protected int coinY = 0;
 	 
 	protected String playerStats = "";
 	protected String playerLast = "";
+	// rank,percentile for coins, points, wins and win/loss ratio, then the number of players
+	protected String playerRanks = "";
 	protected String mostCoins = "";
 	protected String mostPoints = "";
 	protected String mostWins = "";
 	protected String bestWLRatio = "";
+	// Most points and most coins of the day, the week and the season (P_GET_PERIOD_SCORES)
+	protected String[] periodScores = new String[] { "" , "" , "" , "" , "" , "" };
+	// Which top scores the leaderboard shows: 0 all time, 1 today, 2 this week, 3 this season
+	protected int period = 0;
+	private static final String[] periodNames = new String[] { " ALL TIME " , " TODAY " , " THIS WEEK " , " THIS SEASON " };
 	protected Font legendLabel, legendText;
 	
 	protected boolean leaderboard = false;
@@ -101,6 +108,34 @@ public class MainPanel extends JPanel {
 		bLeaderBack.setContentAreaFilled(false);
 		bLeaderBack.setLayout(null);
 		
+		bLeaderPeriod = new JButton( periodNames[ 0 ] );
+		bLeaderPeriod.setFont( keyFont );
+		bLeaderPeriod.setForeground( Color.white );
+		bLeaderPeriod.setBorder(BorderFactory.createMatteBorder(3, 3,3, 3, Color.white));
+		bLeaderPeriod.setFocusPainted(false);
+		bLeaderPeriod.setContentAreaFilled(false);
+		bLeaderPeriod.setLayout(null);
+		
+		// Switch the leaderboard between all time, today, this week and this season
+		bLeaderPeriod.addActionListener( new ActionListener(){ 
+			 
+			public void actionPerformed(ActionEvent e){ 
+			
+				audioLibrary.play("click");
+				
+				period = ( period + 1 ) % periodNames.length;
+				bLeaderPeriod.setText( periodNames[ period ] );
+				
+				if( period > 0 ) {
+					client.requestPeriodScores();
+				}
+				
+				repaint();
+				
+		    }  
+			
+		});  
+		
 		// Switch back from leaderboard to main menu
 		bLeaderBack.addActionListener( new ActionListener(){ 
 			 
@@ -146,6 +181,10 @@ public class MainPanel extends JPanel {
 				client.requestStats();
 				client.requestTopScores();
 				
+				if( period > 0 ) {
+					client.requestPeriodScores();
+				}
+				
 				leaderboard = true;
 				repaint();
 				
@@ -186,11 +225,13 @@ public class MainPanel extends JPanel {
 		bLeader.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
 		bQuit.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
 		bLeaderBack.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+		bLeaderPeriod.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
 		
 		add( bQueue );
 		add( bLeader );
 		add( bQuit );
 		add( bLeaderBack );
+		add( bLeaderPeriod );
 		
 	}
 	
@@ -242,6 +283,7 @@ public class MainPanel extends JPanel {
 		bLeader.setBounds( sw/2 - 150  , 500 , 300 , 50 ); 
 		bQuit.setBounds( sw/2 - 150  , 580 , 300 , 50 ); 
 		bLeaderBack.setBounds( 100 , 50 , 150 , 50 );
+		bLeaderPeriod.setBounds( sw - 100 - 260 , 50 , 260 , 50 );
 		
 		// Leaderboard code
 		if( leaderboard == true ) {
@@ -252,6 +294,7 @@ public class MainPanel extends JPanel {
 			bQuit.setVisible(false);
 			// Show the back button for the leaderboard panel
 			bLeaderBack.setVisible(true);
+			bLeaderPeriod.setVisible(true);
 			
 			// DRAW LEADERBOARD HERE
 			String[] mystats = playerStats.split("\\,");
@@ -295,8 +338,11 @@ public class MainPanel extends JPanel {
 			int head2y = 537;
 			g.drawString( "MOST COINS", sw/2 - blinew/2 , head2y );
 			g.drawString( "MOST POINTS", sw/2 - blinew/2 + col2w , head2y );
-			g.drawString( "MOST WINS", sw/2 - blinew/2 + col2w*2 , head2y );
-			g.drawString( "BEST W/L RATIO", sw/2 - blinew/2 + col2w*3 , head2y );
+			// The wins and the win/loss ratio are only kept for all time
+			if( period == 0 ) {
+				g.drawString( "MOST WINS", sw/2 - blinew/2 + col2w*2 , head2y );
+				g.drawString( "BEST W/L RATIO", sw/2 - blinew/2 + col2w*3 , head2y );
+			}
 			
 			g.drawString( mystats[0], sw/2 - blinew/2 , rowy );
 			g.drawString( mystats[1], sw/2 - blinew/2 + colw , rowy );
@@ -305,11 +351,25 @@ public class MainPanel extends JPanel {
 			g.drawString( mystats[4] , sw/2 - blinew/2 + colw*4 , rowy );
 			g.drawString( mystats[5] , sw/2 - blinew/2 + colw*5 , rowy );
 			
+			// Where the player stands among all of the players
+			String[] ranks = playerRanks.split("\\,");
+			if( ranks.length >= 9 ) {
+				
+				g.setColor( Color.lightGray );
+				g.drawString( rankLabel( ranks , 2 ) , sw/2 - blinew/2 + colw*2 , rowy + 25 );
+				g.drawString( rankLabel( ranks , 3 ) , sw/2 - blinew/2 + colw*3 , rowy + 25 );
+				g.drawString( rankLabel( ranks , 0 ) , sw/2 - blinew/2 + colw*4 , rowy + 25 );
+				g.drawString( rankLabel( ranks , 1 ) , sw/2 - blinew/2 + colw*5 , rowy + 25 );
+				g.drawString( "OF " + ranks[8] + " PLAYERS" , sw/2 - blinew/2 , rowy + 25 );
+				g.setColor( Color.white );
+				
+			}
+			
 			g.setColor(Color.green);
 			g.setFont(legendLabel);
 			g.drawString( "MY GAME STATS ["+ClientApp.frame.username+"]", sw/2 - blinew/2, 230);
 			g.drawString( "LAST GAME", sw/2 - blinew/2 + llinew + 40 , 230);
-			g.drawString( "LEADERBOARD - TOP 5", sw/2 - blinew/2, 480 );
+			g.drawString( "LEADERBOARD - TOP 5" + ( period > 0 ? " -" + periodNames[ period ] : "" ), sw/2 - blinew/2, 480 );
 			
 			g.setColor(Color.white);
 			g.setFont(legendText);
@@ -335,6 +395,14 @@ public class MainPanel extends JPanel {
 				
 			}
 			
+			if( period > 0 ) {
+				
+				drawColumn( g , periodScores[ (period-1)*2 + 1 ] , sw/2 - blinew/2 , 600 , 60 , Color.white , Color.yellow );
+				drawColumn( g , periodScores[ (period-1)*2 ] , sw/2 - blinew/2 + col2w , 600 , 60 , Color.white , new Color(255,100,0) );
+				return;
+				
+			}
+			
 			drawColumn( g , mostCoins , sw/2 - blinew/2 , 600 , 60 , Color.white , Color.yellow );
 			drawColumn( g , mostPoints , sw/2 - blinew/2 + col2w , 600 , 60 , Color.white , new Color(255,100,0) );
 			drawColumn( g , mostWins , sw/2 - blinew/2 + col2w*2 , 600 , 60 , Color.white , Color.cyan );
@@ -350,6 +418,7 @@ public class MainPanel extends JPanel {
 		bQuit.setVisible(true);
 		// Hide leaderboard panel
 		bLeaderBack.setVisible(false);
+		bLeaderPeriod.setVisible(false);
 			
 		 
 		
@@ -372,9 +441,20 @@ public class MainPanel extends JPanel {
 			
 	}
 	
+	/**
+	 * @param ranks The decoded ranks
+	 * @param board 0 coins, 1 points, 2 wins, 3 win/loss ratio
+	 * @return The player's rank and percentile on a board, e.g. #12 (87.5%)
+	 */
+	private String rankLabel( String[] ranks , int board ) {
+		
+		return "#" + ranks[ board*2 ] + " (" + ranks[ board*2 + 1 ] + "%)";
+		
+	}
+	
 	private void drawColumn( Graphics g , String data , int sx , int sy , int rowh , Color col1 , Color col2 ) {
 		
-		if( mostCoins.length() == 0 )  { return; }
+		if( data.length() == 0 )  { return; }
 		
 		String[] rows = data.split("\\|");
 		 
@@ -0,0 +1,123 @@
+package client;
+
+import java.util.ArrayList;
+
+/**
+ * The players waiting in the queue, kept by clients that receive queue deltas (Protocol.FEATURE_QUEUE_DELTA).
+ * The server sends the whole roster when the player joins the queue and then only who joined and left.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class QueueRoster {
+
+	// username,timestamp in the order of the queue
+	private ArrayList<String> entries = new ArrayList<String>();
+	private long sequence = -1;
+
+	/**
+	 * Replace the roster with a P_QUEUE_SNAPSHOT
+	 *
+	 * @param decoded The decoded message: [channel][sequence][username,timestamp|...]
+	 */
+	protected void snapshot( String[] decoded ) {
+
+		sequence = Long.parseLong( decoded[ 1 ] );
+		entries.clear();
+
+		if( decoded.length > 2 ) {
+			add( decoded[ 2 ] );
+		}
+
+	}
+
+	/**
+	 * Apply a P_QUEUE_DELTA
+	 *
+	 * @param decoded The decoded message: [channel][sequence][joined username,timestamp|...][left username|...]
+	 * @return false if a delta was missed (the roster has to be requested again with P_QUEUE_RESYNC)
+	 */
+	protected boolean update( String[] decoded ) {
+
+		long next = Long.parseLong( decoded[ 1 ] );
+
+		// Not caught up yet, or the delta is older than the last snapshot
+		if( sequence < 0 || next <= sequence ) { return sequence >= 0; }
+		if( next != sequence + 1 ) { return false; }
+
+		sequence = next;
+
+		// The players who left first, a player who left and joined again is at the end of the queue now
+		if( decoded.length > 3 ) {
+
+			for( String username : decoded[ 3 ].split("\\|") ) {
+				remove( username );
+			}
+
+		}
+
+		if( decoded.length > 2 ) {
+			add( decoded[ 2 ] );
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Forget the roster (the player left the queue)
+	 */
+	protected void clear() {
+
+		entries.clear();
+		sequence = -1;
+
+	}
+
+	private void add( String list ) {
+
+		if( list.isEmpty() ) { return; }
+
+		for( String entry : list.split("\\|") ) {
+			entries.add( entry );
+		}
+
+	}
+
+	private void remove( String username ) {
+
+		for( int i = 0 ; i < entries.size() ; i++ ) {
+
+			String entry = entries.get( i );
+
+			if( entry.startsWith( username + "," ) ) {
+
+				entries.remove( i );
+				return;
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * @return The roster in the P_QUEUE_UPDATE format the QueuePanel draws from
+	 */
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		for( int i = 0 ; i < entries.size() ; i++ ) {
+
+			if( i > 0 ) { result.append( '|' ); }
+			result.append( entries.get( i ) );
+
+		}
+
+		return result.toString();
+
+	}
+
+}
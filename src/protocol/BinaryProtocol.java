@@ -0,0 +1,548 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary alternative to the text Protocol. Negotiated at login (see Protocol.CODEC_BINARY).
+ * <br>
+ * Every frame is a varint length followed by that many bytes. The first byte of a frame is the message type:
+ * <ul>
+ * <li>0 - 99: a generic message. The type is the numeric Protocol header (P_MOVE, P_LOGIN, ...), followed by
+ * a varint field count and the remaining fields as length-prefixed UTF-8 strings.</li>
+ * <li>T_MOVE and T_GAME_START: typed layouts for the in-game messages (see the Server's move and game start frames).</li>
+ * </ul>
+ * Integers are written as unsigned varints (7 bits per byte), values that can be negative are zig-zag encoded first.
+ * <br>
+ * Useful methods: encode(String... args), decode(byte[] frame), fromText(String message)
+ * @author Iliya Liksov
+ */
+public class BinaryProtocol {
+
+	// Typed frames. Generic messages use their (numeric) Protocol header as the type.
+	public static final int T_MOVE = 100;
+	public static final int T_GAME_START = 101;
+
+	// Headers that are not a number between 0 and 99 are sent as a string field instead
+	public static final int T_NAMED = 127;
+
+	// Nothing in the game comes close to this. Anything longer is treated as a broken stream.
+	public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+	// The header strings for the numeric types, so that decoding doesn't create a new String for every message
+	private static final String[] HEADERS = new String[ 100 ];
+
+	static {
+		for( int i = 0 ; i < HEADERS.length ; i++ ) {
+			HEADERS[ i ] = Integer.toString( i );
+		}
+	}
+
+	/**
+	 * Encode a message (same arguments as Protocol.encode) into a complete frame.
+	 * @param args The header followed by the message fields
+	 * @return The frame, ready to be written to the socket
+	 */
+	public static byte[] encode( String... args ) {
+
+		Writer out = new Writer( 16 + args.length * 8 );
+
+		int type = args.length > 0 ? headerType( args[ 0 ] ) : T_NAMED;
+
+		out.writeByte( type );
+
+		if( type == T_NAMED ) {
+
+			out.writeVarInt( args.length );
+			for( int i = 0 ; i < args.length ; i++ ) {
+				out.writeString( args[ i ] );
+			}
+
+		} else {
+
+			out.writeVarInt( args.length - 1 );
+			for( int i = 1 ; i < args.length ; i++ ) {
+				out.writeString( args[ i ] );
+			}
+
+		}
+
+		return out.toFrame();
+
+	}
+
+	/**
+	 * Re-encode a message built with Protocol.encode. Used for the (infrequent) messages that are built once
+	 * and sent to players using either codec.
+	 * @param message A message encoded with the text Protocol
+	 * @return The frame
+	 */
+	public static byte[] fromText( String message ) {
+
+		return encode( Protocol.decode( message ) );
+
+	}
+
+	/**
+	 * Decode a generic frame into the same array Protocol.decode would return.
+	 * @param frame The frame contents (without the length prefix)
+	 * @return The message fields, starting with the header. Typed frames return just their header.
+	 */
+	public static String[] decode( byte[] frame ) {
+
+		if( frame == null || frame.length == 0 ) {
+			return new String[ 0 ];
+		}
+
+		Reader in = new Reader( frame );
+		int type = in.readByte();
+
+		if( type == T_NAMED ) {
+
+			int count = readCount( in );
+			String[] result = new String[ count ];
+			for( int i = 0 ; i < count ; i++ ) {
+				result[ i ] = in.readString();
+			}
+			return result;
+
+		}
+
+		if( type >= HEADERS.length ) {
+			return new String[] { Integer.toString( type ) };
+		}
+
+		int count = readCount( in );
+		String[] result = new String[ count + 1 ];
+		result[ 0 ] = HEADERS[ type ];
+		for( int i = 1 ; i <= count ; i++ ) {
+			result[ i ] = in.readString();
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Read the number of fields of a generic frame, before the array for them is made.
+	 * Every field takes at least one byte (its length), so a frame can't have more fields than bytes left.
+	 * @throws IllegalArgumentException If the count is negative or larger than the rest of the frame
+	 */
+	private static int readCount( Reader in ) {
+
+		int count = in.readVarInt();
+
+		if( count < 0 || count > in.remaining() ) {
+			throw new IllegalArgumentException( "Invalid field count " + count );
+		}
+
+		return count;
+
+	}
+
+	/**
+	 * The type byte of a frame
+	 */
+	public static int type( byte[] frame ) {
+
+		return frame == null || frame.length == 0 ? -1 : frame[ 0 ] & 0xFF;
+
+	}
+
+	private static int headerType( String header ) {
+
+		int len = header.length();
+		if( len < 1 || len > 2 ) { return T_NAMED; }
+
+		int value = 0;
+		for( int i = 0 ; i < len ; i++ ) {
+
+			char c = header.charAt( i );
+			if( c < '0' || c > '9' ) { return T_NAMED; }
+			value = value * 10 + ( c - '0' );
+
+		}
+
+		// "07" would not come back as the same header
+		return HEADERS[ value ].equals( header ) ? value : T_NAMED;
+
+	}
+
+	/**
+	 * Builds a single frame. The length prefix is added by toFrame().
+	 */
+	public static class Writer {
+
+		private byte[] data;
+		private int length = 0;
+
+		public Writer( int capacity ) {
+
+			// Leave room for the length prefix in front of the payload
+			data = new byte[ Math.max( capacity , 16 ) + 5 ];
+			length = 5;
+
+		}
+
+		private void ensure( int extra ) {
+
+			if( length + extra > data.length ) {
+				data = Arrays.copyOf( data , Math.max( data.length * 2 , length + extra ) );
+			}
+
+		}
+
+		public void writeByte( int value ) {
+
+			ensure( 1 );
+			data[ length++ ] = (byte) value;
+
+		}
+
+		public void writeBoolean( boolean value ) {
+
+			writeByte( value ? 1 : 0 );
+
+		}
+
+		/**
+		 * Unsigned varint. Negative values take 5 bytes, use writeSignedVarInt for them.
+		 */
+		public void writeVarInt( int value ) {
+
+			ensure( 5 );
+
+			while( ( value & ~0x7F ) != 0 ) {
+				data[ length++ ] = (byte) ( ( value & 0x7F ) | 0x80 );
+				value >>>= 7;
+			}
+
+			data[ length++ ] = (byte) value;
+
+		}
+
+		/**
+		 * Zig-zag varint, -1 takes a single byte
+		 */
+		public void writeSignedVarInt( int value ) {
+
+			writeVarInt( ( value << 1 ) ^ ( value >> 31 ) );
+
+		}
+
+		public void writeString( String value ) {
+
+			if( value == null ) { value = ""; }
+
+			byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+			writeVarInt( bytes.length );
+			writeBytes( bytes , 0 , bytes.length );
+
+		}
+
+		public void writeBytes( byte[] bytes , int offset , int count ) {
+
+			ensure( count );
+			System.arraycopy( bytes , offset , data , length , count );
+			length += count;
+
+		}
+
+		/**
+		 * A grid of small values (maze cells), one byte per cell
+		 */
+		public void writeGrid( int[][] grid ) {
+
+			int rows = grid.length;
+			int cols = rows > 0 ? grid[ 0 ].length : 0;
+
+			writeVarInt( rows );
+			writeVarInt( cols );
+			ensure( rows * cols );
+
+			for( int i = 0 ; i < rows ; i++ ) {
+				for( int j = 0 ; j < cols ; j++ ) {
+					data[ length++ ] = (byte) grid[ i ][ j ];
+				}
+			}
+
+		}
+
+		/**
+		 * The same as writeGrid( int[][] ), read from a view
+		 */
+		public void writeGrid( GridView grid ) {
+
+			int rows = grid.getRows();
+			int cols = grid.getColumns();
+
+			writeVarInt( rows );
+			writeVarInt( cols );
+			ensure( rows * cols );
+
+			for( int i = 0 ; i < rows ; i++ ) {
+				for( int j = 0 ; j < cols ; j++ ) {
+					data[ length++ ] = (byte) grid.get( i , j );
+				}
+			}
+
+		}
+
+		/**
+		 * A grid of flags (coins), one bit per cell
+		 */
+		public void writeBitGrid( boolean[][] grid ) {
+
+			int rows = grid.length;
+			int cols = rows > 0 ? grid[ 0 ].length : 0;
+
+			writeVarInt( rows );
+			writeVarInt( cols );
+			ensure( ( rows * cols + 7 ) / 8 );
+
+			int bit = 0;
+			int current = 0;
+
+			for( int i = 0 ; i < rows ; i++ ) {
+				for( int j = 0 ; j < cols ; j++ ) {
+
+					if( grid[ i ][ j ] ) { current |= 1 << bit; }
+
+					if( ++bit == 8 ) {
+						data[ length++ ] = (byte) current;
+						bit = 0;
+						current = 0;
+					}
+
+				}
+			}
+
+			if( bit > 0 ) {
+				data[ length++ ] = (byte) current;
+			}
+
+		}
+
+		/**
+		 * The same as writeBitGrid( boolean[][] ), read from a view (any value but 0 is set)
+		 */
+		public void writeBitGrid( GridView grid ) {
+
+			int rows = grid.getRows();
+			int cols = grid.getColumns();
+
+			writeVarInt( rows );
+			writeVarInt( cols );
+			ensure( ( rows * cols + 7 ) / 8 );
+
+			int bit = 0;
+			int current = 0;
+
+			for( int i = 0 ; i < rows ; i++ ) {
+				for( int j = 0 ; j < cols ; j++ ) {
+
+					if( grid.get( i , j ) != 0 ) { current |= 1 << bit; }
+
+					if( ++bit == 8 ) {
+						data[ length++ ] = (byte) current;
+						bit = 0;
+						current = 0;
+					}
+
+				}
+			}
+
+			if( bit > 0 ) {
+				data[ length++ ] = (byte) current;
+			}
+
+		}
+
+		/**
+		 * Finish the frame: prepend the length and return exactly the bytes that need to be sent
+		 */
+		public byte[] toFrame() {
+
+			int payload = length - 5;
+
+			int prefix = 1;
+			for( int v = payload >>> 7 ; v != 0 ; v >>>= 7 ) {
+				prefix++;
+			}
+
+			int start = 5 - prefix;
+			int pos = start;
+			int value = payload;
+
+			while( ( value & ~0x7F ) != 0 ) {
+				data[ pos++ ] = (byte) ( ( value & 0x7F ) | 0x80 );
+				value >>>= 7;
+			}
+			data[ pos ] = (byte) value;
+
+			return Arrays.copyOfRange( data , start , length );
+
+		}
+
+	}
+
+	/**
+	 * Reads the fields of a single frame (the length prefix already removed, see FrameReader)
+	 */
+	public static class Reader {
+
+		private final byte[] data;
+		private int position = 0;
+
+		public Reader( byte[] data ) {
+
+			this.data = data;
+
+		}
+
+		private void need( int count ) {
+
+			if( count < 0 ) {
+				throw new IllegalArgumentException( "Invalid length " + count );
+			}
+
+			if( count > data.length - position ) {
+				throw new IllegalArgumentException( "Truncated frame" );
+			}
+
+		}
+
+		/**
+		 * Read the dimensions of a grid and check that its cells fit in the rest of the frame, before the grid is made
+		 * @param bits True if each cell takes one bit (writeBitGrid), False for one byte
+		 * @return The rows and the columns
+		 */
+		private int[] readDimensions( boolean bits ) {
+
+			int rows = readVarInt();
+			int cols = readVarInt();
+
+			// A grid without cells still makes an array for each row, so its rows are limited like the frame's bytes
+			if( rows < 0 || cols < 0 || rows > MAX_FRAME_LENGTH || cols > MAX_FRAME_LENGTH ) {
+				throw new IllegalArgumentException( "Invalid grid size " + rows + "x" + cols );
+			}
+
+			long cells = (long) rows * cols;
+			need( (int) Math.min( Integer.MAX_VALUE , bits ? ( cells + 7 ) / 8 : cells ) );
+
+			return new int[] { rows , cols };
+
+		}
+
+		public int readByte() {
+
+			need( 1 );
+			return data[ position++ ] & 0xFF;
+
+		}
+
+		public boolean readBoolean() {
+
+			return readByte() != 0;
+
+		}
+
+		public int readVarInt() {
+
+			int value = 0;
+
+			for( int shift = 0 ; shift < 35 ; shift += 7 ) {
+
+				int b = readByte();
+				value |= ( b & 0x7F ) << shift;
+
+				if( ( b & 0x80 ) == 0 ) { return value; }
+
+			}
+
+			throw new IllegalArgumentException( "Malformed varint" );
+
+		}
+
+		public int readSignedVarInt() {
+
+			int value = readVarInt();
+			return ( value >>> 1 ) ^ -( value & 1 );
+
+		}
+
+		public String readString() {
+
+			int count = readVarInt();
+			need( count );
+
+			String value = new String( data , position , count , StandardCharsets.UTF_8 );
+			position += count;
+
+			return value;
+
+		}
+
+		public int[][] readGrid() {
+
+			int[] size = readDimensions( false );
+			int rows = size[ 0 ];
+			int cols = size[ 1 ];
+
+			int[][] grid = new int[ rows ][ cols ];
+
+			for( int i = 0 ; i < rows ; i++ ) {
+				for( int j = 0 ; j < cols ; j++ ) {
+					grid[ i ][ j ] = data[ position++ ];
+				}
+			}
+
+			return grid;
+
+		}
+
+		/**
+		 * Read a grid written with writeBitGrid. Cells are 1 or 0 (the client keeps coins as ints).
+		 */
+		public int[][] readBitGrid() {
+
+			int[] size = readDimensions( true );
+			int rows = size[ 0 ];
+			int cols = size[ 1 ];
+
+			int[][] grid = new int[ rows ][ cols ];
+			int index = 0;
+
+			for( int i = 0 ; i < rows ; i++ ) {
+				for( int j = 0 ; j < cols ; j++ ) {
+
+					grid[ i ][ j ] = ( data[ position + ( index >> 3 ) ] >> ( index & 7 ) ) & 1;
+					index++;
+
+				}
+			}
+
+			position += ( index + 7 ) / 8;
+
+			return grid;
+
+		}
+
+		public boolean hasRemaining() {
+
+			return position < data.length;
+
+		}
+
+		/**
+		 * @return The number of bytes not read yet
+		 */
+		public int remaining() {
+
+			return data.length - position;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads either text Protocol lines or BinaryProtocol frames from the same stream.
+ * <br>
+ * A BufferedReader can't be used once the codec has been negotiated, because it reads ahead and would swallow
+ * the first binary frames. This reader only ever consumes the bytes of the message that was asked for.
+ * @author Iliya Liksov
+ */
+public class FrameReader {
+
+	private final InputStream in;
+
+	// The line being read (grows when needed)
+	private byte[] line = new byte[ 128 ];
+
+	public FrameReader( InputStream in ) {
+
+		this.in = new BufferedInputStream( in );
+
+	}
+
+	/**
+	 * @return True if at least part of a message can be read without blocking
+	 */
+	public boolean ready() throws IOException {
+
+		return in.available() > 0;
+
+	}
+
+	/**
+	 * Read a text line (without the line terminator)
+	 * @return The line, or null at the end of the stream
+	 */
+	public String readLine() throws IOException {
+
+		int length = 0;
+		int b;
+
+		while( ( b = in.read() ) != '\n' ) {
+
+			if( b < 0 ) {
+				return length == 0 ? null : new String( line , 0 , length , StandardCharsets.UTF_8 );
+			}
+
+			if( length == line.length ) {
+				line = Arrays.copyOf( line , length * 2 );
+			}
+
+			line[ length++ ] = (byte) b;
+
+		}
+
+		if( length > 0 && line[ length - 1 ] == '\r' ) {
+			length--;
+		}
+
+		return new String( line , 0 , length , StandardCharsets.UTF_8 );
+
+	}
+
+	/**
+	 * Read a binary frame
+	 * @return The frame contents without the length prefix, or null at the end of the stream
+	 * @throws IOException If the stream ends in the middle of a frame or the length is not valid
+	 */
+	public byte[] readFrame() throws IOException {
+
+		int length = 0;
+		int shift = 0;
+		int b;
+
+		do {
+
+			b = in.read();
+
+			if( b < 0 ) {
+				if( shift == 0 ) { return null; }
+				throw new EOFException( "Stream ended in a frame header" );
+			}
+
+			length |= ( b & 0x7F ) << shift;
+			shift += 7;
+
+			if( shift > 28 && ( b & 0x80 ) != 0 ) {
+				throw new IOException( "Malformed frame length" );
+			}
+
+		} while( ( b & 0x80 ) != 0 );
+
+		if( length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH ) {
+			throw new IOException( "Frame too long: " + length );
+		}
+
+		byte[] frame = new byte[ length ];
+		int read = 0;
+
+		while( read < length ) {
+
+			int count = in.read( frame , read , length - read );
+			if( count < 0 ) {
+				throw new EOFException( "Stream ended in a frame" );
+			}
+			read += count;
+
+		}
+
+		return frame;
+
+	}
+
+}
@@ -0,0 +1,166 @@
+package protocol;
+
+/**
+ * Compact text forms of whole maze grids, used when the full maze is sent once at the start of a game.
+ * Rows are not delimited, the receiver knows the maze size.
+ * <br>
+ * GridFormat is a static class that does not need to be instantiated.
+ * @author Iliya Liksov
+ */
+public class GridFormat {
+
+	/**
+	 * One base 36 digit per cell, row by row
+	 *
+	 * @param grid The cells (values 0 - 35)
+	 */
+	public static String encodeDigits( int[][] grid ) {
+
+		int rows = grid.length;
+		int cols = rows > 0 ? grid[ 0 ].length : 0;
+
+		StringBuilder result = new StringBuilder( rows * cols );
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			for( int j = 0 ; j < cols ; j++ ) {
+				result.append( Character.forDigit( grid[ i ][ j ] , 36 ) );
+			}
+		}
+
+		return result.toString();
+
+	}
+
+	/**
+	 * One base 36 digit per cell, row by row
+	 *
+	 * @param grid The cells (values 0 - 35)
+	 */
+	public static String encodeDigits( GridView grid ) {
+
+		int rows = grid.getRows();
+		int cols = grid.getColumns();
+
+		StringBuilder result = new StringBuilder( rows * cols );
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			for( int j = 0 ; j < cols ; j++ ) {
+				result.append( Character.forDigit( grid.get( i , j ) , 36 ) );
+			}
+		}
+
+		return result.toString();
+
+	}
+
+	public static int[][] decodeDigits( String data , int rows , int cols ) {
+
+		int[][] grid = new int[ rows ][ cols ];
+		int index = 0;
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			for( int j = 0 ; j < cols ; j++ ) {
+				grid[ i ][ j ] = Character.digit( data.charAt( index++ ) , 36 );
+			}
+		}
+
+		return grid;
+
+	}
+
+	/**
+	 * One hex digit per 4 cells, row by row. The lowest bit is the first cell.
+	 *
+	 * @param grid The flags (coins)
+	 */
+	public static String encodeBits( boolean[][] grid ) {
+
+		int rows = grid.length;
+		int cols = rows > 0 ? grid[ 0 ].length : 0;
+
+		StringBuilder result = new StringBuilder( ( rows * cols + 3 ) / 4 );
+
+		int bit = 0;
+		int current = 0;
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			for( int j = 0 ; j < cols ; j++ ) {
+
+				if( grid[ i ][ j ] ) { current |= 1 << bit; }
+
+				if( ++bit == 4 ) {
+					result.append( Character.forDigit( current , 16 ) );
+					bit = 0;
+					current = 0;
+				}
+
+			}
+		}
+
+		if( bit > 0 ) {
+			result.append( Character.forDigit( current , 16 ) );
+		}
+
+		return result.toString();
+
+	}
+
+	/**
+	 * One hex digit per 4 cells, row by row. The lowest bit is the first cell.
+	 *
+	 * @param grid The flags (coins), any value but 0 is set
+	 */
+	public static String encodeBits( GridView grid ) {
+
+		int rows = grid.getRows();
+		int cols = grid.getColumns();
+
+		StringBuilder result = new StringBuilder( ( rows * cols + 3 ) / 4 );
+
+		int bit = 0;
+		int current = 0;
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			for( int j = 0 ; j < cols ; j++ ) {
+
+				if( grid.get( i , j ) != 0 ) { current |= 1 << bit; }
+
+				if( ++bit == 4 ) {
+					result.append( Character.forDigit( current , 16 ) );
+					bit = 0;
+					current = 0;
+				}
+
+			}
+		}
+
+		if( bit > 0 ) {
+			result.append( Character.forDigit( current , 16 ) );
+		}
+
+		return result.toString();
+
+	}
+
+	/**
+	 * @return The flags as 1 or 0 (the client keeps coins as ints)
+	 */
+	public static int[][] decodeBits( String data , int rows , int cols ) {
+
+		int[][] grid = new int[ rows ][ cols ];
+		int index = 0;
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			for( int j = 0 ; j < cols ; j++ ) {
+
+				grid[ i ][ j ] = ( Character.digit( data.charAt( index >> 2 ) , 16 ) >> ( index & 3 ) ) & 1;
+				index++;
+
+			}
+		}
+
+		return grid;
+
+	}
+
+}
@@ -0,0 +1,21 @@
+package protocol;
+
+/**
+ * A read-only rectangle of a grid (e.g. the part of the maze a player can see).
+ * The cells are read where they are stored, so cropping a grid doesn't copy it.
+ * @author Iliya Liksov
+ */
+public interface GridView {
+
+	public int getRows();
+
+	public int getColumns();
+
+	/**
+	 * @param row The row in the view (0 is its top)
+	 * @param col The column in the view (0 is its left)
+	 * @return The cell's value (1 or 0 for a grid of flags)
+	 */
+	public int get( int row , int col );
+
+}
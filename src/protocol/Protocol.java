@@ -1,5 +1,7 @@
 package protocol;
 
+import java.util.ArrayList;
+
 /**
  * Used to encode and decode Strings for communicating across the network between client and server.<br>
  * Use the set of constants to prefix each message over the network. P_ comes before a command from Player to Server,
@@ -42,8 +44,23 @@ public class Protocol {
 	// This is used as a response from the server to move the player to the queue from the main panel
 	public static final String P_MOVE_TO_QUEUE = "26";
 	
+	// [stats][last game][ranks: rank,percentile for coins, points, wins and ratio, then the number of players]
 	public static final String P_GET_STATS = "36";
 	public static final String P_GET_TOPSCORES = "37";
+	// The top scores of the day, the week and the season: [day points][day coins][week points][week coins][season points][season coins]
+	public static final String P_GET_PERIOD_SCORES = "45";
+	
+	// Sent instead of P_GAME_START / P_MOVE to clients that asked for FEATURE_DELTA: the whole maze once, then only the changes
+	public static final String P_GAME_START_FULL = "40";
+	public static final String P_MOVE_DELTA = "41";
+	
+	// Sent instead of P_QUEUE_UPDATE to clients that asked for FEATURE_QUEUE_DELTA (see server.QueueRoster)
+	// [sequence][username,timestamp|...] - the whole queue, sent when the player joins and every now and then
+	public static final String P_QUEUE_SNAPSHOT = "42";
+	// [sequence][joined username,timestamp|...][left username|...] - the changes since the previous sequence number
+	public static final String P_QUEUE_DELTA = "43";
+	// Sent by a client that missed a P_QUEUE_DELTA (the sequence number skipped one). Answered with a P_QUEUE_SNAPSHOT
+	public static final String P_QUEUE_RESYNC = "44";
 	
 	/**
 	 * Player requests a move
@@ -76,18 +93,54 @@ public class Protocol {
 	 */
 	public static final String P_SIGNUP = "4";
 	 
-	private static String escape(String str){
-		str = str.replace("\\", "\\\\");
-		str = str.replace("_", "\\_");
-		str = str.replace("\n", "\\n");
-		return str;
+	/**
+	 * Appended to a login request by clients that can speak the BinaryProtocol, and echoed back
+	 * in the login response if the server agrees to switch to it.
+	 */
+	public static final String CODEC_BINARY = "binary";
+	
+	/**
+	 * Login feature: the client crops the maze itself, so the server sends the whole maze at game start and only changes after that.
+	 * Negotiated the same way as CODEC_BINARY (every field after the password is a requested feature).
+	 */
+	public static final String FEATURE_DELTA = "delta";
+	
+	/**
+	 * Login feature: the client keeps the queue's roster itself, so the server only sends who joined and left (P_QUEUE_DELTA)
+	 * instead of the whole queue after every change.
+	 */
+	public static final String FEATURE_QUEUE_DELTA = "queuedelta";
+	
+	private static final String SEPARATOR = ":__:";
+	
+	private static void escape(String str, StringBuilder out){
+		int len = str.length();
+		for(int i=0; i<len; i++){
+			char c = str.charAt(i);
+			if(c == '\\') out.append("\\\\");
+			else if(c == '_') out.append("\\_");
+			else if(c == '\n') out.append("\\n");
+			else out.append(c);
+		}
 	}
 	
 	private static String unescape(String str){
-		str = str.replace("\\\\", "\\");
-		str = str.replace("\\_", "_");
-		str = str.replace("\\n", "\n");
-		return str;
+		// Most fields don't contain any escaped characters
+		if(str.indexOf('\\') < 0) return str;
+		int len = str.length();
+		StringBuilder out = new StringBuilder(len);
+		for(int i=0; i<len; i++){
+			char c = str.charAt(i);
+			if(c == '\\' && i + 1 < len){
+				char next = str.charAt(++i);
+				if(next == 'n') out.append('\n');
+				else if(next == '_' || next == '\\') out.append(next);
+				else out.append(c).append(next);
+			} else {
+				out.append(c);
+			}
+		}
+		return out.toString();
 	}
 	
 	/**
@@ -96,17 +149,33 @@ public class Protocol {
 	 * @return A single encoded String containing all elements of args.
 	 */
 	public static String encode (String... args) {
-		String result = "";
-		for(String str: args){
-			if(result!="") result = result + ":__:";
-			result = result + escape(str);
+		StringBuilder result = new StringBuilder();
+		for(int i=0; i<args.length; i++){
+			if(i > 0) result.append(SEPARATOR);
+			escape(args[i], result);
 		}
 		//System.out.println("send: " + result);
-		return result;
+		return result.toString();
 	}
-	
+
+	/**
+	 * Add more arguments to an already encoded message.
+	 * @param message A message that was encoded using this protocol
+	 * @param args The arguments to add after the message's own
+	 * @return The same as encoding the message's arguments and args together.
+	 */
+	public static String append (String message, String... args) {
+		StringBuilder result = new StringBuilder(message);
+		for(int i=0; i<args.length; i++){
+			result.append(SEPARATOR);
+			escape(args[i], result);
+		}
+		return result.toString();
+	}
+
 	/**
 	 * Convert the given encoded message into an array of Strings.
+	 * Empty trailing fields are dropped (same as String.split).
 	 * @param message a message that was encoded using this protocol
 	 * @return A String array with the correct number of elements.
 	 */
@@ -115,14 +184,19 @@ public class Protocol {
 		if(str == null || str.equals("")){
 			return new String[0];
 		}
-		String[] messages = str.split(":__:");
-		for(int i=0; i<messages.length; i++){
-			messages[i] = unescape(messages[i]);
+		ArrayList<String> messages = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while((end = str.indexOf(SEPARATOR, start)) >= 0){
+			messages.add(unescape(str.substring(start, end)));
+			start = end + SEPARATOR.length();
 		}
-		if(messages.length == 1 && messages[0].equals("")){
-			return new String[0];
+		messages.add(unescape(str.substring(start)));
+		int count = messages.size();
+		while(count > 0 && messages.get(count - 1).isEmpty()){
+			count--;
 		}
-		return messages;
+		return messages.subList(0, count).toArray(new String[count]);
 	}
 	
 	 
@@ -2,13 +2,278 @@ package protocol;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import org.junit.jupiter.api.Test;
 
 class ProtocolTests {
 
+	// An input stream that returns one byte per read, like a socket that receives a frame in pieces
+	private static class Trickle extends InputStream {
+
+		private final byte[] data;
+		private int position = 0;
+
+		Trickle(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			int value = read();
+			if (value < 0) return -1;
+			b[off] = (byte) value;
+			return 1;
+		}
+
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+	// The contents of a frame, without its length prefix
+	private static byte[] payload(byte[] frame) throws IOException {
+		return new FrameReader(new ByteArrayInputStream(frame)).readFrame();
+	}
+
+	private static char[] repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return chars;
+	}
+
+// BinaryProtocol
+	// encode() / decode()
+	@Test
+	void genericFrameRoundTrip() throws IOException {
+		String[][] messages = {
+			{Protocol.P_LOGIN, "player", "pässwörd", "", "a|b,c"},
+			{Protocol.P_MOVE, "3"},
+			{Protocol.P_QUIT},
+			// not a number between 0 and 99, sent as a named header
+			{"abc", "1"},
+			// would come back as "7" if it was sent as a number
+			{"07", "x"},
+		};
+		for (String[] message : messages) {
+			byte[] frame = BinaryProtocol.encode(message);
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(frame));
+			assertArrayEquals(message, BinaryProtocol.decode(reader.readFrame()));
+			assertNull(reader.readFrame());
+		}
+		assertEquals(BinaryProtocol.T_NAMED, BinaryProtocol.type(payload(BinaryProtocol.encode("07", "x"))));
+		assertEquals(0, BinaryProtocol.type(payload(BinaryProtocol.encode(Protocol.P_MOVE, "1"))));
+	}
+
+	// fromText()
+	@Test
+	void fromTextMatchesTheTextMessage() throws IOException {
+		String text = Protocol.encode(Protocol.P_GET_STATS, "1,2,3", "a|b", "null");
+		assertArrayEquals(Protocol.decode(text), BinaryProtocol.decode(payload(BinaryProtocol.fromText(text))));
+	}
+
+	// Writer.toFrame() length prefix
+	@Test
+	void frameLengthPrefix() throws IOException {
+		// 127 bytes fit in one byte of length prefix, 128 need two, 16384 need three
+		int[] lengths = {0, 1, 127, 128, 300, 16383, 16384, 70000};
+		for (int length : lengths) {
+			BinaryProtocol.Writer out = new BinaryProtocol.Writer(4);
+			for (int i = 0; i < length; i++) {
+				out.writeByte(i);
+			}
+			byte[] frame = out.toFrame();
+			int prefix = length < 128 ? 1 : length < 16384 ? 2 : 3;
+			assertEquals(prefix + length, frame.length);
+			byte[] payload = payload(frame);
+			assertEquals(length, payload.length);
+			for (int i = 0; i < length; i++) {
+				assertEquals((byte) i, payload[i]);
+			}
+		}
+	}
+
+	// Writer / Reader varints
+	@Test
+	void varIntRoundTrip() throws IOException {
+		int[] values = {0, 1, 63, 64, 127, 128, 255, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE, -1, -64, -65, Integer.MIN_VALUE};
+		BinaryProtocol.Writer out = new BinaryProtocol.Writer(16);
+		for (int value : values) {
+			out.writeVarInt(value);
+			out.writeSignedVarInt(value);
+		}
+		BinaryProtocol.Reader in = new BinaryProtocol.Reader(payload(out.toFrame()));
+		for (int value : values) {
+			assertEquals(value, in.readVarInt());
+			assertEquals(value, in.readSignedVarInt());
+		}
+		assertFalse(in.hasRemaining());
+
+		// -1 takes a single byte zig-zag encoded, and five bytes unsigned
+		BinaryProtocol.Writer signed = new BinaryProtocol.Writer(16);
+		signed.writeSignedVarInt(-1);
+		assertEquals(2, signed.toFrame().length);
+		BinaryProtocol.Writer unsigned = new BinaryProtocol.Writer(16);
+		unsigned.writeVarInt(-1);
+		assertEquals(6, unsigned.toFrame().length);
+	}
+
+	// Reader
+	@Test
+	void truncatedFrameIsRejected() throws IOException {
+		byte[] frame = payload(BinaryProtocol.encode(Protocol.P_LOGIN, "player", "password"));
+		// Without the last byte of the last field
+		try {
+			BinaryProtocol.decode(Arrays.copyOf(frame, frame.length - 1));
+			fail("A truncated frame was decoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	// A field count or a length that is negative or larger than the frame is rejected before anything is allocated
+	@Test
+	void invalidCountsAreRejected() {
+		byte[][] frames = {
+			// A generic frame with a negative count (0xFFFFFFFE)
+			{5, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+			// A named frame with a negative count
+			{(byte) BinaryProtocol.T_NAMED, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+			// About 2^30 fields in a few bytes
+			{5, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04, 0},
+			{(byte) BinaryProtocol.T_NAMED, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04, 0},
+			// One field more than the bytes left
+			{5, 3, 0, 0},
+			// A string with a negative length
+			{5, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+		};
+		for (byte[] frame : frames) {
+			try {
+				BinaryProtocol.decode(frame);
+				fail("An invalid count was accepted: " + Arrays.toString(frame));
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		// As many empty fields as bytes left is still a valid frame
+		assertArrayEquals(new String[] {Protocol.P_MOVE, "", ""}, BinaryProtocol.decode(new byte[] {0, 2, 0, 0}));
+	}
+
+	// Reader.readGrid() / readBitGrid()
 	@Test
-	void test() {
+	void invalidGridSizesAreRejected() throws IOException {
+		int[][] sizes = {{-1, 4}, {4, -1}, {65536, 65536}, {Integer.MAX_VALUE, 2}, {BinaryProtocol.MAX_FRAME_LENGTH + 1, 0}, {3, 3}};
+		for (int[] size : sizes) {
+			BinaryProtocol.Writer out = new BinaryProtocol.Writer(16);
+			out.writeVarInt(size[0]);
+			out.writeVarInt(size[1]);
+			out.writeByte(1);
+			byte[] frame = payload(out.toFrame());
+			try {
+				new BinaryProtocol.Reader(frame).readGrid();
+				fail("A grid of " + size[0] + "x" + size[1] + " was read");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			try {
+				new BinaryProtocol.Reader(frame).readBitGrid();
+				fail("A bit grid of " + size[0] + "x" + size[1] + " was read");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		// 3x3 bits fit in the two bytes left
+		BinaryProtocol.Writer out = new BinaryProtocol.Writer(16);
+		out.writeVarInt(3);
+		out.writeVarInt(3);
+		out.writeByte(0xFF);
+		out.writeByte(1);
+		int[][] bits = new BinaryProtocol.Reader(payload(out.toFrame())).readBitGrid();
+		for (int[] row : bits) {
+			assertArrayEquals(new int[] {1, 1, 1}, row);
+		}
+	}
+
+// FrameReader
+	// readLine() and readFrame() on the same stream, one byte at a time
+	@Test
+	void partialReads() throws IOException {
+		String login = Protocol.encode(Protocol.P_LOGIN, "player", "password", Protocol.CODEC_BINARY);
+		String big = new String(repeat('x', 5000));
+		byte[] stream = concat(
+				(login + "\r\n").getBytes(StandardCharsets.UTF_8),
+				BinaryProtocol.encode(Protocol.P_MOVE, "2"),
+				BinaryProtocol.encode(Protocol.P_GET_STATS, big),
+				BinaryProtocol.encode(Protocol.P_FIRE));
+		FrameReader reader = new FrameReader(new Trickle(stream));
+		assertEquals(login, reader.readLine());
+		assertArrayEquals(new String[] {Protocol.P_MOVE, "2"}, BinaryProtocol.decode(reader.readFrame()));
+		assertArrayEquals(new String[] {Protocol.P_GET_STATS, big}, BinaryProtocol.decode(reader.readFrame()));
+		assertArrayEquals(new String[] {Protocol.P_FIRE}, BinaryProtocol.decode(reader.readFrame()));
+		// A clean end of the stream between two frames
+		assertNull(reader.readFrame());
+	}
 
+	@Test
+	void linesWithoutTerminator() throws IOException {
+		FrameReader reader = new FrameReader(new Trickle("first\nsecond".getBytes(StandardCharsets.UTF_8)));
+		assertEquals("first", reader.readLine());
+		assertEquals("second", reader.readLine());
+		assertNull(reader.readLine());
+	}
+
+	@Test
+	void streamEndsInAFrame() {
+		byte[] frame = BinaryProtocol.encode(Protocol.P_GET_STATS, new String(repeat('y', 200)));
+		// In the middle of the contents, and in the middle of the two byte length prefix
+		byte[][] broken = {Arrays.copyOf(frame, frame.length - 1), Arrays.copyOf(frame, 1)};
+		for (byte[] stream : broken) {
+			try {
+				new FrameReader(new Trickle(stream)).readFrame();
+				fail("A frame cut short was read");
+			} catch (EOFException e) {
+				// expected
+			} catch (IOException e) {
+				fail("Not reported as the end of the stream: " + e);
+			}
+		}
+	}
+
+	@Test
+	void invalidFrameLength() {
+		// One more than the longest frame allowed, and a length prefix that never ends
+		int length = BinaryProtocol.MAX_FRAME_LENGTH + 1;
+		byte[][] invalid = {
+			{(byte) ((length & 0x7F) | 0x80), (byte) (((length >>> 7) & 0x7F) | 0x80), (byte) (length >>> 14)},
+			{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0},
+		};
+		for (byte[] stream : invalid) {
+			try {
+				new FrameReader(new ByteArrayInputStream(stream)).readFrame();
+				fail("An invalid frame length was accepted");
+			} catch (EOFException e) {
+				fail("Reported as the end of the stream: " + e);
+			} catch (IOException e) {
+				// expected
+			}
+		}
 	}
 
 }
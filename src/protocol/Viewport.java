@@ -0,0 +1,105 @@
+package protocol;
+
+/**
+ * The rectangle of the maze a player can see. Shared by the server (which crops the maze for each player)
+ * and the client (which crops it locally when it has been sent the whole maze).
+ * <br>
+ * Viewport is a static class that does not need to be instantiated.
+ * @author Iliya Liksov
+ */
+public class Viewport {
+
+	/**
+	 * Calculate the boundaries of the visible rectangle around a position.
+	 * The rectangle always has the same size; near a border of the maze it is moved instead of cut.
+	 *
+	 * @param mazeSize The number of rows (and columns) in the maze
+	 * @param x The row of the position
+	 * @param y The column of the position
+	 * @param xLimit The number of rows visible above and below the position
+	 * @param yLimit The number of columns visible left and right of the position
+	 * @return The top, bottom, left and right boundaries (inclusive)
+	 */
+	public static int[] boundaries( int mazeSize , int x , int y , int xLimit , int yLimit ) {
+
+		// Make sure at least one neighboring cell is visible in each direction from the player
+		if( xLimit < 1 ) {
+			xLimit = 1;
+		}
+
+		if( yLimit < 1 ) {
+			yLimit = 1;
+		}
+
+		int leftLimit = y - yLimit;
+		int rightLimit = y + yLimit;
+
+		if( leftLimit < 0 ) { leftLimit = 0; }
+		if( rightLimit >= mazeSize ) { rightLimit = mazeSize - 1; }
+
+		int topLimit = x - xLimit;
+		if( topLimit < 0 ) { topLimit = 0; }
+
+		int bottomLimit = x + xLimit;
+		if( bottomLimit >= mazeSize ) { bottomLimit = mazeSize - 1; }
+
+		// Always show the set amount of rows and columns even if the position is near a border of the maze
+		// This is done by expanding one side when the other is shorter than expected.
+		if( y - leftLimit < yLimit ) {
+			rightLimit += yLimit - (y - leftLimit);
+		}
+
+		if( rightLimit - y < yLimit ) {
+			leftLimit -= yLimit - (rightLimit - y);
+		}
+
+		if( x - topLimit < xLimit ) {
+			bottomLimit += xLimit - (x - topLimit);
+		}
+
+		if( bottomLimit - x < xLimit ) {
+			topLimit -= xLimit - (bottomLimit - x);
+		}
+
+		return new int[] { topLimit , bottomLimit , leftLimit , rightLimit };
+
+	}
+
+	/**
+	 * Copy the visible part of a grid
+	 *
+	 * @param grid The full grid
+	 * @param boundaries The boundaries returned by boundaries()
+	 * @return The cropped grid
+	 */
+	public static int[][] crop( int[][] grid , int[] boundaries ) {
+
+		int rows = (boundaries[1] - boundaries[0]) + 1;
+		int cols = (boundaries[3] - boundaries[2]) + 1;
+
+		int[][] cropped = new int[ rows ][ cols ];
+
+		for( int i = 0 ; i < rows ; i++ ) {
+			System.arraycopy( grid[ boundaries[0] + i ] , boundaries[2] , cropped[ i ] , 0 , cols );
+		}
+
+		return cropped;
+
+	}
+
+	/**
+	 * Convert a position in the maze to a position in the visible rectangle
+	 *
+	 * @return The row and column inside the rectangle, or -1,-1 if the position is not visible
+	 */
+	public static int[] relative( int x , int y , int[] boundaries ) {
+
+		if( x < boundaries[ 0 ] || x > boundaries[ 1 ] || y < boundaries[ 2 ] || y > boundaries[ 3 ] ) {
+			return new int[] { -1 , -1 };
+		}
+
+		return new int[] { x - boundaries[ 0 ] , y - boundaries[ 2 ] };
+
+	}
+
+}
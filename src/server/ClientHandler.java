@@ -1,10 +1,8 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import protocol.Protocol;
@@ -12,17 +10,33 @@ import protocol.Protocol;
 /**
  * Handler class created when a new thread (user connection) is established
  * 
+ * The same handler is used by the NIO engine. In that case there is no thread per connection,
+ * the engine frames each line and passes it to handleRequest().
+ * 
  * @author Iliya Liksov
  *
  */
 public class ClientHandler implements Runnable {
 	
 	private Socket socket;
+	private NioConnection connection;
 	private final Server server;
 	private Player player;
 	
 	private boolean loggedIn;
 	
+	// The thread running this handler (thread and virtual modes)
+	private volatile Thread runner;
+	
+	// Liveness of the connection (see Heartbeat)
+	// When the last message from the client arrived and when it was last pinged (System.nanoTime)
+	protected volatile long lastInbound = System.nanoTime();
+	protected volatile long pingSent = lastInbound;
+	// Set when the client has been pinged and the answer hasn't arrived yet
+	protected volatile boolean pingOutstanding = false;
+	// The connection's deadline on the server's timing wheel (null if not watched). Guarded by this
+	protected TimingWheel.Timeout liveness;
+	
 	/**
 	 * Constructor for handler class
 	 * 
@@ -40,8 +54,34 @@ public class ClientHandler implements Runnable {
 		
 	}
 	
+	/**
+	 * Constructor for a handler driven by the NIO engine
+	 * 
+	 * @param server The reference to the server object
+	 * @param connection The non-blocking connection this handler reads from
+	 */
+	public ClientHandler( Server server , NioConnection connection ) {
+		
+		this.server = server;
+		this.connection = connection;
+		this.player = new Player( connection , null , this , server.getCurrentTimeStamp() );
+		
+		this.loggedIn = false;
+		
+	}
+	
+	/**
+	 * Stop this handler. Closing the socket unblocks a read that is in progress.
+	 * Can be called from any thread.
+	 */
 	public void stop() {
-		Thread.currentThread().interrupt();
+		
+		if( runner != null ) {
+			runner.interrupt();
+		}
+		
+		player.close();
+		
 	}
 	
 	
@@ -54,346 +94,483 @@ public class ClientHandler implements Runnable {
 		
 		System.out.println("Starting thread runnable...");
 		
+		runner = Thread.currentThread();
+		
+		// The thread blocks on the read (only this thread ever reads from the socket).
+		// Dead clients are noticed by the heartbeat, which closes the socket and so ends the read.
 		try {
 			
-			// Input and Output pairs
-			PrintWriter toClient = new PrintWriter( socket.getOutputStream() );
-			BufferedReader fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			
-			 
-			// Output message to send to the client (declared once to avoid re-allocating memory)
-			String request, output;
-			
+			String[] request;
 			
 			// Listen for input streams
-			while( !socket.isClosed() ) {
-			 
-				// If the current input stream is not ready yet, skip this iteration
-				if( !fromClient.ready() ) { continue; }
+			while( !socket.isClosed() && !runner.isInterrupted() ) {
 				
-				request = fromClient.readLine();
+				request = player.readMessage();
 				 
-				// Skip this iteration if the input stream is null
-				if( request == null ) { continue; }
-				
-				// Get the client's local port 
-				int localPort = socket.getPort();
+				// The client has closed the connection
+				if( request == null ) { break; }
 				
-				// Decode the message into an array using the protocol
-				String decoded[] = Protocol.decode( request );
+				// Stop listening if the request asked for the connection to be closed
+				if( !handleRequest( request ) ) { break; }
 				
-				// No null messages or messages with no header allowed
-				if( decoded == null || decoded.length < 1 ) { continue; }
-							
-				String requestType = decoded[0];
-				  
-				// Every iteration of the loop, reset the outputData string
-				output = "";
+			}
+			
+		} catch ( IOException e ) {
+			 
+			// A closed socket is the normal way for the handler to stop
+			
+		} finally {
+			
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			disconnected();
+			
+		}
+					
+	}
+	
+	/**
+	 * Called once the connection has been closed (by either side) by the NIO engine or a blocking handler.
+	 * Logs the player out and removes them from wherever they are on the server.
+	 */
+	protected void disconnected() {
+		
+		if( server.heartbeat != null ) {
+			server.heartbeat.unwatch( this );
+		}
+		
+		if( !loggedIn ) { return; }
+		
+		loggedIn = false;
+		server.disconnectPlayer( player );
+		
+	}
+	
+	/**
+	 * Queue a message to the client (used by the heartbeat)
+	 * 
+	 * @param message The encoded message
+	 */
+	protected void send( String message ) {
+		
+		player.send( message );
+		
+	}
+	
+	protected String getUsername() {
+		
+		return player.username;
+		
+	}
+	
+	/**
+	 * The remote port of the client (used to identify the connection on login)
+	 * 
+	 * @return The client's port
+	 */
+	private int getRemotePort() {
+		
+		return connection != null ? connection.getRemotePort() : socket.getPort();
+		
+	}
+	
+	/**
+	 * Handle a single request sent by the client.
+	 * 
+	 * @param decoded The message received from the client, already decoded by whichever codec the client uses
+	 * @return False if the connection should be closed, true otherwise
+	 */
+	protected boolean handleRequest( String[] decoded ) {
+		
+		long received = System.nanoTime();
+		lastInbound = received;
+		
+		// Get the client's local port 
+		int localPort = getRemotePort();
+		
+		// No null messages or messages with no header allowed
+		if( decoded == null || decoded.length < 1 ) { return true; }
+					
+		String requestType = decoded[0];
+		
+		// The answer to a ping sent by this handler. Don't answer it, otherwise the client and server would keep pinging each other
+		if( pingOutstanding && requestType.equals( Protocol.P_CONNECTION_TEST ) ) {
+			
+			pingOutstanding = false;
+			return true;
+			
+		}
+		  
+		// Output message to send to the client
+		String output = "";
+		 
+		// If the user is not logged in, consider the login/register requests
+		if( !loggedIn ) {
+		
+			// Login and register requests need a username and a password
+			if( decoded.length < 3 ) { return true; }
+			
+			String username = decoded[1].trim();	// remove whitespace from edges of strings
+			String password = decoded[2].trim();
+			
+			// If user login attempt
+			if( requestType.equals( Protocol.P_LOGIN ) ) {
 				 
-				// If the user is not logged in, consider the login/register requests
-				if( !loggedIn ) {
+				int loginAttempt;
 				
-					String username = decoded[1].trim();	// remove whitespace from edges of strings
-					String password = decoded[2].trim();
+				// Claim the username first, so a client that is already logged in is turned away without asking the database
+				// (and two clients logging in with the same username at the same time can't both succeed)
+				if( !server.registry.claim( username , player ) ) {
 					
-					// If user login attempt
-					if( requestType.equals( Protocol.P_LOGIN ) ) {
-						 
-						// Attempt to login this user
-						int loginAttempt = server.db.login( username , password , localPort );
+					loginAttempt = -3;
+					
+				} else {
+					
+					// Attempt to login this user
+					loginAttempt = server.db.login( username , password , localPort );
+					
+					if( loginAttempt != 1 ) {
+						server.registry.release( username , player );
+					}
+					
+				}
+				
+				// If login is successful => Add player to lobby queue and start their thread
+				if( loginAttempt == 1 ) {
+					
+					// Set the username for this player (on the thread)
+					player.username = username;
+					player.timestamp = server.getCurrentTimeStamp(); 
+					// Important flag. Makes sure the thread skips over the auth section if the user is logged in already
+					loggedIn = true;
+					
+					// Ping the client whenever it goes quiet
+					if( server.heartbeat != null ) {
+						server.heartbeat.watch( this );
+					}
+					 
+					// Add player to active players list
+					server.registry.register( player );
+					int numActive = server.registry.size();
+					
+					// Send back the message that the user has logged in so that they can switch panels
+					// From now on messages are queued and written by the writer pool, so a slow client can't block the sender
+					if( server.writers != null ) {
+						
+						player.outbound = new OutboundQueue( player , server.writers , Constraints.outboundQueueLimit , Constraints.slowConsumerPolicy );
 						
-						// If login is successful => Add player to lobby queue and start their thread
-						if( loginAttempt == 1 ) {
+						if( connection != null ) {
+							connection.setOutboundQueue( player.outbound );
+						}
+						
+					}
+					
+					// Clients list the features they support after the password. The accepted ones are listed in the response.
+					boolean binary = false;
+					ArrayList<String> response = new ArrayList<String>( Arrays.asList( Protocol.P_LOGIN , "true" , "Login successful. Welcome, " + username + "!" , ""+numActive ) );
+					
+					for( int i = 3 ; i < decoded.length ; i++ ) {
+						
+						if( decoded[ i ].equals( Protocol.CODEC_BINARY ) && Constraints.allowBinaryProtocol && !binary ) {
 							
-							// Set the username for this player (on the thread)
-							player.username = username;
-							player.timestamp = server.getCurrentTimeStamp(); 
-							// Important flag. Makes sure the thread skips over the auth section if the user is logged in already
-							loggedIn = true;
-							 
-							// Add player to active players list
-							int numActive = 0;
-							synchronized( server.active ) {
-								server.active.add( player );
-								numActive = server.active.size();
-							}
+							binary = true;
+							response.add( Protocol.CODEC_BINARY );
 							
-							// Send back the message that the user has logged in so that they can switch panels
-							output = Protocol.encode( Protocol.P_LOGIN , "true" , "Login successful. Welcome, " + username + "!" , ""+numActive );
-							toClient.println( output );
-							toClient.flush();
+						} else if( decoded[ i ].equals( Protocol.FEATURE_DELTA ) && Constraints.allowDeltaUpdates && !player.delta ) {
 							
-							continue;
-							  
+							player.delta = true;
+							response.add( Protocol.FEATURE_DELTA );
 							
-						} // If login failed => return message to client and close socket
-						else if( loginAttempt < 1 ) {
+						} else if( decoded[ i ].equals( Protocol.FEATURE_QUEUE_DELTA ) && Constraints.allowQueueDeltas && !player.queueDelta ) {
 							
-							if( loginAttempt == 0 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , 
-														  "false" , 
-														  "Username must be between " 
-														  + Constraints.usernameMinLength 
-														  + " and " 
-														  + Constraints.usernameMaxLength
-														  + " characters, and password between "
-														  + Constraints.passwordMinLength + " and "
-														  + Constraints.passwordMaxLength
-														);
-	
-								
-							} else if ( loginAttempt == -1 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , "false" , "The username and password must be alphanumeric!" );
-								
-							} else if( loginAttempt == -2 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , "false" , "This username does not exist in the database." );
-								
-							} else if( loginAttempt == -3 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , "false" , "This user has already connected from a different client." );
-								
-							} else if( loginAttempt == -4 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , "false" , "The password for this username is incorrect!" );
-								
-							} else if( loginAttempt == -5 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , "false" , "There was a problem with the database." );
-								
-							} else if( loginAttempt == -6 ) {
-								
-								output = Protocol.encode( Protocol.P_LOGIN , "false" , "There was a problem with input processing." );
-								
-							}
+							player.queueDelta = true;
+							response.add( Protocol.FEATURE_QUEUE_DELTA );
 							
-							// Do not send empty messages
-							if( output.length() > 0 ) {
-								// Send the message back to the client GUI
-								toClient.println( output );
-								toClient.flush();
-								// Close the socket if the login has not been successful
-								socket.close();
-								break; // Needs testing - is it necessary?
-		
-							}
-							 
 						}
 						
-						 
+					}
+					
+					output = Protocol.encode( response.toArray( new String[ response.size() ] ) );
+					
+					if( binary ) {
+						player.useBinaryProtocol( output );
+					} else {
+						player.send( output );
+					}
+					
+					return true;
+					  
+					
+				} // If login failed => return message to client and close socket
+				else if( loginAttempt < 1 ) {
+					
+					if( loginAttempt == 0 ) {
+						
+						output = Protocol.encode( Protocol.P_LOGIN , 
+												  "false" , 
+												  "Username must be between " 
+												  + Constraints.usernameMinLength 
+												  + " and " 
+												  + Constraints.usernameMaxLength
+												  + " characters, and password between "
+												  + Constraints.passwordMinLength + " and "
+												  + Constraints.passwordMaxLength
+												);
+	
 						
-					} // If user sign in attempt
-					else if( requestType.equals( Protocol.P_SIGNUP ) ) {
+					} else if ( loginAttempt == -1 ) {
 						
-						// Attempt to register this user
-						int regAttempt = server.db.register( username , password );
+						output = Protocol.encode( Protocol.P_LOGIN , "false" , "The username and password must be alphanumeric!" );
 						
-						// If registration is successful
-						if( regAttempt == 1 ) {
-							
-							output = Protocol.encode( Protocol.P_SIGNUP, "true" , "Registration successful." );
-							
-						} 
-						// If registration is not successful
-						else if( regAttempt < 1 ) {
-							
-							if( regAttempt == 0 ) {
-								
-								output = Protocol.encode( Protocol.P_SIGNUP, 
-														  "false" , 
-														  "Username must be between " 
-														  + Constraints.usernameMinLength 
-														  + " and " 
-														  + Constraints.usernameMaxLength
-														  + " characters, and password between "
-														  + Constraints.passwordMinLength + " and "
-														  + Constraints.passwordMaxLength 
-														);
-								
-							} else if( regAttempt == -1 ) {
-								
-								output = Protocol.encode( Protocol.P_SIGNUP, "false" , "The username and password must be alphanumeric!" );
-								
-							} else if( regAttempt == -2 ) {
-								
-								output = Protocol.encode( Protocol.P_SIGNUP, "false" , "The username is already taken!" );
-								
-							} else if( regAttempt == -3 ) {
-								
-								output = Protocol.encode( Protocol.P_SIGNUP, "false" , "There was a problem with the database." );
-								
-							} else if( regAttempt == -4 ) {
-								
-								output = Protocol.encode( Protocol.P_SIGNUP, "false" , "There was a problem with input processing." );
-								
-							} 
-							
-						}
+					} else if( loginAttempt == -2 ) {
 						
-						// Do not send empty messages
-						if( output.length() > 0 ) {
-							// Send the message back to the client GUI
-							toClient.println( output );
-							toClient.flush();
-							// Close the socket after registration request regardless of the outcome
-							socket.close();
-							break; // Needs testing - is it necessary?
-	
-						}
+						output = Protocol.encode( Protocol.P_LOGIN , "false" , "This username does not exist in the database." );
 						
+					} else if( loginAttempt == -3 ) {
 						
+						output = Protocol.encode( Protocol.P_LOGIN , "false" , "This user has already connected from a different client." );
 						
-					}
-				
-				
-				} 
-				// If the user is logged in, check for 
-				else {
-					
-					// The client wants to terminate the connection
-					if( decoded[ 0 ].equals( Protocol.P_QUIT ) ) {
+					} else if( loginAttempt == -4 ) {
 						
-						// Log this user out from the database
-						server.db.logout( player.username );
-						loggedIn = false;
+						output = Protocol.encode( Protocol.P_LOGIN , "false" , "The password for this username is incorrect!" );
 						
-						// Remove the player from the active players list
-						synchronized( server.active ) {
-							server.active.remove( player );
-						}
-						 
-						// Remove the player from wherever he is in the server (queue/lobby/etc)
-						server.removePlayer( player );
-					 
-						 
-						// Close the socket finally and interrupt the thread						
-						socket.close();
-						Thread.currentThread().interrupt();
-						break;
+					} else if( loginAttempt == -5 ) {
 						
-					} else if( decoded[0].equals( Protocol.P_CONNECTION_TEST ) ) {
-							
-						toClient.println( Protocol.encode( Protocol.P_CONNECTION_TEST ) );
-						toClient.flush();
+						output = Protocol.encode( Protocol.P_LOGIN , "false" , "There was a problem with the database." );
 						
-					}  
-				
+					} else if( loginAttempt == -6 ) {
+						
+						output = Protocol.encode( Protocol.P_LOGIN , "false" , "There was a problem with input processing." );
+						
+					}
+					
+					// Do not send empty messages
+					if( output.length() > 0 ) {
+						// Send the message back to the client GUI
+						player.send( output );
+						// Close the socket if the login has not been successful
+						return false;
 
+					}
+					 
 				}
 				
-				// ------------------------------------------[LOBBY CODE]-----------------------------------------------
+				 
+				
+			} // If user sign in attempt
+			else if( requestType.equals( Protocol.P_SIGNUP ) ) {
+				
+				// Attempt to register this user
+				int regAttempt = server.db.register( username , password );
 				
-				if( loggedIn && player.session == null ) {
+				// If registration is successful
+				if( regAttempt == 1 ) {
 					
-					if( decoded[0].equals( Protocol.P_MOVE_TO_QUEUE ) ) {
+					server.leaderboards.add( username );
+					
+					output = Protocol.encode( Protocol.P_SIGNUP, "true" , "Registration successful." );
+					
+				} 
+				// If registration is not successful
+				else if( regAttempt < 1 ) {
+					
+					if( regAttempt == 0 ) {
 						
-						server.addPlayerToQueue( player );
+						output = Protocol.encode( Protocol.P_SIGNUP, 
+												  "false" , 
+												  "Username must be between " 
+												  + Constraints.usernameMinLength 
+												  + " and " 
+												  + Constraints.usernameMaxLength
+												  + " characters, and password between "
+												  + Constraints.passwordMinLength + " and "
+												  + Constraints.passwordMaxLength 
+												);
 						
-					} else if( decoded[0].equals( Protocol.P_LEAVE_QUEUE ) ) {
+					} else if( regAttempt == -1 ) {
 						
-						server.leaveQueue( player );
+						output = Protocol.encode( Protocol.P_SIGNUP, "false" , "The username and password must be alphanumeric!" );
 						
-					} else if( decoded[0].equals( Protocol.P_GET_STATS ) ) {
+					} else if( regAttempt == -2 ) {
 						
-						server.getPlayerStats( player );
+						output = Protocol.encode( Protocol.P_SIGNUP, "false" , "The username is already taken!" );
 						
-					} else if( decoded[0].equals( Protocol.P_GET_TOPSCORES ) ) {
+					} else if( regAttempt == -3 ) {
 						
-						server.getTopScores( player );
+						output = Protocol.encode( Protocol.P_SIGNUP, "false" , "There was a problem with the database." );
 						
-					}
-					
+					} else if( regAttempt == -4 ) {
+						
+						output = Protocol.encode( Protocol.P_SIGNUP, "false" , "There was a problem with input processing." );
+						
+					} 
 					
 				}
 				
-				if( loggedIn && player.session != null ) {
+				// Do not send empty messages
+				if( output.length() > 0 ) {
+					// Send the message back to the client GUI
+					player.send( output );
+					// Close the socket after registration request regardless of the outcome
+					return false;
+	
+				}
+				
+				
+				
+			}
+		
+		
+		} 
+		// If the user is logged in, check for 
+		else {
+			
+			// The client wants to terminate the connection
+			if( decoded[ 0 ].equals( Protocol.P_QUIT ) ) {
+				
+				// Remove the player from the active players list and log them out from the database
+				if( server.registry.remove( player ) ) {
+					server.db.logout( player.username );
+				}
+				loggedIn = false;
+				 
+				// Remove the player from wherever he is in the server (queue/lobby/etc)
+				server.removePlayer( player );
+			 
+				 
+				// Close the socket finally (the caller stops reading from this connection)
+				return false;
+				
+			} else if( decoded[0].equals( Protocol.P_CONNECTION_TEST ) ) {
+					
+				player.send( Protocol.encode( Protocol.P_CONNECTION_TEST ) );
+				
+			}  
+		
+
+		}
+		
+		// ------------------------------------------[LOBBY CODE]-----------------------------------------------
+		
+		if( loggedIn && player.session == null ) {
+			
+			if( decoded[0].equals( Protocol.P_MOVE_TO_QUEUE ) ) {
+				
+				server.addPlayerToQueue( player );
+				
+			} else if( decoded[0].equals( Protocol.P_LEAVE_QUEUE ) ) {
+				
+				server.leaveQueue( player );
+				
+			} else if( decoded[0].equals( Protocol.P_QUEUE_RESYNC ) ) {
+				
+				server.matchmaker.resync( player );
+				
+			} else if( decoded[0].equals( Protocol.P_GET_STATS ) ) {
+				
+				server.getPlayerStats( player );
+				
+			} else if( decoded[0].equals( Protocol.P_GET_TOPSCORES ) ) {
+				
+				server.getTopScores( player );
+				
+			} else if( decoded[0].equals( Protocol.P_GET_PERIOD_SCORES ) ) {
+				
+				server.getPeriodScores( player );
+				
+			}
+			
+			
+		}
+		
+		// Read once, the session's mailbox can take the player out of it at any time
+		final Session sess = player.session;
+		
+		if( loggedIn && sess != null ) {
+			
+			// Session requests
+			if( decoded[ 0 ].equals( Protocol.P_LOBBY_READY ) ) {
+				
+				System.out.println("Ready: " + player.username);
+				
+				// The lobby's state is only changed in the session's mailbox (see Server)
+				sess.mailbox.post( new Runnable() {
 					
-					// Session requests
-					if( decoded[ 0 ].equals( Protocol.P_LOBBY_READY ) ) {
+					@Override
+					public void run() {
+						
+						// Left the lobby in the meantime
+						if( player.session != sess ) { return; }
 						
-						System.out.println("Ready: " + player.username);
-					 
 						// Set player to ready for the session to begin
-						// Does this overwrite session.player[i].ready?
 						player.ready = true;
-						player.session.players[ player.sessionPosition ].ready = true;
-						 
+						
 						// Send response back to player stating their status is set to ready
-						String readyMessage = Protocol.encode( Protocol.P_LOBBY_READY , server.lobbyPlayerStatusesToString( player.session , '|' ) , player.username );
-						server.notifySessionPlayers( player.session , readyMessage );
+						String readyMessage = Protocol.encode( Protocol.P_LOBBY_READY , server.lobbyPlayerStatusesToString( sess , '|' ) , player.username );
+						server.notifySessionPlayers( sess , readyMessage );
 						
-						int numReady = server.countReadyPlayers( player.session );
+						int numReady = server.countReadyPlayers( sess );
 						 
 						// Start the countdown before the game begins
 						if( numReady >= Constraints.minReadyPlayersRequired ) {
+						
+							if( sess.readyCountdownStarted == false ) {
 							
-							if( player.session.readyCountdownStarted == false ) {
-								
-								player.session.readyCountdownStarted = true;
-								player.session.readyCountdown.start();
-							
+								sess.readyCountdownStarted = true;
+								sess.readyCountdown.start();
+						
 							}
 							// If all the players in the lobby click ready, don't waste time, start the game
-							if( numReady >= server.countSessionPlayers( player.session ) ) {
-								
-								player.session.readyCountdown.countdown = 0;
-								
-							}
+							if( numReady >= server.countSessionPlayers( sess ) ) {
 							
-						}
-						
-						 
-						
-						
-						
-					} else if( decoded[0].equals( Protocol.P_RETURN_TO_MAIN ) ) {
-						
-						// RETURN THE PLAYER TO THE MAIN PANEL AFTER THEY LEAVE A LOBBY
-						server.removePlayerFromSession( player , true );
-						
-					} else if( decoded[0].equals( Protocol.P_MOVE ) && player.session.gameRunning == true && player.session.playersCanMove && player.session.gameFinished == false ) {
-						
-						int direction = Integer.parseInt( decoded[1] );
-						
-						if( direction < 0 || direction > 4 ) { continue; }
-						
-						server.movePlayer( player.session , player , direction );
-						
-					} else if( decoded[0].equals( Protocol.P_FIRE ) ) {
+								sess.readyCountdown.countdown = 0;
+							
+							}
 						
-						server.fireTrap( player.session , player );
+						}
 						
 					}
-					
-					
-					
+						
+				});
+				
+			} else if( decoded[0].equals( Protocol.P_RETURN_TO_MAIN ) ) {
+				
+				// RETURN THE PLAYER TO THE MAIN PANEL AFTER THEY LEAVE A LOBBY
+				server.removePlayerFromSession( player , true );
 				
+			} else if( decoded[0].equals( Protocol.P_MOVE ) && sess.gameRunning == true && sess.playersCanMove && sess.gameFinished == false ) {
+				
+				if( decoded.length < 2 ) { return true; }
+				
+				int direction;
+				
+				try {
+					direction = Integer.parseInt( decoded[1] );
+				} catch ( NumberFormatException e ) {
+					return true;
 				}
 				
-				// ----------------------------------------------------------------------------------------------------------
+				if( direction < 0 || direction > 4 ) { return true; }
 				
+				server.queueInput( sess , player , direction , received );
 				
-			}
+			} else if( decoded[0].equals( Protocol.P_FIRE ) ) {
 				
+				server.queueInput( sess , player , Session.FIRE , received );
 				
-		 
+			}
 			
-		} catch ( IOException e ) {
-			 
-			e.printStackTrace();
 			
-		} finally {
-			
-			try {
-				socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 			
+		
 		}
-					
+		
+		return true;
+		
 	}
 
 }
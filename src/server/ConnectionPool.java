@@ -0,0 +1,384 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A bounded pool of database connections.
+ *
+ * Every Database call borrows a connection for the length of the call and gives it back afterwards, so as many calls run
+ * at once as there are connections (instead of all of them sharing one socket to Postgres, which JDBC connections are not
+ * safe for anyway). Connections are opened when they are first needed, up to the size of the pool. When all of them are
+ * in use, a caller waits up to the borrow timeout.
+ *
+ * A connection that has been idle for a while is validated before it is handed out (a dead one is replaced), and a
+ * connection that has been borrowed for longer than the leak threshold is reported together with the code that borrowed it.
+ *
+ * Each connection keeps the statements prepared on it (see prepare), so a query is only sent to be parsed once per connection.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class ConnectionPool {
+
+	// Totals (see ServerMetrics)
+	protected static final AtomicInteger borrowed = new AtomicInteger();
+	protected static final AtomicInteger leaks = new AtomicInteger();
+	protected static final AtomicInteger prepared = new AtomicInteger();
+
+	private final String url, user, pass;
+	private final int size;
+	private final long borrowTimeout;
+	private final long validationInterval;
+	private final long leakThreshold;
+
+	private final ArrayBlockingQueue<Lease> idle;
+	// The number of connections open (idle or borrowed)
+	private final AtomicInteger open = new AtomicInteger();
+	private final ConcurrentHashMap<Connection, Lease> leased = new ConcurrentHashMap<Connection, Lease>();
+
+	private final ScheduledExecutorService leakCheck;
+
+	/**
+	 * @param url The JDBC url of the database
+	 * @param user The database user
+	 * @param pass The database user's password
+	 * @param size The most connections open at one time
+	 * @param borrowTimeoutMillis How long a caller waits for a connection when they are all in use
+	 * @param validationIntervalMillis How long a connection may be idle before it is checked again
+	 * @param leakThresholdMillis How long a connection may be borrowed before it is reported as leaked (0 to never check)
+	 */
+	public ConnectionPool( String url , String user , String pass , int size , int borrowTimeoutMillis , int validationIntervalMillis , int leakThresholdMillis ) {
+
+		this.url = url;
+		this.user = user;
+		this.pass = pass;
+		this.size = Math.max( 1 , size );
+		this.borrowTimeout = borrowTimeoutMillis;
+		this.validationInterval = TimeUnit.MILLISECONDS.toNanos( validationIntervalMillis );
+		this.leakThreshold = TimeUnit.MILLISECONDS.toNanos( leakThresholdMillis );
+
+		idle = new ArrayBlockingQueue<Lease>( this.size );
+
+		if( leakThresholdMillis <= 0 ) {
+
+			leakCheck = null;
+			return;
+
+		}
+
+		leakCheck = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+
+			@Override
+			public Thread newThread( Runnable r ) {
+
+				Thread t = new Thread( r , "db-pool-leaks" );
+				t.setDaemon( true );
+				return t;
+
+			}
+
+		});
+
+		leakCheck.scheduleWithFixedDelay( new Runnable() {
+
+			@Override
+			public void run() {
+
+				findLeaks();
+
+			}
+
+		}, leakThresholdMillis , Math.max( 1 , leakThresholdMillis / 2 ) , TimeUnit.MILLISECONDS );
+
+	}
+
+	/**
+	 * Borrow a connection. It must be given back with release (in a finally block).
+	 *
+	 * @return An open connection
+	 * @throws SQLException If no connection could be opened, or none became free within the borrow timeout
+	 */
+	public Connection borrow() throws SQLException {
+
+		Lease lease = idle.poll();
+
+		// Open a new connection if the pool isn't full yet
+		while( lease == null ) {
+
+			int n = open.get();
+
+			if( n >= size ) {
+
+				try {
+					lease = idle.poll( borrowTimeout , TimeUnit.MILLISECONDS );
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new SQLException( "Interrupted while waiting for a database connection" );
+				}
+
+				if( lease == null ) {
+					throw new SQLException( "No database connection became free within " + borrowTimeout + "ms (pool size " + size + ")" );
+				}
+
+			} else if( open.compareAndSet( n , n + 1 ) ) {
+
+				lease = connect();
+
+			}
+
+		}
+
+		lease = validate( lease );
+
+		lease.since = System.nanoTime();
+		lease.borrower = leakThreshold > 0 ? new Throwable( "Borrowed by" ) : null;
+		lease.reported = false;
+
+		leased.put( lease.connection , lease );
+		borrowed.incrementAndGet();
+
+		return lease.connection;
+
+	}
+
+	/**
+	 * Give a connection back to the pool
+	 *
+	 * @param connection The borrowed connection (null is ignored, so this can be called from a finally block unconditionally)
+	 */
+	public void release( Connection connection ) {
+
+		if( connection == null ) { return; }
+
+		Lease lease = leased.remove( connection );
+
+		// Not from this pool, or given back twice
+		if( lease == null ) { return; }
+
+		lease.since = System.nanoTime();
+		lease.borrower = null;
+
+		boolean usable;
+
+		try {
+			usable = !connection.isClosed();
+		} catch ( SQLException e ) {
+			usable = false;
+		}
+
+		if( !usable || !idle.offer( lease ) ) {
+			discard( lease );
+		}
+
+	}
+
+	/**
+	 * Get a prepared statement for a query on a borrowed connection. The statement is prepared the first time the query is
+	 * run on the connection and reused after that, so it must not be closed. Results are read forward only and can't be updated.
+	 *
+	 * @param connection The borrowed connection
+	 * @param id The query's id (small and unique, it is the statement's index in the connection's cache)
+	 * @param sql The query
+	 * @param hot Whether the query runs often enough to be prepared on the server straight away (Constraints.dbHotPrepareThreshold)
+	 * instead of after Constraints.dbPrepareThreshold runs
+	 * @return The statement, its parameters are those of the last run
+	 * @throws SQLException If the statement can't be prepared
+	 */
+	public PreparedStatement prepare( Connection connection , int id , String sql , boolean hot ) throws SQLException {
+
+		Lease lease = leased.get( connection );
+
+		// Not borrowed from this pool, there is nowhere to keep it
+		if( lease == null ) {
+			return connection.prepareStatement( sql , ResultSet.TYPE_FORWARD_ONLY , ResultSet.CONCUR_READ_ONLY );
+		}
+
+		if( id >= lease.statements.length ) {
+			lease.statements = Arrays.copyOf( lease.statements , id + 1 );
+		}
+
+		PreparedStatement statement = lease.statements[ id ];
+
+		if( statement != null && !statement.isClosed() ) { return statement; }
+
+		statement = connection.prepareStatement( sql , ResultSet.TYPE_FORWARD_ONLY , ResultSet.CONCUR_READ_ONLY );
+
+		if( hot && statement.isWrapperFor( PGStatement.class ) ) {
+			statement.unwrap( PGStatement.class ).setPrepareThreshold( Constraints.dbHotPrepareThreshold );
+		}
+
+		lease.statements[ id ] = statement;
+		prepared.incrementAndGet();
+
+		return statement;
+
+	}
+
+	/**
+	 * @return The number of connections open
+	 */
+	public int getOpen() {
+
+		return open.get();
+
+	}
+
+	/**
+	 * @return The number of connections borrowed right now
+	 */
+	public int getInUse() {
+
+		return leased.size();
+
+	}
+
+	/**
+	 * Close all of the idle connections. Borrowed connections are closed when they are given back.
+	 */
+	public void shutdown() {
+
+		if( leakCheck != null ) {
+			leakCheck.shutdownNow();
+		}
+
+		Lease lease;
+
+		while( ( lease = idle.poll() ) != null ) {
+			discard( lease );
+		}
+
+	}
+
+	private Lease connect() throws SQLException {
+
+		try {
+
+			return new Lease( DriverManager.getConnection( url , user , pass ) );
+
+		} catch ( SQLException e ) {
+
+			// Give the place in the pool back
+			open.decrementAndGet();
+			throw e;
+
+		} catch ( RuntimeException e ) {
+
+			open.decrementAndGet();
+			throw e;
+
+		}
+
+	}
+
+	/**
+	 * Check a connection that has been idle for a while (the database may have closed it). A dead one is replaced.
+	 */
+	private Lease validate( Lease lease ) throws SQLException {
+
+		if( System.nanoTime() - lease.since < validationInterval ) { return lease; }
+
+		boolean valid;
+
+		try {
+			valid = lease.connection.isValid( Constraints.dbValidationTimeout );
+		} catch ( SQLException e ) {
+			valid = false;
+		}
+
+		if( valid ) { return lease; }
+
+		System.out.println( "Replacing a database connection that is no longer valid." );
+
+		// Keep the place in the pool for the new connection
+		try {
+			lease.connection.close();
+		} catch ( SQLException e ) {
+			// Already broken
+		}
+
+		try {
+
+			return new Lease( DriverManager.getConnection( url , user , pass ) );
+
+		} catch ( SQLException e ) {
+
+			open.decrementAndGet();
+			throw e;
+
+		}
+
+	}
+
+	private void discard( Lease lease ) {
+
+		open.decrementAndGet();
+
+		try {
+			lease.connection.close();
+		} catch ( SQLException e ) {
+			// Closing anyway
+		}
+
+	}
+
+	/**
+	 * Report connections that have been borrowed for too long (they were probably never given back)
+	 */
+	private void findLeaks() {
+
+		long now = System.nanoTime();
+
+		for( Lease lease : leased.values() ) {
+
+			Throwable borrower = lease.borrower;
+
+			if( lease.reported || borrower == null || now - lease.since < leakThreshold ) { continue; }
+
+			lease.reported = true;
+			leaks.incrementAndGet();
+
+			System.out.println( "[DB POOL] A connection has been borrowed for " + TimeUnit.NANOSECONDS.toMillis( now - lease.since ) + "ms and not given back:" );
+			borrower.printStackTrace( System.out );
+
+		}
+
+	}
+
+	/**
+	 * A connection and what the pool knows about it
+	 */
+	private static class Lease {
+
+		private final Connection connection;
+
+		// When it was borrowed (or given back, while idle)
+		private volatile long since = System.nanoTime();
+		// Where it was borrowed from (for the leak report)
+		private volatile Throwable borrower;
+		private volatile boolean reported;
+		// The statements prepared on the connection, by query id (only used by the thread that borrowed it)
+		private PreparedStatement[] statements = new PreparedStatement[ 16 ];
+
+		private Lease( Connection connection ) {
+
+			this.connection = connection;
+
+		}
+
+	}
+
+}
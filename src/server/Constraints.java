@@ -1,4 +1,6 @@
 package server;
+
+import java.time.LocalDate;
  
 public class Constraints {
 	 
@@ -20,7 +22,101 @@ public class Constraints {
 	public static final int returnCountdown = 10;
 	// How many coins can a player lose if they hit a trap
 	public static final int coinsLostPerTrap = 20;
-	
+
+	// How client connections are served when no mode is given on the command line (Server.MODE_THREAD, Server.MODE_NIO or Server.MODE_VIRTUAL)
+	public static final int defaultServerMode = Server.MODE_THREAD;
+	// How many selector (I/O) threads the NIO engine uses
+	public static final int nioThreads = 2;
+	// How many threads the NIO engine uses to run the request handlers (login, lobby and game requests)
+	public static final int nioHandlerThreads = 8;
+	// The longest message (in bytes) a client may send in one line before it is disconnected
+	public static final int nioMaxLineLength = 64 * 1024;
+	// How often (in seconds) the server prints its metrics (thread count, context switches, move latency). 0 to disable
+	public static final int metricsInterval = 10;
+	// Whether clients may switch to the binary protocol at login (otherwise every client uses the text protocol)
+	public static final boolean allowBinaryProtocol = true;
+	// Whether clients may ask for the whole maze at game start and only the changes after each move
+	public static final boolean allowDeltaUpdates = true;
+	// Whether clients in the queue may ask for only the players who joined and left instead of the whole roster after every change
+	public static final boolean allowQueueDeltas = true;
+	// How often (in milliseconds) the clients that receive queue deltas are sent the whole roster anyway (with the next change)
+	public static final int queueSnapshotInterval = 30000;
+	// How many times per second a running game applies the queued moves and sends one combined update to each player. 0 to send an update per move
+	public static final int tickRate = 25;
+	// How many threads run the session ticks (they only post each tick to the session's mailbox)
+	public static final int tickThreads = 1;
+	// The shortest time (in milliseconds) between two matchmaker passes. The joins and leaves in between are handled together (one roster update)
+	public static final int matchmakerInterval = 100;
+	// How many threads run the sessions' mailboxes. A session's commands never run on two of them at once
+	public static final int sessionThreads = Runtime.getRuntime().availableProcessors();
+	// How many commands a session runs before its worker is handed to the next session
+	public static final int mailboxBatch = 64;
+	// The precision (in milliseconds) of the timing wheel that runs the lobby and game countdowns
+	public static final int timerTick = 100;
+	// How many buckets the timing wheel has. Countdowns further away than timerTick * timerWheelSize go round the wheel more than once
+	public static final int timerWheelSize = 512;
+	// How many threads run the expired countdowns and heartbeat checks (the countdowns only post a command to their session's mailbox)
+	public static final int timerThreads = 2;
+	// How long (in milliseconds) a logged in client may stay silent before the server pings it
+	public static final int heartbeatIdle = 5000;
+	// How long (in milliseconds) a pinged client has to answer before it is disconnected
+	public static final int heartbeatTimeout = 5000;
+	// How many messages can wait to be written to a client before the slow consumer policy is applied
+	public static final int outboundQueueLimit = 256;
+	// What happens when a client doesn't keep up (OutboundQueue.POLICY_DROP_STALE, POLICY_KEEP_LATEST or POLICY_DISCONNECT)
+	public static final int slowConsumerPolicy = OutboundQueue.POLICY_DROP_STALE;
+	// The most database connections open at one time (as many database calls run at once)
+	public static final int dbPoolSize = 8;
+	// How long (in milliseconds) a database call waits for a connection when they are all in use before it fails
+	public static final int dbBorrowTimeout = 5000;
+	// How long (in milliseconds) a database connection may be idle before it is checked before use
+	public static final int dbValidationInterval = 30000;
+	// How long (in seconds) the database has to answer that check
+	public static final int dbValidationTimeout = 2;
+	// How long (in milliseconds) a database connection may be borrowed before it is reported as leaked. 0 to never check
+	public static final int dbLeakThreshold = 10000;
+	// How many times a query runs on a database connection before it is prepared on the server (parsed and planned once)
+	public static final int dbPrepareThreshold = 5;
+	// The same for the queries that run on every login and stats request
+	public static final int dbHotPrepareThreshold = 1;
+	// The most game records (stats and scores) written to the database in one batch
+	public static final int writeBehindBatch = 100;
+	// How long (in milliseconds) a finished game's record waits for others to be written with it
+	public static final int writeBehindInterval = 500;
+	// How long (in milliseconds) the stats writer waits after the database fails, doubled after every failure up to writeBehindRetryMax
+	public static final int writeBehindRetryBase = 500;
+	public static final int writeBehindRetryMax = 30000;
+	// How many game records can wait in memory. The others are written straight to the spool file
+	public static final int writeBehindQueueLimit = 10000;
+	// Where the game records that could not be written are kept until the database is back (also across restarts)
+	public static final String writeBehindSpool = "stats-spool.log";
+	// How long (in milliseconds) the server waits for the queued game records to be written when it shuts down
+	public static final int writeBehindDrainTimeout = 10000;
+	// How many players each top scores board shows
+	public static final int leaderboardSize = 5;
+	// How long (in milliseconds) the server waits to read the leaderboards again if they could not be read at startup,
+	// doubled after every failure up to leaderboardRetryMax (the players get empty boards in the meantime)
+	public static final int leaderboardRetryBase = 1000;
+	public static final int leaderboardRetryMax = 60000;
+	// The first day of the first season of the season leaderboard (UTC), and how many days each season lasts
+	public static final long seasonStart = LocalDate.of( 2018 , 1 , 1 ).toEpochDay();
+	public static final int seasonDays = 91;
+	// How many players' stats are cached (the ones that asked for them most recently), and how long (in milliseconds) each is kept
+	public static final int statsCacheSize = 10000;
+	public static final int statsCacheTtl = 300000;
+	// The smallest and largest quad size of a session's maze (the maze is about twice as wide)
+	public static final int mazeQuadSizeMin = 25;
+	public static final int mazeQuadSizeMax = 50;
+	// How many ranges the quad sizes are split into for the pre-generated mazes, and how many mazes are kept ready in each
+	public static final int mazePoolRanges = 2;
+	public static final int mazePoolSize = 4;
+	// A range's pool is filled back up in the background when it has fewer ready mazes than this
+	public static final int mazePoolLowWatermark = 2;
+	// How many threads generate the mazes for the pool
+	public static final int mazePoolThreads = 1;
+	// How many threads search for the fair quadrants of the mazes being generated (at the lowest priority, like the pool's threads)
+	public static final int mazeSearchThreads = Runtime.getRuntime().availableProcessors();
+
 	
 	// The character length minimums and maximums for the players during authentication
 	public static final int usernameMinLength = 5,
@@ -2,11 +2,11 @@ package server;
 
 import java.sql.Connection;
 import java.sql.Timestamp;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 import server.Constraints;
 
@@ -19,9 +19,61 @@ public class Database {
 	private static final String playersTable = "players";
 	private static final String scoresTable = "scores";
 	
-	private static Connection connection = null;
-	private static Statement statement = null;
-	private ResultSet resultSet = null;
+	// The stats that can be changed one at a time (see updateStats)
+	private static final String[] statColumns = { "gamesPlayed" , "gamesFinished" , "gamesWon" , "totalCoins" , "totalPoints" };
+	
+	// The queries by id. Each one is prepared once per pooled connection and reused (see ConnectionPool.prepare)
+	private static final int FIND_USER = 0,
+							 USER_EXISTS = 1,
+							 INSERT_USER = 2,
+							 LOGIN_USER = 3,
+							 LOGOUT_USER = 4,
+							 LOGOUT_ALL = 5,
+							 UPDATE_RESULT = 6,
+							 INSERT_SCORE = 7,
+							 LAST_SCORE = 8,
+							 TOP_COINS = 9,
+							 TOP_POINTS = 10,
+							 TOP_WINS = 11,
+							 TOP_RATIO = 12,
+							 ADD_TOTALS = 13,
+							 ALL_TOTALS = 14,
+							 DAY_TOTALS = 15,
+							 UPDATE_STAT = 16;	// One per stat, in the order of statColumns
+	
+	private static final String[] queries = new String[ UPDATE_STAT + statColumns.length ];
+	
+	static {
+		
+		queries[ FIND_USER ] = "SELECT * FROM " + playersTable + " WHERE username=?;";
+		queries[ USER_EXISTS ] = "SELECT username FROM " + playersTable + " WHERE username=?;";
+		// IMPORTANT!!! POSTGRES CONVERTS COLUMN NAMES TO LOWERCASE IF THEY ARE NOT IN QUOTES
+		// IMPORTANT2!!! ID must be defined as a SERIAL type and set as a PRIMARY KEY to not need to be intialized within the java sql query (auto incremented)
+		queries[ INSERT_USER ] = "INSERT INTO " + playersTable + "( username, password, \"loggedIn\", \"lastLogin\", \"totalCoins\", \"gamesPlayed\", \"gamesFinished\", \"gamesWon\" , \"totalPoints\" ) VALUES (?, ?, ?, ?, ?, ?, ?, ?,?);";
+		queries[ LOGIN_USER ] = "UPDATE " + playersTable + " SET \"loggedIn\" = ?, \"lastLogin\" = ? WHERE id = ?;";
+		// One round trip: there is nothing to read first
+		queries[ LOGOUT_USER ] = "UPDATE " + playersTable + " SET \"loggedIn\" = ? WHERE username = ? AND \"loggedIn\" = ?;";
+		queries[ LOGOUT_ALL ] = "UPDATE " + playersTable + " SET \"loggedIn\" = ?;";
+		queries[ UPDATE_RESULT ] = "UPDATE " + playersTable + " SET \"gamesWon\" = \"gamesWon\" + ?, \"gamesFinished\" = \"gamesFinished\" + ?, \"totalCoins\" = \"totalCoins\" + ?, \"totalPoints\" = \"totalPoints\" + ? WHERE username = ?;";
+		queries[ ADD_TOTALS ] = "UPDATE " + playersTable + " SET \"gamesPlayed\" = \"gamesPlayed\" + ?, \"gamesWon\" = \"gamesWon\" + ?, \"gamesFinished\" = \"gamesFinished\" + ?, \"totalCoins\" = \"totalCoins\" + ?, \"totalPoints\" = \"totalPoints\" + ? WHERE username = ?;";
+		queries[ ALL_TOTALS ] = "SELECT username, \"gamesPlayed\", \"gamesWon\", \"gamesFinished\", \"totalCoins\", \"totalPoints\" FROM " + playersTable + ";";
+		// The points and coins per player per day (UTC, in days since 1970-01-01) since a time
+		queries[ DAY_TOTALS ] = "SELECT username, CAST( FLOOR( EXTRACT( EPOCH FROM date ) / 86400 ) AS BIGINT ) AS day, SUM( score ), SUM( coins ) FROM " + scoresTable + " WHERE date >= ? GROUP BY username, day;";
+		queries[ INSERT_SCORE ] = "INSERT INTO " + scoresTable + " ( username , level , mazesize , completiontime , finishposition , score , coins , date ) VALUES ( ? , ? , ? , ? , ? , ? , ? , ? )";
+		queries[ LAST_SCORE ] = "SELECT * FROM " + scoresTable + " WHERE username=? ORDER BY date DESC LIMIT 1;";
+		queries[ TOP_COINS ] = "SELECT * FROM " + playersTable + " ORDER BY \"totalCoins\" DESC LIMIT 5";
+		queries[ TOP_POINTS ] = "SELECT * FROM " + playersTable + " ORDER BY \"totalPoints\" DESC LIMIT 5";
+		queries[ TOP_WINS ] = "SELECT * FROM " + playersTable + " ORDER BY \"gamesWon\" DESC LIMIT 5";
+		queries[ TOP_RATIO ] = "SELECT * FROM " + playersTable + " ORDER BY COALESCE( CAST( \"gamesWon\" AS FLOAT ) / NULLIF( \"gamesFinished\" , 0 ) , 0 ) DESC LIMIT 5";
+		
+		for( int i = 0 ; i < statColumns.length ; i++ ) {
+			queries[ UPDATE_STAT + i ] = "UPDATE " + playersTable + " SET \""+statColumns[ i ]+"\" = \""+statColumns[ i ]+"\" + ? WHERE username = ?;";
+		}
+		
+	}
+	
+	// Every query borrows a connection for as long as it runs (see ConnectionPool)
+	protected ConnectionPool pool;
 	 
 	private String dbHost, dbName , dbUser, dbPass;
 	
@@ -78,23 +130,44 @@ public class Database {
 			this.dbPass = dbPass;
 			
 			System.setProperty("jdbc.drivers", "org.postgresql.Driver");
-			String dbAddress = "jdbc:postgresql://" + dbHost + "/" + dbName;
+			// Statements run this many times on a connection are prepared on the server (parsed and planned once)
+			String dbAddress = "jdbc:postgresql://" + dbHost + "/" + dbName + "?prepareThreshold=" + Constraints.dbPrepareThreshold;
+			
+			pool = new ConnectionPool( dbAddress , dbUser , dbPass , Constraints.dbPoolSize , Constraints.dbBorrowTimeout , Constraints.dbValidationInterval , Constraints.dbLeakThreshold );
 			
-			connection = DriverManager.getConnection( dbAddress , dbUser , dbPass );
-			statement = connection.createStatement();
+			// Open the first connection straight away, so a database that can't be reached is noticed at startup
+			Connection connection = pool.borrow();
+			pool.release( connection );
+			
+			System.out.println("Database accessed!");
 
 		} catch (SQLException e) {
 			
 			e.printStackTrace();
+			System.out.println("Failed to make connection");
 			
 		}
+		
+	}
 	
-
-		if ( connection != null ) {
-			System.out.println("Database accessed!");
-		} else {
-			System.out.println("Failed to make connection");
-		}
+	/**
+	 * Get the cached statement for a query on a borrowed connection (it must not be closed)
+	 */
+	private PreparedStatement prepare( Connection connection , int query ) throws SQLException {
+		
+		// Logins and stats lookups are prepared on the server from the first run
+		boolean hot = query == FIND_USER || query == LOGIN_USER || query == LAST_SCORE;
+		
+		return pool.prepare( connection , query , queries[ query ] , hot );
+		
+	}
+	
+	/**
+	 * Close the database connections (the server is shutting down)
+	 */
+	protected void close() {
+		
+		pool.shutdown();
 		
 	}
 	
@@ -201,39 +274,33 @@ public class Database {
 			return validateParams;
 		}
 		
+		Connection connection = null;
+		
 		try {
 			
-			// After all the checks above, before we start adding to the database, we have to lastly check if the current user exists
-			String checkQuery = "SELECT username FROM " + playersTable + " WHERE username=?;";
+			// Hash the password using the PBKDF2 algorithm (before borrowing a connection, hashing takes a while)
+			String hashedPassword = PasswordHash.createHash( password );
 			
-			statement = connection.createStatement();
+			connection = pool.borrow();
 			
-			PreparedStatement checkUser = connection.prepareStatement( checkQuery );
+			// After all the checks above, before we start adding to the database, we have to lastly check if the current user exists
+			PreparedStatement checkUser = prepare( connection , USER_EXISTS );
 			checkUser.setString( 1 , username );
 			
 			ResultSet found = checkUser.executeQuery();
+			boolean taken = found.next();
+			found.close();
 		 
 			// If there are any results found from the query (i.e. there is a next result), this means the username is taken => Exit method and return -2
-			int count = 0;
-			while( found.next() ) {
-				count++;
-				if( count >= 1 ) {
-					return -2;
-				}
+			if( taken ) {
+				return -2;
 			}
 			
-			 
-			
 			// If this point is reached, everything is fine and the user can be created
-			// IMPORTANT!!! POSTGRES CONVERTS COLUMN NAMES TO LOWERCASE IF THEY ARE NOT IN QUOTES
-			// IMPORTANT2!!! ID must be defined as a SERIAL type and set as a PRIMARY KEY to not need to be intialized within the java sql query (auto incremented)
-			String insertQuery = "INSERT INTO " + playersTable + "( username, password, \"loggedIn\", \"lastLogin\", \"totalCoins\", \"gamesPlayed\", \"gamesFinished\", \"gamesWon\" , \"totalPoints\" ) VALUES (?, ?, ?, ?, ?, ?, ?, ?,?);";
 			// Create a timestamp from the current time in milliseconds
 			Timestamp time = new Timestamp( System.currentTimeMillis() );
-			// Hash the password using the PBKDF2 algorithm
-			String hashedPassword = PasswordHash.createHash( password );
 			
-			PreparedStatement newUser = connection.prepareStatement( insertQuery );
+			PreparedStatement newUser = prepare( connection , INSERT_USER );
 			newUser.setString( 1, username );
 			newUser.setString( 2, hashedPassword );	
 			newUser.setBoolean( 3 , false );	// logged in
@@ -261,6 +328,10 @@ public class Database {
 			e.printStackTrace();
 			return -4;
 			
+		} finally {
+			
+			pool.release( connection );
+			
 		}
 
 	}
@@ -283,11 +354,13 @@ public class Database {
 		}
 		
 
+		Connection connection = null;
+		
 		try {
 			
-			String findQuery = "SELECT * FROM " + playersTable + " WHERE username=?;";
-			// statement must be scrollable, otherwise we can't go back to the first row in the resultset
-			PreparedStatement findUser = connection.prepareStatement( findQuery , ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
+			connection = pool.borrow();
+			
+			PreparedStatement findUser = prepare( connection , FIND_USER );
 			findUser.setString( 1 , username );
 			
 			ResultSet found = findUser.executeQuery();
@@ -296,47 +369,37 @@ public class Database {
 			boolean passMatches;
 		 
 			// If there are no matching results, this means the username is not in the database
-			int count = 0;
-			while( found.next() ) {
-				count++;
-				if( count > 1 ) {
-					break; // no need to continue further
-				}
-			}
-			if( count == 0 ) {
+			if( !found.next() ) {
+				found.close();
 				return -2;
 			}
 			
-			// Go back to the first row in the result set after checking the count
-			found.first();
-			 
-			
 			// At this point the username does exist, but the question remains whether the password matches the hash or not
 			passHash = found.getString( 3 );
+			int id = found.getInt( 1 ); // !IMPORTANT! id must be the first column, otherwise index 0 will correspond to something else
+			found.close();
+			
+			// Hashing takes a while, give the connection back to the pool in the meantime
+			pool.release( connection );
+			connection = null;
+			
 			passMatches = PasswordHash.validatePassword( password , passHash );
 			
 			// If the password matches, this is the correct user
 			if( passMatches ) {
 				
-				// -- may be redundant in the end. Too complicated to figure out if a client is still active --
-				// Not so fast... we need to check if the user has already logged in from another client
-				if( found.getBoolean( 4 ) ) {
-					// If the user is already logged in, return -3
-					return -3;
-					
-				}
-				
+				// Whether the user is already logged in from another client is checked by the server (see PlayerRegistry.claim)
 				
 				// OK, all is well, continue with the login
-				String updateQuery = "UPDATE " + playersTable + " SET \"loggedIn\" = ?, \"lastLogin\" = ? WHERE id = ?;";
-				
 				// Create a timestamp from the current time in milliseconds
 				Timestamp time = new Timestamp( System.currentTimeMillis() );
 				
-				PreparedStatement updateUser = connection.prepareStatement( updateQuery );
+				connection = pool.borrow();
+				
+				PreparedStatement updateUser = prepare( connection , LOGIN_USER );
 				updateUser.setBoolean( 1 , true );
 				updateUser.setTimestamp( 2 , time );
-				updateUser.setInt( 3 , found.getInt( 1 ) ); // !IMPORTANT! id must be the first column, otherwise index 0 will correspond to something else
+				updateUser.setInt( 3 , id );
 				updateUser.executeUpdate();
 				
 				return 1;
@@ -358,6 +421,10 @@ public class Database {
 			e.printStackTrace();
 			return -6;
 			
+		} finally {
+			
+			pool.release( connection );
+			
 		}
 		
 	}
@@ -377,41 +444,22 @@ public class Database {
 			return validateParams;
 		}
 		
-
+		Connection connection = null;
+		
 		try {
 			
-			String findQuery = "SELECT * FROM " + playersTable + " WHERE username=? AND \"loggedIn\"=?;";
-			// statement must be scrollable, otherwise we can't go back to the first row in the resultset
-			PreparedStatement findUser = connection.prepareStatement( findQuery , ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
-			findUser.setString( 1 , username );
-			findUser.setBoolean( 2 , true );
+			connection = pool.borrow();
 			
+			PreparedStatement updateUser = prepare( connection , LOGOUT_USER );
+			updateUser.setBoolean( 1 , false );
+			updateUser.setString( 2 , username );
+			updateUser.setBoolean( 3 , true );
 			
-			ResultSet found = findUser.executeQuery();
-	  
-		 
-			// If there are no matching results, this means the username is not in the database
-			int count = 0;
-			while( found.next() ) {
-				count++;
-				if( count > 1 ) {
-					break; // no need to continue further
-				}
-			}
-			if( count == 0 ) {
+			// If there are no matching rows, the user is not in the database or not logged in
+			if( updateUser.executeUpdate() == 0 ) {
 				return -2;
 			}
 			
-			// Go back to the first row in the result set after checking the count
-			found.first();
-			 
-			String updateQuery = "UPDATE " + playersTable + " SET \"loggedIn\" = ? WHERE id = ?;";
-			
-			PreparedStatement updateUser = connection.prepareStatement( updateQuery );
-			updateUser.setBoolean( 1 , false );
-			updateUser.setInt( 2 , found.getInt( 1 ) ); // !IMPORTANT! id must be the first column, otherwise index 0 will correspond to something else
-			updateUser.executeUpdate();
-			
 			return 1;
 			 
 			
@@ -420,17 +468,23 @@ public class Database {
 			e.printStackTrace();
 			return -5;
 			
-		}  
+		} finally {
+			
+			pool.release( connection );
+			
+		}
 		
 	}
 	
 	protected void logoutAll() {
 	
+		Connection connection = null;
+		
 		try {
 			
-			String updateQuery = "UPDATE " + playersTable + " SET \"loggedIn\" = ?;";
+			connection = pool.borrow();
 			
-			PreparedStatement updateUser = connection.prepareStatement( updateQuery );
+			PreparedStatement updateUser = prepare( connection , LOGOUT_ALL );
 			updateUser.setBoolean( 1 , false );
 			updateUser.executeUpdate();
 
@@ -439,7 +493,11 @@ public class Database {
 		
 			e.printStackTrace();
 			
-		}  
+		} finally {
+			
+			pool.release( connection );
+			
+		}
 		
 	}
 	
@@ -461,15 +519,24 @@ public class Database {
 			return validateParams;
 		}
 		
+		Connection connection = null;
+		
 		try {
 			
-			if( !property.equals("gamesPlayed") && !property.equals("gamesFinished") && !property.equals("gamesWon") && !property.equals("totalCoins") && !property.equals("totalPoints") ) {
+			int stat = -1;
+			for( int i = 0 ; i < statColumns.length ; i++ ) {
+				if( statColumns[ i ].equals( property ) ) {
+					stat = i;
+				}
+			}
+			
+			if( stat < 0 ) {
 				return -3;
 			}
-				
-			String updateQuery = "UPDATE " + playersTable + " SET \""+property+"\" = \""+property+"\" + ? WHERE username = ?;";
 			
-			PreparedStatement updateUser = connection.prepareStatement( updateQuery );
+			connection = pool.borrow();
+			
+			PreparedStatement updateUser = prepare( connection , UPDATE_STAT + stat );
 			updateUser.setInt( 1 , change );
 			updateUser.setString( 2 , username );
 			updateUser.executeUpdate();
@@ -481,7 +548,11 @@ public class Database {
 			e.printStackTrace();
 			return -4;
 			
-		} 
+		} finally {
+			
+			pool.release( connection );
+			
+		}
 		
 	}
 	
@@ -495,11 +566,13 @@ public class Database {
 			return validateParams;
 		}
 		
+		Connection connection = null;
+		
 		try {
-			 
-			String updateQuery = "UPDATE " + playersTable + " SET \"gamesWon\" = \"gamesWon\" + ?, \"gamesFinished\" = \"gamesFinished\" + ?, \"totalCoins\" = \"totalCoins\" + ?, \"totalPoints\" = \"totalPoints\" + ? WHERE username = ?;";
 			
-			PreparedStatement updateUser = connection.prepareStatement( updateQuery );
+			connection = pool.borrow();
+			 
+			PreparedStatement updateUser = prepare( connection , UPDATE_RESULT );
 			updateUser.setInt( 1 , dWon );
 			updateUser.setInt( 2 , dFinished );
 			updateUser.setInt( 3 , dCoins );
@@ -514,7 +587,11 @@ public class Database {
 			e.printStackTrace();
 			return -4;
 			
-		} 
+		} finally {
+			
+			pool.release( connection );
+			
+		}
 		
 	}
 	
@@ -528,13 +605,15 @@ public class Database {
 			return validateParams;
 		}
 		
+		Connection connection = null;
+		
 		try {
-			 
-			String updateQuery = "INSERT INTO " + scoresTable + " ( username , level , mazesize , completiontime , finishposition , score , coins , date ) VALUES ( ? , ? , ? , ? , ? , ? , ? , ? )";
 			
+			connection = pool.borrow();
+			 
 			Timestamp time = new Timestamp( System.currentTimeMillis() );
 			
-			PreparedStatement updateUser = connection.prepareStatement( updateQuery );
+			PreparedStatement updateUser = prepare( connection , INSERT_SCORE );
 			updateUser.setString( 1 , username );
 			updateUser.setString( 2 , level );
 			updateUser.setInt( 3, mazeSize );
@@ -552,7 +631,188 @@ public class Database {
 			e.printStackTrace();
 			return -4;
 			
-		} 
+		} finally {
+			
+			pool.release( connection );
+			
+		}
+		
+	}
+	
+	/**
+	 * Write the records queued by the StatsWriter: the stats changes and the scores, in one transaction
+	 * 
+	 * @param records The records
+	 * @throws SQLException If any of them could not be written (none of them are)
+	 */
+	protected void writeGames( List<StatsWriter.Record> records ) throws SQLException {
+		
+		Connection connection = pool.borrow();
+		PreparedStatement totals = null;
+		PreparedStatement scores = null;
+		
+		try {
+			
+			connection.setAutoCommit( false );
+			
+			totals = prepare( connection , ADD_TOTALS );
+			scores = prepare( connection , INSERT_SCORE );
+			boolean anyScores = false;
+			
+			for( StatsWriter.Record record : records ) {
+				
+				totals.setInt( 1 , record.played );
+				totals.setInt( 2 , record.won );
+				totals.setInt( 3 , record.finished );
+				totals.setInt( 4 , record.coins );
+				totals.setInt( 5 , record.points );
+				totals.setString( 6 , record.username );
+				totals.addBatch();
+				
+				if( record.level == null ) { continue; }
+				
+				scores.setString( 1 , record.username );
+				scores.setString( 2 , record.level );
+				scores.setInt( 3 , record.mazeSize );
+				scores.setInt( 4 , record.completionTime );
+				scores.setInt( 5 , record.finishPosition );
+				scores.setInt( 6 , record.points );
+				scores.setInt( 7 , record.coins );
+				// When the game finished, not when the record was written
+				scores.setTimestamp( 8 , new Timestamp( record.date ) );
+				scores.addBatch();
+				anyScores = true;
+				
+			}
+			
+			totals.executeBatch();
+			
+			if( anyScores ) {
+				scores.executeBatch();
+			}
+			
+			connection.commit();
+			
+		} catch ( SQLException e ) {
+			
+			// The statements are cached, they must not keep the failed batch
+			if( totals != null ) { totals.clearBatch(); }
+			if( scores != null ) { scores.clearBatch(); }
+			
+			try {
+				connection.rollback();
+			} catch ( SQLException r ) {
+				// The connection is probably gone
+			}
+			
+			throw e;
+			
+		} finally {
+			
+			try {
+				connection.setAutoCommit( true );
+			} catch ( SQLException e ) {
+				// The pool notices a closed connection
+			}
+			
+			pool.release( connection );
+			
+		}
+		
+	}
+	
+	/**
+	 * Read every player's totals (for the Leaderboards)
+	 * 
+	 * @return The totals, or null if they could not be read
+	 */
+	protected List<Leaderboards.Totals> getAllTotals() {
+		
+		Connection connection = null;
+		
+		try {
+			
+			connection = pool.borrow();
+			
+			// Postgres only streams the rows (instead of reading the whole table into memory at once) inside a transaction
+			connection.setAutoCommit( false );
+			
+			PreparedStatement find = prepare( connection , ALL_TOTALS );
+			find.setFetchSize( 1000 );
+			
+			ResultSet found = find.executeQuery();
+			List<Leaderboards.Totals> totals = new ArrayList<Leaderboards.Totals>();
+			
+			while( found.next() ) {
+				totals.add( new Leaderboards.Totals( found.getString( 1 ) , found.getInt( 2 ) , found.getInt( 3 ) , found.getInt( 4 ) , found.getInt( 5 ) , found.getInt( 6 ) ) );
+			}
+			
+			found.close();
+			connection.commit();
+			
+			return totals;
+			
+		} catch ( SQLException e ) {
+			
+			e.printStackTrace();
+			return null;
+			
+		} finally {
+			
+			if( connection != null ) {
+				
+				try {
+					connection.setAutoCommit( true );
+				} catch ( SQLException e ) {
+					// The pool notices a closed connection
+				}
+				
+			}
+			
+			pool.release( connection );
+			
+		}
+		
+	}
+	
+	/**
+	 * Read the scores of the recent days, added up per player per day (for the PeriodLeaderboards)
+	 * 
+	 * @param firstDay The first day to read (UTC, in days since 1970-01-01)
+	 * @return The points and coins per player per day, or null if they could not be read
+	 */
+	protected List<PeriodLeaderboards.DayTotal> getPeriodScores( long firstDay ) {
+		
+		Connection connection = null;
+		
+		try {
+			
+			connection = pool.borrow();
+			
+			PreparedStatement find = prepare( connection , DAY_TOTALS );
+			find.setTimestamp( 1 , new Timestamp( firstDay * 86400000L ) );
+			
+			ResultSet found = find.executeQuery();
+			List<PeriodLeaderboards.DayTotal> totals = new ArrayList<PeriodLeaderboards.DayTotal>();
+			
+			while( found.next() ) {
+				totals.add( new PeriodLeaderboards.DayTotal( found.getString( 1 ) , found.getLong( 2 ) , found.getInt( 3 ) , found.getInt( 4 ) ) );
+			}
+			
+			found.close();
+			
+			return totals;
+			
+		} catch ( SQLException e ) {
+			
+			e.printStackTrace();
+			return null;
+			
+		} finally {
+			
+			pool.release( connection );
+			
+		}
 		
 	}
 	
@@ -566,37 +826,30 @@ public class Database {
 			return null;
 		}
 		
+		Connection connection = null;
+		
 		try {
+			
+			connection = pool.borrow();
 			 
-			String findQuery = "SELECT * FROM " + playersTable + " WHERE username=?;";
-			// statement must be scrollable, otherwise we can't go back to the first row in the resultset
-			PreparedStatement findUser = connection.prepareStatement( findQuery , ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
+			PreparedStatement findUser = prepare( connection , FIND_USER );
 			findUser.setString( 1 , username );
 			 
 			ResultSet found = findUser.executeQuery();
-	  
 		 
 			// If there are no matching results, this means the username is not in the database
-			int count = 0;
-			while( found.next() ) {
-				count++;
-				if( count > 1 ) {
-					break; // no need to continue further
-				}
-			}
-			if( count == 0 ) {
+			if( !found.next() ) {
+				found.close();
 				return null;
 			}
 			
-			// Go back to the first row in the result set after checking the count
-			found.first();
-			
-			
 			int totalcoins = found.getInt( 6 );
 			int played = found.getInt( 7 );
 			int finished = found.getInt( 8 );
 			int won = found.getInt( 9 );
 			int totalscore = found.getInt(10);
+			found.close();
+			
 			double wlRatio;
 			if( finished > 0 ) {
 				wlRatio = (double) won / finished;
@@ -610,27 +863,16 @@ public class Database {
 			 
 			
 			
-			String scoreQuery = "SELECT * FROM " + scoresTable + " WHERE username=? ORDER BY date DESC LIMIT 1;";
-			// statement must be scrollable, otherwise we can't go back to the first row in the resultset
-			PreparedStatement findScore = connection.prepareStatement( scoreQuery , ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
+			PreparedStatement findScore = prepare( connection , LAST_SCORE );
 			findScore.setString( 1 , username );
 			 
 			found = findScore.executeQuery();
 			
-			count = 0;
-			while( found.next() ) {
-				count++;
-				if( count > 1 ) {
-					break; // no need to continue further
-				}
-			}
-			if( count == 0 ) {
+			if( !found.next() ) {
+				found.close();
 				return new String[] { stats };
 			}
 			
-			// Go back to the first row in the result set after checking the count
-			found.first();
-			
 			String level = found.getString(3);
 			int mazesize = found.getInt(2);
 			int completiontime = found.getInt(4) / 1000;
@@ -638,6 +880,7 @@ public class Database {
 			int score = found.getInt(6);
 			int coins = found.getInt(7);
 			Timestamp time = found.getTimestamp( 8 );
+			found.close();
 			
 			String last = level+","+mazesize+","+finishposition+","+completiontime+","+coins+","+score+","+time;
 					
@@ -648,33 +891,37 @@ public class Database {
 			e.printStackTrace();
 			return null;
 			
+		} finally {
+			
+			pool.release( connection );
+			
 		}
 		
 	}
 	
 	protected String getTopScores( int type ) {
 		
-		String query;
+		int query;
 		int field = 0;
 		
 		if( type == 0 ) {
 			
 			field = 6;
-			query = "SELECT * FROM " + playersTable + " ORDER BY \"totalCoins\" DESC LIMIT 5";
+			query = TOP_COINS;
 			
 		} else if( type == 1 ) {
 			
 			field = 10;
-			query = "SELECT * FROM " + playersTable + " ORDER BY \"totalPoints\" DESC LIMIT 5";
+			query = TOP_POINTS;
 			
 		} else if( type == 2 ) {
 			
 			field = 9;
-			query = "SELECT * FROM " + playersTable + " ORDER BY \"gamesWon\" DESC LIMIT 5";
+			query = TOP_WINS;
 			
 		} else if( type == 3 ) {
 			
-			query = "SELECT * FROM " + playersTable + " ORDER BY COALESCE( CAST( \"gamesWon\" AS FLOAT ) / NULLIF( \"gamesFinished\" , 0 ) , 0 ) DESC LIMIT 5";
+			query = TOP_RATIO;
 			
 		} else {
 			return null;
@@ -682,15 +929,22 @@ public class Database {
 		
 		String result = "";
 		
+		Connection connection = null;
+		
 		try {
 			
-			// statement must be scrollable, otherwise we can't go back to the first row in the resultset
-			PreparedStatement find = connection.prepareStatement( query , ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
+			connection = pool.borrow();
+			
+			PreparedStatement find = prepare( connection , query );
 			ResultSet found = find.executeQuery();
 			
 			int count = 0;
 			while( found.next() ) {
 				
+				// Separate from the previous row (the cursor is forward only, it can't tell whether this is the last row)
+				if( count > 0 ) {
+					result += "|";
+				}
 				
 				result += found.getString(2) + ",";
 				if( type == 3 ) {
@@ -711,14 +965,12 @@ public class Database {
 					
 				}
 				
-				if( !found.isLast() ) {
-					result += "|";
-				}
-				
 				count++;
 				
 			}
 			
+			found.close();
+			
 			if( count == 0 ) {
 				return null;
 			}
@@ -730,6 +982,10 @@ public class Database {
 			e.printStackTrace();
 			return null;
 			
+		} finally {
+			
+			pool.release( connection );
+			
 		}
 		
 	}
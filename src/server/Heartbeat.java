@@ -0,0 +1,144 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.Protocol;
+
+/**
+ * Notices clients that have gone away without closing their connection.
+ *
+ * Every message a client sends stamps its handler (see ClientHandler.handleRequest), so a busy client costs nothing here.
+ * Each logged in connection has one deadline on the server's timing wheel. When it expires:
+ * <ul>
+ * <li>if the client has sent something since, the deadline is moved to the end of the new idle period</li>
+ * <li>if the client has been idle for Constraints.heartbeatIdle, it is pinged (the ping is queued, it never waits for the socket)</li>
+ * <li>if nothing has arrived Constraints.heartbeatTimeout after the ping, the connection is closed and the player logged out</li>
+ * </ul>
+ * The wheel only looks at the deadlines that expire, never at all of the connections, and nothing here ever reads from a socket.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class Heartbeat {
+
+	// Totals (see ServerMetrics)
+	protected static final AtomicLong pings = new AtomicLong();
+	protected static final AtomicLong timeouts = new AtomicLong();
+
+	private final TimingWheel wheel;
+	private final long idle;
+	private final long timeout;
+
+	/**
+	 * @param wheel The wheel that keeps the deadlines
+	 * @param idleMillis How long a client may stay silent before it is pinged
+	 * @param timeoutMillis How long a pinged client has to answer
+	 */
+	public Heartbeat( TimingWheel wheel , int idleMillis , int timeoutMillis ) {
+
+		this.wheel = wheel;
+		this.idle = TimeUnit.MILLISECONDS.toNanos( idleMillis );
+		this.timeout = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+
+	}
+
+	/**
+	 * Start watching a connection
+	 *
+	 * @param handler The connection's handler
+	 */
+	protected void watch( final ClientHandler handler ) {
+
+		Runnable check = new Runnable() {
+
+			@Override
+			public void run() {
+
+				long next = check( handler );
+
+				synchronized( handler ) {
+
+					if( next > 0 && handler.liveness != null ) {
+						handler.liveness = wheel.schedule( this , next , TimeUnit.NANOSECONDS );
+					}
+
+				}
+
+			}
+
+		};
+
+		synchronized( handler ) {
+
+			if( handler.liveness != null ) { return; }
+			handler.liveness = wheel.schedule( check , idle , TimeUnit.NANOSECONDS );
+
+		}
+
+	}
+
+	/**
+	 * Stop watching a connection (it has been closed)
+	 *
+	 * @param handler The connection's handler
+	 */
+	protected void unwatch( ClientHandler handler ) {
+
+		synchronized( handler ) {
+
+			if( handler.liveness == null ) { return; }
+
+			handler.liveness.cancel();
+			handler.liveness = null;
+
+		}
+
+	}
+
+	/**
+	 * Called when the connection's deadline expires
+	 *
+	 * @return How long (in nanoseconds) until the next check, 0 if the connection has been closed
+	 */
+	private long check( ClientHandler handler ) {
+
+		long now = System.nanoTime();
+
+		// Nothing has arrived since the last ping (pingSent starts equal to lastInbound, so this is false until a ping is sent)
+		boolean pinged = handler.pingSent - handler.lastInbound > 0;
+
+		if( !pinged ) {
+
+			long silent = now - handler.lastInbound;
+
+			// Heard from the client since the deadline was set
+			if( silent < idle ) {
+				return idle - silent;
+			}
+
+			// Idle - make sure the client is still there
+			handler.pingSent = now;
+			handler.pingOutstanding = true;
+			handler.send( Protocol.encode( Protocol.P_CONNECTION_TEST ) );
+
+			pings.incrementAndGet();
+			return timeout;
+
+		}
+
+		if( now - handler.pingSent < timeout ) {
+			return timeout - ( now - handler.pingSent );
+		}
+
+		// Pinged and nothing has come back
+		timeouts.incrementAndGet();
+		System.out.println( "PLAYER [" + handler.getUsername() + "] DID NOT ANSWER THE HEARTBEAT. DISCONNECTING." );
+
+		// Closing the connection makes its reader (the selector or the blocked handler thread) log the player out
+		handler.stop();
+		return 0;
+
+	}
+
+}
@@ -0,0 +1,468 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import protocol.Protocol;
+
+/**
+ * The top scores boards (most coins, most points, most wins and best win/loss ratio), kept in memory.
+ *
+ * Every player's totals are read from the database once (the first time the boards are needed) and updated here when a
+ * game starts or a player finishes, at the same time as the StatsWriter is told to write them. The totals are only read while
+ * the StatsWriter has nothing left to write (see StatsWriter.readWritten), and each change carries the sequence number of its
+ * StatsWriter record, so a game is counted once whether or not it was already in the database when the totals were read. Each board orders all of the
+ * players in a RankIndex (rebuilt from one sort when the totals are loaded), so a player's rank and percentile are found in O(log n) (no COUNT queries), and the top
+ * Constraints.leaderboardSize players are read from it again only when the player who changed is or was among them.
+ * The P_GET_TOPSCORES response is encoded again only when the top changes, so a request costs nothing but sending the response.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class Leaderboards {
+
+	// The boards, in the order of the P_GET_TOPSCORES arguments
+	public static final int COINS = 0;
+	public static final int POINTS = 1;
+	public static final int WINS = 2;
+	public static final int RATIO = 3;
+	private static final int BOARDS = 4;
+
+	private final int size;
+
+	// Every player's totals by username
+	private final HashMap<String, Totals> players = new HashMap<String, Totals>();
+	// Every player in the order of each board
+	private final RankIndex[] index = new RankIndex[ BOARDS ];
+	// The top of each board, best first
+	private final Totals[][] top = new Totals[ BOARDS ][];
+	private final int[] count = new int[ BOARDS ];
+	// The encoded boards (username,value|username,value|...)
+	private final String[] encoded = new String[ BOARDS ];
+
+	private boolean loaded = false;
+	// The changes made before the totals were read, and the sequence number of the first StatsWriter record the totals don't count
+	private final ArrayList<Change> early = new ArrayList<Change>();
+	private long first;
+	// The P_GET_TOPSCORES response
+	private volatile String response;
+
+	/**
+	 * @param size How many players each board shows
+	 */
+	public Leaderboards( int size ) {
+
+		this.size = Math.max( 1 , size );
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+
+			index[ b ] = new RankIndex();
+			top[ b ] = new Totals[ this.size ];
+
+		}
+
+		encodeAll();
+
+	}
+
+	/**
+	 * @return Whether the players' totals have been read from the database
+	 */
+	public synchronized boolean isLoaded() {
+
+		return loaded;
+
+	}
+
+	/**
+	 * Fill the boards with the totals read from the database. The changes made before that (by games that started or
+	 * finished before the boards were loaded) are added to the totals read, unless the totals already count them.
+	 *
+	 * @param totals Every player's totals
+	 * @param first The sequence number of the first StatsWriter record the totals don't count (see StatsWriter.readWritten)
+	 */
+	public synchronized void load( List<Totals> totals , long first ) {
+
+		for( Totals t : totals ) {
+			players.put( t.username , t );
+		}
+
+		for( Change c : early ) {
+
+			if( c.number >= first ) {
+				totals( c.username ).add( c.played , c.won , c.finished , c.coins , c.points );
+			}
+
+		}
+
+		early.clear();
+		this.first = first;
+
+		// Sort each board once and build its index from that (instead of inserting the players one at a time)
+		Totals[] all = players.values().toArray( new Totals[ players.size() ] );
+		long[] keys = new long[ all.length ];
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+
+			final int board = b;
+
+			Arrays.sort( all , new Comparator<Totals>() {
+
+				@Override
+				public int compare( Totals x , Totals y ) {
+
+					long kx = key( board , x ) , ky = key( board , y );
+					return kx != ky ? ( kx > ky ? -1 : 1 ) : x.username.compareTo( y.username );
+
+				}
+
+			});
+
+			for( int i = 0 ; i < all.length ; i++ ) {
+				keys[ i ] = key( b , all[ i ] );
+			}
+
+			index[ b ].build( all , keys , all.length );
+
+		}
+
+		loaded = true;
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+			fill( b );
+		}
+
+		encodeAll();
+
+	}
+
+	/**
+	 * A player has registered
+	 */
+	public synchronized void add( String username ) {
+
+		if( players.containsKey( username ) ) { return; }
+
+		// Not a StatsWriter record, the player is added whether or not the totals read count them
+		change( username , Long.MAX_VALUE , 0 , 0 , 0 , 0 , 0 );
+
+	}
+
+	/**
+	 * A player has started a game
+	 *
+	 * @param username The player's username
+	 * @param number The sequence number of the game's StatsWriter record
+	 */
+	public synchronized void played( String username , long number ) {
+
+		if( !loaded ) {
+
+			early.add( new Change( username , number , 1 , 0 , 0 , 0 , 0 ) );
+			return;
+
+		}
+
+		// Not on any board
+		if( number >= first ) {
+			totals( username ).add( 1 , 0 , 0 , 0 , 0 );
+		}
+
+	}
+
+	/**
+	 * A player has finished a game
+	 *
+	 * @param username The player's username
+	 * @param number The sequence number of the game's StatsWriter record
+	 * @param won 1 if the player won
+	 * @param coins The coins collected
+	 * @param points The score
+	 */
+	public synchronized void finished( String username , long number , int won , int coins , int points ) {
+
+		change( username , number , 0 , won , 1 , coins , points );
+
+	}
+
+	/**
+	 * @return The P_GET_TOPSCORES response (encoded when the boards last changed)
+	 */
+	public String getResponse() {
+
+		return response;
+
+	}
+
+	/**
+	 * @param board COINS, POINTS, WINS or RATIO
+	 * @return The board in the P_GET_TOPSCORES format, or null if nobody is on it
+	 */
+	public synchronized String getBoard( int board ) {
+
+		return count[ board ] == 0 ? null : encoded[ board ];
+
+	}
+
+	/**
+	 * A player's rank and percentile on every board. Players with the same value share a rank, and the percentile is the
+	 * percentage of players below the player, counting half of the players with the same value (the player included).
+	 *
+	 * @param username The player's username
+	 * @return rank,percentile for the coins, points, wins and ratio boards, then the number of players, all separated
+	 * by commas. null if the player is not known (or the boards have not been loaded)
+	 */
+	public synchronized String getRanks( String username ) {
+
+		Totals t = players.get( username );
+
+		if( !loaded || t == null ) { return null; }
+
+		int n = players.size();
+		StringBuilder result = new StringBuilder();
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+
+			long key = key( b , t );
+			int ahead = index[ b ].ahead( key );
+			int behind = index[ b ].behind( key );
+			int same = n - ahead - behind;
+
+			double percentile = 100.0 * ( behind + same / 2.0 ) / n;
+
+			result.append( ahead + 1 ).append( ',' ).append( Math.round( percentile * 10 ) / 10.0 ).append( ',' );
+
+		}
+
+		return result.append( n ).toString();
+
+	}
+
+	/**
+	 * @param username The player's username
+	 * @return The player's totals in the P_GET_STATS format (played,finished,won,ratio,coins,points), or null if the player is
+	 * not known (or the boards have not been loaded)
+	 */
+	public synchronized String getStats( String username ) {
+
+		Totals t = players.get( username );
+
+		if( !loaded || t == null ) { return null; }
+
+		return "" + t.played + "," + t.finished + "," + t.won + "," + t.ratio() + "," + t.coins + "," + t.points;
+
+	}
+
+	private Totals totals( String username ) {
+
+		Totals t = players.get( username );
+
+		if( t == null ) {
+
+			t = new Totals( username , 0 , 0 , 0 , 0 , 0 );
+			players.put( username , t );
+
+			if( loaded ) {
+
+				for( int b = 0 ; b < BOARDS ; b++ ) {
+					index[ b ].insert( t , key( b , t ) );
+				}
+
+			}
+
+		}
+
+		return t;
+
+	}
+
+	/**
+	 * Change a player's totals and put them in their new place on every board
+	 */
+	private void change( String username , long number , int played , int won , int finished , int coins , int points ) {
+
+		if( !loaded ) {
+
+			// Kept until the totals are loaded
+			early.add( new Change( username , number , played , won , finished , coins , points ) );
+			return;
+
+		}
+
+		// The totals read from the database already count it
+		if( number < first ) { return; }
+
+		Totals t = totals( username );
+
+		// The indexes are ordered by the totals, so the player is taken out while they change
+		boolean[] wasOnTop = new boolean[ BOARDS ];
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+
+			wasOnTop[ b ] = onTop( b , t );
+			index[ b ].remove( t , key( b , t ) );
+
+		}
+
+		t.add( played , won , finished , coins , points );
+
+		boolean changed = false;
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+
+			long key = key( b , t );
+			index[ b ].insert( t , key );
+
+			if( wasOnTop[ b ] || index[ b ].position( t , key ) < size ) {
+
+				fill( b );
+				changed = true;
+
+			}
+
+		}
+
+		if( changed ) {
+			encodeAll();
+		}
+
+	}
+
+	private boolean onTop( int b , Totals t ) {
+
+		for( int i = 0 ; i < count[ b ] ; i++ ) {
+
+			if( top[ b ][ i ] == t ) { return true; }
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Read the top of a board from its index
+	 */
+	private void fill( int b ) {
+
+		count[ b ] = Math.min( size , index[ b ].size() );
+
+		for( int i = 0 ; i < count[ b ] ; i++ ) {
+			top[ b ][ i ] = index[ b ].select( i );
+		}
+
+	}
+
+	private void encodeAll() {
+
+		for( int b = 0 ; b < BOARDS ; b++ ) {
+
+			StringBuilder result = new StringBuilder();
+
+			for( int i = 0 ; i < count[ b ] ; i++ ) {
+
+				if( i > 0 ) { result.append( '|' ); }
+
+				Totals t = top[ b ][ i ];
+				result.append( t.username ).append( ',' );
+
+				if( b == COINS ) { result.append( t.coins ); }
+				else if( b == POINTS ) { result.append( t.points ); }
+				else if( b == WINS ) { result.append( t.won ); }
+				else { result.append( t.ratio() ); }
+
+			}
+
+			encoded[ b ] = result.toString();
+
+		}
+
+		response = Protocol.encode( Protocol.P_GET_TOPSCORES ,
+				count[ COINS ] == 0 ? "none" : encoded[ COINS ] ,
+				count[ POINTS ] == 0 ? "none" : encoded[ POINTS ] ,
+				count[ WINS ] == 0 ? "none" : encoded[ WINS ] ,
+				count[ RATIO ] == 0 ? "none" : encoded[ RATIO ] );
+
+	}
+
+	/**
+	 * A player's value on a board as a key of the board's index (higher is better). The ratio is never negative, so the bits of
+	 * the double are in the same order as the ratios.
+	 */
+	private static long key( int board , Totals t ) {
+
+		if( board == COINS ) { return t.coins; }
+		if( board == POINTS ) { return t.points; }
+		if( board == WINS ) { return t.won; }
+
+		return Double.doubleToLongBits( t.ratio() );
+
+	}
+
+	/**
+	 * A change to a player's totals made before the totals were read
+	 */
+	private static class Change {
+
+		private final String username;
+		private final long number;
+		private final int played, won, finished, coins, points;
+
+		private Change( String username , long number , int played , int won , int finished , int coins , int points ) {
+
+			this.username = username;
+			this.number = number;
+			this.played = played;
+			this.won = won;
+			this.finished = finished;
+			this.coins = coins;
+			this.points = points;
+
+		}
+
+	}
+
+	/**
+	 * A player's totals
+	 */
+	protected static class Totals {
+
+		protected final String username;
+		protected int played, won, finished, coins, points;
+
+		protected Totals( String username , int played , int won , int finished , int coins , int points ) {
+
+			this.username = username;
+			this.played = played;
+			this.won = won;
+			this.finished = finished;
+			this.coins = coins;
+			this.points = points;
+
+		}
+
+		private void add( int played , int won , int finished , int coins , int points ) {
+
+			this.played += played;
+			this.won += won;
+			this.finished += finished;
+			this.coins += coins;
+			this.points += points;
+
+		}
+
+		/**
+		 * @return The win/loss ratio (the same as Database.getUserData)
+		 */
+		protected double ratio() {
+
+			return finished > 0 ? (double) won / finished : 0.0;
+
+		}
+
+	}
+
+}
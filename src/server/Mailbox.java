@@ -0,0 +1,107 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The inbound commands of one session (moves, fires, ready, leave, countdown steps and ticks).
+ *
+ * Commands run in the order they were posted, one at a time, on a shared worker pool. Many sessions share a few
+ * worker threads, but a session's commands never run at the same time, so the game state they change (player
+ * positions, coins, traps, finish positions) needs no locks.
+ *
+ * A session that keeps receiving commands gives its worker back after a batch, so the other sessions on the pool
+ * are not starved.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class Mailbox {
+
+	private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean( false );
+
+	private final Executor workers;
+	private final int batch;
+
+	private final Runnable drainer;
+
+	/**
+	 * @param workers The pool that runs the commands
+	 * @param batch How many commands run before the worker is handed to the next session
+	 */
+	public Mailbox( Executor workers , int batch ) {
+
+		this.workers = workers;
+		this.batch = Math.max( 1 , batch );
+
+		drainer = new Runnable() {
+
+			@Override
+			public void run() {
+
+				drain();
+
+			}
+
+		};
+
+	}
+
+	/**
+	 * Queue a command. Never blocks.
+	 *
+	 * @param command The command
+	 */
+	public void post( Runnable command ) {
+
+		commands.add( command );
+
+		if( scheduled.compareAndSet( false , true ) ) {
+			workers.execute( drainer );
+		}
+
+	}
+
+	private void drain() {
+
+		try {
+
+			Runnable command;
+
+			for( int i = 0 ; i < batch && ( command = commands.poll() ) != null ; i++ ) {
+
+				try {
+
+					command.run();
+
+				} catch ( RuntimeException e ) {
+
+					// One broken command must not stop the session
+					e.printStackTrace();
+
+				}
+
+			}
+
+		} finally {
+
+			scheduled.set( false );
+
+		}
+
+		// More commands (left over from the batch, or posted after the last poll)
+		if( !commands.isEmpty() && scheduled.compareAndSet( false , true ) ) {
+			workers.execute( drainer );
+		}
+
+	}
+
+	public int size() {
+
+		return commands.size();
+
+	}
+
+}
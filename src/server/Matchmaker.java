@@ -0,0 +1,366 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue of players waiting for a lobby.
+ *
+ * Joining and leaving never lock and never look at the other players: a join appends the player's ticket, a leave only
+ * marks it as cancelled (the dead ticket is dropped the next time the matchmaker walks past it). The lobbies are formed by
+ * one matchmaker thread, which takes the players Constraints.minPlayersRequired at a time in the order they joined and sends
+ * the changes to the queue's roster once per pass, however many players joined or left since the last one (see QueueRoster).
+ *
+ * A ticket is taken by the matchmaker or cancelled by its player, never both:
+ * WAITING -> CANCELLED (left the queue), or WAITING -> TAKEN -> SEATED (in a lobby), or TAKEN -> ABANDONED (left while the
+ * lobby was being formed, the matchmaker takes them out of it again).
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class Matchmaker {
+
+	private static final int WAITING = 0;
+	private static final int CANCELLED = 1;
+	private static final int TAKEN = 2;
+	private static final int SEATED = 3;
+	private static final int ABANDONED = 4;
+
+	// A player has at most one ticket
+	private static final AtomicReferenceFieldUpdater<Player, Ticket> TICKET = AtomicReferenceFieldUpdater.newUpdater( Player.class , Ticket.class , "ticket" );
+
+	private final Server server;
+	private final ConcurrentLinkedDeque<Ticket> tickets = new ConcurrentLinkedDeque<Ticket>();
+	// The number of waiting tickets (the deque may still hold cancelled ones)
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicBoolean changed = new AtomicBoolean( false );
+	private final QueueRoster roster = new QueueRoster( Constraints.queueSnapshotInterval );
+
+	private final long interval;
+	private final Thread thread;
+
+	// A session made before its players were taken, kept for the next lobby if some of them had left by then (matchmaker thread only)
+	private Session spare;
+
+	/**
+	 * Create and start the matchmaker thread
+	 *
+	 * @param server The server the lobbies are created on
+	 * @param intervalMillis The shortest time between two passes (joins and leaves in between are handled together)
+	 */
+	public Matchmaker( Server server , int intervalMillis ) {
+
+		this.server = server;
+		this.interval = TimeUnit.MILLISECONDS.toNanos( intervalMillis );
+
+		thread = new Thread( new Runnable() {
+
+			@Override
+			public void run() {
+
+				match();
+
+			}
+
+		}, "matchmaker" );
+
+		thread.setDaemon( true );
+		thread.start();
+
+	}
+
+	/**
+	 * Put a player at the end of the queue
+	 *
+	 * @param player The player
+	 * @return false if the player is already in the queue (or on the way to a lobby)
+	 */
+	public boolean join( Player player ) {
+
+		Ticket ticket = new Ticket( player );
+
+		if( !TICKET.compareAndSet( player , null , ticket ) ) { return false; }
+
+		tickets.addLast( ticket );
+		waiting.incrementAndGet();
+		roster.joined( player );
+
+		wake();
+		return true;
+
+	}
+
+	/**
+	 * Take a player out of the queue
+	 *
+	 * @param player The player
+	 * @return true if the player was in the queue (or is being put into a lobby, which they will be taken out of again),
+	 * false if they were not in it or are already in a lobby
+	 */
+	public boolean cancel( Player player ) {
+
+		Ticket ticket = player.ticket;
+
+		if( ticket == null ) { return false; }
+
+		if( ticket.state.compareAndSet( WAITING , CANCELLED ) ) {
+
+			waiting.decrementAndGet();
+			TICKET.compareAndSet( player , ticket , null );
+			roster.left( player );
+
+			wake();
+			return true;
+
+		}
+
+		// Being put into a lobby right now - the matchmaker takes them out of it once it is done
+		return ticket.state.compareAndSet( TAKEN , ABANDONED );
+
+	}
+
+	/**
+	 * Send the whole roster to a player in the queue (they missed a change)
+	 *
+	 * @param player The player
+	 */
+	public void resync( Player player ) {
+
+		roster.resync( player );
+		wake();
+
+	}
+
+	/**
+	 * @return The number of players waiting
+	 */
+	public int size() {
+
+		return Math.max( 0 , waiting.get() );
+
+	}
+
+	/**
+	 * @return The players waiting, in the order they joined
+	 */
+	public List<Player> players() {
+
+		List<Player> players = new ArrayList<Player>();
+
+		for( Iterator<Ticket> it = tickets.iterator() ; it.hasNext() ; ) {
+
+			Ticket ticket = it.next();
+
+			if( ticket.state.get() == WAITING ) {
+				players.add( ticket.player );
+			} else if( ticket.state.get() == CANCELLED ) {
+				// Drop the tickets of the players that left
+				it.remove();
+			}
+
+		}
+
+		return players;
+
+	}
+
+	private void wake() {
+
+		changed.set( true );
+		LockSupport.unpark( thread );
+
+	}
+
+	/**
+	 * The matchmaker thread: wait for a change, form as many lobbies as the queue allows, then send the new roster
+	 */
+	private void match() {
+
+		while( true ) {
+
+			if( !changed.getAndSet( false ) ) {
+
+				LockSupport.park( this );
+				continue;
+
+			}
+
+			long start = System.nanoTime();
+
+			try {
+
+				while( size() >= Constraints.minPlayersRequired ) {
+
+					// The session takes its maze from the pool (or generates it if the pool is empty), so it is made before any players are taken
+					if( spare == null ) {
+						spare = newSession();
+					}
+
+					Ticket[] group = take( Constraints.minPlayersRequired );
+
+					if( group == null ) { break; }
+
+					seat( spare , group );
+					spare = null;
+
+				}
+
+			} catch ( RuntimeException e ) {
+
+				e.printStackTrace();
+
+			}
+
+			try {
+
+				roster.publish( players() );
+
+			} catch ( RuntimeException e ) {
+
+				e.printStackTrace();
+
+			}
+
+			// Let the next joins pile up a little, so they are handled (and the roster sent) together
+			long wait;
+
+			while( ( wait = interval - ( System.nanoTime() - start ) ) > 0 ) {
+				LockSupport.parkNanos( wait );
+			}
+
+		}
+
+	}
+
+	/**
+	 * Take the first count waiting players
+	 *
+	 * @return Their tickets, or null if fewer are waiting (the ones taken are put back in front)
+	 */
+	private Ticket[] take( int count ) {
+
+		Ticket[] group = new Ticket[ count ];
+		int taken = 0;
+
+		while( taken < count ) {
+
+			Ticket ticket = tickets.pollFirst();
+
+			if( ticket == null ) { break; }
+
+			if( ticket.state.compareAndSet( WAITING , TAKEN ) ) {
+
+				waiting.decrementAndGet();
+				group[ taken++ ] = ticket;
+
+			}
+
+		}
+
+		if( taken == count ) { return group; }
+
+		// Players left in the meantime - put the others back where they were
+		for( int i = taken - 1 ; i >= 0 ; i-- ) {
+
+			Ticket ticket = group[ i ];
+
+			if( ticket.state.compareAndSet( TAKEN , WAITING ) ) {
+
+				tickets.addFirst( ticket );
+				waiting.incrementAndGet();
+
+			} else {
+
+				// Left while they were taken, they are not in a lobby yet so there is nothing to undo
+				TICKET.compareAndSet( ticket.player , ticket , null );
+				roster.left( ticket.player );
+
+			}
+
+		}
+
+		return null;
+
+	}
+
+	private void seat( Session session , Ticket[] group ) {
+
+		Player[] players = new Player[ group.length ];
+
+		for( int i = 0 ; i < group.length ; i++ ) {
+			players[ i ] = group[ i ].player;
+		}
+
+		createLobby( session , players );
+
+		for( Ticket ticket : group ) {
+
+			roster.left( ticket.player );
+
+			boolean seated = ticket.state.compareAndSet( TAKEN , SEATED );
+
+			// The player is in the lobby now, the ticket is no longer needed
+			TICKET.compareAndSet( ticket.player , ticket , null );
+
+			if( !seated ) {
+
+				// Left while the lobby was being formed
+				leaveLobby( ticket.player );
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Make the session of the next lobby
+	 */
+	protected Session newSession() {
+
+		return new Session( server );
+
+	}
+
+	/**
+	 * Put the players taken from the queue into a new lobby
+	 */
+	protected void createLobby( Session session , Player[] players ) {
+
+		server.createLobby( session , players );
+
+	}
+
+	/**
+	 * Take a player who left the queue while their lobby was being formed out of it again
+	 */
+	protected void leaveLobby( Player player ) {
+
+		server.removePlayerFromSession( player , true );
+
+	}
+
+	/**
+	 * A player's place in the queue
+	 */
+	protected static class Ticket {
+
+		private final Player player;
+		private final AtomicInteger state = new AtomicInteger( WAITING );
+
+		private Ticket( Player player ) {
+
+			this.player = player;
+
+		}
+
+	}
+
+}
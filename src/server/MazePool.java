@@ -0,0 +1,246 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.mazegeneration.MazeGenerator;
+
+/**
+ * Mazes generated ahead of time, so a new session takes one instead of waiting for the generator (which can take a while for
+ * a fair asymmetrical maze, see MazeGenerator).
+ *
+ * The quad sizes are split into ranges, each with its own bounded pool. A session picks a random quad size like before and
+ * takes a maze from the pool of its range. When a pool falls below the low watermark, a background worker fills it back up.
+ * Only when a pool is empty is the maze generated on the spot. Each maze is only handed out once (the coins are collected from it).
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class MazePool {
+
+	// Totals (see ServerMetrics)
+	protected static final AtomicLong generated = new AtomicLong();
+	protected static final AtomicLong generationNanos = new AtomicLong();
+	protected static final AtomicLong slowestNanos = new AtomicLong();
+	protected static final AtomicLong taken = new AtomicLong();
+	protected static final AtomicLong misses = new AtomicLong();
+
+	private final int minQuadSize;
+	private final int maxQuadSize;
+	private final int lowWatermark;
+	private final Range[] ranges;
+	private final ExecutorService workers;
+
+	/**
+	 * @param minQuadSize The smallest quad size a session gets
+	 * @param maxQuadSize The largest quad size a session gets
+	 * @param rangeCount How many ranges the quad sizes are split into (each has its own pool)
+	 * @param capacity The most mazes kept in each range's pool
+	 * @param lowWatermark A pool is filled back up when it has fewer mazes than this
+	 * @param threads How many threads generate the mazes in the background
+	 */
+	public MazePool( int minQuadSize , int maxQuadSize , int rangeCount , int capacity , int lowWatermark , int threads ) {
+
+		this.minQuadSize = minQuadSize;
+		this.maxQuadSize = Math.max( minQuadSize , maxQuadSize );
+		this.lowWatermark = lowWatermark;
+
+		int sizes = this.maxQuadSize - minQuadSize + 1;
+		rangeCount = Math.max( 1 , Math.min( rangeCount , sizes ) );
+
+		ranges = new Range[ rangeCount ];
+
+		for( int i = 0 ; i < rangeCount ; i++ ) {
+
+			ranges[ i ] = new Range( minQuadSize + sizes * i / rangeCount , minQuadSize + sizes * ( i + 1 ) / rangeCount - 1 , Math.max( 1 , capacity ) );
+
+		}
+
+		workers = Executors.newFixedThreadPool( Math.max( 1 , threads ) , new ThreadFactory() {
+
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread( Runnable r ) {
+
+				// The games come first, the pool is only filled with the time that is left
+				Thread t = new Thread( r , "maze-pool-" + ( count++ ) );
+				t.setDaemon( true );
+				t.setPriority( Thread.MIN_PRIORITY );
+				return t;
+
+			}
+
+		});
+
+	}
+
+	/**
+	 * Fill every pool in the background
+	 */
+	public void start() {
+
+		for( Range range : ranges ) {
+			refill( range );
+		}
+
+	}
+
+	/**
+	 * Take a maze of a random quad size (between the smallest and the largest quad size, like MazeGenerator used to be called with)
+	 *
+	 * @return A maze nobody else has
+	 */
+	public MazeGenerator take() {
+
+		int quadSize = ThreadLocalRandom.current().nextInt( minQuadSize , maxQuadSize + 1 );
+		Range range = ranges[ 0 ];
+
+		for( Range r : ranges ) {
+
+			if( quadSize >= r.min && quadSize <= r.max ) { range = r; }
+
+		}
+
+		taken.incrementAndGet();
+
+		MazeGenerator maze = range.ready.poll();
+
+		if( range.ready.size() < lowWatermark ) {
+			refill( range );
+		}
+
+		if( maze != null ) { return maze; }
+
+		// The pool is empty (the sessions are made faster than the mazes), generate one now
+		misses.incrementAndGet();
+		return generate( quadSize );
+
+	}
+
+	/**
+	 * @return The number of ready mazes in each range's pool, e.g. "25-37: 4/4, 38-50: 3/4"
+	 */
+	public String getDepths() {
+
+		StringBuilder result = new StringBuilder();
+
+		for( Range range : ranges ) {
+
+			if( result.length() > 0 ) { result.append( ", " ); }
+
+			result.append( range.min ).append( '-' ).append( range.max ).append( ": " )
+				.append( range.ready.size() ).append( '/' ).append( range.capacity );
+
+		}
+
+		return result.toString();
+
+	}
+
+	/**
+	 * Stop generating mazes (the ones being generated are abandoned)
+	 */
+	public void close() {
+
+		workers.shutdownNow();
+
+	}
+
+	/**
+	 * Generate a maze in the background until the range's pool is full. Only one worker fills a pool at a time.
+	 */
+	private void refill( final Range range ) {
+
+		if( !range.refilling.compareAndSet( false , true ) ) { return; }
+
+		try {
+
+			workers.execute( new Runnable() {
+
+				@Override
+				public void run() {
+
+					try {
+
+						while( range.ready.remainingCapacity() > 0 && !Thread.currentThread().isInterrupted() ) {
+
+							range.ready.offer( generate( ThreadLocalRandom.current().nextInt( range.min , range.max + 1 ) ) );
+
+						}
+
+					} catch ( RuntimeException e ) {
+
+						e.printStackTrace();
+
+					} finally {
+
+						range.refilling.set( false );
+
+					}
+
+					// A maze may have been taken after the last check, before the flag was cleared
+					if( range.ready.size() < lowWatermark && !workers.isShutdown() ) {
+						refill( range );
+					}
+
+				}
+
+			});
+
+		} catch ( RuntimeException e ) {
+
+			// The workers have been shut down
+			range.refilling.set( false );
+
+		}
+
+	}
+
+	private static MazeGenerator generate( int quadSize ) {
+
+		long start = System.nanoTime();
+
+		MazeGenerator maze = new MazeGenerator( quadSize , false , true , false , true , true , true , true );
+
+		long time = System.nanoTime() - start;
+
+		generated.incrementAndGet();
+		generationNanos.addAndGet( time );
+
+		long slowest = slowestNanos.get();
+
+		while( time > slowest && !slowestNanos.compareAndSet( slowest , time ) ) {
+			slowest = slowestNanos.get();
+		}
+
+		return maze;
+
+	}
+
+	/**
+	 * The quad sizes from min to max (inclusive) and their ready mazes
+	 */
+	private static class Range {
+
+		private final int min, max, capacity;
+		private final ArrayBlockingQueue<MazeGenerator> ready;
+		private final AtomicBoolean refilling = new AtomicBoolean();
+
+		private Range( int min , int max , int capacity ) {
+
+			this.min = min;
+			this.max = max;
+			this.capacity = capacity;
+			this.ready = new ArrayBlockingQueue<MazeGenerator>( capacity );
+
+		}
+
+	}
+
+}
@@ -0,0 +1,487 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import protocol.BinaryProtocol;
+import protocol.Protocol;
+
+/**
+ * A single client connection served by the NioEngine.
+ *
+ * Incoming bytes are framed into lines (the Protocol is newline delimited), or into length-prefixed frames once the
+ * client has switched to the BinaryProtocol, decoded and handed to the ClientHandler one at a time, in order, on the engine's handler pool. Outgoing messages are written straight to the socket when possible,
+ * otherwise they are queued and written by the selector thread once the socket is writable again.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class NioConnection {
+
+	private final NioEngine engine;
+	private final NioEngine.IoThread io;
+	protected final SocketChannel channel;
+	protected SelectionKey key;
+
+	private ClientHandler handler;
+
+	// The part of a line (or binary frame) that has been received so far (grows when needed)
+	private byte[] line = new byte[ 128 ];
+	private int lineLength = 0;
+
+	// Set by the handler when the BinaryProtocol has been negotiated
+	private volatile boolean binary = false;
+	// The length of the binary frame being received, -1 while its length prefix is being read
+	private int frameLength = -1;
+	private int frameLengthShift = 0;
+
+	// Decoded requests waiting to be handled. Only one handler task runs per connection at a time.
+	private final ConcurrentLinkedQueue<String[]> requests = new ConcurrentLinkedQueue<String[]>();
+	private final AtomicBoolean dispatching = new AtomicBoolean( false );
+	private final Runnable drainTask;
+
+	// Messages that could not be written immediately (guarded by this)
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	// The player's queue. It waits for the data above to be written before it sends more.
+	private volatile OutboundQueue outboundQueue;
+
+	private final AtomicBoolean closed = new AtomicBoolean( false );
+	private final AtomicBoolean disconnectHandled = new AtomicBoolean( false );
+
+	private int localPort = -1;
+	private int remotePort = -1;
+
+	protected NioConnection( NioEngine engine , NioEngine.IoThread io , SocketChannel channel ) {
+
+		this.engine = engine;
+		this.io = io;
+		this.channel = channel;
+
+		try {
+
+			localPort = ( (InetSocketAddress) channel.getLocalAddress() ).getPort();
+			remotePort = ( (InetSocketAddress) channel.getRemoteAddress() ).getPort();
+
+		} catch ( IOException e ) {
+
+			e.printStackTrace();
+
+		}
+
+		drainTask = new Runnable() {
+
+			@Override
+			public void run() {
+
+				drain();
+
+			}
+
+		};
+
+	}
+
+	protected void setHandler( ClientHandler handler ) {
+
+		this.handler = handler;
+
+	}
+
+	public int getLocalPort() {
+
+		return localPort;
+
+	}
+
+	public int getRemotePort() {
+
+		return remotePort;
+
+	}
+
+	/**
+	 * Switch the incoming data to BinaryProtocol frames
+	 */
+	protected void setBinary() {
+
+		binary = true;
+
+	}
+
+	/**
+	 * Read whatever is available on the socket and split it into messages.
+	 * Called by the selector thread only.
+	 *
+	 * @param buffer The selector thread's (cleared) read buffer
+	 */
+	protected void read( ByteBuffer buffer ) {
+
+		int count;
+
+		try {
+
+			count = channel.read( buffer );
+
+		} catch ( IOException e ) {
+
+			close();
+			return;
+
+		}
+
+		// End of stream - the client has closed the connection
+		if( count < 0 ) {
+
+			close();
+			return;
+
+		}
+
+		buffer.flip();
+
+		boolean received = binary ? readFrames( buffer ) : readLines( buffer );
+
+		if( received && !closed.get() && dispatching.compareAndSet( false , true ) ) {
+
+			engine.dispatch( drainTask );
+
+		}
+
+	}
+
+	/**
+	 * Split the buffer into text lines
+	 *
+	 * @return True if at least one complete line was queued
+	 */
+	private boolean readLines( ByteBuffer buffer ) {
+
+		boolean received = false;
+
+		while( buffer.hasRemaining() ) {
+
+			byte b = buffer.get();
+
+			if( b == '\n' ) {
+
+				int length = lineLength;
+
+				// Lines sent with println on Windows end with \r\n
+				if( length > 0 && line[ length - 1 ] == '\r' ) {
+					length--;
+				}
+
+				requests.add( Protocol.decode( new String( line , 0 , length , StandardCharsets.UTF_8 ) ) );
+				lineLength = 0;
+				received = true;
+
+				continue;
+
+			}
+
+			if( !ensureLineCapacity( lineLength + 1 ) ) { return false; }
+
+			line[ lineLength++ ] = b;
+
+		}
+
+		return received;
+
+	}
+
+	/**
+	 * Split the buffer into BinaryProtocol frames
+	 *
+	 * @return True if at least one complete frame was queued
+	 */
+	private boolean readFrames( ByteBuffer buffer ) {
+
+		boolean received = false;
+
+		while( buffer.hasRemaining() ) {
+
+			// Still reading the varint length in front of the frame
+			if( frameLength < 0 ) {
+
+				int b = buffer.get() & 0xFF;
+
+				lineLength |= ( b & 0x7F ) << frameLengthShift;
+				frameLengthShift += 7;
+
+				if( ( b & 0x80 ) != 0 ) {
+
+					if( frameLengthShift > 28 ) {
+						close();
+						return false;
+					}
+
+					continue;
+
+				}
+
+				frameLength = lineLength;
+				lineLength = 0;
+				frameLengthShift = 0;
+
+				if( frameLength < 0 ) {
+					close();
+					return false;
+				}
+
+				if( !ensureLineCapacity( frameLength ) ) { return false; }
+
+			}
+
+			int count = Math.min( frameLength - lineLength , buffer.remaining() );
+			buffer.get( line , lineLength , count );
+			lineLength += count;
+
+			if( lineLength == frameLength ) {
+
+				try {
+
+					requests.add( BinaryProtocol.decode( Arrays.copyOf( line , frameLength ) ) );
+
+				} catch ( IllegalArgumentException e ) {
+
+					// Not a valid frame, the stream can't be trusted any more
+					close();
+					return false;
+
+				}
+
+				frameLength = -1;
+				lineLength = 0;
+				received = true;
+
+			}
+
+		}
+
+		return received;
+
+	}
+
+	/**
+	 * Grow the line buffer to hold at least the given number of bytes
+	 *
+	 * @return False if the message is longer than allowed (the connection is closed)
+	 */
+	private boolean ensureLineCapacity( int capacity ) {
+
+		if( capacity <= line.length ) { return true; }
+
+		// Nobody sends messages this long, drop the client
+		if( capacity > Constraints.nioMaxLineLength ) {
+
+			close();
+			return false;
+
+		}
+
+		byte[] grown = new byte[ Math.min( Math.max( line.length * 2 , capacity ) , Constraints.nioMaxLineLength ) ];
+		System.arraycopy( line , 0 , grown , 0 , lineLength );
+		line = grown;
+
+		return true;
+
+	}
+
+	/**
+	 * Handle the queued requests in order. Runs on the handler pool.
+	 * Once the connection is closed, the handler is told about it here as well, so that it never runs twice at the same time.
+	 */
+	private void drain() {
+
+		while( true ) {
+
+			String[] request;
+
+			while( !closed.get() && ( request = requests.poll() ) != null ) {
+
+				boolean keepOpen;
+
+				try {
+
+					keepOpen = handler.handleRequest( request );
+
+				} catch ( RuntimeException e ) {
+
+					e.printStackTrace();
+					keepOpen = false;
+
+				}
+
+				if( !keepOpen ) {
+					close();
+				}
+
+			}
+
+			if( closed.get() && disconnectHandled.compareAndSet( false , true ) ) {
+
+				requests.clear();
+				handler.disconnected();
+
+			}
+
+			dispatching.set( false );
+
+			// A request (or the close) may have arrived after the checks above but before the flag was cleared
+			boolean pending = closed.get() ? !disconnectHandled.get() : !requests.isEmpty();
+
+			if( !pending || !dispatching.compareAndSet( false , true ) ) {
+				return;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Send a message to the client. Thread safe.
+	 *
+	 * @param message The encoded message (a newline is appended)
+	 */
+	protected void send( String message ) {
+
+		send( ( message + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+
+	}
+
+	/**
+	 * Send raw bytes (a BinaryProtocol frame) to the client. Thread safe.
+	 *
+	 * @param bytes The complete frame
+	 */
+	protected void send( byte[] bytes ) {
+
+		ByteBuffer data = ByteBuffer.wrap( bytes );
+
+		synchronized( this ) {
+
+			if( closed.get() ) { return; }
+
+			// Nothing is waiting - try to write straight away
+			if( outbound.isEmpty() ) {
+
+				try {
+
+					channel.write( data );
+
+				} catch ( IOException e ) {
+
+					close();
+					return;
+
+				}
+
+				if( !data.hasRemaining() ) { return; }
+
+			}
+
+			outbound.add( data );
+
+		}
+
+		io.requestWrite( this );
+
+	}
+
+	/**
+	 * Write the queued messages. Called by the selector thread when the socket is writable.
+	 */
+	protected void flush() {
+
+		synchronized( this ) {
+
+			try {
+
+				while( !outbound.isEmpty() ) {
+
+					ByteBuffer data = outbound.peek();
+					channel.write( data );
+
+					// The socket buffer is full again, wait for the next writable event
+					if( data.hasRemaining() ) { return; }
+
+					outbound.poll();
+
+				}
+
+				if( key.isValid() ) {
+					key.interestOps( SelectionKey.OP_READ );
+				}
+
+			} catch ( IOException e ) {
+
+				close();
+				return;
+
+			}
+
+		}
+
+		// Everything has been written, the player's queue can send the next batch
+		if( outboundQueue != null ) {
+			outboundQueue.resume();
+		}
+
+	}
+
+	/**
+	 * @return True if some data is still waiting for the socket to become writable
+	 */
+	protected synchronized boolean hasPendingWrites() {
+
+		return !outbound.isEmpty();
+
+	}
+
+	protected void setOutboundQueue( OutboundQueue outboundQueue ) {
+
+		this.outboundQueue = outboundQueue;
+
+	}
+
+	/**
+	 * Close the connection (only the first call has an effect).
+	 * The handler is notified on the handler pool so that the selector thread is never blocked by the server or the database.
+	 */
+	protected void close() {
+
+		if( !closed.compareAndSet( false , true ) ) { return; }
+
+		if( key != null ) {
+			key.cancel();
+		}
+
+		try {
+			channel.close();
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+
+		if( dispatching.compareAndSet( false , true ) ) {
+
+			engine.dispatch( drainTask );
+
+		}
+
+	}
+
+	protected boolean isClosed() {
+
+		return closed.get();
+
+	}
+
+}
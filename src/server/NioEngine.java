@@ -0,0 +1,222 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking connection engine.
+ *
+ * One acceptor (the thread that calls run()) hands every new socket to one of a small, fixed number of
+ * selector threads. The selector threads read the newline-delimited Protocol messages from the sockets and
+ * pass complete lines to the connection's ClientHandler on a shared handler pool.
+ * An idle connection does not use any thread at all.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class NioEngine {
+
+	private final Server server;
+	private final ServerSocketChannel serverChannel;
+	private final IoThread[] ioThreads;
+	private final ExecutorService handlerPool;
+
+	private int nextThread = 0;
+
+	/**
+	 * Bind the server channel and start the selector threads
+	 *
+	 * @param server The reference to the server object
+	 * @param port The port to listen on
+	 * @param threads The number of selector threads
+	 * @throws IOException If the port can not be bound or a selector can not be opened
+	 */
+	public NioEngine( Server server , int port , int threads ) throws IOException {
+
+		this.server = server;
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind( new InetSocketAddress( port ) );
+
+		handlerPool = Executors.newFixedThreadPool( Constraints.nioHandlerThreads );
+
+		if( threads < 1 ) { threads = 1; }
+
+		ioThreads = new IoThread[ threads ];
+
+		for( int i = 0 ; i < threads ; i++ ) {
+
+			ioThreads[ i ] = new IoThread( i );
+			ioThreads[ i ].start();
+
+		}
+
+	}
+
+	/**
+	 * Accept connections forever (blocks the calling thread).
+	 * Each new connection is registered with the next selector thread in turn.
+	 *
+	 * @throws IOException If the server channel is closed
+	 */
+	public void run() throws IOException {
+
+		while( true ) {
+
+			SocketChannel channel = serverChannel.accept();
+
+			channel.configureBlocking( false );
+			channel.socket().setTcpNoDelay( true );
+
+			IoThread io = ioThreads[ nextThread ];
+			nextThread = ( nextThread + 1 ) % ioThreads.length;
+
+			NioConnection connection = new NioConnection( this , io , channel );
+			connection.setHandler( new ClientHandler( server , connection ) );
+
+			io.register( connection );
+
+		}
+
+	}
+
+	/**
+	 * Run the pending requests of a connection on the handler pool
+	 *
+	 * @param task The connection's drain task
+	 */
+	protected void dispatch( Runnable task ) {
+
+		handlerPool.execute( task );
+
+	}
+
+	/**
+	 * A selector thread. Owns a selector, and a read buffer shared by all of its connections.
+	 */
+	protected class IoThread extends Thread {
+
+		private final Selector selector;
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect( 64 * 1024 );
+
+		// Changes requested by other threads. They are applied by this thread between selects.
+		private final ConcurrentLinkedQueue<NioConnection> newConnections = new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+
+		IoThread( int id ) throws IOException {
+
+			super( "nio-io-" + id );
+			setDaemon( true );
+			selector = Selector.open();
+
+		}
+
+		protected void register( NioConnection connection ) {
+
+			newConnections.add( connection );
+			selector.wakeup();
+
+		}
+
+		protected void requestWrite( NioConnection connection ) {
+
+			pendingWrites.add( connection );
+			selector.wakeup();
+
+		}
+
+		@Override
+		public void run() {
+
+			while( true ) {
+
+				try {
+
+					selector.select();
+
+					NioConnection connection;
+
+					while( ( connection = newConnections.poll() ) != null ) {
+
+						try {
+							connection.key = connection.channel.register( selector , SelectionKey.OP_READ , connection );
+						} catch ( IOException e ) {
+							connection.close();
+						}
+
+					}
+
+					while( ( connection = pendingWrites.poll() ) != null ) {
+
+						if( connection.key == null ) { continue; }
+
+						try {
+							connection.key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+						} catch ( CancelledKeyException e ) {
+							connection.close();
+						}
+
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while( keys.hasNext() ) {
+
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						connection = (NioConnection) key.attachment();
+
+						try {
+
+							if( key.isValid() && key.isReadable() ) {
+
+								readBuffer.clear();
+								connection.read( readBuffer );
+
+							}
+
+							if( key.isValid() && key.isWritable() ) {
+
+								connection.flush();
+
+							}
+
+						} catch ( CancelledKeyException e ) {
+
+							// The connection was closed by another thread in the meantime
+							connection.close();
+
+						} catch ( RuntimeException e ) {
+
+							// Something this connection sent broke the reader, drop only this connection and keep serving the others
+							e.printStackTrace();
+							connection.close();
+
+						}
+
+					}
+
+				} catch ( IOException e ) {
+
+					e.printStackTrace();
+
+				}
+
+			}
+
+		}
+
+	}
+
+}
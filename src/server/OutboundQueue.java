@@ -0,0 +1,298 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The messages waiting to be written to one player's client.
+ *
+ * Senders only add to the queue (they never block on the socket, so a slow client can't hold up a session or the server).
+ * A writer task on the server's writer pool drains the queue and flushes the socket once per drain.
+ * When the queue is full the slow consumer policy decides what happens (see Constraints.slowConsumerPolicy).
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class OutboundQueue {
+
+	// Slow consumer policies
+	public static final int POLICY_DROP_STALE = 0;		// When full, drop the oldest queued snapshot to make room
+	public static final int POLICY_KEEP_LATEST = 1;		// A new snapshot always replaces the one still queued (at most one is queued)
+	public static final int POLICY_DISCONNECT = 2;		// When full, disconnect the client
+
+	// Totals for all players (see ServerMetrics)
+	protected static final AtomicLong dropped = new AtomicLong();
+	protected static final AtomicLong disconnected = new AtomicLong();
+
+	private final Player player;
+	private final Executor writers;
+	private final int limit;
+	private final int policy;
+
+	// Guarded by this
+	private final ArrayDeque<Message> messages = new ArrayDeque<Message>();
+	private boolean scheduled = false;
+	private boolean closed = false;
+	private int maxDepth = 0;
+
+	// Only used by the writer task (blocking sockets)
+	private OutputStream out;
+
+	private final Runnable writer;
+
+	/**
+	 * @param player The player whose client the messages are written to
+	 * @param writers The pool that runs the writer tasks
+	 * @param limit The maximum number of queued messages
+	 * @param policy What to do when the queue is full (POLICY_DROP_STALE, POLICY_KEEP_LATEST or POLICY_DISCONNECT)
+	 */
+	public OutboundQueue( Player player , Executor writers , int limit , int policy ) {
+
+		this.player = player;
+		this.writers = writers;
+		this.limit = limit;
+		this.policy = policy;
+
+		writer = new Runnable() {
+
+			@Override
+			public void run() {
+
+				drain();
+
+			}
+
+		};
+
+	}
+
+	/**
+	 * Queue a message. Never blocks.
+	 *
+	 * @param data The bytes to write (a text line including its newline, or a binary frame)
+	 * @param snapshot True if the message is a full state update that a newer one makes obsolete (it may be dropped)
+	 */
+	protected void add( byte[] data , boolean snapshot ) {
+
+		boolean disconnect = false;
+
+		synchronized( this ) {
+
+			if( closed ) { return; }
+
+			if( snapshot && policy == POLICY_KEEP_LATEST ) {
+				removeSnapshot();
+			}
+
+			if( messages.size() >= limit ) {
+
+				if( policy != POLICY_DISCONNECT && removeSnapshot() ) {
+
+					// Made room by dropping an old snapshot
+
+				} else if( policy != POLICY_DISCONNECT && snapshot ) {
+
+					// Nothing can be dropped to make room, drop this one instead
+					dropped.incrementAndGet();
+					return;
+
+				} else {
+
+					closed = true;
+					messages.clear();
+					disconnect = true;
+
+				}
+
+			}
+
+			if( !disconnect ) {
+
+				messages.add( new Message( data , snapshot ) );
+
+				if( messages.size() > maxDepth ) {
+					maxDepth = messages.size();
+				}
+
+				if( scheduled ) { return; }
+				scheduled = true;
+
+			}
+
+		}
+
+		if( disconnect ) {
+
+			disconnected.incrementAndGet();
+			System.out.println( "PLAYER [" + player.username + "] IS NOT READING ITS MESSAGES. DISCONNECTING." );
+			player.close();
+			return;
+
+		}
+
+		writers.execute( writer );
+
+	}
+
+	/**
+	 * Remove the oldest queued snapshot (caller holds the lock)
+	 *
+	 * @return False if there was no snapshot to remove
+	 */
+	private boolean removeSnapshot() {
+
+		Iterator<Message> it = messages.iterator();
+
+		while( it.hasNext() ) {
+
+			if( it.next().snapshot ) {
+
+				it.remove();
+				dropped.incrementAndGet();
+				return true;
+
+			}
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Write everything that is queued. Runs on the writer pool, only one writer task per queue at a time.
+	 */
+	private void drain() {
+
+		while( true ) {
+
+			Message[] batch;
+
+			synchronized( this ) {
+
+				// An NIO connection that still has data waiting for the socket asks for the next drain once it is done (see resume)
+				if( messages.isEmpty() || closed || ( player.connection != null && player.connection.hasPendingWrites() ) ) {
+
+					scheduled = false;
+					return;
+
+				}
+
+				batch = messages.toArray( new Message[ messages.size() ] );
+				messages.clear();
+
+			}
+
+			try {
+
+				write( batch );
+
+			} catch ( IOException e ) {
+
+				synchronized( this ) {
+					closed = true;
+					messages.clear();
+					scheduled = false;
+				}
+
+				// The handler notices the closed connection and logs the player out
+				player.close();
+				return;
+
+			}
+
+		}
+
+	}
+
+	private void write( Message[] batch ) throws IOException {
+
+		if( player.connection != null ) {
+
+			// Join the messages so the selector thread writes them together
+			int length = 0;
+			for( Message m : batch ) { length += m.data.length; }
+
+			byte[] data = new byte[ length ];
+			int offset = 0;
+			for( Message m : batch ) {
+				System.arraycopy( m.data , 0 , data , offset , m.data.length );
+				offset += m.data.length;
+			}
+
+			player.connection.send( data );
+			return;
+
+		}
+
+		if( out == null ) {
+			out = new BufferedOutputStream( player.out , 8192 );
+		}
+
+		for( Message m : batch ) {
+			out.write( m.data );
+		}
+
+		// One flush (and usually one packet) per drain
+		out.flush();
+
+	}
+
+	/**
+	 * Called by the NIO connection once it has written all of its pending data
+	 */
+	protected void resume() {
+
+		synchronized( this ) {
+
+			if( scheduled || closed || messages.isEmpty() ) { return; }
+			scheduled = true;
+
+		}
+
+		writers.execute( writer );
+
+	}
+
+	/**
+	 * Discard everything that is queued and stop accepting new messages
+	 */
+	protected synchronized void close() {
+
+		closed = true;
+		messages.clear();
+
+	}
+
+	public synchronized int getDepth() {
+
+		return messages.size();
+
+	}
+
+	public synchronized int getMaxDepth() {
+
+		return maxDepth;
+
+	}
+
+	private static class Message {
+
+		private final byte[] data;
+		private final boolean snapshot;
+
+		private Message( byte[] data , boolean snapshot ) {
+
+			this.data = data;
+			this.snapshot = snapshot;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,391 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import protocol.Protocol;
+
+/**
+ * The most points and most coins of the day, the week and the season, from the scores of the games finished in that time.
+ *
+ * The scores are added up per player per day (UTC) in one bucket for each of the last seven days, and the week and the season
+ * keep a running total per player on top of that: a score is added to its day, the week and the season, and when a day
+ * drops out of the week its bucket is taken off the week's totals and reused for the new day. The season's totals are
+ * cleared when a new season starts (every Constraints.seasonDays days from Constraints.seasonStart). So a board is never
+ * made by scanning the history, only by picking the top players of one running total, and only after it has changed.
+ *
+ * The history of the current week and season is read from the scores table when the server starts (see
+ * Database.getPeriodScores), already added up per player per day by the database. Like the Leaderboards, it is only read
+ * while the StatsWriter has nothing left to write, and the scores recorded before that are only added if the history read
+ * doesn't count them yet.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class PeriodLeaderboards {
+
+	private static final int WEEK_DAYS = 7;
+	private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis( 1 );
+
+	private final int size;
+	private final long seasonStart;
+	private final int seasonDays;
+
+	// The points and coins per player of the last seven days, by day % 7
+	private final HashMap<String, int[]>[] days;
+	private final long[] dayOf = new long[ WEEK_DAYS ];
+	// The running totals of the week and the season
+	private final HashMap<String, int[]> week = new HashMap<String, int[]>();
+	private final HashMap<String, int[]> season = new HashMap<String, int[]>();
+
+	// The last day seen (days since 1970-01-01 UTC)
+	private long today = -1;
+
+	private boolean loaded = false;
+	// The scores recorded before the history was read, and the sequence number of the first StatsWriter record it doesn't count
+	private final ArrayList<Score> early = new ArrayList<Score>();
+	private long first;
+
+	private boolean changed = true;
+	private String response;
+
+	/**
+	 * @param size How many players each board shows
+	 * @param seasonStart The first day of the first season (days since 1970-01-01 UTC)
+	 * @param seasonDays How long a season is
+	 */
+	@SuppressWarnings("unchecked")
+	public PeriodLeaderboards( int size , long seasonStart , int seasonDays ) {
+
+		this.size = Math.max( 1 , size );
+		this.seasonStart = seasonStart;
+		this.seasonDays = Math.max( 1 , seasonDays );
+
+		days = (HashMap<String, int[]>[]) new HashMap<?, ?>[ WEEK_DAYS ];
+
+		for( int i = 0 ; i < WEEK_DAYS ; i++ ) {
+
+			days[ i ] = new HashMap<String, int[]>();
+			dayOf[ i ] = -1;
+
+		}
+
+	}
+
+	/**
+	 * @param millis The time now
+	 * @return The first day whose scores are needed at startup (the start of the week or of the season, whichever is first)
+	 */
+	public long firstDayNeeded( long millis ) {
+
+		long day = dayOf( millis );
+
+		return Math.min( day - ( WEEK_DAYS - 1 ) , seasonFirstDay( day ) );
+
+	}
+
+	/**
+	 * @return Whether the history has been read from the database
+	 */
+	public synchronized boolean isLoaded() {
+
+		return loaded;
+
+	}
+
+	/**
+	 * Add the scores read from the database, and the scores recorded before that which they don't count
+	 *
+	 * @param scores The points and coins per player per day
+	 * @param millis The time now
+	 * @param first The sequence number of the first StatsWriter record the scores don't count (see StatsWriter.readWritten)
+	 */
+	public synchronized void load( List<DayTotal> scores , long millis , long first ) {
+
+		advance( dayOf( millis ) );
+
+		for( DayTotal row : scores ) {
+			add( row.username , row.day , row.points , row.coins );
+		}
+
+		for( Score score : early ) {
+
+			if( score.number >= first ) {
+				add( score.username , dayOf( score.millis ) , score.points , score.coins );
+			}
+
+		}
+
+		early.clear();
+		this.first = first;
+		loaded = true;
+		changed = true;
+
+	}
+
+	/**
+	 * A player has finished a game
+	 *
+	 * @param username The player's username
+	 * @param number The sequence number of the game's StatsWriter record
+	 * @param points The score
+	 * @param coins The coins collected
+	 * @param millis When the game finished
+	 */
+	public synchronized void record( String username , long number , int points , int coins , long millis ) {
+
+		if( !loaded ) {
+
+			// Kept until the history is read
+			early.add( new Score( username , number , points , coins , millis ) );
+			return;
+
+		}
+
+		// The history read from the database already counts it
+		if( number < first ) { return; }
+
+		long day = dayOf( millis );
+
+		advance( day );
+		add( username , day , points , coins );
+
+		changed = true;
+
+	}
+
+	/**
+	 * @return The P_GET_PERIOD_SCORES response (encoded again only if a score was added or a day has passed since the last one)
+	 */
+	public String getResponse() {
+
+		return getResponse( System.currentTimeMillis() );
+
+	}
+
+	/**
+	 * @param millis The time now
+	 * @return The P_GET_PERIOD_SCORES response at that time
+	 */
+	protected synchronized String getResponse( long millis ) {
+
+		advance( dayOf( millis ) );
+
+		if( changed ) {
+
+			// The day, the week and the season, most points and then most coins for each
+			response = Protocol.encode( Protocol.P_GET_PERIOD_SCORES ,
+					top( days[ (int) ( today % WEEK_DAYS ) ] , 0 ) ,
+					top( days[ (int) ( today % WEEK_DAYS ) ] , 1 ) ,
+					top( week , 0 ) ,
+					top( week , 1 ) ,
+					top( season , 0 ) ,
+					top( season , 1 ) );
+
+			changed = false;
+
+		}
+
+		return response;
+
+	}
+
+	/**
+	 * Add a score to its day, the week and the season (if it is recent enough for them)
+	 */
+	private void add( String username , long day , int points , int coins ) {
+
+		if( day > today ) { return; }
+
+		// The day's bucket is only still there if the day is in the week
+		if( day > today - WEEK_DAYS && dayOf[ (int) ( day % WEEK_DAYS ) ] == day ) {
+
+			add( days[ (int) ( day % WEEK_DAYS ) ] , username , points , coins );
+			add( week , username , points , coins );
+
+		}
+
+		if( seasonFirstDay( day ) == seasonFirstDay( today ) ) {
+			add( season , username , points , coins );
+		}
+
+	}
+
+	/**
+	 * Move to a new day: the days that dropped out of the week are taken off the week's totals and their buckets cleared for the new days
+	 */
+	private void advance( long day ) {
+
+		if( day <= today ) { return; }
+
+		// Only the last seven days have buckets, older days are already gone
+		for( long d = Math.max( today + 1 , day - WEEK_DAYS + 1 ) ; d <= day ; d++ ) {
+
+			int slot = (int) ( d % WEEK_DAYS );
+
+			for( Map.Entry<String, int[]> entry : days[ slot ].entrySet() ) {
+
+				int[] total = week.get( entry.getKey() );
+
+				if( total == null ) { continue; }
+
+				total[ 0 ] -= entry.getValue()[ 0 ];
+				total[ 1 ] -= entry.getValue()[ 1 ];
+
+				if( total[ 0 ] == 0 && total[ 1 ] == 0 ) {
+					week.remove( entry.getKey() );
+				}
+
+			}
+
+			days[ slot ].clear();
+			dayOf[ slot ] = d;
+
+		}
+
+		// The whole week is new
+		if( day - today >= WEEK_DAYS ) {
+			week.clear();
+		}
+
+		if( today < 0 || seasonFirstDay( day ) != seasonFirstDay( today ) ) {
+			season.clear();
+		}
+
+		today = day;
+		changed = true;
+
+	}
+
+	private static void add( HashMap<String, int[]> totals , String username , int points , int coins ) {
+
+		int[] total = totals.get( username );
+
+		if( total == null ) {
+
+			total = new int[ 2 ];
+			totals.put( username , total );
+
+		}
+
+		total[ 0 ] += points;
+		total[ 1 ] += coins;
+
+	}
+
+	/**
+	 * The best players of a period in the P_GET_TOPSCORES format (username,value|...), or "none"
+	 *
+	 * @param field 0 for points, 1 for coins
+	 */
+	private String top( HashMap<String, int[]> totals , int field ) {
+
+		String[] names = new String[ size ];
+		int[] values = new int[ size ];
+		int count = 0;
+
+		for( Map.Entry<String, int[]> entry : totals.entrySet() ) {
+
+			int value = entry.getValue()[ field ];
+			String name = entry.getKey();
+
+			// Not good enough for a full board
+			if( count == size && !before( value , name , values[ size - 1 ] , names[ size - 1 ] ) ) { continue; }
+
+			int at = count < size ? count++ : size - 1;
+
+			while( at > 0 && before( value , name , values[ at - 1 ] , names[ at - 1 ] ) ) {
+
+				names[ at ] = names[ at - 1 ];
+				values[ at ] = values[ at - 1 ];
+				at--;
+
+			}
+
+			names[ at ] = name;
+			values[ at ] = value;
+
+		}
+
+		if( count == 0 ) { return "none"; }
+
+		StringBuilder result = new StringBuilder();
+
+		for( int i = 0 ; i < count ; i++ ) {
+
+			if( i > 0 ) { result.append( '|' ); }
+			result.append( names[ i ] ).append( ',' ).append( values[ i ] );
+
+		}
+
+		return result.toString();
+
+	}
+
+	private static boolean before( int value , String name , int otherValue , String otherName ) {
+
+		return value != otherValue ? value > otherValue : name.compareTo( otherName ) < 0;
+
+	}
+
+	private long seasonFirstDay( long day ) {
+
+		return seasonStart + Math.floorDiv( day - seasonStart , seasonDays ) * seasonDays;
+
+	}
+
+	/**
+	 * @return The day (UTC) of a time, in days since 1970-01-01
+	 */
+	public static long dayOf( long millis ) {
+
+		return Math.floorDiv( millis , DAY_MILLIS );
+
+	}
+
+	/**
+	 * A score recorded before the history was read
+	 */
+	private static class Score {
+
+		private final String username;
+		private final long number;
+		private final int points, coins;
+		private final long millis;
+
+		private Score( String username , long number , int points , int coins , long millis ) {
+
+			this.username = username;
+			this.number = number;
+			this.points = points;
+			this.coins = coins;
+			this.millis = millis;
+
+		}
+
+	}
+
+	/**
+	 * A player's points and coins on one day
+	 */
+	protected static class DayTotal {
+
+		protected final String username;
+		protected final long day;
+		protected final int points, coins;
+
+		protected DayTotal( String username , long day , int points , int coins ) {
+
+			this.username = username;
+			this.day = day;
+			this.points = points;
+			this.coins = coins;
+
+		}
+
+	}
+
+}
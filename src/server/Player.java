@@ -2,10 +2,14 @@ package server;
 
 import java.awt.*;
 import java.net.Socket;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import protocol.BinaryProtocol;
+import protocol.FrameReader;
+import protocol.Protocol;
 
 /**
  * @author Iliya Liksov
@@ -13,15 +17,33 @@ import java.io.IOException;
 public class Player {
 
 	protected Socket socket;
+	protected OutputStream out;
 	protected PrintWriter toClient;
-	protected BufferedReader fromClient;
+	protected FrameReader fromClient;
+
+	// Only set when the player is connected through the NIO engine (socket and streams are null in that case)
+	protected NioConnection connection;
+
+	// Set once the client has agreed to use the BinaryProtocol (at login)
+	protected volatile boolean binary = false;
+	// Held while a text message is sent, so the switch to the BinaryProtocol can't happen in the middle of it
+	private final Object codec = new Object();
+	// Set if the client crops the maze itself and only needs the changes after the game start (Protocol.FEATURE_DELTA)
+	protected boolean delta = false;
+	// Set if the client keeps the queue's roster itself and only needs who joined and left (Protocol.FEATURE_QUEUE_DELTA)
+	protected boolean queueDelta = false;
 	
 	protected int localPort;
+	// Identifies the connection in the server's PlayerRegistry
+	protected final int connectionId = PlayerRegistry.nextConnectionId();
 	protected String username; 
 	protected String timestamp;
 	protected int sessionPosition = -1;
 	protected boolean ready = false;
-	protected Session session;
+	// Set by the matchmaker, cleared in the session's mailbox, read by the handler
+	protected volatile Session session;
+	// The player's place in the matchmaking queue (null if not queued)
+	protected volatile Matchmaker.Ticket ticket;
 	
 	protected int coins = 0;
 	protected int points = 0;
@@ -37,6 +59,9 @@ public class Player {
 	
 	protected ClientHandler thread;
 	
+	// Messages waiting to be written by the server's writer pool (null if messages are written by the sending thread)
+	protected OutboundQueue outbound;
+	
 	
 	public Player( Socket socket , String username , ClientHandler thread ,  String timestamp ) {
 		
@@ -49,16 +74,206 @@ public class Player {
 		
 		try {
 		
-			toClient = new PrintWriter( socket.getOutputStream() );
-			fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = socket.getOutputStream();
+			toClient = new PrintWriter( out );
+			fromClient = new FrameReader( socket.getInputStream() );
 		 
 		} catch ( IOException e ) {
 			
 			e.printStackTrace();
-			
+
 		}
-		
+
+	}
+
+	public Player( NioConnection connection , String username , ClientHandler thread ,  String timestamp ) {
+
+		this.connection = connection;
+		this.localPort = connection.getLocalPort();
+		this.username = username;
+		this.timestamp = timestamp;
+		this.session = null;
+		this.thread = thread;
+
+	}
+
+	/**
+	 * Send a message to this player's client. Converted to a binary frame if the client uses the BinaryProtocol.
+	 *
+	 * @param message The encoded message (use Protocol.encode)
+	 */
+	protected void send( String message ) {
+
+		send( message , false );
+
+	}
+
+	/**
+	 * Send a full state update that makes the previous one obsolete. It may be dropped if the client is not keeping up.
+	 *
+	 * @param message The encoded message (use Protocol.encode)
+	 */
+	protected void sendSnapshot( String message ) {
+
+		send( message , true );
+
+	}
+
+	private void send( String message , boolean snapshot ) {
+
+		if( !binary ) {
+
+			synchronized( codec ) {
+
+				// Checked again under the lock, useBinaryProtocol may have switched in the meantime
+				if( !binary ) {
+
+					sendText( message , snapshot );
+					return;
+
+				}
+
+			}
+
+		}
+
+		sendFrame( BinaryProtocol.fromText( message ) , snapshot );
+
+	}
+
+	private void sendText( String message , boolean snapshot ) {
+
+		if( outbound != null ) {
+
+			outbound.add( ( message + "\n" ).getBytes( StandardCharsets.UTF_8 ) , snapshot );
+			return;
+
+		}
+
+		if( connection != null ) {
+
+			connection.send( message );
+			return;
+
+		}
+
+		if( toClient == null ) { return; }
+
+		toClient.println( message );
+		toClient.flush();
+
+	}
+
+	/**
+	 * Send a complete BinaryProtocol frame to this player's client. Only valid once the binary codec has been negotiated.
+	 *
+	 * @param frame The frame (see BinaryProtocol.Writer.toFrame)
+	 * @param snapshot True if the frame is a full state update that may be dropped if the client is not keeping up
+	 */
+	protected void sendFrame( byte[] frame , boolean snapshot ) {
+
+		if( outbound != null ) {
+
+			outbound.add( frame , snapshot );
+			return;
+
+		}
+
+		if( connection != null ) {
+
+			connection.send( frame );
+			return;
+
+		}
+
+		if( out == null ) { return; }
+
+		// Frames from different threads (timers, handlers) must not be interleaved
+		synchronized( out ) {
+
+			try {
+
+				out.write( frame );
+				out.flush();
+
+			} catch ( IOException e ) {
+
+				// The handler notices the broken connection on its next read
+
+			}
+
+		}
+
 	}
- 
+
+	/**
+	 * Switch this player's connection to the BinaryProtocol (both directions).
+	 * The login response is the last text message. The client switches as soon as it has read it.
+	 *
+	 * @param response The login response (encoded with Protocol.encode)
+	 */
+	protected void useBinaryProtocol( String response ) {
+
+		// The client may answer straight away, so incoming frames have to be expected before the response goes out
+		if( connection != null ) {
+			connection.setBinary();
+		}
+
+		// The response is the last text message queued, everything sent by other threads after it is a frame
+		synchronized( codec ) {
+
+			sendText( response , false );
+			binary = true;
+
+		}
+
+	}
+
+	/**
+	 * Read the next message from a blocking connection, in whichever codec the client uses.
+	 *
+	 * @return The decoded message, or null at the end of the stream
+	 * @throws IOException If the connection is broken
+	 */
+	protected String[] readMessage() throws IOException {
+
+		if( binary ) {
+
+			byte[] frame = fromClient.readFrame();
+			return frame == null ? null : BinaryProtocol.decode( frame );
+
+		}
+
+		String line = fromClient.readLine();
+		return line == null ? null : Protocol.decode( line );
+
+	}
+
+	/**
+	 * Close the connection to this player's client.
+	 */
+	protected void close() {
+
+		if( outbound != null ) {
+			outbound.close();
+		}
+
+		if( connection != null ) {
+
+			connection.close();
+			return;
+
+		}
+
+		if( socket == null ) { return; }
+
+		try {
+			socket.close();
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+
+	}
+
 		
 }
@@ -0,0 +1,112 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The players that are logged in, indexed by username and by connection.
+ *
+ * Logging in claims the username first (one atomic putIfAbsent), so two clients logging in with the same username at the same
+ * time can't both succeed, and a client that is already logged in is turned away without asking the database.
+ * Every lookup and removal is a hash lookup, so logins and disconnects cost the same however many players are online.
+ *
+ * (The players of a session are indexed by the session itself, see Session.players.)
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class PlayerRegistry {
+
+	private static final AtomicInteger connections = new AtomicInteger();
+
+	private final ConcurrentHashMap<String, Player> byUsername = new ConcurrentHashMap<String, Player>();
+	private final ConcurrentHashMap<Integer, Player> byConnection = new ConcurrentHashMap<Integer, Player>();
+
+	/**
+	 * @return A new connection id (unique for the life of the server)
+	 */
+	protected static int nextConnectionId() {
+
+		return connections.incrementAndGet();
+
+	}
+
+	/**
+	 * Reserve a username for a player that is logging in
+	 *
+	 * @param username The username
+	 * @param player The player logging in
+	 * @return false if the username is taken by another player (already logged in, or logging in right now)
+	 */
+	public boolean claim( String username , Player player ) {
+
+		Player owner = byUsername.putIfAbsent( username , player );
+
+		return owner == null || owner == player;
+
+	}
+
+	/**
+	 * Give up a claim (the login failed)
+	 */
+	public void release( String username , Player player ) {
+
+		byUsername.remove( username , player );
+
+	}
+
+	/**
+	 * Add a player whose login has succeeded (their username has been claimed)
+	 */
+	public void register( Player player ) {
+
+		byConnection.put( player.connectionId , player );
+
+	}
+
+	/**
+	 * Remove a player that has logged out or disconnected
+	 *
+	 * @return false if the player was not logged in (already removed)
+	 */
+	public boolean remove( Player player ) {
+
+		if( player.username == null ) { return false; }
+
+		byConnection.remove( player.connectionId , player );
+		return byUsername.remove( player.username , player );
+
+	}
+
+	public Player get( String username ) {
+
+		return username == null ? null : byUsername.get( username );
+
+	}
+
+	public Player getByConnection( int connectionId ) {
+
+		return byConnection.get( connectionId );
+
+	}
+
+	/**
+	 * @return The number of players logged in
+	 */
+	public int size() {
+
+		return byConnection.size();
+
+	}
+
+	/**
+	 * @return The players logged in (a live view, safe to iterate while players log in and out)
+	 */
+	public Collection<Player> players() {
+
+		return byConnection.values();
+
+	}
+
+}
@@ -0,0 +1,210 @@
+package server;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import protocol.Protocol;
+
+/**
+ * Keeps the clients in the queue up to date with who else is waiting.
+ *
+ * The joins and leaves are collected as they happen and sent once per matchmaker pass. Clients that asked for
+ * Protocol.FEATURE_QUEUE_DELTA only get the changes (P_QUEUE_DELTA), numbered so that they can tell if they missed one.
+ * They get the whole roster (P_QUEUE_SNAPSHOT) when they join, when they ask for it (P_QUEUE_RESYNC) and with the first pass
+ * after Constraints.queueSnapshotInterval. The other clients still get the whole roster (P_QUEUE_UPDATE) after every change.
+ *
+ * A change costs each waiting client a few bytes instead of the whole queue, so the queue's traffic grows with the number of
+ * players instead of its square.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class QueueRoster {
+
+	// What happened to a player since the last pass
+	private static final int JOINED = 1;
+	private static final int LEFT = 2;
+	private static final int REJOINED = 3;	// Left and joined again (moves to the end of the queue)
+
+	private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+	private final ConcurrentLinkedQueue<Player> resyncs = new ConcurrentLinkedQueue<Player>();
+
+	private final long snapshotInterval;
+
+	// Matchmaker thread only
+	private long sequence = 0;
+	private long lastSnapshot = System.nanoTime();
+
+	/**
+	 * @param snapshotIntervalMillis How often the clients that receive deltas get the whole roster anyway
+	 */
+	public QueueRoster( int snapshotIntervalMillis ) {
+
+		this.snapshotInterval = snapshotIntervalMillis * 1000000L;
+
+	}
+
+	protected void joined( Player player ) {
+
+		changes.add( new Change( player , true ) );
+
+	}
+
+	protected void left( Player player ) {
+
+		changes.add( new Change( player , false ) );
+
+	}
+
+	/**
+	 * Send the whole roster to a player with the next pass
+	 */
+	protected void resync( Player player ) {
+
+		resyncs.add( player );
+
+	}
+
+	/**
+	 * Send the changes since the last pass (matchmaker thread only)
+	 *
+	 * @param queue The players waiting now, in order
+	 */
+	protected void publish( List<Player> queue ) {
+
+		// Net changes, so that a player who joined and left in between is not sent at all
+		LinkedHashMap<Player, Integer> net = new LinkedHashMap<Player, Integer>();
+		Change change;
+
+		while( ( change = changes.poll() ) != null ) {
+
+			Integer was = net.remove( change.player );
+
+			if( change.joined ) {
+				net.put( change.player , was == null ? JOINED : REJOINED );
+			} else if( was == null || was == REJOINED ) {
+				net.put( change.player , LEFT );
+			}
+
+		}
+
+		// Players that need the whole roster
+		Set<Player> fresh = new HashSet<Player>();
+		Player player;
+
+		while( ( player = resyncs.poll() ) != null ) {
+			fresh.add( player );
+		}
+
+		StringBuilder joined = new StringBuilder();
+		StringBuilder left = new StringBuilder();
+
+		for( Map.Entry<Player, Integer> entry : net.entrySet() ) {
+
+			player = entry.getKey();
+
+			if( entry.getValue() != JOINED ) {
+				append( left , player.username );
+			}
+
+			if( entry.getValue() != LEFT ) {
+
+				append( joined , player.username + "," + player.timestamp );
+				fresh.add( player );
+
+			}
+
+		}
+
+		boolean changed = !net.isEmpty();
+
+		if( changed ) { sequence++; }
+
+		long now = System.nanoTime();
+		boolean periodic = now - lastSnapshot >= snapshotInterval;
+
+		if( periodic ) { lastSnapshot = now; }
+
+		String roster = null;
+		String delta = changed ? Protocol.encode( Protocol.P_QUEUE_DELTA , ""+sequence , joined.toString() , left.toString() ) : null;
+		String snapshot = null;
+		String update = null;
+
+		for( int i = 0 ; i < queue.size() ; i++ ) {
+
+			player = queue.get( i );
+
+			boolean full = fresh.contains( player );
+
+			if( !full && !changed && !( periodic && player.queueDelta ) ) { continue; }
+
+			if( roster == null && ( full || periodic || !player.queueDelta ) ) {
+				roster = encode( queue );
+			}
+
+			if( !player.queueDelta ) {
+
+				if( update == null ) { update = Protocol.encode( Protocol.P_QUEUE_UPDATE , roster ); }
+				player.send( update );
+
+			} else if( full || periodic ) {
+
+				if( snapshot == null ) { snapshot = Protocol.encode( Protocol.P_QUEUE_SNAPSHOT , ""+sequence , roster ); }
+				player.send( snapshot );
+
+			} else {
+
+				player.send( delta );
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * The roster in the P_QUEUE_UPDATE format: username,timestamp|username,timestamp|...
+	 *
+	 * @param queue The players waiting
+	 */
+	public static String encode( List<Player> queue ) {
+
+		StringBuilder result = new StringBuilder();
+
+		for( int i = 0 ; i < queue.size() ; i++ ) {
+
+			Player player = queue.get( i );
+			append( result , player.username + "," + player.timestamp );
+
+		}
+
+		return result.toString();
+
+	}
+
+	private static void append( StringBuilder list , String entry ) {
+
+		if( list.length() > 0 ) { list.append( '|' ); }
+		list.append( entry );
+
+	}
+
+	private static class Change {
+
+		private final Player player;
+		private final boolean joined;
+
+		private Change( Player player , boolean joined ) {
+
+			this.player = player;
+			this.joined = joined;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,355 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * The players in the order of one leaderboard, indexed by position.
+ *
+ * A treap (a binary search tree kept balanced by random priorities) where every node knows the size of its subtree, so a
+ * player's position, the number of players ahead of a value and the player at a position are all found in O(log n) without
+ * looking at the other players. Not thread safe (see Leaderboards).
+ *
+ * The players are ordered by a key (higher is better) and players with the same key by username. The key is kept in the node
+ * so a search doesn't have to look at the players' totals, but it must be the same key the player was inserted with when
+ * they are removed.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class RankIndex {
+
+	private Node root;
+	private int seed = 0x2545F491;
+
+	// The two halves of the last split
+	private Node splitLeft, splitRight;
+
+	/**
+	 * @return The number of players in the index
+	 */
+	public int size() {
+
+		return size( root );
+
+	}
+
+	/**
+	 * Replace the contents of the index with players that are already in order, in O(n)
+	 *
+	 * @param players The players, best first
+	 * @param keys Their keys
+	 * @param count How many there are
+	 */
+	public void build( Leaderboards.Totals[] players , long[] keys , int count ) {
+
+		// A stack of the right spine of the tree built so far (a Cartesian tree on the priorities)
+		Node[] spine = new Node[ 64 ];
+		int depth = 0;
+
+		for( int i = 0 ; i < count ; i++ ) {
+
+			Node x = new Node( players[ i ] , keys[ i ] , nextPriority() );
+			Node last = null;
+
+			while( depth > 0 && spine[ depth - 1 ].priority < x.priority ) {
+
+				last = spine[ --depth ];
+				update( last );
+
+			}
+
+			x.left = last;
+
+			if( depth > 0 ) {
+				spine[ depth - 1 ].right = x;
+			}
+
+			if( depth == spine.length ) {
+				spine = Arrays.copyOf( spine , depth * 2 );
+			}
+
+			spine[ depth++ ] = x;
+
+		}
+
+		// The bottom of the spine has the highest priority of all
+		root = depth > 0 ? spine[ 0 ] : null;
+
+		while( depth > 0 ) {
+			update( spine[ --depth ] );
+		}
+
+	}
+
+	public void insert( Leaderboards.Totals t , long key ) {
+
+		root = insert( root , new Node( t , key , nextPriority() ) );
+
+	}
+
+	public void remove( Leaderboards.Totals t , long key ) {
+
+		root = remove( root , t , key );
+
+	}
+
+	/**
+	 * @param position The position (0 is the best)
+	 * @return The player at the position, or null if there are not that many players
+	 */
+	public Leaderboards.Totals select( int position ) {
+
+		Node n = root;
+
+		while( n != null ) {
+
+			int left = size( n.left );
+
+			if( position < left ) {
+				n = n.left;
+			} else if( position > left ) {
+				position -= left + 1;
+				n = n.right;
+			} else {
+				return n.totals;
+			}
+
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * @return The position of a player (0 is the best), or where they would be if they are not in the index
+	 */
+	public int position( Leaderboards.Totals t , long key ) {
+
+		int result = 0;
+		Node n = root;
+
+		while( n != null ) {
+
+			if( compare( n.key , n.totals , key , t ) < 0 ) {
+
+				result += size( n.left ) + 1;
+				n = n.right;
+
+			} else {
+
+				n = n.left;
+
+			}
+
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * @return The number of players with a higher key
+	 */
+	public int ahead( long key ) {
+
+		int result = 0;
+		Node n = root;
+
+		while( n != null ) {
+
+			if( n.key > key ) {
+
+				result += size( n.left ) + 1;
+				n = n.right;
+
+			} else {
+
+				n = n.left;
+
+			}
+
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * @return The number of players with a lower key
+	 */
+	public int behind( long key ) {
+
+		int result = 0;
+		Node n = root;
+
+		while( n != null ) {
+
+			if( n.key < key ) {
+
+				result += size( n.right ) + 1;
+				n = n.left;
+
+			} else {
+
+				n = n.right;
+
+			}
+
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * The order of the index: higher keys first, then by username
+	 */
+	private static int compare( long keyA , Leaderboards.Totals a , long keyB , Leaderboards.Totals b ) {
+
+		if( keyA != keyB ) { return keyA > keyB ? -1 : 1; }
+
+		return a.username.compareTo( b.username );
+
+	}
+
+	private Node insert( Node n , Node x ) {
+
+		if( n == null ) { return x; }
+
+		// The new node goes above n: everything below it is split around it
+		if( x.priority > n.priority ) {
+
+			split( n , x.key , x.totals );
+			x.left = splitLeft;
+			x.right = splitRight;
+			update( x );
+			return x;
+
+		}
+
+		if( compare( x.key , x.totals , n.key , n.totals ) < 0 ) {
+			n.left = insert( n.left , x );
+		} else {
+			n.right = insert( n.right , x );
+		}
+
+		update( n );
+		return n;
+
+	}
+
+	private Node remove( Node n , Leaderboards.Totals t , long key ) {
+
+		if( n == null ) { return null; }
+
+		int c = compare( key , t , n.key , n.totals );
+
+		if( c == 0 ) { return merge( n.left , n.right ); }
+
+		if( c < 0 ) {
+			n.left = remove( n.left , t , key );
+		} else {
+			n.right = remove( n.right , t , key );
+		}
+
+		update( n );
+		return n;
+
+	}
+
+	/**
+	 * Split a subtree into the players before the key (splitLeft) and the others (splitRight)
+	 */
+	private void split( Node n , long key , Leaderboards.Totals t ) {
+
+		if( n == null ) {
+
+			splitLeft = null;
+			splitRight = null;
+			return;
+
+		}
+
+		if( compare( n.key , n.totals , key , t ) < 0 ) {
+
+			split( n.right , key , t );
+			n.right = splitLeft;
+			update( n );
+			splitLeft = n;
+
+		} else {
+
+			split( n.left , key , t );
+			n.left = splitRight;
+			update( n );
+			splitRight = n;
+
+		}
+
+	}
+
+	/**
+	 * Join two subtrees, all of a before all of b
+	 */
+	private Node merge( Node a , Node b ) {
+
+		if( a == null ) { return b; }
+		if( b == null ) { return a; }
+
+		if( a.priority > b.priority ) {
+
+			a.right = merge( a.right , b );
+			update( a );
+			return a;
+
+		}
+
+		b.left = merge( a , b.left );
+		update( b );
+		return b;
+
+	}
+
+	private static int size( Node n ) {
+
+		return n == null ? 0 : n.size;
+
+	}
+
+	private static void update( Node n ) {
+
+		n.size = size( n.left ) + size( n.right ) + 1;
+
+	}
+
+	/**
+	 * xorshift, cheaper than a Random and good enough to keep the tree balanced
+	 */
+	private int nextPriority() {
+
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+
+	}
+
+	private static class Node {
+
+		private final Leaderboards.Totals totals;
+		private final long key;
+		private final int priority;
+		private int size = 1;
+		private Node left, right;
+
+		private Node( Leaderboards.Totals totals , long key , int priority ) {
+
+			this.totals = totals;
+			this.key = key;
+			this.priority = priority;
+
+		}
+
+	}
+
+}
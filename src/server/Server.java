@@ -1,24 +1,30 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.sql.Timestamp;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import protocol.BinaryProtocol;
+import protocol.GridFormat;
+import protocol.GridView;
 import protocol.Protocol;
 import server.mazegeneration.*;
 
 import java.util.Arrays;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Collections;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
  
 
 /**
@@ -29,17 +35,55 @@ import java.util.TimerTask;
 public class Server {
 	
 	protected Database db;
+	// Writes the end of game stats and scores to the database in the background
+	protected StatsWriter stats;
+	// The top scores, kept in memory (see Leaderboards)
+	protected Leaderboards leaderboards = new Leaderboards( Constraints.leaderboardSize );
+	// Reads the leaderboards again in the background if the database could not be read at startup
+	private ScheduledExecutorService leaderboardLoader;
+	// The encoded stats of the players that asked for them recently
+	protected StatsCache statsCache = new StatsCache( Constraints.statsCacheSize , Constraints.statsCacheTtl );
+	// The top scores of the day, the week and the season
+	protected PeriodLeaderboards periodLeaderboards = new PeriodLeaderboards( Constraints.leaderboardSize , Constraints.seasonStart , Constraints.seasonDays );
 	private ExecutorService pool;
+	// Runs the tasks that write the players' outbound queues
+	protected ExecutorService writers;
+	// Runs the sessions' mailboxes (see Mailbox)
+	protected ExecutorService sessionWorkers;
 	 
-	protected List<Session> sessions = Collections.synchronizedList( new ArrayList<Session>() );
-	protected List<Player> queue = Collections.synchronizedList( new ArrayList<Player>() );
-	protected List<Player> active = Collections.synchronizedList( new ArrayList<Player>() );
+	// There is no server-wide lock. Each session's state (its players, maze, traps and timers) is only changed by the commands
+	// in the session's mailbox, which run one at a time on the session workers. The queue belongs to the matchmaker.
+	protected List<Session> sessions = new CopyOnWriteArrayList<Session>();
+	protected Matchmaker matchmaker = new Matchmaker( this , Constraints.matchmakerInterval );
+	// The players that are logged in
+	protected PlayerRegistry registry = new PlayerRegistry();
 	
 	private int port = -1;
 	private String address = "";
 	private ServerSocket serverSocket = null;
 	private Thread shutdownThread;
 	
+	// How client connections are served
+	public static final int MODE_THREAD = 0;	// One thread per socket (ClientHandler)
+	public static final int MODE_NIO = 1;		// A few selector threads for all sockets (NioEngine)
+	public static final int MODE_VIRTUAL = 2;	// One virtual thread per socket, blocking reads (Java 21+, falls back to platform threads)
+	
+	private int mode = MODE_THREAD;
+	private NioEngine engine;
+	
+	protected ServerMetrics metrics = new ServerMetrics( this );
+	// The mazes generated ahead of time for new sessions
+	protected MazePool mazePool = new MazePool( Constraints.mazeQuadSizeMin , Constraints.mazeQuadSizeMax , Constraints.mazePoolRanges ,
+			Constraints.mazePoolSize , Constraints.mazePoolLowWatermark , Constraints.mazePoolThreads );
+	
+	// Runs the session ticks (null if moves are applied and broadcast as soon as they arrive)
+	private ScheduledExecutorService ticker;
+	
+	// Keeps the time for every session's countdowns (see SessionTimer) and the connections' heartbeat deadlines
+	protected TimingWheel timers;
+	// Pings idle clients and disconnects the ones that don't answer
+	protected Heartbeat heartbeat;
+	
 	// Available themes for the mazes (The Duplicates are not a mistake, they increase the probability of a level being picked)
 	private static final String[] mazeThemes = new String[] {
 		"Gardens",
@@ -56,36 +100,79 @@ public class Server {
 	 * Start the server as soon as this class is executed
 	 * By default if no port is supplied, the server will start on port 8000
 	 * 
-	 * @param args The first element is the server port.
+	 * @param args The first element is the server port. The second (optional) element is the connection mode: "thread", "nio" or "virtual"
 	 */
 	public static void main(String[] args) {
 		
 		int defaultPort = 8000;
 		
 		int serverPort = ( args.length > 0 && Integer.parseInt( args[0] ) > 0 ) ? Integer.parseInt( args[0] ) : defaultPort;
+		int serverMode = args.length > 1 ? parseMode( args[1] ) : Constraints.defaultServerMode;
 		 
-		Server server = new Server( serverPort );
+		Server server = new Server( serverPort , serverMode );
 	 
 		
 	}
 	
+	/**
+	 * Convert a mode name supplied on the command line to one of the MODE_ constants
+	 * 
+	 * @param name The name of the mode
+	 * @return The mode (thread mode if the name is not recognised)
+	 */
+	public static int parseMode( String name ) {
+		
+		if( name.equalsIgnoreCase( "nio" ) ) {
+			return MODE_NIO;
+		}
+		
+		if( name.equalsIgnoreCase( "virtual" ) ) {
+			return MODE_VIRTUAL;
+		}
+		
+		return MODE_THREAD;
+		
+	}
+	
 	/**
 	 * Constructor for Server
 	 * 
 	 * @param serverPort The port to start the server on
 	 */
 	public Server( int serverPort ) {
+		
+		this( serverPort , Constraints.defaultServerMode );
+		
+	}
+	
+	/**
+	 * Constructor for Server
+	 * 
+	 * @param serverPort The port to start the server on
+	 * @param serverMode How the client connections are served (MODE_THREAD, MODE_NIO or MODE_VIRTUAL)
+	 */
+	public Server( int serverPort , int serverMode ) {
 
 		try {
 			
 			this.port = serverPort;
+			this.mode = serverMode;
 			this.address = InetAddress.getLocalHost().getHostAddress();
 			
-			// Create a server socket on the specified port 
-			// Use default value of backlog by setting it to 0
-			serverSocket = new ServerSocket( port );
+			// The NIO engine binds its own (non-blocking) server channel
+			if( mode == MODE_NIO ) {
+				
+				engine = new NioEngine( this , port , Constraints.nioThreads );
+				
+			} else {
+			
+				// Create a server socket on the specified port 
+				// Use default value of backlog by setting it to 0
+				serverSocket = new ServerSocket( port );
+			
+			}
 			
-			System.out.println( "Server started - " + address + ":" + port );
+			System.out.println( "Server started - " + address + ":" + port + ( mode == MODE_NIO ? " (NIO)" : mode == MODE_VIRTUAL ? " (virtual threads)" : "" ) );
 			
 			// Create the database connection (first row is my local db)
 			db = new Database( "localhost" , "mazerace" , "postgres" , "admin" );
@@ -97,8 +184,33 @@ public class Server {
 				
 			}
 			
+			stats = new StatsWriter( db , new File( Constraints.writeBehindSpool ) , Constraints.writeBehindBatch , Constraints.writeBehindInterval ,
+					Constraints.writeBehindRetryBase , Constraints.writeBehindRetryMax , Constraints.writeBehindQueueLimit );
+			
+			// The games spooled by the last run are written first, so the totals read count them
+			stats.awaitWritten( Constraints.writeBehindDrainTimeout );
+			
+			if( !loadLeaderboards() ) {
+				retryLeaderboards( Constraints.leaderboardRetryBase );
+			}
+			
 			// Create thread pool
-			pool = Executors.newCachedThreadPool();
+			pool = createHandlerPool( mode );
+			// Writes block on slow clients just like reads, so the writers use the same kind of pool
+			writers = createHandlerPool( mode );
+			// The session commands never block, so a thread per core is enough for any number of sessions
+			sessionWorkers = createSessionWorkers();
+			
+			// One wheel thread for all of the countdowns instead of a Timer thread per countdown
+			timers = new TimingWheel( "session-timers" , Constraints.timerTick , Constraints.timerWheelSize , Constraints.timerThreads );
+			heartbeat = new Heartbeat( timers , Constraints.heartbeatIdle , Constraints.heartbeatTimeout );
+			
+			metrics.start( Constraints.metricsInterval );
+			mazePool.start();
+			
+			if( Constraints.tickRate > 0 ) {
+				ticker = createTicker();
+			}
 			 
 			shutdownThread = new Thread(new Runnable() {
 				
@@ -106,6 +218,10 @@ public class Server {
 				public void run() {
 					
 					System.out.println("Shutdown thread executed");
+					
+					// Write the stats still queued before the database is closed
+					stats.close( Constraints.writeBehindDrainTimeout );
+					db.close();
 					  
 				
 				}
@@ -114,18 +230,13 @@ public class Server {
 			
 			Runtime.getRuntime().addShutdownHook( shutdownThread );
 			
-			// Heartbeat sensor
-			Timer t = new Timer();
-			t.scheduleAtFixedRate( new TimerTask() {
+			// The NIO engine accepts and reads from all clients on its own threads
+			if( mode == MODE_NIO ) {
 				
-				public void run() {
-					
-					connectionTest();
-					 				
-				}
+				engine.run();
+				return;
 				
-			}, 0, 2000);
-			
+			}
 			
 			// Wait for connections
 			while( true ) {
@@ -147,6 +258,79 @@ public class Server {
 		
 	}
 	
+	/**
+	 * Create the executor which runs the ClientHandlers.
+	 * In virtual mode each handler gets its own virtual thread if the JVM supports them (Java 21+).
+	 * The project targets Java 8, so the factory is looked up at runtime.
+	 * 
+	 * @param mode The server mode
+	 * @return The executor for the client handlers
+	 */
+	private static ExecutorService createHandlerPool( int mode ) {
+		
+		if( mode == MODE_VIRTUAL ) {
+			
+			try {
+				
+				Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+				return (ExecutorService) factory.invoke( null );
+				
+			} catch ( ReflectiveOperationException e ) {
+				
+				System.out.println( "Virtual threads are not available on this JVM. Using platform threads with blocking reads instead." );
+				
+			}
+			
+		}
+		
+		return Executors.newCachedThreadPool();
+		
+	}
+	
+	/**
+	 * Create the (daemon) threads that run the sessions' mailboxes
+	 */
+	private static ExecutorService createSessionWorkers() {
+		
+		return Executors.newFixedThreadPool( Constraints.sessionThreads , new ThreadFactory() {
+			
+			private int count = 0;
+			
+			@Override
+			public synchronized Thread newThread( Runnable r ) {
+				
+				Thread t = new Thread( r , "session-worker-" + ( count++ ) );
+				t.setDaemon( true );
+				return t;
+				
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * Create the (daemon) threads that run the session ticks
+	 */
+	private static ScheduledExecutorService createTicker() {
+		
+		return Executors.newScheduledThreadPool( Constraints.tickThreads , new ThreadFactory() {
+			
+			private int count = 0;
+			
+			@Override
+			public synchronized Thread newThread( Runnable r ) {
+				
+				Thread t = new Thread( r , "session-tick-" + ( count++ ) );
+				t.setDaemon( true );
+				return t;
+				
+			}
+			
+		});
+		
+	}
+	
 	/**
 	 * Remove a player waiting in the queue. 
 	 * The client in question will be prompted to return to the main panel
@@ -154,109 +338,197 @@ public class Server {
 	 * 
 	 * @param player The player object
 	 */
-	protected synchronized void leaveQueue( Player player ) {
-		  
-		queue.remove( player );
+	protected void leaveQueue( Player player ) {
 		
-		String output = Protocol.encode( Protocol.P_RETURN_TO_MAIN );
+		// The others get the new roster from the matchmaker
+		matchmaker.cancel( player );
 		
-		player.toClient.println( output );
-		player.toClient.flush();
+		String output = Protocol.encode( Protocol.P_RETURN_TO_MAIN );
 		
-		updateQueueList();
+		player.send( output );
 		
 	}
 	
 	/**
-	 * Test the connection between server and client. 
-	 * Used in conjunction with the server's TimerTask.
-	 * A Blank request is sent to the client.
-	 * If no response is returned, the client is considered to be disconnected.
-	 * Therefore, log them out and close the sockets.
+	 * Log out a player whose connection has been lost and remove them from wherever they are on the server.
+	 * 
+	 * @param p The player object
 	 */
-	protected synchronized void connectionTest() {
+	protected void disconnectPlayer( Player p ) {
 		
-		int numActive = active.size();	
-		if( numActive == 0 ) { return; }
+		// Only the first of a quit and a lost connection logs the player out
+		if( registry.remove( p ) ) {
+			db.logout( p.username );
+		}
 		
-		Player p;
-		int ai = 0; // Adjusted index to make sure there are no out of bounds exceptions when removing from active list
-		for( int i = 0 ; i < numActive; i++ ) {
+		removePlayer( p );
+		
+		System.out.println("PLAYER ["+p.username+"] DISCONNECTED.");
+		
+	}
+	
+	protected void getPlayerStats( Player player ) {
+		
+		// The stats and the last game, read from the database only if they are not cached (see StatsCache)
+		String payload = statsCache.get( player.username );
+		
+		if( payload == null ) {
 			
-			p = active.get( ai );
+			String[] result = db.getUserData( player.username );
 			
-			if( p.socket == null ) { continue; }
+			if( result == null || result.length < 1 ) { return; }
 			
-			try {
-				
-				p.toClient.println( Protocol.encode( Protocol.P_CONNECTION_TEST ) );
-				p.toClient.flush();
-				p.fromClient.readLine();
-				
-				ai++;
-				
-			} catch ( IOException e ) {
-				 
-				// No connection to client
-				db.logout( p.username );
-				active.remove( p );
-				removePlayer( p );
-				
-				try {
-					 
-					p.socket.close();
-					p.thread.stop();
-					System.out.println("PLAYER ["+p.username+"] DISCONNECTED.");
-					
-				} catch ( IOException e2 ) {
-					e.printStackTrace();
-				}
-				
-			}
+			String last = result.length >= 2 ? result[1] : "null";
+			
+			// The totals in memory already count the games the StatsWriter has not written yet
+			String stats = leaderboards.getStats( player.username );
+			
+			payload = statsCache.fill( player.username , stats != null ? stats : result[0] , last );
 			
 		}
 		
-		 
+		// The player's rank and percentile on each board (from memory, see Leaderboards.getRanks)
+		String ranks = leaderboards.getRanks( player.username );
+		
+		player.send( Protocol.append( payload , ranks == null ? "null" : ranks ) );
+		
+	}
+	
+	protected void getTopScores( Player player ) {
+		
+		// Empty until the leaderboards are read (see retryLeaderboards)
+		player.send( leaderboards.getResponse() );
 		
 	}
 	
-	protected synchronized void getPlayerStats( Player player ) {
+	/**
+	 * Send the top scores of the day, the week and the season
+	 */
+	protected void getPeriodScores( Player player ) {
 		
-		String[] result = db.getUserData( player.username );
+		// Empty until the leaderboards are read (see retryLeaderboards)
+		player.send( periodLeaderboards.getResponse() );
 		
-		if( result.length < 1 ) { return; }
+	}
+	
+	/**
+	 * Bring a player's cached stats up to date after their game started or finished (the database may not have the game yet)
+	 * 
+	 * @param last The finished game in the P_GET_STATS format, or null if the game has only started
+	 */
+	private void updateCachedStats( String username , String last ) {
 		
-		String last = result.length >= 2 ? result[1] : "null";
+		String stats = leaderboards.getStats( username );
 		
-		String output = Protocol.encode( Protocol.P_GET_STATS , result[0] , last );
-		player.toClient.println( output );
-		player.toClient.flush();
+		if( stats == null ) {
+			statsCache.invalidate( username );
+		} else if( last == null ) {
+			statsCache.update( username , stats );
+		} else {
+			statsCache.put( username , stats , last );
+		}
 		
 	}
 	
-	protected synchronized void getTopScores( Player player ) {
+	/**
+	 * Read every player's totals into the leaderboards (once). Only called at startup and by the leaderboardLoader thread,
+	 * never by the players' requests, so they don't wait for (or keep hitting) a database that is down.
+	 * 
+	 * @return true if both the leaderboards and the period leaderboards are loaded
+	 */
+	private boolean loadLeaderboards() {
+		
+		if( db == null || stats == null ) { return false; }
+		
+		// Only read while the StatsWriter has nothing left to write, so every game is counted once (otherwise tried again later)
+		stats.readWritten( new StatsWriter.Snapshot() {
+			
+			@Override
+			public void read( long first ) {
+				
+				if( !leaderboards.isLoaded() ) {
+					
+					List<Leaderboards.Totals> totals = db.getAllTotals();
+					
+					if( totals != null ) {
+						
+						leaderboards.load( totals , first );
+						System.out.println( "Leaderboards loaded (" + totals.size() + " players)" );
+						
+					}
+					
+				}
+				
+				if( !periodLeaderboards.isLoaded() ) {
+					
+					long now = System.currentTimeMillis();
+					List<PeriodLeaderboards.DayTotal> scores = db.getPeriodScores( periodLeaderboards.firstDayNeeded( now ) );
+					
+					if( scores != null ) {
+						periodLeaderboards.load( scores , now , first );
+					}
+					
+				}
+				
+			}
+			
+		});
 		
-		String mostCoins = db.getTopScores( 0 );
-		String mostPoints = db.getTopScores( 1 );
-		String mostWins = db.getTopScores( 2 );
-		String bestWLRatio = db.getTopScores( 3 );
+		return leaderboards.isLoaded() && periodLeaderboards.isLoaded();
 		
-		String[] args = new String[ 5 ];
-		args[ 0 ] = Protocol.P_GET_TOPSCORES;
-		args[ 1 ] = mostCoins == null ? "none" : mostCoins;
-		args[ 2 ] = mostPoints == null ? "none" : mostPoints;
-		args[ 3 ] = mostWins == null ? "none" : mostWins;
-		args[ 4 ] = bestWLRatio == null ? "none" : bestWLRatio;
+	}
+	
+	/**
+	 * Try to read the leaderboards again after a delay, doubled after every failure up to Constraints.leaderboardRetryMax
+	 * 
+	 * @param delay How long to wait (in milliseconds)
+	 */
+	private void retryLeaderboards( final long delay ) {
 		
-		String output = Protocol.encode( args );
-		player.toClient.println( output );
-		player.toClient.flush();
+		if( leaderboardLoader == null ) {
+			
+			leaderboardLoader = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+				
+				@Override
+				public Thread newThread( Runnable r ) {
+					
+					Thread t = new Thread( r , "leaderboard-load" );
+					t.setDaemon( true );
+					return t;
+					
+				}
+				
+			});
+			
+		}
 		
-		System.out.println(mostCoins);
-		System.out.println(mostPoints);
-		System.out.println(mostWins);
-		System.out.println(bestWLRatio);
+		System.out.println( "Leaderboards not loaded, trying again in " + delay + "ms" );
 		
+		leaderboardLoader.schedule( new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				try {
+					
+					if( loadLeaderboards() ) {
+						
+						leaderboardLoader.shutdown();
+						return;
+						
+					}
+					
+				} catch ( RuntimeException e ) {
+					
+					e.printStackTrace();
+					
+				}
+				
+				retryLeaderboards( Math.min( Constraints.leaderboardRetryMax , delay * 2 ) );
+				
+			}
+			
+		}, delay , TimeUnit.MILLISECONDS );
 		
 	}
 	
@@ -285,29 +557,22 @@ public class Server {
 	}
 	
 	/**
-	 * Add a player to the queue arrayList.
-	 * Then notify all clients in the queue of the new player (this includes the player itself)
-	 * Finally attempt to create a new lobby.
-	 * If the number of people in the queue is enough, a lobby will be created and the players will be thrown to a new session.
-	 * If not, nothing happens.
+	 * Add a player to the matchmaking queue.
+	 * The matchmaker thread notifies all clients in the queue of the new player (this includes the player itself)
+	 * and creates a lobby once there are enough people in the queue, together with any other players that joined in the meantime.
 	 * 
 	 * @param player
 	 */
-	protected synchronized void addPlayerToQueue( Player player ) {
-		
-		queue.add( player );
-	
-		// Send back the message that the user has logged in so that they can switch panels
-		String output = Protocol.encode( Protocol.P_MOVE_TO_QUEUE );
-		player.toClient.println( output );
-		player.toClient.flush();
+	protected void addPlayerToQueue( Player player ) {
 		
-		// Notify all clients in the queue of any changes to the player list 
-		updateQueueList();
+		// Already waiting (a repeated request)
+		if( player.ticket != null ) { return; }
 		
-		// Attempt to create a lobby.
-		createLobby();
+		// Send back the message that the user has logged in so that they can switch panels (before the matchmaker sends the roster)
+		String output = Protocol.encode( Protocol.P_MOVE_TO_QUEUE );
+		player.send( output );
 		
+		matchmaker.join( player );
 		
 	}
 	 
@@ -317,17 +582,18 @@ public class Server {
 	 * 
 	 * @param notify The message you want to send to the clients
 	 */
-	public synchronized void notifyQueue( String notify ) {
+	public void notifyQueue( String notify ) {
 		
 		if( notify == null ) { return; }
 		
+		List<Player> queue = matchmaker.players();
+		
 		// When a player joins, send a message to all clients in the queue to update their view
 		for( int i = 0 ; i < queue.size() ; i++ ) {
 			
 			Player player = queue.get( i );
 			
-			player.toClient.println( notify );
-			player.toClient.flush();
+			player.send( notify );
 			
 		}
 		
@@ -342,37 +608,27 @@ public class Server {
 	 * Check the Session class for more information.
 	 * 
 	 * The new session is added to the sessions arrayList.
-	 * Players are added to the session from the queue.
-	 * Once a player has been added, they are removed from the queue.
+	 * The players have already been taken out of the queue by the matchmaker.
 	 * 
-	 * @return The new Session object (reference to).
+	 * @param session The new session (its maze has been generated)
+	 * @param players The players taken from the queue
+	 * @return The new Session object (reference to)
 	 */
-	public synchronized Session createSession() {
-		
-		// Create a new session
-		Session session = new Session( this );
-		// The player id in the players session array
-		int pid = 0;
+	public Session createSession( Session session , Player[] players ) {
 		
-		int maxPlayers = queue.size() > Constraints.minPlayersRequired ? Constraints.minPlayersRequired : queue.size();
-		
-		// Get the 4 players in the queue and create their threads + create a session for them
-		for( int i = 0 ; i < maxPlayers ; i++ ) {
+		// Add the players to the session
+		for( int pid = 0 ; pid < players.length ; pid++ ) {
 			
-			// Get the player object from the queue
-			Player player = queue.get( 0 );
+			Player player = players[ pid ];
 			// Set the player's position in the session's players list
 			player.sessionPosition = pid;
-			player.session = session;
 			// Set the additional variables to their default state
 			setPlayerDefaults( player );
 			
 			// Add player to session
 			session.addPlayer( player , pid );
-			// Remove them from the queue
-			queue.remove( 0 );
-			
-			pid++;
+			// Last, so that the player's handler sees the session complete once it sees the reference
+			player.session = session;
 			
 		}
 		
@@ -408,29 +664,36 @@ public class Server {
 	 
 	
 	/**
-	 * Create a lobby by polling the queue list.
-	 * If there are enough players in the queue, start a lobby and create a session
-	 * Then transfer all the players from the queue to the lobby
+	 * Create a lobby for players taken from the queue (called by the matchmaker).
+	 * Transfer all the players to the lobby's session
 	 * After the session is created, send the response to all clients in the session so that the gui can switch panels
 	 * 
+	 * @param session The new session
+	 * @param players The players taken from the queue
 	 * @return true if successful , false otherwise
 	 */
-	public synchronized boolean createLobby() {
-		
-		// Not enough people in the queue to make a lobby
-		if( queue.size() < Constraints.minPlayersRequired ) { return false; }
+	public boolean createLobby( Session session , Player[] players ) {
 		 
 		/* 
-		 * Create a session with the 4 players in the queue
-		 * Automatically removes them from the queue
 		 * createSession sets the session reference to the player object internally
 		 * This way you avoid having the first 3 players with no session references
 		*/
-		Session sess = createSession(); // returns reference to session object
-		 
-		// Set the player's session object reference
-		String sessStartMsg = Protocol.encode( Protocol.P_SESSION_START , lobbyPlayerStatusesToString( sess  , '|' ) , sess.levelTheme , ""+sess.maze.getMazeSize() , ""+sess.timeLimit , ""+sess.maze.countCoins() );
-		notifySessionPlayers( sess , sessStartMsg );
+		final Session sess = createSession( session , players ); // returns reference to session object
+		
+		if( sess == null ) { return false; }
+		
+		sess.mailbox.post( new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				// Set the player's session object reference
+				String sessStartMsg = Protocol.encode( Protocol.P_SESSION_START , lobbyPlayerStatusesToString( sess  , '|' ) , sess.levelTheme , ""+sess.maze.getMazeSize() , ""+sess.timeLimit , ""+sess.maze.countCoins() );
+				notifySessionPlayers( sess , sessStartMsg );
+				
+			}
+			
+		});
 		 
 		return true;
 		
@@ -444,7 +707,7 @@ public class Server {
 	 * @param delimiter The delimiter used for each player (default is | )
 	 * @return The string representation of the player statuses
 	 */
-	public synchronized String lobbyPlayerStatusesToString( Session sess , char delimiter ) {
+	public String lobbyPlayerStatusesToString( Session sess , char delimiter ) {
 		
 		String res="";
 		
@@ -469,26 +732,13 @@ public class Server {
 		
 	}
 	
-	/**
-	 * Generate a list of players in the queue and send it to all clients that are in the queue panel waiting
-	 */
-	public synchronized void updateQueueList() {
-		
-		// Create a string to represent the current queue as a list of players
-		String queueList = generateQueueList();
-		String notify = Protocol.encode( Protocol.P_QUEUE_UPDATE , queueList );
-		// Notify all players in the queue of the newly joined player (including himself)
-		notifyQueue( notify );
-		
-	}
-	
 	/**
 	 * Count the number of players in a session who have clicked "READY".
 	 * 
 	 * @param sess The session object
 	 * @return The number of ready players
 	 */
-	public synchronized int countReadyPlayers( Session sess ) {
+	public int countReadyPlayers( Session sess ) {
 		
 		if( sess == null || sess.players == null ) { return 0; }
 		
@@ -519,7 +769,7 @@ public class Server {
 	 * @param sess The session object
 	 * @return The number of players in the session.
 	 */
-	public synchronized int countSessionPlayers( Session sess ) {
+	public int countSessionPlayers( Session sess ) {
 		
 		if( sess == null || sess.players == null ) { return 0; }
 		
@@ -548,27 +798,17 @@ public class Server {
 	 * 
 	 * @param player The player object
 	 */
-	public synchronized void removePlayer( Player player ) {
+	public void removePlayer( Player player ) {
 		
 		if( player == null ) { return; }
 		
-
-		// Find the username in the queue (if it is there)
-		// DO THIS BEFORE REMOVING THE PLAYER FROM THE QUEUE
-		int pQueueID = playerQueueID( player.username );
+		// If the player is in the queue, remove them (the matchmaker notifies the rest of the queue)
+		boolean queued = matchmaker.cancel( player );
 		
-		// IF the player is actually in a queue
-		if( pQueueID > -1 ) {
-			
-			queue.remove( player );
-			updateQueueList();
-		 
-		}
 		// Otherwise they are probably in a lobby/game session
-		else {
-			 
+		if( !queued ) {
+			
 			removePlayerFromSession( player );
-		 
 			
 		}
 		
@@ -580,15 +820,37 @@ public class Server {
 	 * 
 	 * @param player The player object
 	 */
-	public synchronized void removePlayerFromSession( Player player ) {
+	public void removePlayerFromSession( Player player ) {
 		
 		removePlayerFromSession( player , false );
 		
 	}
 	
-	public synchronized void removePlayerFromSession( Player player , boolean returnToMain ) {
+	public void removePlayerFromSession( final Player player , final boolean returnToMain ) {
+		
+		final Session sess = player.session;
+		if( sess == null ) { return; }
 		
-		if( player.session == null ) { return; }
+		sess.mailbox.post( new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				// The player may have left the session before this command ran
+				if( player.session != sess ) { return; }
+				
+				leaveSession( player , returnToMain );
+				
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * Take a player out of their session (runs in the session's mailbox)
+	 */
+	private void leaveSession( Player player , boolean returnToMain ) {
 		
 		// Remove the player reference from the session
 		player.session.players[ player.sessionPosition ] = null;
@@ -677,9 +939,6 @@ public class Server {
 			  
 		}
 		
-		 
-		 
-		
 	}
  
 	
@@ -691,7 +950,7 @@ public class Server {
 	 * @param sess The session object
 	 * @param reason The reason for returning them.
 	 */
-	public synchronized void returnPlayersToMain( Session sess , String reason ) {
+	public void returnPlayersToMain( Session sess , String reason ) {
 		
 		if( sess == null || sess.players == null ) {
 			return;
@@ -715,7 +974,7 @@ public class Server {
 	 * @param i The index of the player in the session.players array
 	 * @param reason The reason for removing them.
 	 */
-	public synchronized void returnPlayerToMain( Session sess , int i , String reason ) {
+	public void returnPlayerToMain( Session sess , int i , String reason ) {
 		
 		if( sess == null || sess.players == null || i < 0 || i >= sess.players.length ) {
 			return;
@@ -732,8 +991,7 @@ public class Server {
 		 
 		// Send the return to queue response to the client
 		String message = Protocol.encode( Protocol.P_RETURN_TO_MAIN , reason );
-		p.toClient.println( message );
-		p.toClient.flush();
+		p.send( message );
 		// Remove the reference to player in the session
 		sess.players[i] = null;
 		p.session = null;
@@ -747,7 +1005,7 @@ public class Server {
 	 * 
 	 * @param sess
 	 */
-	public synchronized void destroyLobby( Session sess , String reason ) {
+	public void destroyLobby( Session sess , String reason ) {
 		
 		if( sess == null || sess.players == null ) { return; }
 		
@@ -757,6 +1015,7 @@ public class Server {
 		if( sess.gameFinishCountdown != null ) { sess.gameFinishCountdown.stop(); }
 		if( sess.returnCountdown != null ) { sess.returnCountdown.stop(); }
 		if( sess.readyCountdown != null ) { sess.readyCountdown.stop(); }
+		stopTicking( sess );
 		
 		if( numPlayers == 0 ) {
 			
@@ -771,7 +1030,7 @@ public class Server {
 		
 	}
 	
-	public synchronized void destroyLobby( Session sess ) {
+	public void destroyLobby( Session sess ) {
 		
 		destroyLobby( sess , "Session canceled. There aren't enough players left in the lobby." );
 		
@@ -787,7 +1046,7 @@ public class Server {
 	 * 
 	 * @param sess The session object reference
 	 */
-	public synchronized void redirectSessionPlayers( Session sess ) {
+	public void redirectSessionPlayers( Session sess ) {
 		
 		if( sess == null || sess.players == null ) { return; }
 		
@@ -814,22 +1073,36 @@ public class Server {
 			if( p.ready && readyCount >= Constraints.minReadyPlayersRequired ) {
 				 
 				
-				// Update the database to increase the number of started games for this player
-				int statsUpdated = db.updateStats( p.username , "gamesPlayed" , 1 );
-				
-				String[] args = constructGameStartArguments( sess , p );
-				
-				message = Protocol.encode( args );
+				// Update the database to increase the number of started games for this player (in the background)
+				long number = stats.played( p.username );
+				leaderboards.played( p.username , number );
+				updateCachedStats( p.username , null );
 				
 				// Send the response to all clients
-				p.toClient.println( message );
-				p.toClient.flush();
+				if( p.delta ) {
+					
+					p.send( Protocol.encode( constructFullGameStartArguments( sess , p ) ) );
+					
+				} else if( p.binary ) {
+					
+					p.sendFrame( constructGameStartFrame( sess , p ) , false );
+					
+				} else {
+					
+					String[] args = constructGameStartArguments( sess , p );
+					
+					message = Protocol.encode( args );
+					
+					p.send( message );
+					
+				}
 				
 				// If this is the last ready player, start the game timer.
 				if( cReady >= readyCount ) {
 					
 					sess.gameStartCountdownStarted = true;
 					sess.gameStartCountdown.start();
+					startTicking( sess );
 					
 				}
 				
@@ -915,8 +1188,8 @@ public class Server {
  
 		
 		int boundaries[] = sess.maze.getCroppedBoundaries( p.x , p.y , sess.visibleRows , sess.visibleCols );
-		int[][] croppedMaze = sess.maze.getCroppedMaze( boundaries );
-		boolean[][] croppedCoins = sess.maze.getCroppedCoins( boundaries );
+		GridView croppedMaze = sess.maze.getGrid().cellView( boundaries );
+		GridView croppedCoins = sess.maze.getGrid().coinView( boundaries );
 		
 		// Player's relative position on screen based on their viewport
 		//int[] adjustedPos = sess.maze.getAdjustedPlayerPosition( pPos[ 0 ], pPos[ 1 ], boundaries );
@@ -944,8 +1217,8 @@ public class Server {
 	 
 		
 		int boundaries[] = sess.maze.getCroppedBoundaries( p.x , p.y , sess.visibleRows , sess.visibleCols );
-		int[][] croppedMaze = sess.maze.getCroppedMaze( boundaries );
-		boolean[][] croppedCoins = sess.maze.getCroppedCoins( boundaries );
+		GridView croppedMaze = sess.maze.getGrid().cellView( boundaries );
+		GridView croppedCoins = sess.maze.getGrid().coinView( boundaries );
 	 
 		args[ aid ] = generateRelativePlayerPositions( sess , '|' , boundaries  );
 		args[ aid + 1 ] = MazeGenerator.convertMazeToString( croppedMaze , '|' , ',' );
@@ -962,17 +1235,372 @@ public class Server {
 		
 	}
 	
-	protected void movePlayer( Session sess , Player player , int direction ) {
+	/**
+	 * Game start message for players that receive move deltas (P_GAME_START_FULL).
+	 * The whole maze is sent once, the client crops the viewport itself from then on.
+	 * 
+	 * format:
+	 * 0 - header , 1 - level theme , 2 - time limit , 3 - slotID , 4 - visible rows , 5 - visible columns , 6 - maze size ,
+	 * 7 - maze cells (one base 36 digit per cell, row by row) , 8 - coins (one hex digit per 4 cells, row by row) ,
+	 * 9 - usernames , 10 - positions in the maze , 11 - orientations , 12 - coins per player
+	 */
+	public String[] constructFullGameStartArguments( Session sess , Player p ) {
 		
-		// If the game start countdown is still going, don't allow anyone to exploit the game. I.e. no moves can be made
-		if( sess.gameStartCountdownStarted && sess.gameStartCountdown.countdown > 0 ) {
-			return;
-		}
+		String[] args = new String[ 13 ];
 		
-		int px = player.x;
-		int py = player.y;
+		args[ 0 ] = Protocol.P_GAME_START_FULL;
+		args[ 1 ] = sess.levelTheme;
+		args[ 2 ] = Integer.toString( sess.timeLimit );
+		args[ 3 ] = Integer.toString( p.sessionPosition );
+		args[ 4 ] = Integer.toString( sess.visibleRows );
+		args[ 5 ] = Integer.toString( sess.visibleCols );
+		args[ 6 ] = Integer.toString( sess.maze.getMazeSize() );
+		args[ 7 ] = GridFormat.encodeDigits( sess.maze.getGrid().cellView() );
+		args[ 8 ] = GridFormat.encodeBits( sess.maze.getGrid().coinView() );
+		args[ 9 ] = playerPropertyToString( sess , '|' , "status" , "." );
+		args[ 10 ] = playerPositionsToString( sess , '|' );
+		args[ 11 ] = playerPropertyToString( sess , '|' , "orientation" , "." );
+		args[ 12 ] = playerPropertyToString( sess , '|' , "coins" , "." );
 		
-		int nx = px, ny = py;
+		return args;
+		
+	}
+	
+	/**
+	 * Move update for players that receive deltas (P_MOVE_DELTA). Only what changed since the last update is sent,
+	 * positions are in maze coordinates.
+	 * 
+	 * format:
+	 * 0 - header , 1 - username , 2 - positions , 3 - orientations , 4 - coins per player ,
+	 * 5 - coins taken (row,column|...) , 6 - traps added (row,column,owner|...) , 7 - traps removed (row,column|...) ,
+	 * 8 - the receiving player's coins , 9 - the receiving player's fires left , 10 - message
+	 */
+	public String[] constructMoveDeltaArguments( Session sess , String username , String message ) {
+		
+		String[] args = new String[ 11 ];
+		
+		args[ 0 ] = Protocol.P_MOVE_DELTA;
+		args[ 1 ] = username;
+		args[ 2 ] = playerPositionsToString( sess , '|' );
+		args[ 3 ] = playerPropertyToString( sess , '|' , "orientation" , "." );
+		args[ 4 ] = playerPropertyToString( sess , '|' , "coins" , "." );
+		
+		StringBuilder coins = new StringBuilder();
+		for( int[] coin : sess.coinsTaken ) {
+			if( coins.length() > 0 ) { coins.append( '|' ); }
+			coins.append( coin[ 0 ] ).append( ',' ).append( coin[ 1 ] );
+		}
+		args[ 5 ] = coins.toString();
+		
+		StringBuilder added = new StringBuilder();
+		for( String[] trap : sess.trapsAdded ) {
+			if( added.length() > 0 ) { added.append( '|' ); }
+			added.append( trap[ 0 ] ).append( ',' ).append( trap[ 1 ] ).append( ',' ).append( trap[ 2 ] );
+		}
+		args[ 6 ] = added.toString();
+		
+		StringBuilder removed = new StringBuilder();
+		for( String[] trap : sess.trapsRemoved ) {
+			if( removed.length() > 0 ) { removed.append( '|' ); }
+			removed.append( trap[ 0 ] ).append( ',' ).append( trap[ 1 ] );
+		}
+		args[ 7 ] = removed.toString();
+		
+		args[ 8 ] = "";
+		args[ 9 ] = "";
+		args[ 10 ] = message;
+		
+		return args;
+		
+	}
+	
+	/**
+	 * BinaryProtocol version of constructGameStartArguments (T_GAME_START).
+	 * Layout: level theme, time limit, slot, players (see writePlayers), maze grid, coin bit grid
+	 */
+	public byte[] constructGameStartFrame( Session sess , Player p ) {
+		
+		int boundaries[] = sess.maze.getCroppedBoundaries( p.x , p.y , sess.visibleRows , sess.visibleCols );
+		
+		BinaryProtocol.Writer out = new BinaryProtocol.Writer( 256 );
+		
+		out.writeByte( BinaryProtocol.T_GAME_START );
+		out.writeString( sess.levelTheme );
+		out.writeVarInt( sess.timeLimit );
+		out.writeVarInt( p.sessionPosition );
+		writePlayers( out , sess , boundaries );
+		out.writeGrid( sess.maze.getGrid().cellView( boundaries ) );
+		out.writeBitGrid( sess.maze.getGrid().coinView( boundaries ) );
+		
+		return out.toFrame();
+		
+	}
+	
+	/**
+	 * BinaryProtocol version of constructMoveArguments (T_MOVE).
+	 * Layout: username, players (see writePlayers), maze grid, coin bit grid, collected coins, traps (count, then row, column, owner), fires left, message
+	 */
+	public byte[] constructMoveFrame( Session sess , Player p , String username , String message ) {
+		
+		int boundaries[] = sess.maze.getCroppedBoundaries( p.x , p.y , sess.visibleRows , sess.visibleCols );
+		
+		BinaryProtocol.Writer out = new BinaryProtocol.Writer( 256 );
+		
+		out.writeByte( BinaryProtocol.T_MOVE );
+		out.writeString( username );
+		writePlayers( out , sess , boundaries );
+		out.writeGrid( sess.maze.getGrid().cellView( boundaries ) );
+		out.writeBitGrid( sess.maze.getGrid().coinView( boundaries ) );
+		out.writeSignedVarInt( p.coins );
+		writeTraps( out , sess , boundaries );
+		out.writeSignedVarInt( p.firesLeft );
+		out.writeString( message );
+		
+		return out.toFrame();
+		
+	}
+	
+	/**
+	 * Write the session's player slots: the slot count, then for each slot a present flag followed by
+	 * username, position relative to the viewport, coins and orientation
+	 */
+	protected void writePlayers( BinaryProtocol.Writer out , Session sess , int[] boundaries ) {
+		
+		int numP = sess.players.length;
+		out.writeVarInt( numP );
+		
+		Player p;
+		for( int i = 0 ; i < numP ; i++ ) {
+			
+			p = sess.players[ i ];
+			out.writeBoolean( p != null );
+			
+			if( p == null ) { continue; }
+			
+			int[] pos = sess.maze.getAdjustedPlayerPosition( p.x , p.y , boundaries );
+			
+			out.writeString( p.username );
+			out.writeSignedVarInt( pos[ 0 ] );
+			out.writeSignedVarInt( pos[ 1 ] );
+			out.writeSignedVarInt( p.coins );
+			out.writeByte( p.orientation );
+			
+		}
+		
+	}
+	
+	/**
+	 * Write the traps that are inside the viewport (positions relative to the viewport)
+	 */
+	protected void writeTraps( BinaryProtocol.Writer out , Session sess , int[] boundaries ) {
+		
+		int num = sess.traps.size();
+		int visible = 0;
+		
+		String[] trap;
+		int[][] positions = new int[ num ][];
+		for( int i = 0 ; i < num ; i++ ) {
+			
+			trap = sess.traps.get( i );
+			int tx = Integer.parseInt( trap[0] );
+			int ty = Integer.parseInt( trap[1] );
+			
+			if( tx < boundaries[0] || tx > boundaries[1] || ty < boundaries[2] || ty > boundaries[3] ) {
+				continue;
+			}
+			
+			positions[ i ] = new int[] { tx - boundaries[0] , ty - boundaries[2] };
+			visible++;
+			
+		}
+		
+		out.writeVarInt( visible );
+		
+		for( int i = 0 ; i < num ; i++ ) {
+			
+			if( positions[ i ] == null ) { continue; }
+			
+			out.writeVarInt( positions[ i ][ 0 ] );
+			out.writeVarInt( positions[ i ][ 1 ] );
+			out.writeString( sess.traps.get( i )[ 2 ] );
+			
+		}
+		
+	}
+	
+	/**
+	 * Handle a move (or fire) request from a player.
+	 * With session ticks the input is queued and applied by the next tick, otherwise it is applied straight away.
+	 * 
+	 * @param sess The player's session
+	 * @param player The player
+	 * @param direction The direction of the move, or Session.FIRE to leave a trap
+	 * @param received When the request was received (System.nanoTime)
+	 */
+	protected void queueInput( final Session sess , Player player , int direction , long received ) {
+		
+		if( ticker == null ) {
+			
+			final Session.Input input = new Session.Input( player , direction , received );
+			
+			sess.mailbox.post( new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					applyInput( sess , input );
+					
+				}
+				
+			});
+			return;
+			
+		}
+		
+		sess.inputs.add( new Session.Input( player , direction , received ) );
+		
+	}
+	
+	private void applyInput( Session sess , Session.Input input ) {
+		
+		// The player may have left the game since the input was queued
+		if( input.player.session != sess ) { return; }
+		
+		if( input.direction == Session.FIRE ) {
+			
+			fireTrap( sess , input.player );
+			return;
+			
+		}
+		
+		if( !sess.gameRunning || !sess.playersCanMove || sess.gameFinished ) { return; }
+		
+		movePlayer( sess , input.player , input.direction );
+		
+		metrics.recordMove( System.nanoTime() - input.received );
+		
+	}
+	
+	/**
+	 * Start the session's tick loop (once the players are sent to the game)
+	 */
+	protected void startTicking( final Session sess ) {
+		
+		if( ticker == null || sess.tick != null ) { return; }
+		
+		long period = 1000000000L / Constraints.tickRate;
+		
+		final Runnable tick = new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				tick( sess );
+				
+			}
+			
+		};
+		
+		// The ticker only posts the tick, the session's mailbox runs it after the commands already waiting
+		sess.tick = ticker.scheduleAtFixedRate( new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				sess.mailbox.post( tick );
+				
+			}
+			
+		}, period , period , TimeUnit.NANOSECONDS );
+		
+	}
+	
+	protected void stopTicking( Session sess ) {
+		
+		if( sess.tick == null ) { return; }
+		
+		sess.tick.cancel( false );
+		
+	}
+	
+	/**
+	 * One simulation step of a session: apply the queued inputs in order, then send every player one update
+	 * with the combined result (instead of one update per input).
+	 */
+	protected void tick( Session sess ) {
+		
+		if( sess.inputs.isEmpty() ) { return; }
+		
+		sess.ticking = true;
+		
+		try {
+			
+			Session.Input input;
+			while( ( input = sess.inputs.poll() ) != null ) {
+				applyInput( sess , input );
+			}
+			
+		} finally {
+			
+			sess.ticking = false;
+			
+		}
+		
+		if( sess.snapshotPending ) {
+			
+			notifyPlayersOfMove( sess , sess.lastMover , sess.snapshotMessage );
+			
+		}
+		
+		for( int i = 0 ; i < sess.movedThisTick.length ; i++ ) {
+			sess.movedThisTick[ i ] = false;
+		}
+		sess.snapshotPending = false;
+		sess.snapshotMessage = " ";
+		
+		for( String message : sess.afterSnapshot ) {
+			notifySessionPlayers( sess , message );
+		}
+		sess.afterSnapshot.clear();
+		
+	}
+	
+	/**
+	 * Called after a move (or trap) has changed the state of the game. Broadcasts the change, or during a tick
+	 * marks it for the tick's combined update.
+	 * 
+	 * @param message The message shown to the players (the last non-empty one wins during a tick)
+	 */
+	protected void moveApplied( Session sess , Player player , String message ) {
+		
+		if( !sess.ticking ) {
+			
+			notifyPlayersOfMove( sess , player.username , message );
+			return;
+			
+		}
+		
+		sess.snapshotPending = true;
+		sess.lastMover = player.username;
+		sess.movedThisTick[ player.sessionPosition ] = true;
+		
+		if( message != null && message.trim().length() > 0 ) {
+			sess.snapshotMessage = message;
+		}
+		
+	}
+	
+	protected void movePlayer( Session sess , Player player , int direction ) {
+		
+		// If the game start countdown is still going, don't allow anyone to exploit the game. I.e. no moves can be made
+		if( sess.gameStartCountdownStarted && sess.gameStartCountdown.countdown > 0 ) {
+			return;
+		}
+		
+		int px = player.x;
+		int py = player.y;
+		
+		int nx = px, ny = py;
 		int orientation = 0;
 		  
 		
@@ -998,11 +1626,11 @@ public class Server {
 			return;
 		}
 		
-		int[][] maze = sess.maze.getMaze();
-		boolean[][] coins = sess.maze.getCoins();
+		MazeGrid maze = sess.maze.getGrid();
+		int cell = maze.get( nx , ny );
 		
 		// Check to see if this cell in the maze is a wall => illegal move
-		if( maze[ nx ][ ny ] == MazeConstants.WALL ) {
+		if( cell == MazeConstants.WALL ) {
 			
 			return;
 			
@@ -1016,16 +1644,16 @@ public class Server {
 		player.orientation = orientation;
 		
 		// Player collects this coin
-		if( coins[ nx ][ ny ] == true ) {
+		if( maze.takeCoin( nx , ny ) ) {
 			
-			sess.maze.collectCoin( nx , ny );
+			sess.coinsTaken.add( new int[] { nx , ny } );
 			player.coins++;
 			
 		}
 		
 		 
 		 
-		if( maze[ nx ][ ny ] == MazeConstants.WALKABLE || maze[ nx ][ ny ] == MazeConstants.START || maze[ nx ][ ny ] == MazeConstants.FINISH ) {
+		if( cell == MazeConstants.WALKABLE || cell == MazeConstants.START || cell == MazeConstants.FINISH ) {
 			
 			String message = " ";
 			
@@ -1043,7 +1671,8 @@ public class Server {
 					if( player.coins < 0 ) { player.coins = 0; }
 					
 					// remove trap from list
-					sess.traps.remove( trapHere );
+					sess.trapsRemoved.add( sess.traps.remove( trapHere ) );
+					maze.setTrap( nx , ny , false );
 					
 					message = "[HIT] You walked over a trap placed by ["+from+"]. You lost " + (before-player.coins) + " coins.";
 					
@@ -1051,10 +1680,10 @@ public class Server {
 				
 			}
 			
-			notifyPlayersOfMove( sess , player.username , message );
+			moveApplied( sess , player , message );
 			
 			// The player has finished the maze
-			if( maze[ nx ][ ny ] == MazeConstants.FINISH ) {
+			if( cell == MazeConstants.FINISH ) {
 				
 				// Set this player as finished
 				calculateGameTime( player );
@@ -1092,8 +1721,11 @@ public class Server {
 				int score = calculatePoints( ptime/1000 , player.session.timeLimit , coinsCollected , player.session.maxCoins );
 				player.points = score;
 				
-				db.updateStats( player.username, won , 1 , coinsCollected , score );
-				db.insertScore( player.username , player.session.levelTheme , player.session.maze.getMazeSize() , ptime , finishPosition, score, coinsCollected );
+				// Queued for the StatsWriter, the game never waits for the database
+				long number = stats.finished( player.username , won , coinsCollected , score , player.session.levelTheme , player.session.maze.getMazeSize() , ptime , finishPosition );
+				leaderboards.finished( player.username , number , won , coinsCollected , score );
+				periodLeaderboards.record( player.username , number , score , coinsCollected , System.currentTimeMillis() );
+				updateCachedStats( player.username , player.session.levelTheme+","+player.session.maze.getMazeSize()+","+finishPosition+","+(ptime/1000)+","+coinsCollected+","+score+","+new Timestamp( System.currentTimeMillis() ) );
 				
 				String finished = finishedPlayersToString( player.session , '|' );
 				notifyPlayerHasFinished( player.session , player , finished );
@@ -1111,7 +1743,7 @@ public class Server {
 	 * @param sess The session object
 	 * @param player The player object firing the trap
 	 */
-	protected synchronized void fireTrap( Session sess , Player player ) {
+	protected void fireTrap( Session sess , Player player ) {
 		
 		if( sess == null || sess.players == null || sess.players.length == 0 || player == null ) { return; }
 		
@@ -1127,13 +1759,13 @@ public class Server {
 			return;
 		}
 		
-		int trapPos = trapAtPos( sess , px , py );
-		if( trapPos > 0 ) { return; }
+		MazeGrid maze = sess.maze.getGrid();
 		
-		int[][] maze = sess.maze.getMaze();
+		// There is a trap here already
+		if( maze.hasTrap( px , py ) ) { return; }
 		
 		// You can not place traps at the start of finish of a maze
-		if( maze[ px ][ py ] == MazeConstants.START || maze[ px ][ py ] == MazeConstants.FINISH ) {
+		if( maze.get( px , py ) == MazeConstants.START || maze.get( px , py ) == MazeConstants.FINISH ) {
 			
 			return;
 			
@@ -1141,9 +1773,12 @@ public class Server {
 		
 		player.firesLeft--;
 		
-		sess.traps.add( new String[] { ""+px , ""+py , player.username } );
+		String[] trap = new String[] { ""+px , ""+py , player.username };
+		sess.traps.add( trap );
+		sess.trapsAdded.add( trap );
+		maze.setTrap( px , py , true );
 		
-		notifyPlayersOfMove( sess , player.username , "A trap was left somewhere by ["+player.username+"]!" );
+		moveApplied( sess , player , "A trap was left somewhere by ["+player.username+"]!" );
 		
 	}
 	
@@ -1155,10 +1790,12 @@ public class Server {
 	 * @param y The column
 	 * @return >= 0 If a trap is found, -1 if nothing is found
 	 */
-	protected synchronized int trapAtPos( Session sess , int x , int y ) {
+	protected int trapAtPos( Session sess , int x , int y ) {
+		
+		// Most cells have no trap, the maze's trap bits answer that without going through the list
+		if( !sess.maze.getGrid().hasTrap( x , y ) ) { return -1; }
 		
 		int size = sess.traps.size();
-		if( size == 0 ) { return -1; }
 		
 		String[] trap;
 		int tx,ty;
@@ -1178,7 +1815,7 @@ public class Server {
 		
 	}
 	
-	protected synchronized String trapsToString( Session sess , char delimiter , int[] boundaries ) {
+	protected String trapsToString( Session sess , char delimiter , int[] boundaries ) {
 		
 		String result = "";
 		
@@ -1233,7 +1870,7 @@ public class Server {
 	 * 
 	 * @param sess The session object
 	 */
-	protected synchronized void stopRemainingPlayers( Session sess ) {
+	protected void stopRemainingPlayers( Session sess ) {
 		
 		int pLen = sess.players.length;
 		Player p;
@@ -1262,8 +1899,7 @@ public class Server {
 			
 			if( p == null ) { continue; }
 				
-			p.toClient.println( Protocol.encode( Protocol.P_GAME_COUNTDOWN_RESULT, finished ) );
-			p.toClient.flush();
+			p.send( Protocol.encode( Protocol.P_GAME_COUNTDOWN_RESULT, finished ) );
 		
 		}
 		
@@ -1336,10 +1972,13 @@ public class Server {
 	 * @param sess The session object
 	 * @param username The username of the player that made the move
 	 */
-	protected synchronized void notifyPlayersOfMove( Session sess , String username , String message ) {
+	protected void notifyPlayersOfMove( Session sess , String username , String message ) {
 		
 		int pLen = sess.players.length;
 		Player p;
+		
+		// The delta is the same for every player (apart from their own counters), only build it once
+		String[] delta = null;
 	 
 		for( int i = 0 ; i < pLen ; i++ ) {
 						
@@ -1347,12 +1986,38 @@ public class Server {
 			
 			if( p == null ) { continue; }
 			
-			String args = Protocol.encode( constructMoveArguments( sess , p , username , message ) );	
-			p.toClient.println( args );
-			p.toClient.flush();
+			// In a tick update several players may have moved. Each one is told about their own move (the client plays a sound for it)
+			String mover = sess.movedThisTick[ i ] ? p.username : username;
+			
+			if( p.delta ) {
+				
+				if( delta == null ) {
+					delta = constructMoveDeltaArguments( sess , username , message );
+				}
+				
+				delta[ 1 ] = mover;
+				delta[ 8 ] = Integer.toString( p.coins );
+				delta[ 9 ] = Integer.toString( p.firesLeft );
+				// Deltas can't be dropped, the client would lose track of the maze
+				p.send( Protocol.encode( delta ) );
+				
+			} else if( p.binary ) {
+				
+				p.sendFrame( constructMoveFrame( sess , p , mover , message ) , true );
+				
+			} else {
+				
+				String args = Protocol.encode( constructMoveArguments( sess , p , mover , message ) );	
+				p.sendSnapshot( args );
+				
+			}
 		
 		}
 		
+		sess.coinsTaken.clear();
+		sess.trapsAdded.clear();
+		sess.trapsRemoved.clear();
+		
 	}
 	
 	/**
@@ -1363,7 +2028,7 @@ public class Server {
 	 * @param delimiter The delimiter for each player (default is | )
 	 * @return The string of player statuses
 	 */
-	protected synchronized String finishedPlayersToString( Session sess , char delimiter ) {
+	protected String finishedPlayersToString( Session sess , char delimiter ) {
 		
 		String output = "";
 		
@@ -1403,21 +2068,20 @@ public class Server {
 	 */
 	protected void notifyPlayerHasFinished( Session sess , Player player , String finished ) {
 		
-		Player p;
-		for( int i = 0 ; i < sess.players.length ; i++ ) {
+		String message = Protocol.encode( Protocol.P_PLAYER_FINISHED , player.username , finished );
+		
+		// During a tick the move that finished the maze hasn't been broadcast yet, keep the same order as without ticks
+		if( sess.ticking ) {
 			
-			p = sess.players[ i ];
+			sess.afterSnapshot.add( message );
+			return;
 			
-			if( p == null ) { continue; }
-				
-			p.toClient.println( Protocol.encode( Protocol.P_PLAYER_FINISHED , player.username , finished ) );
-			p.toClient.flush();
-		
 		}
 		
-	}
-	
-	protected synchronized int setFinished( Session sess , int pSessID ) {
+		notifySessionPlayers( sess , message );
+		
+	}	
+	protected int setFinished( Session sess , int pSessID ) {
 		
 		sess.finishPositions[ sess.numFinished ] = pSessID;
 		sess.numFinished++;
@@ -1426,7 +2090,7 @@ public class Server {
 				
 	}
 	
-	protected synchronized int countFinished( Session sess ) {
+	protected int countFinished( Session sess ) {
 		
 		int count = 0;
 		for( int i = 0 ; i < sess.finishPositions.length ; i++ ) {
@@ -1441,7 +2105,7 @@ public class Server {
 		
 	}
 	
-	protected synchronized String playerPropertyToString( Session sess , char delimiter , String property , String empty ) {
+	protected String playerPropertyToString( Session sess , char delimiter , String property , String empty ) {
 		
 		String result = "";
 		
@@ -1517,7 +2181,40 @@ public class Server {
 		
 	}
 	
-	public synchronized String generateRelativePlayerPositions( Session sess , char delimiter , int[] boundaries ) {
+	/**
+	 * The positions of the players in the maze (not adjusted to a viewport). -1,-1 for empty slots
+	 */
+	public String playerPositionsToString( Session sess , char delimiter ) {
+		
+		StringBuilder result = new StringBuilder();
+		
+		if( sess == null || sess.players == null ) {
+			return "";
+		}
+		
+		Player p;
+		int numP = sess.players.length;
+		for( int i = 0 ; i < numP ; i++ ) {
+			
+			p = sess.players[ i ];
+			
+			if( i > 0 ) {
+				result.append( delimiter );
+			}
+			
+			if( p == null ) {
+				result.append( "-1,-1" );
+			} else {
+				result.append( p.x ).append( ',' ).append( p.y );
+			}
+			
+		}
+		
+		return result.toString();
+		
+	}
+	
+	public String generateRelativePlayerPositions( Session sess , char delimiter , int[] boundaries ) {
 		
 		String result = "";
 		
@@ -1553,7 +2250,7 @@ public class Server {
 	
 	 
 	
-	public synchronized void notifySessionPlayers( Session sess , String message ) {
+	public void notifySessionPlayers( Session sess , String message ) {
 		 
 		if( sess == null || message == null || sess.players == null ) { return; }
 		
@@ -1566,40 +2263,33 @@ public class Server {
 			if( p == null ) {
 				continue;
 			}
-			p.toClient.println( message );
-			p.toClient.flush();
+			p.send( message );
 			
 		}
 		
 	}
 	
-	public synchronized void notifySessionPlayers( int id , String message ) {
-		
-		// Out of bounds
-		if( sessions == null || id < 0 || id >= sessions.size() ) {
-			return;
-		}
+	public void notifySessionPlayers( int id , final String message ) {
 		
-		Session sess = sessions.get( id );
+		final Session sess;
 		
-		// Make sure the players list isn't null
-		if( sess.players == null || message == null ) {
+		try {
+			sess = sessions.get( id );
+		} catch ( IndexOutOfBoundsException e ) {
+			// Out of bounds (or the session has just ended)
 			return;
 		}
 		
-		Player p;
-		for( int i = 0 ; i < sess.players.length ; i++ ) {
-			
-			p = sess.players[ i ];
+		sess.mailbox.post( new Runnable() {
 			
-			// If the player is null (could occur if the client disconnects mid-game)
-			if( p == null ) {
-				continue;
+			@Override
+			public void run() {
+				
+				notifySessionPlayers( sess , message );
+				
 			}
-			p.toClient.println( message );
-			p.toClient.flush();
 			
-		}
+		});
 		
 	}
 	
@@ -1608,25 +2298,7 @@ public class Server {
 	 */
 	public String generateQueueList() {
 		
-		String result = "";
-		
-		Player player;
-		
-		int size = queue.size();
-		
-		for( int i = 0 ; i < size; i++ ) {
-			
-			player = queue.get( i );
-			
-			result += player.username + "," + player.timestamp; 
-					
-			if( i < size - 1 ) {
-				result += "|";
-			}
-			
-		}
-		
-		return result;
+		return QueueRoster.encode( matchmaker.players() );
 		
 	}
 	
@@ -1634,49 +2306,18 @@ public class Server {
 		return true;
 	}
 	
-	public synchronized int playerQueueID( String username ) {
-		
-
-		if( Database.validateUsername( username ) < 1 ) {
-			return -1;
-		}
-		
-		Player player;
-		for( int i = 0 ; i < queue.size(); i++ ) {
-		
-			player = queue.get( i );
-			
-			if( player.username.equals( username ) ) {
-				
-				return i;
-				
-			}
-			
-		}
-		
-		return -1;
-	}
-	
 	/**
-	 * Get the username of a registered user based on a supplied local port (that they are currently connected on)
+	 * Get the username of a logged in user based on the connection they are connected on
 	 * 
-	 * @param localPort The user's local port on the server
+	 * @param connectionId The id of the user's connection (see Player.connectionId)
 	 * @return The username if any is found. Otherwise null is returned
 	 */
-	public synchronized String getUserFromPort( int localPort ) {
-	 
-		for( Player player : active ) {
-			 
-			if( player.localPort == localPort ) {
-				
-				return player.username;
-				
-			}
-			
-		}
+	public String getUserFromConnection( int connectionId ) {
+		
+		Player player = registry.getByConnection( connectionId );
+		
+		return player == null ? null : player.username;
 		
-		return null;
-			
 	}
 	
 	
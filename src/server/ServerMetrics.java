@@ -0,0 +1,199 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Simple runtime metrics for the server, printed to the console at a fixed interval.
+ * Used to compare the connection modes (thread count, context switches and move latency) and to find clients that don't keep up (outbound queue depth).
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class ServerMetrics {
+
+	// Move latency histogram. Bucket i counts the moves that took less than 2^i microseconds.
+	private static final int BUCKETS = 32;
+	private final AtomicLongArray moveLatency = new AtomicLongArray( BUCKETS );
+
+	private final Server server;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private Timer timer;
+
+	private long lastContextSwitches = -1;
+	private long lastReport = 0;
+
+	public ServerMetrics( Server server ) {
+
+		this.server = server;
+
+	}
+
+	/**
+	 * Start printing a report every few seconds
+	 *
+	 * @param seconds The report interval. 0 or less disables the reports.
+	 */
+	public void start( int seconds ) {
+
+		if( seconds < 1 || timer != null ) { return; }
+
+		lastReport = System.nanoTime();
+		lastContextSwitches = readContextSwitches();
+
+		timer = new Timer( "metrics" , true );
+		timer.scheduleAtFixedRate( new TimerTask() {
+
+			@Override
+			public void run() {
+
+				System.out.println( report() );
+
+			}
+
+		}, seconds * 1000 , seconds * 1000 );
+
+	}
+
+	/**
+	 * Record how long it took to handle a move request
+	 *
+	 * @param nanos The time in nanoseconds
+	 */
+	public void recordMove( long nanos ) {
+
+		long micros = nanos / 1000;
+
+		int bucket = 64 - Long.numberOfLeadingZeros( micros );
+		if( bucket >= BUCKETS ) { bucket = BUCKETS - 1; }
+
+		moveLatency.incrementAndGet( bucket );
+
+	}
+
+	/**
+	 * Build the report for the last interval and reset the move latency histogram
+	 *
+	 * @return The report as a single line
+	 */
+	public String report() {
+
+		long now = System.nanoTime();
+		double seconds = ( now - lastReport ) / 1e9;
+		lastReport = now;
+
+		long switches = readContextSwitches();
+		String switchRate = "n/a";
+		if( switches >= 0 && lastContextSwitches >= 0 && seconds > 0 ) {
+			switchRate = "" + (long) ( ( switches - lastContextSwitches ) / seconds ) + "/s";
+		}
+		lastContextSwitches = switches;
+
+		// Take a copy of the histogram and reset it
+		long[] counts = new long[ BUCKETS ];
+		long moves = 0;
+		for( int i = 0 ; i < BUCKETS ; i++ ) {
+			counts[ i ] = moveLatency.getAndSet( i , 0 );
+			moves += counts[ i ];
+		}
+
+		// The client that is furthest behind
+		int maxDepth = 0;
+		String slowest = "-";
+		for( Player p : server.registry.players() ) {
+			if( p.outbound != null && p.outbound.getDepth() > maxDepth ) {
+				maxDepth = p.outbound.getDepth();
+				slowest = p.username;
+			}
+		}
+
+		ConnectionPool pool = server.db != null ? server.db.pool : null;
+		long mazes = MazePool.generated.get();
+
+		return "[METRICS] players: " + server.registry.size()
+				+ " | platform threads: " + threads.getThreadCount()
+				+ " | context switches: " + switchRate
+				+ " | moves: " + moves
+				+ " | move p50: " + percentile( counts , moves , 0.50 )
+				+ " | move p99: " + percentile( counts , moves , 0.99 )
+				+ " | outbound queue max: " + maxDepth + " (" + slowest + ")"
+				+ " | dropped: " + OutboundQueue.dropped.get()
+				+ " | slow disconnects: " + OutboundQueue.disconnected.get()
+				+ " | pings: " + Heartbeat.pings.get()
+				+ " | heartbeat timeouts: " + Heartbeat.timeouts.get()
+				+ " | db connections: " + ( pool != null ? pool.getInUse() + "/" + pool.getOpen() : "-" )
+				+ " | db borrows: " + ConnectionPool.borrowed.get()
+				+ " | db statements prepared: " + ConnectionPool.prepared.get()
+				+ " | db leaks: " + ConnectionPool.leaks.get()
+				+ " | stats queued: " + ( server.stats != null ? server.stats.getQueued() : 0 )
+				+ " | stats written: " + StatsWriter.written.get()
+				+ " | stats spooled: " + StatsWriter.spooled.get()
+				+ " | stats cache: " + server.statsCache.size() + " (" + Math.round( StatsCache.getHitRatio() * 100 ) + "% hits, " + StatsCache.evictions.get() + " evicted)"
+				+ " | maze pool: " + server.mazePool.getDepths()
+				+ " | mazes generated: " + mazes + " (avg " + ( mazes > 0 ? MazePool.generationNanos.get() / mazes / 1000000 : 0 ) + "ms, max " + MazePool.slowestNanos.get() / 1000000 + "ms)"
+				+ " | maze pool misses: " + MazePool.misses.get() + "/" + MazePool.taken.get();
+
+	}
+
+	/**
+	 * Get the upper bound of the histogram bucket that contains the given percentile
+	 */
+	private static String percentile( long[] counts , long total , double p ) {
+
+		if( total == 0 ) { return "-"; }
+
+		long target = (long) Math.ceil( total * p );
+		long seen = 0;
+
+		for( int i = 0 ; i < counts.length ; i++ ) {
+
+			seen += counts[ i ];
+
+			if( seen >= target ) {
+
+				long micros = 1L << i;
+				return micros >= 1000 ? "<" + ( micros / 1000 ) + "ms" : "<" + micros + "us";
+
+			}
+
+		}
+
+		return "-";
+
+	}
+
+	/**
+	 * Read the total number of context switches on this machine (Linux only)
+	 *
+	 * @return The number of context switches since boot, or -1 if it is not available
+	 */
+	private static long readContextSwitches() {
+
+		try ( BufferedReader reader = new BufferedReader( new FileReader( "/proc/stat" ) ) ) {
+
+			String line;
+			while( ( line = reader.readLine() ) != null ) {
+
+				if( line.startsWith( "ctxt " ) ) {
+					return Long.parseLong( line.substring( 5 ).trim() );
+				}
+
+			}
+
+		} catch ( IOException | NumberFormatException e ) {
+
+			// Not available on this system
+
+		}
+
+		return -1;
+
+	}
+
+}
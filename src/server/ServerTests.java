@@ -2,13 +2,691 @@ package server;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.jupiter.api.Test;
 
+import protocol.Protocol;
+
 class ServerTests {
 
+	// A socket whose output is kept in memory, so a Player can be made without a client
+	private static class MemorySocket extends Socket {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+	}
+
+	private static Player player(String username) {
+		return new Player(new MemorySocket(), username, null, "2018-03-01 12:00:00");
+	}
+
+	// The text messages sent to a player since the last call
+	private static List<String> sent(Player player) {
+		ByteArrayOutputStream out = ((MemorySocket) player.socket).out;
+		String text;
+		synchronized (out) {
+			text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+			out.reset();
+		}
+		List<String> messages = new ArrayList<String>();
+		for (String line : text.split("\n")) {
+			if (!line.isEmpty()) messages.add(line);
+		}
+		return messages;
+	}
+
+// TimingWheel
+	// schedule()
+	@Test
+	void timeoutsRunInTheirOrderAndNotEarly() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test-wheel", 5, 8, 2);
+		try {
+			final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+			final long[] ranAt = new long[3];
+			final CountDownLatch done = new CountDownLatch(3);
+			final long start = System.nanoTime();
+			// 100ms is more than 8 buckets of 5ms away, so it goes round the wheel a few times first
+			final int[] delays = {100, 20, 45};
+			for (int i = 0; i < delays.length; i++) {
+				final int index = i;
+				wheel.schedule(new Runnable() {
+					@Override
+					public void run() {
+						ranAt[index] = System.nanoTime() - start;
+						order.add(delays[index]);
+						done.countDown();
+					}
+				}, delays[i], TimeUnit.MILLISECONDS);
+			}
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList(20, 45, 100), order);
+			for (int i = 0; i < delays.length; i++) {
+				// The precision is one tick
+				assertTrue(ranAt[i] >= TimeUnit.MILLISECONDS.toNanos(delays[i] - 5), "Ran " + ranAt[i] + "ns after it was scheduled, before " + delays[i] + "ms");
+			}
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	// Timeout.cancel()
+	@Test
+	void cancelledTimeoutsNeverRun() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test-wheel", 5, 8, 1);
+		try {
+			final AtomicInteger runs = new AtomicInteger();
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+				}
+			};
+			TimingWheel.Timeout cancelledNow = wheel.schedule(task, 30, TimeUnit.MILLISECONDS);
+			TimingWheel.Timeout cancelledLater = wheel.schedule(task, 60, TimeUnit.MILLISECONDS);
+			cancelledNow.cancel();
+			Thread.sleep(20);
+			// Already placed in its bucket by the wheel thread
+			cancelledLater.cancel();
+			final CountDownLatch marker = new CountDownLatch(1);
+			wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					marker.countDown();
+				}
+			}, 100, TimeUnit.MILLISECONDS);
+			assertTrue(marker.await(5, TimeUnit.SECONDS));
+			assertEquals(0, runs.get());
+			assertTrue(cancelledNow.isCancelled());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	// scheduleAtFixedRate()
+	@Test
+	void repeatingTimeoutsDontOverlap() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test-wheel", 2, 16, 4);
+		try {
+			final AtomicInteger running = new AtomicInteger();
+			final AtomicInteger overlaps = new AtomicInteger();
+			final CountDownLatch runs = new CountDownLatch(5);
+			// Each run takes longer than the period, so the next one is always late
+			TimingWheel.Timeout timeout = wheel.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+					try {
+						Thread.sleep(15);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+					runs.countDown();
+				}
+			}, 0, 5, TimeUnit.MILLISECONDS);
+			assertTrue(runs.await(5, TimeUnit.SECONDS));
+			timeout.cancel();
+			assertEquals(0, overlaps.get());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	@Test
+	void repeatingTimeoutStopsWhenCancelled() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test-wheel", 2, 16, 1);
+		try {
+			final AtomicInteger runs = new AtomicInteger();
+			final CountDownLatch three = new CountDownLatch(3);
+			TimingWheel.Timeout timeout = wheel.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+					three.countDown();
+				}
+			}, 0, 10, TimeUnit.MILLISECONDS);
+			assertTrue(three.await(5, TimeUnit.SECONDS));
+			timeout.cancel();
+			// A run that had already started may still finish
+			Thread.sleep(20);
+			int stopped = runs.get();
+			Thread.sleep(100);
+			assertEquals(stopped, runs.get());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+// Matchmaker
+	// Forms the lobbies without a server
+	private static class TestMatchmaker extends Matchmaker {
+
+		private final List<Player[]> lobbies = Collections.synchronizedList(new ArrayList<Player[]>());
+		private final List<Player> removed = Collections.synchronizedList(new ArrayList<Player>());
+		private final Semaphore formed = new Semaphore(0);
+		private final Semaphore left = new Semaphore(0);
+		private final CountDownLatch forming = new CountDownLatch(1);
+		// When set, the lobby waits for it before it is formed
+		private volatile CountDownLatch hold;
+
+		TestMatchmaker() {
+			super(null, 1);
+		}
+
+		@Override
+		protected Session newSession() {
+			return null;
+		}
+
+		@Override
+		protected void createLobby(Session session, Player[] players) {
+			forming.countDown();
+			try {
+				if (hold != null) hold.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			lobbies.add(players);
+			formed.release();
+		}
+
+		@Override
+		protected void leaveLobby(Player player) {
+			removed.add(player);
+			left.release();
+		}
+
+	}
+
+	// The tickets are given back after the lobby is formed
+	private static void awaitSeated(Player... players) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		for (Player player : players) {
+			while (player.ticket != null && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertNull(player.ticket);
+		}
+	}
+
+	// join() / cancel()
+	@Test
+	void joinAndLeaveTheQueue() {
+		Matchmaker matchmaker = new TestMatchmaker();
+		Player a = player("a");
+		Player b = player("b");
+		assertTrue(matchmaker.join(a));
+		// Already in the queue
+		assertFalse(matchmaker.join(a));
+		assertTrue(matchmaker.join(b));
+		assertEquals(2, matchmaker.size());
+		assertEquals(Arrays.asList(a, b), matchmaker.players());
+		assertTrue(matchmaker.cancel(a));
+		// Not in the queue any more
+		assertFalse(matchmaker.cancel(a));
+		assertNull(a.ticket);
+		assertEquals(1, matchmaker.size());
+		assertEquals(Arrays.asList(b), matchmaker.players());
+		// Back at the end of the queue
+		assertTrue(matchmaker.join(a));
+		assertEquals(Arrays.asList(b, a), matchmaker.players());
+	}
+
+	@Test
+	void lobbiesTakeThePlayersInTheOrderTheyJoined() throws InterruptedException {
+		TestMatchmaker matchmaker = new TestMatchmaker();
+		List<Player> players = new ArrayList<Player>();
+		for (int i = 0; i < Constraints.minPlayersRequired * 2 + 1; i++) {
+			players.add(player("p" + i));
+			assertTrue(matchmaker.join(players.get(i)));
+		}
+		assertTrue(matchmaker.formed.tryAcquire(2, 5, TimeUnit.SECONDS));
+		awaitSeated(players.subList(0, Constraints.minPlayersRequired * 2).toArray(new Player[0]));
+		assertEquals(2, matchmaker.lobbies.size());
+		for (int lobby = 0; lobby < 2; lobby++) {
+			for (int i = 0; i < Constraints.minPlayersRequired; i++) {
+				Player player = players.get(lobby * Constraints.minPlayersRequired + i);
+				assertSame(player, matchmaker.lobbies.get(lobby)[i]);
+				// In a lobby, no longer in the queue
+				assertFalse(matchmaker.cancel(player));
+			}
+		}
+		// The last one is still waiting
+		assertEquals(1, matchmaker.size());
+		assertEquals(Arrays.asList(players.get(players.size() - 1)), matchmaker.players());
+		assertTrue(matchmaker.removed.isEmpty());
+	}
+
+	@Test
+	void leavingWhileTheLobbyIsFormed() throws InterruptedException {
+		TestMatchmaker matchmaker = new TestMatchmaker();
+		matchmaker.hold = new CountDownLatch(1);
+		Player[] players = new Player[Constraints.minPlayersRequired];
+		for (int i = 0; i < players.length; i++) {
+			players[i] = player("p" + i);
+			matchmaker.join(players[i]);
+		}
+		assertTrue(matchmaker.forming.await(5, TimeUnit.SECONDS));
+		// Taken from the queue but not in the lobby yet
+		assertTrue(matchmaker.cancel(players[1]));
+		matchmaker.hold.countDown();
+		assertTrue(matchmaker.left.tryAcquire(5, TimeUnit.SECONDS));
+		awaitSeated(players);
+		// Taken out of the lobby again, the others stay
+		assertEquals(1, matchmaker.lobbies.size());
+		assertEquals(Arrays.asList(players[1]), matchmaker.removed);
+		assertFalse(matchmaker.cancel(players[1]));
+		assertEquals(0, matchmaker.size());
+	}
+
+// QueueRoster
+	private static Player queued(String username) {
+		Player player = player(username);
+		player.queueDelta = true;
+		return player;
+	}
+
+	private static String[] only(Player player) {
+		List<String> messages = sent(player);
+		assertEquals(1, messages.size(), "Messages sent to " + player.username + ": " + messages);
+		return Protocol.decode(messages.get(0));
+	}
+
+	// publish()
+	@Test
+	void clientsWithoutDeltasGetTheWholeRoster() {
+		QueueRoster roster = new QueueRoster(60000);
+		Player a = player("a");
+		Player b = player("b");
+		roster.joined(a);
+		roster.joined(b);
+		roster.publish(Arrays.asList(a, b));
+		String[] expected = {Protocol.P_QUEUE_UPDATE, QueueRoster.encode(Arrays.asList(a, b))};
+		assertArrayEquals(expected, only(a));
+		assertArrayEquals(expected, only(b));
+		// Nothing changed
+		roster.publish(Arrays.asList(a, b));
+		assertTrue(sent(a).isEmpty());
+		assertTrue(sent(b).isEmpty());
+	}
+
+	@Test
+	void deltasAreNumberedAndSnapshotsGoToNewPlayers() {
+		QueueRoster roster = new QueueRoster(60000);
+		Player a = queued("a");
+		Player b = queued("b");
+		roster.joined(a);
+		roster.publish(Arrays.asList(a));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_SNAPSHOT, "1", QueueRoster.encode(Arrays.asList(a))}, only(a));
+
+		roster.joined(b);
+		roster.publish(Arrays.asList(a, b));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_DELTA, "2", b.username + "," + b.timestamp}, only(a));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_SNAPSHOT, "2", QueueRoster.encode(Arrays.asList(a, b))}, only(b));
+
+		roster.left(a);
+		roster.publish(Arrays.asList(b));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_DELTA, "3", "", "a"}, only(b));
+		assertTrue(sent(a).isEmpty());
+	}
+
+	@Test
+	void changesBetweenTwoPassesAreNetted() {
+		QueueRoster roster = new QueueRoster(60000);
+		Player a = queued("a");
+		Player b = queued("b");
+		Player c = queued("c");
+		roster.joined(a);
+		roster.joined(b);
+		roster.publish(Arrays.asList(a, b));
+		sent(a);
+		sent(b);
+
+		// Joined and left before anyone was told, nothing to send and the sequence stays the same
+		roster.joined(c);
+		roster.left(c);
+		roster.publish(Arrays.asList(a, b));
+		assertTrue(sent(a).isEmpty());
+		assertTrue(sent(b).isEmpty());
+		assertTrue(sent(c).isEmpty());
+
+		// Left and joined again, so a moves to the end of the queue
+		roster.left(a);
+		roster.joined(a);
+		roster.publish(Arrays.asList(b, a));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_DELTA, "2", a.username + "," + a.timestamp, "a"}, only(b));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_SNAPSHOT, "2", QueueRoster.encode(Arrays.asList(b, a))}, only(a));
+	}
+
+	@Test
+	void resyncsAndPeriodicSnapshots() {
+		QueueRoster roster = new QueueRoster(60000);
+		Player a = queued("a");
+		Player b = queued("b");
+		Player c = player("c");
+		roster.joined(a);
+		roster.joined(b);
+		roster.joined(c);
+		roster.publish(Arrays.asList(a, b, c));
+		sent(a);
+		sent(b);
+		sent(c);
+
+		// Only the player who asked gets the roster
+		roster.resync(b);
+		roster.publish(Arrays.asList(a, b, c));
+		assertTrue(sent(a).isEmpty());
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_SNAPSHOT, "1", QueueRoster.encode(Arrays.asList(a, b, c))}, only(b));
+		assertTrue(sent(c).isEmpty());
+
+		// Every pass is due a snapshot, so the players using deltas get the roster even when nothing changed
+		QueueRoster periodic = new QueueRoster(0);
+		periodic.joined(a);
+		periodic.joined(c);
+		periodic.publish(Arrays.asList(a, c));
+		sent(a);
+		sent(c);
+		periodic.publish(Arrays.asList(a, c));
+		assertArrayEquals(new String[] {Protocol.P_QUEUE_SNAPSHOT, "1", QueueRoster.encode(Arrays.asList(a, c))}, only(a));
+		assertTrue(sent(c).isEmpty());
+	}
+
+// Leaderboards
+	private static Leaderboards.Totals totals(String username, int played, int won, int finished, int coins, int points) {
+		return new Leaderboards.Totals(username, played, won, finished, coins, points);
+	}
+
+	// load() / getBoard()
+	@Test
+	void boardsAreOrderedWithTiesByUsername() {
+		Leaderboards boards = new Leaderboards(2);
+		assertTrue(boards.getResponse().endsWith("none"));
+		boards.load(Arrays.asList(
+				totals("c", 4, 1, 4, 10, 300),
+				totals("a", 2, 1, 2, 10, 100),
+				totals("b", 3, 3, 3, 20, 200)), 0);
+		// a and c have the same coins, a comes first
+		assertEquals("b,20|a,10", boards.getBoard(Leaderboards.COINS));
+		assertEquals("c,300|b,200", boards.getBoard(Leaderboards.POINTS));
+		assertEquals("b,3|a,1", boards.getBoard(Leaderboards.WINS));
+		assertEquals("b,1.0|a,0.5", boards.getBoard(Leaderboards.RATIO));
+
+		// c moves up, a drops off the board
+		boards.finished("c", 1, 1, 15, 0);
+		assertEquals("c,25|b,20", boards.getBoard(Leaderboards.COINS));
+		assertEquals("c,300|b,200", boards.getBoard(Leaderboards.POINTS));
+		assertEquals("b,3|c,2", boards.getBoard(Leaderboards.WINS));
+		assertArrayEquals(new String[] {Protocol.P_GET_TOPSCORES, "c,25|b,20", "c,300|b,200", "b,3|c,2", "b,1.0|a,0.5"}, Protocol.decode(boards.getResponse()));
+	}
+
 	@Test
-	void test() {
-		fail("Not yet implemented");
+	void gamesBeforeTheLoadAreCountedOnce() {
+		Leaderboards boards = new Leaderboards(3);
+		assertFalse(boards.isLoaded());
+		assertNull(boards.getStats("a"));
+		// Records 0 and 1 are written before the totals are read, record 2 is not
+		boards.played("a", 0);
+		boards.finished("a", 1, 1, 5, 50);
+		boards.finished("b", 2, 0, 3, 30);
+		boards.add("d");
+		boards.load(Arrays.asList(totals("a", 1, 1, 1, 5, 50), totals("b", 0, 0, 0, 0, 0)), 2);
+		assertTrue(boards.isLoaded());
+		assertEquals("1,1,1,1.0,5,50", boards.getStats("a"));
+		assertEquals("0,1,0,0.0,3,30", boards.getStats("b"));
+		// Registered while the totals were read
+		assertEquals("0,0,0,0.0,0,0", boards.getStats("d"));
+
+		// A record the totals already count, told to the boards after they were loaded
+		boards.finished("a", 1, 1, 5, 50);
+		assertEquals("1,1,1,1.0,5,50", boards.getStats("a"));
+		boards.played("b", 3);
+		boards.finished("b", 4, 1, 7, 70);
+		assertEquals("1,2,1,0.5,10,100", boards.getStats("b"));
+		assertEquals("b,100|a,50|d,0", boards.getBoard(Leaderboards.POINTS));
+	}
+
+// StatsWriter
+	// A database that keeps what it is sent in memory: it rejects the score of "bad", and can't be reached a number of times
+	// when it is sent "c"
+	private static class FakeDatabase extends Database {
+
+		private final List<StatsWriter.Record> committed = Collections.synchronizedList(new ArrayList<StatsWriter.Record>());
+		private final AtomicInteger outages;
+
+		FakeDatabase(int outages) {
+			// Nothing listens on port 1, the pool is never used
+			super("localhost:1", "none", "none", "none");
+			this.outages = new AtomicInteger(outages);
+		}
+
+		@Override
+		protected void writeGames(List<StatsWriter.Record> records) throws SQLException {
+			for (StatsWriter.Record record : records) {
+				if (record.username.equals("bad") && record.level != null) {
+					throw new SQLException("value too long", "22001");
+				}
+				if (record.username.equals("c") && outages.getAndDecrement() > 0) {
+					throw new SQLException("connection refused", "08001");
+				}
+			}
+			committed.addAll(records);
+		}
+
+		private int count(String username) {
+			int count = 0;
+			synchronized (committed) {
+				for (StatsWriter.Record record : committed) {
+					if (record.username.equals(username)) count++;
+				}
+			}
+			return count;
+		}
+
+	}
+
+	private static File spoolFile() throws IOException {
+		File spool = File.createTempFile("stats", ".spool");
+		spool.delete();
+		return spool;
+	}
+
+	private static void deleteSpool(File spool) {
+		for (String suffix : new String[] {"", ".replay", ".replay.tmp", ".rejected"}) {
+			new File(spool.getPath() + suffix).delete();
+		}
+	}
+
+	// flush() / replay(): the records written before the database goes away are not spooled with the others
+	@Test
+	void recordsWrittenBeforeAnOutageAreNotWrittenAgain() throws IOException {
+		File spool = spoolFile();
+		// "c" fails in the batch written one record at a time, then again with "d" when the spool is replayed
+		FakeDatabase db = new FakeDatabase(2);
+		StatsWriter writer = new StatsWriter(db, spool, 10, 200, 10, 20, 100);
+		try {
+			writer.finished("a", 1, 10, 100, "level", 25, 1000, 1);
+			writer.finished("bad", 0, 5, 50, "level", 25, 2000, 2);
+			writer.finished("c", 0, 1, 10, "level", 25, 3000, 3);
+			writer.played("d");
+			assertTrue(writer.awaitWritten(5000));
+			assertEquals(4, db.committed.size());
+			for (String username : new String[] {"a", "bad", "c", "d"}) {
+				assertEquals(1, db.count(username), username);
+			}
+			// The stats of "bad" without its score, the score is kept in the rejected file
+			for (StatsWriter.Record record : db.committed) {
+				assertEquals(record.username.equals("bad"), record.level == null && record.finished == 1, record.username);
+			}
+			List<String> rejected = Files.readAllLines(new File(spool.getPath() + ".rejected").toPath(), StandardCharsets.UTF_8);
+			assertEquals(1, rejected.size());
+			assertTrue(rejected.get(0).contains("bad"));
+		} finally {
+			writer.close(1000);
+			deleteSpool(spool);
+		}
+	}
+
+	// A record whose score was rejected keeps only its stats when the database goes away before they are written
+	@Test
+	void rejectedScoreIsNotRejectedAgain() throws IOException {
+		File spool = spoolFile();
+		FakeDatabase db = new FakeDatabase(0) {
+			private final AtomicInteger statsFailures = new AtomicInteger(1);
+
+			@Override
+			protected void writeGames(List<StatsWriter.Record> records) throws SQLException {
+				if (records.size() == 1 && records.get(0).username.equals("bad") && records.get(0).level == null && statsFailures.getAndDecrement() > 0) {
+					throw new SQLException("connection refused", "08001");
+				}
+				super.writeGames(records);
+			}
+		};
+		StatsWriter writer = new StatsWriter(db, spool, 10, 200, 10, 20, 100);
+		try {
+			writer.finished("a", 1, 10, 100, "level", 25, 1000, 1);
+			writer.finished("bad", 0, 5, 50, "level", 25, 2000, 2);
+			writer.played("d");
+			assertTrue(writer.awaitWritten(5000));
+			assertEquals(3, db.committed.size());
+			assertEquals(1, db.count("a"));
+			assertEquals(1, db.count("bad"));
+			assertEquals(1, db.count("d"));
+			List<String> rejected = Files.readAllLines(new File(spool.getPath() + ".rejected").toPath(), StandardCharsets.UTF_8);
+			assertEquals(1, rejected.size());
+		} finally {
+			writer.close(1000);
+			deleteSpool(spool);
+		}
+	}
+
+// RankIndex
+	// The order of a board: higher keys first, then by username
+	private static final Comparator<Object[]> BOARD_ORDER = new Comparator<Object[]>() {
+		@Override
+		public int compare(Object[] x, Object[] y) {
+			long kx = (Long) x[1], ky = (Long) y[1];
+			if (kx != ky) return kx > ky ? -1 : 1;
+			return ((Leaderboards.Totals) x[0]).username.compareTo(((Leaderboards.Totals) y[0]).username);
+		}
+	};
+
+	// Compare the index with a sorted list of the same players and keys
+	private static void assertSameOrder(List<Object[]> expected, RankIndex index, Random random) {
+		Collections.sort(expected, BOARD_ORDER);
+		assertEquals(expected.size(), index.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Leaderboards.Totals t = (Leaderboards.Totals) expected.get(i)[0];
+			assertSame(t, index.select(i));
+			assertEquals(i, index.position(t, (Long) expected.get(i)[1]));
+		}
+		assertNull(index.select(expected.size()));
+		// Keys that are on the board and keys between them
+		for (int n = 0; n < 20; n++) {
+			long key = random.nextInt(25) - 2;
+			int ahead = 0, behind = 0;
+			for (Object[] entry : expected) {
+				if ((Long) entry[1] > key) ahead++;
+				if ((Long) entry[1] < key) behind++;
+			}
+			assertEquals(ahead, index.ahead(key), "Ahead of " + key);
+			assertEquals(behind, index.behind(key), "Behind " + key);
+		}
+	}
+
+	// build() / insert() / remove() / select() / position() / ahead() / behind()
+	@Test
+	void rankIndexMatchesASortedList() {
+		Random random = new Random(18);
+		List<Object[]> expected = new ArrayList<Object[]>();
+		// Few different keys, so most players share theirs with others
+		for (int i = 0; i < 300; i++) {
+			expected.add(new Object[] {totals(String.format("p%03d", i), 0, 0, 0, 0, 0), (long) random.nextInt(20)});
+		}
+		Collections.sort(expected, BOARD_ORDER);
+		Leaderboards.Totals[] players = new Leaderboards.Totals[expected.size()];
+		long[] keys = new long[expected.size()];
+		for (int i = 0; i < players.length; i++) {
+			players[i] = (Leaderboards.Totals) expected.get(i)[0];
+			keys[i] = (Long) expected.get(i)[1];
+		}
+		RankIndex index = new RankIndex();
+		index.build(players, keys, players.length);
+		assertSameOrder(expected, index, random);
+
+		for (int step = 0; step < 200; step++) {
+			int i = random.nextInt(expected.size());
+			Object[] entry = expected.get(i);
+			index.remove((Leaderboards.Totals) entry[0], (Long) entry[1]);
+			if (step % 3 == 0) {
+				// Gone for good
+				expected.remove(i);
+			} else {
+				// Back with a new key
+				entry[1] = (long) random.nextInt(20);
+				index.insert((Leaderboards.Totals) entry[0], (Long) entry[1]);
+			}
+			if (step % 10 == 0) {
+				assertSameOrder(expected, index, random);
+			}
+		}
+		assertSameOrder(expected, index, random);
+
+		index.build(new Leaderboards.Totals[0], new long[0], 0);
+		assertEquals(0, index.size());
+		assertNull(index.select(0));
+		assertEquals(0, index.ahead(0));
+	}
+
+	// Leaderboards.getRanks()
+	@Test
+	void playersWithTheSameValueShareARank() {
+		Leaderboards boards = new Leaderboards(10);
+		boards.load(Arrays.asList(
+				totals("a", 2, 1, 2, 10, 100),
+				totals("b", 2, 1, 2, 10, 50),
+				totals("c", 1, 1, 1, 5, 100),
+				totals("d", 1, 0, 1, 0, 0)), 0);
+		// rank,percentile for coins, points, wins and ratio, then the number of players
+		// a shares the top of the coins with b and of the points with c, and the second best ratio with b
+		assertEquals("1,75.0,1,75.0,1,62.5,2,50.0,4", boards.getRanks("a"));
+		assertEquals("1,75.0,3,37.5,1,62.5,2,50.0,4", boards.getRanks("b"));
+		assertEquals("4,12.5,4,12.5,4,12.5,4,12.5,4", boards.getRanks("d"));
+		assertNull(boards.getRanks("nobody"));
+
+		// d overtakes everyone on the coins, and now everyone has one win and a shares its ratio with b and d
+		boards.finished("d", 1, 1, 11, 0);
+		assertEquals("1,87.5,4,12.5,1,50.0,2,37.5,4", boards.getRanks("d"));
+		assertEquals("2,50.0,1,75.0,1,50.0,2,37.5,4", boards.getRanks("a"));
 	}
 
 }
@@ -1,7 +1,8 @@
 package server;
 
-import java.util.Timer;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
 
 import server.mazegeneration.*;
 
@@ -10,6 +11,9 @@ public class Session {
 	private Server server;
 	
 	protected Player[] players;
+	
+	// Every change to the session's state is a command in this mailbox (see Server)
+	protected final Mailbox mailbox;
  
 	protected SessionTimer readyCountdown, gameFinishCountdown, gameStartCountdown, returnCountdown;
 	protected boolean readyCountdownStarted , gameFinishCountdownStarted , gameStartCountdownStarted, returnCountdownStarted;
@@ -29,9 +33,30 @@ public class Session {
 	
 	protected ArrayList<String[]> traps;
 	
+	// What changed in the maze since the last move update. Only needed by players that receive move deltas.
+	protected ArrayList<int[]> coinsTaken = new ArrayList<int[]>();
+	protected ArrayList<String[]> trapsAdded = new ArrayList<String[]>();
+	protected ArrayList<String[]> trapsRemoved = new ArrayList<String[]>();
+	
+	// The direction used to queue a fire (trap) request
+	protected static final int FIRE = -1;
+	
+	// Move and fire requests waiting for the next tick (see Server.tick)
+	protected final ConcurrentLinkedQueue<Input> inputs = new ConcurrentLinkedQueue<Input>();
+	protected ScheduledFuture<?> tick;
+	
+	// State of the tick in progress: the combined update is sent once all queued inputs have been applied
+	protected boolean ticking = false;
+	protected boolean snapshotPending = false;
+	protected boolean[] movedThisTick = new boolean[ 4 ];
+	protected String lastMover;
+	protected String snapshotMessage = " ";
+	protected ArrayList<String> afterSnapshot = new ArrayList<String>();
+	
 	public Session( Server server ) {
 		
 		this.server = server;
+		mailbox = new Mailbox( server.sessionWorkers , Constraints.mailboxBatch );
 		
 		// All values are null by default
 		players = new Player[ 4 ];
@@ -42,7 +67,8 @@ public class Session {
 		readyCountdown = new SessionTimer( server , this , Constraints.lobbyCountdownTime , 0 );
 		 
 		levelTheme = server.getRandomTheme();
-		maze = new MazeGenerator( server.randInt(25, 50) , false , true , false , true , true , true , true );
+		// Pre-generated (see MazePool), only generated here if none are ready
+		maze = server.mazePool.take();
 		quadSize = maze.getQuadSize(); // Make sure that we get the right quad size after the maze is generated (due to possible incrementation of even numbers)
 		timeLimit = quadSize * Constraints.maxTimePerCell;
 		maxCoins = maze.countCoins();
@@ -97,4 +123,23 @@ public class Session {
 		
 	}
 	
+	/**
+	 * A move or fire request queued for the next tick
+	 */
+	protected static class Input {
+		
+		protected final Player player;
+		protected final int direction;
+		protected final long received;
+		
+		protected Input( Player player , int direction , long received ) {
+			
+			this.player = player;
+			this.direction = direction;
+			this.received = received;
+			
+		}
+		
+	}
+
 }
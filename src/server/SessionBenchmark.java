@@ -0,0 +1,244 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the two ways of guarding the game state of many sessions:
+ * <ul>
+ * <li>monitor - every move is applied by the thread that received it, holding one lock shared by all sessions (how the server used to work)</li>
+ * <li>mailbox - every move is posted to its session's Mailbox and applied by the session workers, without locks</li>
+ * </ul>
+ * The sessions are simulated (a random maze, 4 players and their coins), so nothing here needs a database or sockets.
+ * Each design is run twice: flat out (the most messages per second it can apply) and at a steady rate like real players
+ * (where the latency from sending a move to it being applied is what matters).
+ *
+ * Arguments (all optional): sessions , sender threads , moves per sender (flat out) , session workers , steady rate (moves per second)
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class SessionBenchmark {
+
+	private static final int MAZE_SIZE = 51;
+
+	public static void main( String[] args ) throws InterruptedException {
+
+		int sessions = args.length > 0 ? Integer.parseInt( args[0] ) : 500;
+		int senders = args.length > 1 ? Integer.parseInt( args[1] ) : 16;
+		int moves = args.length > 2 ? Integer.parseInt( args[2] ) : 200000;
+		int workers = args.length > 3 ? Integer.parseInt( args[3] ) : Runtime.getRuntime().availableProcessors();
+		// 4 players per session, 10 moves a second each
+		int rate = args.length > 4 ? Integer.parseInt( args[4] ) : sessions * 4 * 10;
+
+		System.out.println( "Sessions = " + sessions + ", senders = " + senders + ", moves per sender = " + moves + ", session workers = " + workers + ", steady rate = " + rate + "/s" );
+
+		// Warm up both designs first, then measure
+		run( false , sessions , senders , moves / 10 , workers , 0 , false );
+		run( true , sessions , senders , moves / 10 , workers , 0 , false );
+
+		System.out.println( "Flat out:" );
+		run( false , sessions , senders , moves , workers , 0 , true );
+		run( true , sessions , senders , moves , workers , 0 , true );
+
+		// 5 seconds at the steady rate
+		int paced = Math.max( 1 , rate * 5 / senders );
+
+		System.out.println( "Steady rate:" );
+		run( false , sessions , senders , paced , workers , rate , true );
+		run( true , sessions , senders , paced , workers , rate , true );
+
+	}
+
+	/**
+	 * @param rate The total moves per second of all the senders, 0 to send as fast as possible
+	 */
+	private static void run( final boolean mailboxes , int sessionCount , int senderCount , final int moves , int workerCount , int rate , boolean print ) throws InterruptedException {
+
+		final ExecutorService workers = Executors.newFixedThreadPool( workerCount );
+		final Object monitor = new Object();
+
+		final FakeSession[] sessions = new FakeSession[ sessionCount ];
+
+		for( int i = 0 ; i < sessionCount ; i++ ) {
+			sessions[ i ] = new FakeSession( i , new Mailbox( workers , Constraints.mailboxBatch ) );
+		}
+
+		final int total = senderCount * moves;
+		final long[] latencies = new long[ total ];
+		final AtomicInteger recorded = new AtomicInteger();
+		final CountDownLatch applied = new CountDownLatch( total );
+
+		// The time between two moves of one sender
+		final long interval = rate > 0 ? 1000000000L * senderCount / rate : 0;
+
+		Thread[] senders = new Thread[ senderCount ];
+
+		for( int s = 0 ; s < senderCount ; s++ ) {
+
+			final int seed = s;
+
+			senders[ s ] = new Thread( new Runnable() {
+
+				@Override
+				public void run() {
+
+					Random random = new Random( seed );
+					long next = System.nanoTime();
+
+					for( int i = 0 ; i < moves ; i++ ) {
+
+						if( interval > 0 ) {
+
+							next += interval;
+							long wait;
+
+							while( ( wait = next - System.nanoTime() ) > 0 ) {
+								LockSupport.parkNanos( wait );
+							}
+
+						}
+
+						final FakeSession session = sessions[ random.nextInt( sessions.length ) ];
+						final int player = random.nextInt( 4 );
+						final int direction = random.nextInt( 4 );
+						final long sent = System.nanoTime();
+
+						if( mailboxes ) {
+
+							session.mailbox.post( new Runnable() {
+
+								@Override
+								public void run() {
+
+									session.move( player , direction );
+									latencies[ recorded.getAndIncrement() ] = System.nanoTime() - sent;
+									applied.countDown();
+
+								}
+
+							});
+
+						} else {
+
+							synchronized( monitor ) {
+
+								session.move( player , direction );
+
+							}
+
+							latencies[ recorded.getAndIncrement() ] = System.nanoTime() - sent;
+							applied.countDown();
+
+						}
+
+					}
+
+				}
+
+			});
+
+		}
+
+		long start = System.nanoTime();
+
+		for( Thread t : senders ) { t.start(); }
+		applied.await();
+
+		long elapsed = System.nanoTime() - start;
+
+		for( Thread t : senders ) { t.join(); }
+		workers.shutdown();
+
+		if( !print ) { return; }
+
+		Arrays.sort( latencies );
+
+		System.out.println( ( mailboxes ? "Mailbox" : "Monitor" ) + ": "
+			+ ( total * 1000000000L / elapsed ) + " msg/s, latency p50 = " + micros( latencies , 0.5 )
+			+ "us, p99 = " + micros( latencies , 0.99 ) + "us, p99.9 = " + micros( latencies , 0.999 )
+			+ "us, max = " + ( latencies[ total - 1 ] / 1000 ) + "us" );
+
+	}
+
+	private static long micros( long[] sorted , double percentile ) {
+
+		return sorted[ Math.min( sorted.length - 1 , (int) ( sorted.length * percentile ) ) ] / 1000;
+
+	}
+
+	/**
+	 * Just enough of a session to make a move cost about what it does on the server:
+	 * a wall check, a coin pick up and the update message
+	 */
+	private static class FakeSession {
+
+		private final Mailbox mailbox;
+		private final boolean[][] walls = new boolean[ MAZE_SIZE ][ MAZE_SIZE ];
+		private final boolean[][] coins = new boolean[ MAZE_SIZE ][ MAZE_SIZE ];
+		private final int[][] positions = new int[ 4 ][ 2 ];
+		private final int[] collected = new int[ 4 ];
+
+		private String lastUpdate;
+
+		private FakeSession( int seed , Mailbox mailbox ) {
+
+			this.mailbox = mailbox;
+
+			Random random = new Random( seed );
+
+			for( int y = 0 ; y < MAZE_SIZE ; y++ ) {
+				for( int x = 0 ; x < MAZE_SIZE ; x++ ) {
+
+					walls[ y ][ x ] = random.nextInt( 4 ) == 0;
+					coins[ y ][ x ] = !walls[ y ][ x ] && random.nextInt( 8 ) == 0;
+
+				}
+			}
+
+			// Everyone starts in the middle
+			walls[ MAZE_SIZE / 2 ][ MAZE_SIZE / 2 ] = false;
+
+			for( int i = 0 ; i < 4 ; i++ ) {
+				positions[ i ][ 0 ] = positions[ i ][ 1 ] = MAZE_SIZE / 2;
+			}
+
+		}
+
+		private void move( int player , int direction ) {
+
+			int x = positions[ player ][ 0 ] + ( direction == 1 ? 1 : direction == 3 ? -1 : 0 );
+			int y = positions[ player ][ 1 ] + ( direction == 2 ? 1 : direction == 0 ? -1 : 0 );
+
+			if( x >= 0 && y >= 0 && x < MAZE_SIZE && y < MAZE_SIZE && !walls[ y ][ x ] ) {
+
+				positions[ player ][ 0 ] = x;
+				positions[ player ][ 1 ] = y;
+
+				if( coins[ y ][ x ] ) {
+
+					coins[ y ][ x ] = false;
+					collected[ player ]++;
+
+				}
+
+			}
+
+			StringBuilder update = new StringBuilder();
+
+			for( int i = 0 ; i < 4 ; i++ ) {
+				update.append( positions[ i ][ 0 ] ).append( ',' ).append( positions[ i ][ 1 ] ).append( ',' ).append( collected[ i ] ).append( '|' );
+			}
+
+			lastUpdate = update.toString();
+
+		}
+
+	}
+
+}
@@ -1,15 +1,14 @@
 package server;
 
-import java.util.TimerTask;
-import java.util.Timer;
-
+import java.util.concurrent.TimeUnit;
 
 import protocol.Protocol;
  
 public class SessionTimer {
 	
-	protected Timer t;
-	protected TimerTask task;
+	// The repeating task on the server's timing wheel (null until started)
+	protected TimingWheel.Timeout task;
+	protected volatile boolean stopped = false;
 	protected int countdown;
 	protected Server server;
 	protected Session session;
@@ -19,7 +18,6 @@ public class SessionTimer {
 	public SessionTimer( Server server , Session session , int countdown , int type ) {
 		
 		this.countdown = countdown;
-		t = new Timer();
 		this.server = server;
 		this.session = session;
 		this.type = type;
@@ -42,7 +40,7 @@ public class SessionTimer {
 			session.playersCanMove = false;
 			server.redirectSessionPlayers( session );
 			
-			t.cancel();
+			stop();
 			return;
 			
 		}
@@ -78,7 +76,7 @@ public class SessionTimer {
 			message = Protocol.encode( Protocol.P_GAME_START_COUNTDOWN , "true" );
 			server.notifySessionPlayers( session , message );
 			
-			t.cancel();
+			stop();
 			return;
 			
 		}
@@ -108,7 +106,7 @@ public class SessionTimer {
 			session.returnCountdown.start();	
 			session.returnCountdownStarted = true;
 			
-			t.cancel();
+			stop();
 			return;
 			
 		}
@@ -134,7 +132,7 @@ public class SessionTimer {
 			
 			server.destroyLobby( session , "The game session has ended." );
 			
-			t.cancel();
+			stop();
 			return;
 			
 		}
@@ -150,15 +148,17 @@ public class SessionTimer {
 	
 	 
 	
-	protected void start() {
+	protected synchronized void start() {
 		
-		if( task != null ) { return; }
+		if( task != null || stopped ) { return; }
 		
-		this.task = new TimerTask() {
+		final Runnable step = new Runnable() {
 			
 			@Override
 			public void run() {
 				
+				// Stopped after this step was posted
+				if( stopped ) { return; }
 				
 				if( type == 0 ) {				// Lobby timer
 					
@@ -178,21 +178,31 @@ public class SessionTimer {
 					
 				}
 				
-				 
-				
 			}
 			
 		};
 		
-		t.scheduleAtFixedRate( task , 0, 1000);
+		// Countdowns change the session's state, so each step runs in the session's mailbox (see Server)
+		this.task = server.timers.scheduleAtFixedRate( new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				session.mailbox.post( step );
+				
+			}
+			
+		}, 0 , 1000 , TimeUnit.MILLISECONDS );
 		
 	}
 	
-	protected void stop() {
+	protected synchronized void stop() {
+		
+		stopped = true;
 		
-		if( t == null ) { return; }
+		if( task == null ) { return; }
 		
-		t.cancel();
+		task.cancel();
 		
 	}
 	
@@ -0,0 +1,168 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.Protocol;
+
+/**
+ * The players' encoded stats (the P_GET_STATS payload without the ranks), so opening the main menu doesn't ask the database
+ * every time.
+ *
+ * The cache holds the Constraints.statsCacheSize players that asked for their stats most recently, each for up to
+ * Constraints.statsCacheTtl. An entry is filled from the database on a miss, and replaced by the server whenever the player's
+ * game starts or finishes (the database is behind the game until the StatsWriter has written the game, the server is not),
+ * so an entry is never older than the player's last game.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class StatsCache {
+
+	// Totals (see ServerMetrics)
+	protected static final AtomicLong hits = new AtomicLong();
+	protected static final AtomicLong misses = new AtomicLong();
+	protected static final AtomicLong evictions = new AtomicLong();
+
+	private final long ttl;
+	private final LinkedHashMap<String, Cached> entries;
+
+	/**
+	 * @param size The most players kept (the ones that asked longest ago are dropped first)
+	 * @param ttlMillis How long an entry is used before it is read from the database again
+	 */
+	public StatsCache( final int size , int ttlMillis ) {
+
+		this.ttl = TimeUnit.MILLISECONDS.toNanos( ttlMillis );
+
+		// In the order of the last access
+		entries = new LinkedHashMap<String, Cached>( 16 , 0.75f , true ) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, Cached> eldest ) {
+
+				if( size() <= size ) { return false; }
+
+				evictions.incrementAndGet();
+				return true;
+
+			}
+
+		};
+
+	}
+
+	/**
+	 * @param username The player's username
+	 * @return The player's P_GET_STATS payload ([channel][stats][last game]), or null if it has to be read from the database
+	 */
+	public synchronized String get( String username ) {
+
+		Cached entry = entries.get( username );
+
+		if( entry != null && System.nanoTime() - entry.since < ttl ) {
+
+			hits.incrementAndGet();
+			return entry.payload;
+
+		}
+
+		if( entry != null ) {
+			entries.remove( username );
+		}
+
+		misses.incrementAndGet();
+		return null;
+
+	}
+
+	/**
+	 * Keep the stats read from the database after a miss. A newer entry put by the server in the meantime (the player's game
+	 * finished while the database was being read) is kept instead.
+	 *
+	 * @return The player's P_GET_STATS payload
+	 */
+	public synchronized String fill( String username , String stats , String last ) {
+
+		Cached entry = entries.get( username );
+
+		if( entry == null ) {
+
+			entry = new Cached( stats , last );
+			entries.put( username , entry );
+
+		}
+
+		return entry.payload;
+
+	}
+
+	/**
+	 * Replace a player's stats and last game (their game has finished)
+	 */
+	public synchronized void put( String username , String stats , String last ) {
+
+		entries.put( username , new Cached( stats , last ) );
+
+	}
+
+	/**
+	 * Replace a player's stats and keep their last game (their game has started). Nothing happens if they are not cached.
+	 */
+	public synchronized void update( String username , String stats ) {
+
+		Cached entry = entries.get( username );
+
+		if( entry != null ) {
+			entries.put( username , new Cached( stats , entry.last ) );
+		}
+
+	}
+
+	/**
+	 * Forget a player's stats (they changed, but the new stats are not known)
+	 */
+	public synchronized void invalidate( String username ) {
+
+		entries.remove( username );
+
+	}
+
+	public synchronized int size() {
+
+		return entries.size();
+
+	}
+
+	/**
+	 * @return The share of requests answered from the cache since the server started (0 to 1)
+	 */
+	public static double getHitRatio() {
+
+		long h = hits.get();
+		long total = h + misses.get();
+
+		return total == 0 ? 0 : (double) h / total;
+
+	}
+
+	private static class Cached {
+
+		private final String last;
+		private final String payload;
+		private final long since = System.nanoTime();
+
+		private Cached( String stats , String last ) {
+
+			this.last = last;
+			this.payload = Protocol.encode( Protocol.P_GET_STATS , stats , last );
+
+		}
+
+	}
+
+}
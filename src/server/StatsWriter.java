@@ -0,0 +1,765 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the players' game stats and scores to the database behind the game's back.
+ *
+ * The sessions only queue a record when a game starts or a player finishes (that never waits for the database). One writer
+ * thread sends the records in batches of Constraints.writeBehindBatch, or whatever has arrived after
+ * Constraints.writeBehindInterval, in one transaction per batch.
+ *
+ * If the database can't be reached, the batch is appended to a spool file (and synced to the disk) so it survives the outage and
+ * a restart of the server, and the writer tries again after a back off that doubles up to Constraints.writeBehindRetryMax.
+ * The spool is sent before anything else once the database answers again. When the server shuts down, the records still
+ * queued are written (or spooled) before the database is closed. A record the database rejects (bad data, trying again would
+ * fail the same way) is kept in the spool's .rejected file, and the player's stats are still written without the score.
+ *
+ * The stats in the database are behind the game by up to the flush interval. Each record gets a sequence number when it is
+ * queued, so whatever keeps its own totals on top of the database (see Leaderboards) can tell which games a read of the
+ * database already counts (see readWritten).
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class StatsWriter {
+
+	// Totals (see ServerMetrics)
+	protected static final AtomicLong written = new AtomicLong();
+	protected static final AtomicLong spooled = new AtomicLong();
+	protected static final AtomicLong failures = new AtomicLong();
+
+	private final Database db;
+	private final LinkedBlockingQueue<Record> queue;
+
+	// Records that could not be written are appended to the spool. The spool is renamed to the replay file before it is sent,
+	// so new records can be spooled while it is being sent (and whatever is left is kept if the database goes away again)
+	private final File spool;
+	private final File replay;
+	// The records the database rejected (written to it without their score, if it was the score)
+	private final File rejected;
+	private final Object spoolLock = new Object();
+
+	private final int batchSize;
+	private final long interval;
+	private final long retryBase;
+	private final long retryMax;
+
+	// The sequence number of the next record, and how many records are neither written nor spooled yet (queued or being written)
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicInteger unwritten = new AtomicInteger();
+	// Held while records are written to the database
+	private final Object writeLock = new Object();
+
+	private final Thread thread;
+	private volatile boolean closing = false;
+
+	/**
+	 * Create and start the writer thread. Records spooled by an earlier run are sent first.
+	 *
+	 * @param db The database
+	 * @param spool The spool file
+	 * @param batchSize The most records written in one batch
+	 * @param intervalMillis How long the first record of a batch waits for others to join it
+	 * @param retryBaseMillis How long the writer waits after the first failure
+	 * @param retryMaxMillis The longest the writer waits between two attempts
+	 * @param queueLimit How many records can wait in memory (the others are spooled straight away)
+	 */
+	public StatsWriter( Database db , File spool , int batchSize , int intervalMillis , int retryBaseMillis , int retryMaxMillis , int queueLimit ) {
+
+		this.db = db;
+		this.spool = spool;
+		this.replay = new File( spool.getPath() + ".replay" );
+		this.rejected = new File( spool.getPath() + ".rejected" );
+		this.batchSize = Math.max( 1 , batchSize );
+		this.interval = intervalMillis;
+		this.retryBase = Math.max( 1 , retryBaseMillis );
+		this.retryMax = Math.max( retryBase , retryMaxMillis );
+
+		queue = new LinkedBlockingQueue<Record>( Math.max( 1 , queueLimit ) );
+
+		thread = new Thread( new Runnable() {
+
+			@Override
+			public void run() {
+
+				write();
+
+			}
+
+		}, "stats-writer" );
+
+		thread.setDaemon( true );
+		thread.start();
+
+	}
+
+	/**
+	 * A player has started a game
+	 *
+	 * @return The record's sequence number
+	 */
+	public long played( String username ) {
+
+		return add( new Record( username , 1 , 0 , 0 , 0 , 0 , null , 0 , 0 , 0 , System.currentTimeMillis() ) );
+
+	}
+
+	/**
+	 * A player has finished a game (their stats are updated and the score is recorded)
+	 *
+	 * @param username The player's username
+	 * @param won 1 if the player won
+	 * @param coins The coins collected
+	 * @param points The score
+	 * @param level The maze's theme
+	 * @param mazeSize The maze's size
+	 * @param completionTime The player's time in milliseconds
+	 * @param finishPosition The player's position
+	 * @return The record's sequence number
+	 */
+	public long finished( String username , int won , int coins , int points , String level , int mazeSize , int completionTime , int finishPosition ) {
+
+		return add( new Record( username , 0 , won , 1 , coins , points , level , mazeSize , completionTime , finishPosition , System.currentTimeMillis() ) );
+
+	}
+
+	/**
+	 * @return The number of records waiting in memory
+	 */
+	public int getQueued() {
+
+		return queue.size();
+
+	}
+
+	/**
+	 * Read from the database at a moment when every record queued so far (and every spooled record, from this run or an earlier
+	 * one) has been written. Nothing is written while the snapshot reads, so what it reads counts the records with a sequence
+	 * number lower than the one it is given and none of the others.
+	 *
+	 * @param snapshot What reads the database
+	 * @return false if there are records waiting to be written (the snapshot was not read, try again later)
+	 */
+	public boolean readWritten( Snapshot snapshot ) {
+
+		synchronized( writeLock ) {
+
+			// The sequence number first: a record numbered before it is already counted as unwritten
+			long first = sequence.get();
+
+			if( unwritten.get() > 0 || hasSpool() ) { return false; }
+
+			snapshot.read( first );
+			return true;
+
+		}
+
+	}
+
+	/**
+	 * Wait for the records queued so far and the spooled records to be written (at startup, before the totals are read)
+	 *
+	 * @param timeoutMillis The longest to wait
+	 * @return false if there are still records waiting to be written
+	 */
+	public boolean awaitWritten( long timeoutMillis ) {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+
+		while( unwritten.get() > 0 || hasSpool() ) {
+
+			if( System.nanoTime() >= deadline ) { return false; }
+
+			try {
+				Thread.sleep( 10 );
+			} catch ( InterruptedException e ) {
+
+				Thread.currentThread().interrupt();
+				return false;
+
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Write the records still queued and stop the writer thread (the server is shutting down)
+	 *
+	 * @param timeoutMillis How long to wait for the writer. Whatever it hasn't written by then is spooled
+	 */
+	public void close( long timeoutMillis ) {
+
+		closing = true;
+
+		try {
+			thread.join( timeoutMillis );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<Record> rest = new ArrayList<Record>();
+		queue.drainTo( rest );
+
+		if( !rest.isEmpty() ) {
+
+			spool( rest );
+			unwritten.addAndGet( -rest.size() );
+
+		}
+
+	}
+
+	private long add( Record record ) {
+
+		unwritten.incrementAndGet();
+		long number = sequence.getAndIncrement();
+
+		// Never wait for the writer - if it is that far behind the database is probably down anyway
+		if( closing || !queue.offer( record ) ) {
+
+			spool( Collections.singletonList( record ) );
+			unwritten.decrementAndGet();
+
+		}
+
+		return number;
+
+	}
+
+	/**
+	 * @return true if there are spooled records
+	 */
+	private boolean hasSpool() {
+
+		synchronized( spoolLock ) {
+
+			return spool.exists() || replay.exists();
+
+		}
+
+	}
+
+	/**
+	 * The writer thread
+	 */
+	private void write() {
+
+		List<Record> batch = new ArrayList<Record>( batchSize );
+		long backoff = retryBase;
+		// The database failed while shutting down, the rest is spooled without trying again
+		boolean down = false;
+
+		while( true ) {
+
+			boolean stop = closing;
+
+			try {
+
+				collect( batch , stop );
+
+			} catch ( InterruptedException e ) {
+
+				stop = true;
+
+			}
+
+			// Older records first (when shutting down, the spool can wait for the next start)
+			boolean ok = stop || replay();
+
+			if( !batch.isEmpty() ) {
+
+				int count = batch.size();
+
+				// Only the records flush() could not write are left in the batch
+				if( down || !flush( batch ) ) {
+
+					// Spool everything waiting too, so the queue doesn't fill up (and the sessions have to spool) during an outage
+					count += queue.drainTo( batch );
+					spool( batch );
+					ok = false;
+					down = stop;
+
+				}
+
+				unwritten.addAndGet( -count );
+				batch.clear();
+
+			}
+
+			if( stop && queue.isEmpty() ) { return; }
+
+			if( ok ) {
+
+				backoff = retryBase;
+
+			} else if( !closing ) {
+
+				// Give the database time to come back (records keep queuing in the meantime)
+				try {
+					Thread.sleep( backoff );
+				} catch ( InterruptedException e ) {
+					closing = true;
+				}
+
+				backoff = Math.min( retryMax , backoff * 2 );
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Wait for the first record, then for up to the interval for the batch to fill
+	 */
+	private void collect( List<Record> batch , boolean stop ) throws InterruptedException {
+
+		if( stop ) {
+
+			queue.drainTo( batch , batchSize );
+			return;
+
+		}
+
+		Record first = queue.poll( interval , TimeUnit.MILLISECONDS );
+
+		if( first == null ) { return; }
+
+		batch.add( first );
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( interval );
+
+		while( batch.size() < batchSize && !closing ) {
+
+			queue.drainTo( batch , batchSize - batch.size() );
+
+			long wait = deadline - System.nanoTime();
+
+			if( batch.size() >= batchSize || wait <= 0 ) { break; }
+
+			Record next = queue.poll( wait , TimeUnit.NANOSECONDS );
+
+			if( next == null ) { break; }
+
+			batch.add( next );
+
+		}
+
+	}
+
+	/**
+	 * Write a batch. The records that are written (or given up on) are removed from it, so if the database goes away half way
+	 * through, only the records left in the batch are tried again and none is written twice.
+	 *
+	 * @return false if the database could not be reached (the records left in the batch should be tried again later)
+	 */
+	private boolean flush( List<Record> batch ) {
+
+		try {
+
+			writeGames( batch );
+			written.addAndGet( batch.size() );
+			batch.clear();
+			return true;
+
+		} catch ( SQLException e ) {
+
+			failures.incrementAndGet();
+
+			if( !isBadData( e ) ) {
+
+				System.out.println( "[STATS] Could not write " + batch.size() + " records: " + e.getMessage() );
+				return false;
+
+			}
+
+		}
+
+		// Something in the batch can never be written - write the records one at a time (each in its own transaction)
+		// and give up on the bad ones
+		ListIterator<Record> records = batch.listIterator();
+
+		while( records.hasNext() ) {
+
+			Record record = records.next();
+
+			try {
+
+				writeGames( Collections.singletonList( record ) );
+				written.incrementAndGet();
+				records.remove();
+				continue;
+
+			} catch ( SQLException e ) {
+
+				if( !isBadData( e ) ) { return false; }
+
+				reject( record , e );
+
+			}
+
+			if( record.level != null ) {
+
+				// Most likely the score was rejected, the player's stats are still written without it
+				Record stats = record.withoutScore();
+
+				try {
+
+					writeGames( Collections.singletonList( stats ) );
+
+				} catch ( SQLException e ) {
+
+					if( !isBadData( e ) ) {
+
+						// The record is already kept in the rejected file, only its stats are left to write
+						records.set( stats );
+						return false;
+
+					}
+
+				}
+
+			}
+
+			records.remove();
+
+		}
+
+		return true;
+
+	}
+
+	private void writeGames( List<Record> records ) throws SQLException {
+
+		synchronized( writeLock ) {
+
+			db.writeGames( records );
+
+		}
+
+	}
+
+	/**
+	 * @return true if the database rejected the data itself (trying again would fail the same way)
+	 */
+	private static boolean isBadData( SQLException e ) {
+
+		String state = e.getSQLState();
+
+		// Class 22: data exception, class 23: integrity constraint violation
+		return state != null && ( state.startsWith( "22" ) || state.startsWith( "23" ) );
+
+	}
+
+	/**
+	 * Append records to the spool file
+	 */
+	private void spool( List<Record> records ) {
+
+		synchronized( spoolLock ) {
+
+			try {
+
+				append( spool , records );
+				spooled.addAndGet( records.size() );
+
+			} catch ( IOException e ) {
+
+				System.out.println( "[STATS] Could not spool " + records.size() + " records, they are lost: " + e.getMessage() );
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Keep a record the database rejected in the rejected file (in the spool's format, so it can be fixed and put back in the spool)
+	 */
+	private void reject( Record record , SQLException e ) {
+
+		System.out.println( "[STATS] The database rejected a record (" + record.toLine() + "), it is kept in " + rejected + ": " + e.getMessage() );
+
+		synchronized( spoolLock ) {
+
+			try {
+
+				append( rejected , Collections.singletonList( record ) );
+
+			} catch ( IOException f ) {
+
+				System.out.println( "[STATS] Could not keep the rejected record, it is lost: " + f.getMessage() );
+
+			}
+
+		}
+
+	}
+
+	private static void append( File file , List<Record> records ) throws IOException {
+
+		FileOutputStream out = null;
+
+		try {
+
+			out = new FileOutputStream( file , true );
+			Writer writer = new OutputStreamWriter( out , StandardCharsets.UTF_8 );
+
+			for( Record record : records ) {
+
+				writer.write( record.toLine() );
+				writer.write( '\n' );
+
+			}
+
+			writer.flush();
+			// The records only survive a crash once they are on the disk
+			out.getFD().sync();
+
+		} finally {
+
+			close( out );
+
+		}
+
+	}
+
+	/**
+	 * Send the spooled records
+	 *
+	 * @return false if some of them could not be written (they stay in the replay file)
+	 */
+	private boolean replay() {
+
+		synchronized( spoolLock ) {
+
+			if( !replay.exists() ) {
+
+				if( !spool.exists() ) { return true; }
+
+				if( !spool.renameTo( replay ) ) {
+
+					System.out.println( "[STATS] Could not move the spool file to " + replay );
+					return false;
+
+				}
+
+			}
+
+		}
+
+		List<Record> records = new ArrayList<Record>();
+		BufferedReader reader = null;
+
+		try {
+
+			reader = new BufferedReader( new InputStreamReader( new FileInputStream( replay ) , StandardCharsets.UTF_8 ) );
+			String line;
+
+			while( ( line = reader.readLine() ) != null ) {
+
+				Record record = Record.parse( line );
+
+				if( record != null ) {
+					records.add( record );
+				}
+
+			}
+
+		} catch ( IOException e ) {
+
+			System.out.println( "[STATS] Could not read " + replay + ": " + e.getMessage() );
+			return false;
+
+		} finally {
+
+			close( reader );
+
+		}
+
+		int count = records.size();
+
+		// flush() removes the records it writes from the chunk, and so from the list
+		while( !records.isEmpty() ) {
+
+			if( !flush( records.subList( 0 , Math.min( records.size() , batchSize ) ) ) ) {
+
+				// Keep what is left for the next attempt
+				keep( records );
+				return false;
+
+			}
+
+		}
+
+		if( count > 0 ) {
+			System.out.println( "[STATS] Wrote " + count + " spooled records." );
+		}
+
+		replay.delete();
+		return true;
+
+	}
+
+	/**
+	 * Replace the replay file with the records that are still to be written
+	 */
+	private void keep( List<Record> records ) {
+
+		File temp = new File( replay.getPath() + ".tmp" );
+		FileOutputStream out = null;
+
+		try {
+
+			out = new FileOutputStream( temp );
+			Writer writer = new OutputStreamWriter( out , StandardCharsets.UTF_8 );
+
+			for( Record record : records ) {
+
+				writer.write( record.toLine() );
+				writer.write( '\n' );
+
+			}
+
+			writer.flush();
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if( !replay.delete() || !temp.renameTo( replay ) ) {
+				System.out.println( "[STATS] Could not replace " + replay );
+			}
+
+		} catch ( IOException e ) {
+
+			// The old replay file is still there, the records already written would be written twice
+			System.out.println( "[STATS] Could not rewrite " + replay + ": " + e.getMessage() );
+
+		} finally {
+
+			close( out );
+
+		}
+
+	}
+
+	private static void close( Closeable closeable ) {
+
+		if( closeable == null ) { return; }
+
+		try {
+			closeable.close();
+		} catch ( IOException e ) {
+			// Nothing left to do with it
+		}
+
+	}
+
+	/**
+	 * Reads the database while nothing is written to it (see readWritten)
+	 */
+	public interface Snapshot {
+
+		/**
+		 * @param first The sequence number of the first record that is not in the database
+		 */
+		public void read( long first );
+
+	}
+
+	/**
+	 * The changes to one player's stats, and their score if they finished a game
+	 */
+	protected static class Record {
+
+		protected final String username;
+		protected final int played, won, finished, coins, points;
+
+		// The score (level is null if there is none)
+		protected final String level;
+		protected final int mazeSize, completionTime, finishPosition;
+		protected final long date;
+
+		private Record( String username , int played , int won , int finished , int coins , int points , String level , int mazeSize , int completionTime , int finishPosition , long date ) {
+
+			this.username = username;
+			this.played = played;
+			this.won = won;
+			this.finished = finished;
+			this.coins = coins;
+			this.points = points;
+			this.level = level;
+			this.mazeSize = mazeSize;
+			this.completionTime = completionTime;
+			this.finishPosition = finishPosition;
+			this.date = date;
+
+		}
+
+		/**
+		 * @return The same changes to the player's stats, without the score
+		 */
+		private Record withoutScore() {
+
+			return new Record( username , played , won , finished , coins , points , null , 0 , 0 , 0 , date );
+
+		}
+
+		/**
+		 * @return The record as a line of the spool file
+		 */
+		private String toLine() {
+
+			return username + "\t" + played + "\t" + won + "\t" + finished + "\t" + coins + "\t" + points + "\t" + ( level == null ? "" : level )
+					+ "\t" + mazeSize + "\t" + completionTime + "\t" + finishPosition + "\t" + date;
+
+		}
+
+		/**
+		 * @return The record written by toLine, or null if the line is damaged (a crash while it was being written)
+		 */
+		private static Record parse( String line ) {
+
+			String[] f = line.split( "\t" , -1 );
+
+			if( f.length != 11 ) { return null; }
+
+			try {
+
+				return new Record( f[ 0 ] , Integer.parseInt( f[ 1 ] ) , Integer.parseInt( f[ 2 ] ) , Integer.parseInt( f[ 3 ] ) , Integer.parseInt( f[ 4 ] ) ,
+						Integer.parseInt( f[ 5 ] ) , f[ 6 ].isEmpty() ? null : f[ 6 ] , Integer.parseInt( f[ 7 ] ) , Integer.parseInt( f[ 8 ] ) ,
+						Integer.parseInt( f[ 9 ] ) , Long.parseLong( f[ 10 ] ) );
+
+			} catch ( NumberFormatException e ) {
+
+				return null;
+
+			}
+
+		}
+
+	}
+
+}
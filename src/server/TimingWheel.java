@@ -0,0 +1,335 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel. One thread keeps the time for any number of timeouts.
+ *
+ * The wheel is a ring of buckets, one per tick. A timeout is put into the bucket of the tick it expires on
+ * (with the number of full turns of the wheel left before then), so each tick only looks at one bucket.
+ * Adding and cancelling are O(1). The tasks of expired timeouts run on a small worker pool, so a slow task
+ * (for example one waiting for the server) never delays the other timeouts.
+ *
+ * The precision is one tick, which is plenty for countdowns counted in seconds.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class TimingWheel {
+
+	private final long tickNanos;
+	private final Timeout[] buckets;	// The head of each bucket's list
+	private final int mask;
+
+	// Changes from other threads, applied by the wheel thread on its next tick
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final ExecutorService workers;
+	private final Thread thread;
+	private final long startTime;
+
+	// The number of ticks that have passed (wheel thread only)
+	private long tick = 0;
+
+	/**
+	 * Create and start a wheel
+	 *
+	 * @param name The name of the wheel thread
+	 * @param tickMillis How long a tick is (the precision of the wheel)
+	 * @param size The number of buckets (rounded up to a power of 2). Timeouts further away than size ticks go round the wheel more than once.
+	 * @param workerThreads How many threads run the expired tasks
+	 */
+	public TimingWheel( final String name , long tickMillis , int size , int workerThreads ) {
+
+		tickNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 1 , tickMillis ) );
+
+		int n = 1;
+		while( n < size ) { n <<= 1; }
+
+		buckets = new Timeout[ n ];
+		mask = n - 1;
+
+		workers = Executors.newFixedThreadPool( Math.max( 1 , workerThreads ) , new ThreadFactory() {
+
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread( Runnable r ) {
+
+				Thread t = new Thread( r , name + "-worker-" + ( count++ ) );
+				t.setDaemon( true );
+				return t;
+
+			}
+
+		});
+
+		startTime = System.nanoTime();
+
+		thread = new Thread( new Runnable() {
+
+			@Override
+			public void run() {
+
+				turn();
+
+			}
+
+		}, name );
+
+		thread.setDaemon( true );
+		thread.start();
+
+	}
+
+	/**
+	 * Run a task once
+	 *
+	 * @param task The task
+	 * @param delay How long from now
+	 * @param unit The unit of the delay
+	 * @return The handle used to cancel the task
+	 */
+	public Timeout schedule( Runnable task , long delay , TimeUnit unit ) {
+
+		return add( new Timeout( task , now() + unit.toNanos( delay ) , 0 ) );
+
+	}
+
+	/**
+	 * Run a task repeatedly. Runs that are late don't push back the following ones (same as Timer.scheduleAtFixedRate),
+	 * and a run never starts before the previous one has finished.
+	 *
+	 * @param task The task
+	 * @param initialDelay How long from now the first run is
+	 * @param period The time between runs
+	 * @param unit The unit of the delay and period
+	 * @return The handle used to cancel the task
+	 */
+	public Timeout scheduleAtFixedRate( Runnable task , long initialDelay , long period , TimeUnit unit ) {
+
+		return add( new Timeout( task , now() + unit.toNanos( initialDelay ) , Math.max( 1 , unit.toNanos( period ) ) ) );
+
+	}
+
+	private Timeout add( Timeout timeout ) {
+
+		added.add( timeout );
+		return timeout;
+
+	}
+
+	private long now() {
+
+		return System.nanoTime() - startTime;
+
+	}
+
+	/**
+	 * The wheel thread: wait for the next tick, then expire that tick's bucket
+	 */
+	private void turn() {
+
+		while( true ) {
+
+			long deadline = ( tick + 1 ) * tickNanos;
+			long sleep = deadline - now();
+
+			if( sleep > 0 ) {
+
+				try {
+					Thread.sleep( TimeUnit.NANOSECONDS.toMillis( sleep ) , (int) ( sleep % 1000000 ) );
+				} catch ( InterruptedException e ) {
+					return;
+				}
+
+				continue;
+
+			}
+
+			Timeout timeout;
+
+			while( ( timeout = cancelled.poll() ) != null ) {
+				unlink( timeout );
+			}
+
+			while( ( timeout = added.poll() ) != null ) {
+				place( timeout );
+			}
+
+			expire( (int) ( tick & mask ) );
+
+			tick++;
+
+		}
+
+	}
+
+	/**
+	 * Put a timeout into the bucket of the tick it expires on
+	 */
+	private void place( Timeout timeout ) {
+
+		if( timeout.cancelled ) { return; }
+
+		// Bucket t is expired at the end of tick t, the first bucket whose end is not before the deadline
+		long expiresOn = ( timeout.deadline + tickNanos - 1 ) / tickNanos - 1;
+
+		// Already late - expire on the current tick
+		if( expiresOn < tick ) { expiresOn = tick; }
+
+		timeout.rounds = ( expiresOn - tick ) / buckets.length;
+		timeout.bucket = (int) ( expiresOn & mask );
+
+		timeout.prev = null;
+		timeout.next = buckets[ timeout.bucket ];
+
+		if( timeout.next != null ) {
+			timeout.next.prev = timeout;
+		}
+
+		buckets[ timeout.bucket ] = timeout;
+
+	}
+
+	private void unlink( Timeout timeout ) {
+
+		if( timeout.bucket < 0 ) { return; }
+
+		if( timeout.prev != null ) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[ timeout.bucket ] = timeout.next;
+		}
+
+		if( timeout.next != null ) {
+			timeout.next.prev = timeout.prev;
+		}
+
+		timeout.prev = timeout.next = null;
+		timeout.bucket = -1;
+
+	}
+
+	private void expire( int index ) {
+
+		Timeout timeout = buckets[ index ];
+
+		while( timeout != null ) {
+
+			Timeout next = timeout.next;
+
+			if( timeout.rounds > 0 ) {
+
+				timeout.rounds--;
+
+			} else {
+
+				unlink( timeout );
+
+				if( !timeout.cancelled ) {
+					workers.execute( timeout );
+				}
+
+			}
+
+			timeout = next;
+
+		}
+
+	}
+
+	/**
+	 * A scheduled task. Used to cancel it.
+	 */
+	public class Timeout implements Runnable {
+
+		private final Runnable task;
+		private final long period;		// 0 for tasks that only run once
+		private long deadline;			// Relative to the start of the wheel
+
+		private volatile boolean cancelled = false;
+
+		// Wheel thread only
+		private long rounds;
+		private int bucket = -1;
+		private Timeout prev, next;
+
+		private Timeout( Runnable task , long deadline , long period ) {
+
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+
+		}
+
+		/**
+		 * Runs the task on a worker thread
+		 */
+		@Override
+		public void run() {
+
+			if( cancelled ) { return; }
+
+			try {
+
+				task.run();
+
+			} catch ( RuntimeException e ) {
+
+				e.printStackTrace();
+
+			}
+
+			if( period > 0 && !cancelled ) {
+
+				deadline += period;
+				add( this );
+
+			}
+
+		}
+
+		/**
+		 * Stop the task. A run that is already in progress finishes, but there won't be another one.
+		 */
+		public void cancel() {
+
+			if( cancelled ) { return; }
+
+			cancelled = true;
+			cancelled( this );
+
+		}
+
+		public boolean isCancelled() {
+
+			return cancelled;
+
+		}
+
+	}
+
+	private void cancelled( Timeout timeout ) {
+
+		// Removed from its bucket by the wheel thread, so the wheel doesn't fill up with cancelled timeouts
+		cancelled.add( timeout );
+
+	}
+
+	/**
+	 * Stop the wheel. Pending timeouts never run.
+	 */
+	public void shutdown() {
+
+		thread.interrupt();
+		workers.shutdown();
+
+	}
+
+}
@@ -0,0 +1,118 @@
+package server.mazegeneration;
+
+/**
+ * A disjoint-set forest (union-find) over the integers 0 to size-1, with path compression and union by rank.
+ *
+ * Used by ProceduralMaze to know which rooms are already connected, so joining two rooms costs almost nothing
+ * instead of relabelling every cell of one of them.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class DisjointSet {
+
+	private final int[] parent;
+	private final byte[] rank;
+	private int sets;
+
+	/**
+	 * Create a set for each element
+	 *
+	 * @param size The number of elements
+	 */
+	public DisjointSet( int size ) {
+
+		parent = new int[ size ];
+		rank = new byte[ size ];
+		sets = size;
+
+		for( int i = 0 ; i < size ; i++ ) {
+
+			parent[ i ] = i;
+
+		}
+
+	}
+
+	/**
+	 * Find the representative of the set containing an element
+	 *
+	 * Every element on the way is pointed straight at the representative, so the next search is shorter.
+	 *
+	 * @param x The element
+	 * @return The representative element of its set
+	 */
+	public int find( int x ) {
+
+		int root = x;
+
+		while( parent[ root ] != root ) {
+
+			root = parent[ root ];
+
+		}
+
+		// Path compression (iterative, so a long chain can't overflow the stack)
+		while( parent[ x ] != root ) {
+
+			int next = parent[ x ];
+			parent[ x ] = root;
+			x = next;
+
+		}
+
+		return root;
+
+	}
+
+	/**
+	 * Join the sets containing two elements
+	 *
+	 * @param a The first element
+	 * @param b The second element
+	 * @return True if the sets were joined, False if both elements were already in the same set
+	 */
+	public boolean union( int a , int b ) {
+
+		int rootA = find( a );
+		int rootB = find( b );
+
+		if( rootA == rootB ) {
+
+			return false;
+
+		}
+
+		// The shallower tree goes under the deeper one
+		if( rank[ rootA ] < rank[ rootB ] ) {
+
+			parent[ rootA ] = rootB;
+
+		} else if( rank[ rootA ] > rank[ rootB ] ) {
+
+			parent[ rootB ] = rootA;
+
+		} else {
+
+			parent[ rootB ] = rootA;
+			rank[ rootA ]++;
+
+		}
+
+		sets--;
+		return true;
+
+	}
+
+	/**
+	 * Get the number of separate sets left
+	 *
+	 * @return The number of sets
+	 */
+	public int getSets() {
+
+		return sets;
+
+	}
+
+}
@@ -0,0 +1,65 @@
+package server.mazegeneration;
+
+/**
+ * Measure how long it takes to generate a single quadrant (ProceduralMaze) for quad sizes from 25 to 2001.
+ *
+ * Run with larger quad sizes as arguments to measure those instead, e.g. "java server.mazegeneration.MazeBenchmark 4001"
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class MazeBenchmark {
+
+	private static final int[] QUAD_SIZES = { 25 , 51 , 101 , 251 , 501 , 1001 , 2001 };
+
+	// Runs that are not measured so the JIT can compile the generator first
+	private static final int WARMUP = 3;
+
+	// Measured runs per quad size (the best and the average are printed)
+	private static final int RUNS = 5;
+
+	public static void main( String[] args ) {
+
+		int[] sizes = QUAD_SIZES;
+
+		if( args.length > 0 ) {
+
+			sizes = new int[ args.length ];
+
+			for( int i = 0 ; i < args.length ; i++ ) {
+				sizes[ i ] = Integer.parseInt( args[ i ] );
+			}
+
+		}
+
+		for( int i = 0 ; i < WARMUP ; i++ ) {
+			new ProceduralMaze( sizes[ 0 ] , sizes[ 0 ] );
+		}
+
+		System.out.println( "Quad size | Cells | Best (ms) | Average (ms)" );
+
+		for( int size : sizes ) {
+
+			long best = Long.MAX_VALUE;
+			long total = 0;
+			ProceduralMaze maze = null;
+
+			for( int run = 0 ; run < RUNS ; run++ ) {
+
+				long start = System.nanoTime();
+				maze = new ProceduralMaze( size , size );
+				long time = System.nanoTime() - start;
+
+				best = Math.min( best , time );
+				total += time;
+
+			}
+
+			System.out.println( String.format( "%9d | %9d | %9.2f | %12.2f" ,
+					maze.getRows() , (long) maze.getRows() * maze.getColumns() , best / 1e6 , total / 1e6 / RUNS ) );
+
+		}
+
+	}
+
+}
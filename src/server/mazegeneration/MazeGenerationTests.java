@@ -3,10 +3,15 @@ package server.mazegeneration;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import org.junit.Rule;
 import org.junit.jupiter.api.Test;
 import org.junit.rules.ExpectedException;
 
+import protocol.GridView;
+
 class MazeGenerationTests {
 
 	@Rule
@@ -57,9 +62,420 @@ class MazeGenerationTests {
 		int [] obtained = test.getCroppedBoundaries(4, 4, 4, 4);
 		assertArrayEquals(expected, obtained);
 	}
-	
-	
-	
+
+	private static final int[][] SIZES = {{9, 9}, {9, 31}, {31, 9}, {51, 51}, {101, 75}};
+
+	private static boolean isOpen(int[][] maze, int row, int col) {
+		return maze[row][col] != MazeConstants.WALL;
+	}
+
+	// The number of open cells reached from (1,1) through open cells
+	private static int reachable(int[][] maze) {
+		int rows = maze.length;
+		int columns = maze[0].length;
+		boolean[][] seen = new boolean[rows][columns];
+		int[] queue = new int[rows * columns];
+		int head = 0;
+		int tail = 0;
+		seen[1][1] = true;
+		queue[tail++] = columns + 1;
+		int[][] steps = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}};
+		while (head < tail) {
+			int cell = queue[head++];
+			for (int[] step : steps) {
+				int row = cell / columns + step[0];
+				int col = cell % columns + step[1];
+				if (row >= 0 && row < rows && col >= 0 && col < columns && !seen[row][col] && isOpen(maze, row, col)) {
+					seen[row][col] = true;
+					queue[tail++] = row * columns + col;
+				}
+			}
+		}
+		return tail;
+	}
+
+// DisjointSet
+	// find() / union() / getSets()
+	@Test
+	void disjointSet() {
+		DisjointSet set = new DisjointSet(10);
+		assertEquals(10, set.getSets());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, set.find(i));
+		}
+		assertTrue(set.union(1, 2));
+		assertFalse(set.union(2, 1));
+		assertEquals(set.find(1), set.find(2));
+		assertEquals(9, set.getSets());
+		// A chain joined in both directions
+		assertTrue(set.union(3, 4));
+		assertTrue(set.union(5, 4));
+		assertTrue(set.union(2, 5));
+		assertEquals(6, set.getSets());
+		assertEquals(set.find(1), set.find(3));
+		assertNotEquals(set.find(1), set.find(6));
+		assertFalse(set.union(1, 5));
+		assertEquals(6, set.getSets());
+		for (int i = 0; i < 10; i++) {
+			set.union(0, i);
+		}
+		assertEquals(1, set.getSets());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(set.find(0), set.find(i));
+		}
+	}
+
+	// The same number of sets as the unions that succeeded, however the elements are joined
+	@Test
+	void disjointSetRandomUnions() {
+		Random random = new Random(7);
+		int size = 1000;
+		DisjointSet set = new DisjointSet(size);
+		int[] label = new int[size];
+		for (int i = 0; i < size; i++) {
+			label[i] = i;
+		}
+		int sets = size;
+		for (int k = 0; k < 3000; k++) {
+			int a = random.nextInt(size);
+			int b = random.nextInt(size);
+			// The naive way: relabel every element of one set
+			boolean separate = label[a] != label[b];
+			if (separate) {
+				int old = label[b];
+				for (int i = 0; i < size; i++) {
+					if (label[i] == old) label[i] = label[a];
+				}
+				sets--;
+			}
+			assertEquals(separate, set.union(a, b));
+			assertEquals(sets, set.getSets());
+		}
+		for (int i = 0; i < size; i++) {
+			assertEquals(label[i] == label[0], set.find(i) == set.find(0));
+		}
+	}
+
+// ProceduralMaze
+	// A perfect maze: every room is reached and exactly rooms - 1 walls are torn down, so there are no loops
+	@Test
+	void perfectMaze() {
+		for (int[] size : SIZES) {
+			for (int k = 0; k < 5; k++) {
+				ProceduralMaze procedural = new ProceduralMaze(size[0], size[1]);
+				int[][] maze = procedural.getMaze();
+				int rows = procedural.getRows();
+				int columns = procedural.getColumns();
+				assertEquals(rows, maze.length);
+				assertEquals(columns, maze[0].length);
+				assertEquals(MazeConstants.START, maze[1][1]);
+				assertEquals(MazeConstants.FINISH, maze[rows - 2][columns - 2]);
+				int rooms = 0;
+				int open = 0;
+				for (int i = 0; i < rows; i++) {
+					for (int j = 0; j < columns; j++) {
+						boolean border = i == 0 || j == 0 || i == rows - 1 || j == columns - 1;
+						if (border || (i % 2 == 0 && j % 2 == 0)) {
+							assertFalse(isOpen(maze, i, j), "open at " + i + "," + j);
+						} else if (i % 2 == 1 && j % 2 == 1) {
+							assertTrue(isOpen(maze, i, j), "room is a wall at " + i + "," + j);
+							rooms++;
+						} else if (isOpen(maze, i, j)) {
+							open++;
+						}
+					}
+				}
+				assertEquals(((rows - 1) / 2) * ((columns - 1) / 2), rooms);
+				// A spanning tree of the rooms
+				assertEquals(rooms - 1, open);
+				assertEquals(rooms + open, reachable(maze));
+			}
+		}
+	}
+
+	// The length of the only path through a perfect maze found without searching: dead ends are filled in
+	// one cell at a time until only the path from the start to the finish is left open
+	private static int deadEndFilling(int[][] maze, int startRow, int startCol, int finishRow, int finishCol) {
+		int rows = maze.length;
+		int columns = maze[0].length;
+		boolean[][] open = new boolean[rows][columns];
+		int[][] degree = new int[rows][columns];
+		int[][] steps = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}};
+		int left = 0;
+		for (int i = 1; i < rows - 1; i++) {
+			for (int j = 1; j < columns - 1; j++) {
+				open[i][j] = isOpen(maze, i, j);
+				if (open[i][j]) left++;
+			}
+		}
+		int[] queue = new int[rows * columns];
+		int head = 0;
+		int tail = 0;
+		for (int i = 1; i < rows - 1; i++) {
+			for (int j = 1; j < columns - 1; j++) {
+				if (!open[i][j]) continue;
+				for (int[] step : steps) {
+					if (open[i + step[0]][j + step[1]]) degree[i][j]++;
+				}
+				if (degree[i][j] <= 1) queue[tail++] = i * columns + j;
+			}
+		}
+		while (head < tail) {
+			int row = queue[head] / columns;
+			int col = queue[head++] % columns;
+			if ((row == startRow && col == startCol) || (row == finishRow && col == finishCol) || !open[row][col]) continue;
+			open[row][col] = false;
+			left--;
+			for (int[] step : steps) {
+				int r = row + step[0];
+				int c = col + step[1];
+				if (open[r][c] && --degree[r][c] == 1) queue[tail++] = r * columns + c;
+			}
+		}
+		return left;
+	}
+
+	// A path from the start to the finish, one step at a time through open cells, with the distance of each cell its position
+	private static void assertValidPath(int[][] maze, MazeSolution solution, int startRow, int startCol, int finishRow, int finishCol) {
+		int length = solution.length();
+		assertEquals(startRow, solution.getRow(0));
+		assertEquals(startCol, solution.getColumn(0));
+		assertEquals(finishRow, solution.getRow(length - 1));
+		assertEquals(finishCol, solution.getColumn(length - 1));
+		for (int i = 0; i < length; i++) {
+			int row = solution.getRow(i);
+			int col = solution.getColumn(i);
+			assertTrue(isOpen(maze, row, col));
+			assertEquals(i, solution.getDistance(row, col));
+			assertEquals(row * solution.getColumns() + col, solution.getPath()[i]);
+			if (i > 0) {
+				int steps = Math.abs(row - solution.getRow(i - 1)) + Math.abs(col - solution.getColumn(i - 1));
+				assertEquals(1, steps, "not a single step at " + i);
+			}
+		}
+	}
+
+	// solve()
+	@Test
+	void solutionPath() {
+		for (int[] size : SIZES) {
+			for (int k = 0; k < 5; k++) {
+				ProceduralMaze procedural = new ProceduralMaze(size[0], size[1]);
+				int[][] maze = procedural.getMaze();
+				int rows = procedural.getRows();
+				int columns = procedural.getColumns();
+				MazeSolution solution = procedural.solve();
+				assertValidPath(maze, solution, 1, 1, rows - 2, columns - 2);
+				assertEquals(deadEndFilling(maze, 1, 1, rows - 2, columns - 2), solution.length());
+				// The list form used by MazeGenerator
+				ArrayList<Integer[]> list = ProceduralMaze.generateSolution(maze, 1, 1, rows - 2, columns - 2);
+				assertEquals(solution.length(), list.size());
+				for (int i = 0; i < list.size(); i++) {
+					assertArrayEquals(new Integer[] {solution.getRow(i), solution.getColumn(i)}, list.get(i));
+				}
+			}
+		}
+	}
+
+	// getDistances() / getDistance()
+	@Test
+	void distanceField() {
+		for (int[] size : SIZES) {
+			ProceduralMaze procedural = new ProceduralMaze(size[0], size[1]);
+			int[][] maze = procedural.getMaze();
+			int rows = procedural.getRows();
+			int columns = procedural.getColumns();
+			MazeSolution solution = procedural.solve();
+			int[] distances = solution.getDistances();
+			assertEquals(rows * columns, distances.length);
+			assertEquals(0, solution.getDistance(1, 1));
+			for (int i = 0; i < rows; i++) {
+				for (int j = 0; j < columns; j++) {
+					int distance = distances[i * columns + j];
+					assertEquals(solution.getDistance(i, j), distance);
+					if (!isOpen(maze, i, j)) {
+						assertEquals(-1, distance);
+						continue;
+					}
+					// Every open cell is reached, and in a maze without loops its open neighbors are one step closer or further
+					assertTrue(distance >= 0);
+					int closer = 0;
+					int[][] neighbors = {{i - 1, j}, {i + 1, j}, {i, j - 1}, {i, j + 1}};
+					for (int[] n : neighbors) {
+						if (!isOpen(maze, n[0], n[1])) continue;
+						int other = solution.getDistance(n[0], n[1]);
+						assertEquals(1, Math.abs(other - distance));
+						if (other == distance - 1) closer++;
+					}
+					assertEquals(distance == 0 ? 0 : 1, closer);
+				}
+			}
+		}
+	}
+
+	// The shortest path when there is more than one, and no path when the finish can't be reached
+	@Test
+	void solveOtherGrids() {
+		int[][] loop = {
+			{0, 0, 0, 0, 0, 0, 0},
+			{0, 1, 1, 1, 1, 1, 0},
+			{0, 1, 0, 0, 0, 1, 0},
+			{0, 1, 0, 1, 1, 1, 0},
+			{0, 1, 0, 1, 0, 0, 0},
+			{0, 1, 1, 1, 1, 1, 0},
+			{0, 0, 0, 0, 0, 0, 0},
+		};
+		// Around the left and bottom (9 cells), not around the top and through the middle (13 cells)
+		MazeSolution shortest = ProceduralMaze.solve(loop, 1, 1, 5, 5);
+		assertValidPath(loop, shortest, 1, 1, 5, 5);
+		assertEquals(9, shortest.length());
+		// The finish can be walked on even if it is on the edge of the grid
+		int[][] edge = {{1, 1, 1}, {0, 0, 1}, {1, 1, 1}};
+		MazeSolution around = ProceduralMaze.solve(edge, 0, 0, 2, 0);
+		assertValidPath(edge, around, 0, 0, 2, 0);
+		assertEquals(7, around.length());
+		loop[3][1] = MazeConstants.WALL;
+		loop[3][5] = MazeConstants.WALL;
+		MazeSolution none = ProceduralMaze.solve(loop, 1, 1, 5, 5);
+		assertEquals(0, none.length());
+		assertEquals(-1, none.getDistance(5, 5));
+		assertEquals(4, none.getDistance(1, 5));
+		assertEquals(0, ProceduralMaze.generateSolution(loop, 1, 1, 5, 5).size());
+		// The start is a wall
+		assertEquals(0, ProceduralMaze.solve(loop, 0, 0, 5, 5).length());
+	}
+
+// MazeGrid
+	// 7 x 37 = 259 cells, so the bits take 4 full words and 3 bits of a fifth
+	private static final int GRID_ROWS = 7;
+	private static final int GRID_COLUMNS = 37;
+
+	// The cells on both sides of every word boundary, and the first and last cells
+	private static final int[] BOUNDARIES = {0, 1, 62, 63, 64, 65, 126, 127, 128, 129, 190, 191, 192, 193, 254, 255, 256, 257, 258};
+
+	// get() / set()
+	@Test
+	void gridCells() {
+		MazeGrid grid = new MazeGrid(GRID_ROWS, GRID_COLUMNS);
+		assertEquals(GRID_ROWS, grid.getRows());
+		assertEquals(GRID_COLUMNS, grid.getColumns());
+		for (int i = 0; i < GRID_ROWS; i++) {
+			for (int j = 0; j < GRID_COLUMNS; j++) {
+				assertEquals(MazeConstants.WALL, grid.get(i, j));
+				grid.set(i, j, (i * GRID_COLUMNS + j) % 14);
+			}
+		}
+		for (int i = 0; i < GRID_ROWS; i++) {
+			for (int j = 0; j < GRID_COLUMNS; j++) {
+				assertEquals((i * GRID_COLUMNS + j) % 14, grid.get(i, j));
+				assertFalse(grid.hasCoin(i, j));
+				assertFalse(grid.hasTrap(i, j));
+			}
+		}
+	}
+
+	// setCoin() / hasCoin() / setTrap() / hasTrap(), one cell at a time
+	@Test
+	void gridBitsOnWordBoundaries() {
+		MazeGrid grid = new MazeGrid(GRID_ROWS, GRID_COLUMNS);
+		for (int index : BOUNDARIES) {
+			int row = index / GRID_COLUMNS;
+			int col = index % GRID_COLUMNS;
+			grid.setCoin(row, col, true);
+			assertEquals(1, grid.countCoins());
+			grid.setTrap(row, col, true);
+			for (int i = 0; i < GRID_ROWS * GRID_COLUMNS; i++) {
+				assertEquals(i == index, grid.hasCoin(i / GRID_COLUMNS, i % GRID_COLUMNS), "coin " + i + " with " + index);
+				assertEquals(i == index, grid.hasTrap(i / GRID_COLUMNS, i % GRID_COLUMNS), "trap " + i + " with " + index);
+			}
+			grid.setCoin(row, col, false);
+			assertFalse(grid.hasCoin(row, col));
+			// The trap is still there
+			assertTrue(grid.hasTrap(row, col));
+			assertEquals(0, grid.countCoins());
+			grid.setTrap(row, col, false);
+			assertFalse(grid.hasTrap(row, col));
+		}
+	}
+
+	// takeCoin() / countCoins() / clearCoins()
+	@Test
+	void gridCoins() {
+		MazeGrid grid = new MazeGrid(GRID_ROWS, GRID_COLUMNS);
+		for (int index : BOUNDARIES) {
+			grid.setCoin(index / GRID_COLUMNS, index % GRID_COLUMNS, true);
+			// Setting it twice is the same coin
+			grid.setCoin(index / GRID_COLUMNS, index % GRID_COLUMNS, true);
+			grid.setTrap(index / GRID_COLUMNS, index % GRID_COLUMNS, true);
+		}
+		assertEquals(BOUNDARIES.length, grid.countCoins());
+		int left = BOUNDARIES.length;
+		for (int index : BOUNDARIES) {
+			int row = index / GRID_COLUMNS;
+			int col = index % GRID_COLUMNS;
+			assertTrue(grid.takeCoin(row, col));
+			assertFalse(grid.takeCoin(row, col));
+			assertEquals(--left, grid.countCoins());
+			// Only the coin is taken, not the trap or the cell around it
+			assertTrue(grid.hasTrap(row, col));
+		}
+		assertFalse(grid.takeCoin(3, 3));
+		for (int i = 0; i < GRID_ROWS; i++) {
+			for (int j = 0; j < GRID_COLUMNS; j++) {
+				grid.setCoin(i, j, true);
+			}
+		}
+		assertEquals(GRID_ROWS * GRID_COLUMNS, grid.countCoins());
+		grid.clearCoins();
+		assertEquals(0, grid.countCoins());
+		for (int index : BOUNDARIES) {
+			assertFalse(grid.hasCoin(index / GRID_COLUMNS, index % GRID_COLUMNS));
+			assertTrue(grid.hasTrap(index / GRID_COLUMNS, index % GRID_COLUMNS));
+		}
+	}
+
+	// cellView() / coinView()
+	@Test
+	void gridViews() {
+		MazeGrid grid = new MazeGrid(GRID_ROWS, GRID_COLUMNS);
+		Random random = new Random(3);
+		for (int i = 0; i < GRID_ROWS; i++) {
+			for (int j = 0; j < GRID_COLUMNS; j++) {
+				grid.set(i, j, random.nextInt(14));
+				grid.setCoin(i, j, random.nextBoolean());
+			}
+		}
+		// The whole grid, and a rectangle that crosses word boundaries on each row (top, bottom, left, right)
+		int[][] rectangles = {{0, GRID_ROWS - 1, 0, GRID_COLUMNS - 1}, {1, 5, 20, 33}, {6, 6, 36, 36}};
+		for (int[] boundaries : rectangles) {
+			GridView cells = boundaries[0] == 0 && boundaries[2] == 0 ? grid.cellView() : grid.cellView(boundaries);
+			GridView coins = boundaries[0] == 0 && boundaries[2] == 0 ? grid.coinView() : grid.coinView(boundaries);
+			int rows = boundaries[1] - boundaries[0] + 1;
+			int columns = boundaries[3] - boundaries[2] + 1;
+			assertEquals(rows, cells.getRows());
+			assertEquals(columns, cells.getColumns());
+			assertEquals(rows, coins.getRows());
+			assertEquals(columns, coins.getColumns());
+			for (int i = 0; i < rows; i++) {
+				for (int j = 0; j < columns; j++) {
+					int row = boundaries[0] + i;
+					int col = boundaries[2] + j;
+					assertEquals(grid.get(row, col), cells.get(i, j));
+					assertEquals(grid.hasCoin(row, col) ? 1 : 0, coins.get(i, j));
+				}
+			}
+		}
+		// The views are not copies, a change made after they are created shows through them
+		GridView cells = grid.cellView(rectangles[1]);
+		GridView coins = grid.coinView(rectangles[1]);
+		grid.set(1, 20, 9);
+		grid.setCoin(1, 20, !grid.hasCoin(1, 20));
+		assertEquals(9, cells.get(0, 0));
+		assertEquals(grid.hasCoin(1, 20) ? 1 : 0, coins.get(0, 0));
+	}
+
+
+
 	/*
 	 * public char[][] getMazeChar() public int[] 
 	 * 
@@ -1,7 +1,16 @@
 package server.mazegeneration;
 
-import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import protocol.GridView;
+import protocol.Viewport;
+import server.Constraints;
 
 /**
  * Generate a square grid maze from 4 quadrants (mini-mazes) with individual solution paths converging in the middle of the maze.
@@ -11,16 +20,43 @@ import java.util.Random;
  */
 public class MazeGenerator {
 	
-	protected int[][] cells;
-	protected boolean[][] coins;
+	// The fork-join pool the quadrants of asymmetrical mazes are generated on (shared by all of the mazes being generated)
+	private static final ForkJoinPool GENERATORS = createGenerators();
+	
+	// The maze's cells, coins and traps (see MazeGrid)
+	protected MazeGrid grid;
 	private int mazeSize;
 	private int quadSize;
 	
 	public ProceduralMaze topLeftMaze, topRightMaze , bottomRightMaze , bottomLeftMaze;
 	
-	// Top Left , Top Right , Bottom Left , Bottom Right quadrant solution paths
-	public ArrayList<Integer[]> TLSolution, TRSolution, BLSolution, BRSolution;
+	// Top Left , Top Right , Bottom Left , Bottom Right quadrant solution paths, from START to FINISH 
+	// Each cell is packed into one integer: row * mazeSize + column
+	public int[] TLSolution, TRSolution, BLSolution, BRSolution;
 	 
+	/**
+	 * Create the pool the fair quadrants are searched on. Its own threads, so the searches don't compete with whatever else
+	 * uses the common pool, and at the lowest priority, so the games come first (see MazePool)
+	 */
+	private static ForkJoinPool createGenerators() {
+		
+		return new ForkJoinPool( Math.max( 1 , Constraints.mazeSearchThreads ) , new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			
+			@Override
+			public ForkJoinWorkerThread newThread( ForkJoinPool pool ) {
+				
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+				t.setName( "maze-search-" + t.getPoolIndex() );
+				t.setDaemon( true );
+				t.setPriority( Thread.MIN_PRIORITY );
+				return t;
+				
+			}
+			
+		}, null , false );
+		
+	}
+	
 	/**
 	 * Generate a square maze from a specified quadrant size.
 	 * 
@@ -88,154 +124,83 @@ public class MazeGenerator {
 		// Remove 1 at the end because we are going to crunch the middle borders together, therefore making the last row/column empty => useless
 		mazeSize = quadSize * 2 - 1;
 		
-		// Initialize the maze's cell array
-		cells = new int[ mazeSize ][ mazeSize ];
+		// Initialize the maze's cells
+		grid = new MazeGrid( mazeSize , mazeSize );
 		 
 		// Create an instance of the base quad maze, which will be mirrored to create the 4-way symmetrical maze
 		topLeftMaze = new ProceduralMaze( quadSize , quadSize );
 		
-		// Initialize 2D Arrays for each quadrant
-		int[][] topLeftQuad , topRightQuad , bottomRightQuad , bottomLeftQuad;
-		
-		// Top Left Quadrant (Always the same instance, regardless if the entire maze is symmetrical or not)
-		topLeftQuad = topLeftMaze.getMaze();
-		 
 		// Save the solution for this quadrant
-		TLSolution = topLeftMaze.generateSolution();
+		MazeSolution topLeftSolution = topLeftMaze.solve();
 		
 		 
 		// If the maze is not supposed to be symmetrical, create 4 unique quadrants and flip them accordingly so that the START and FINISH points are in the right places
 		if( symmetrical == false ) {
 			
 			// Create the remaining 3 maze quadrants with unique data from the first quadrant
-			 
-			topRightMaze = new ProceduralMaze( quadSize , quadSize );
-			bottomRightMaze = new ProceduralMaze( quadSize , quadSize );
-			bottomLeftMaze = new ProceduralMaze( quadSize , quadSize );
-			
-			// Create array lists containing the solution paths for each quadrant (used for balancing asymmetrical mazes)
-			TRSolution = topRightMaze.generateSolution();
-			BLSolution = bottomLeftMaze.generateSolution();
-			BRSolution = bottomRightMaze.generateSolution();
-			
-			// Make sure that the mazes are fair to a certain extent by comparing the length of each solution path
-			int TLPathSize = TLSolution.size();
-			int TRPathSize = TRSolution.size();
-			int BRPathSize = BRSolution.size();
-			int BLPathSize = BLSolution.size();
-			
-			// Make sure that each quadrant has a balanced solution
-			// Take the First (top left) quadrant as a baseline and balance the rest along that criteria
-			if( ensureFairness ) {
-
-				// Balance Top Right
-				while( Math.abs( TLPathSize - TRPathSize ) > MazeConstants.MAX_SOLUTION_DIFFERENCE ) {
-					
-					topRightMaze = new ProceduralMaze( quadSize , quadSize );
-					TRSolution = topRightMaze.generateSolution();
-					TRPathSize = TRSolution.size();
-					
-				}
+			// Take the First (top left) quadrant as a baseline and balance the rest along that criteria (if ensureFairness is set)
+			// The 3 quadrants are searched at the same time, each with several candidates at once (see QuadrantSearch)
+			int TLPathSize = topLeftSolution.length();
+			
+			final QuadrantSearch topRight = new QuadrantSearch( quadSize , TLPathSize , ensureFairness );
+			final QuadrantSearch bottomRight = new QuadrantSearch( quadSize , TLPathSize , ensureFairness );
+			final QuadrantSearch bottomLeft = new QuadrantSearch( quadSize , TLPathSize , ensureFairness );
+			
+			GENERATORS.invoke( new RecursiveAction() {
 				
-				// Balance Bottom Right
-				while( Math.abs( TLPathSize - BRPathSize ) > MazeConstants.MAX_SOLUTION_DIFFERENCE ) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
 					
-					bottomRightMaze = new ProceduralMaze( quadSize , quadSize );
-					BRSolution = bottomRightMaze.generateSolution();
-					BRPathSize = BRSolution.size();
+					invokeAll( topRight , bottomRight , bottomLeft );
 					
 				}
 				
-				// Balance Bottom Left
-				while( Math.abs( TLPathSize - BLPathSize ) > MazeConstants.MAX_SOLUTION_DIFFERENCE ) {
-					
-					bottomLeftMaze = new ProceduralMaze( quadSize , quadSize );
-					BLSolution = bottomLeftMaze.generateSolution();
-					BLPathSize = BLSolution.size();
-					
-				}
+			});
 			
-			}
-			
-			//System.out.println( "Top Left Solution Cells = " + TLPathSize );
-			//System.out.println( "Top Right Solution Cells = " + TRPathSize );
-			//System.out.println( "Bottom Left Solution Cells = " + BLPathSize );
-			//System.out.println( "Bottom Right Solution Cells = " + BRPathSize );
+			topRightMaze = topRight.getRawResult().maze;
+			bottomRightMaze = bottomRight.getRawResult().maze;
+			bottomLeftMaze = bottomLeft.getRawResult().maze;
 			
-			// Top Right Quadrant
-			topRightQuad = mirrorArrayHorizontal( topRightMaze.getMaze() );
+			MazeSolution topRightSolution = topRight.getRawResult().solution;
+			MazeSolution bottomRightSolution = bottomRight.getRawResult().solution;
+			MazeSolution bottomLeftSolution = bottomLeft.getRawResult().solution;
 			
-			// Bottom Right Quadrant
-			bottomRightQuad = mirrorArrayHorizontalAndVertical( bottomRightMaze.getMaze() );
-			
-			// Bottom Left Quadrant
-			bottomLeftQuad = mirrorArrayVertical( bottomLeftMaze.getMaze() ); 
-			
-			// Fix the Solution paths for the remaining 3 quadrants in the ASYMMETRICAL maze AFTER we have mirrored the quadrants
-			TRSolution = mirrorArrayListHorizontal( TRSolution );
-			BRSolution = mirrorArrayListHorizontalAndVertical( BRSolution );
-			BLSolution = mirrorArrayListVertical( BLSolution );
+			//System.out.println( "Top Left Solution Cells = " + TLPathSize );
+			//System.out.println( "Top Right Solution Cells = " + topRightSolution.length() );
+			//System.out.println( "Bottom Left Solution Cells = " + bottomLeftSolution.length() );
+			//System.out.println( "Bottom Right Solution Cells = " + bottomRightSolution.length() );
+			
+			// Join all quadrants into the maze, mirrored so that the START and FINISH points are in the right places
+			// NOTE: the middle borders are crunched together 
+			placeQuadrant( topLeftMaze.getMaze() , false , false , 0 , 0 );
+			placeQuadrant( topRightMaze.getMaze() , false , true , 0 , quadSize - 1 );
+			placeQuadrant( bottomLeftMaze.getMaze() , true , false , quadSize - 1 , 0 );
+			placeQuadrant( bottomRightMaze.getMaze() , true , true , quadSize - 1 , quadSize - 1 );
+			
+			// The solution paths are mirrored and moved to their quadrant the same way
+			TLSolution = placeSolution( topLeftSolution , false , false , 0 , 0 );
+			TRSolution = placeSolution( topRightSolution , false , true , 0 , quadSize - 1 );
+			BLSolution = placeSolution( bottomLeftSolution , true , false , quadSize - 1 , 0 );
+			BRSolution = placeSolution( bottomRightSolution , true , true , quadSize - 1 , quadSize - 1 );
 			
 		} else {
  
-			// Top Right Quadrant
-			topRightQuad = mirrorArrayHorizontal( topLeftQuad );
-			
-			// Bottom Right Quadrant
-			bottomRightQuad = mirrorArrayVertical( topRightQuad );
-			
-			// Bottom Left Quadrant
-			bottomLeftQuad = mirrorArrayVertical( topLeftQuad ); 
+			// All 4 quadrants are mirror copies of the Top Left one
+			placeQuadrant( topLeftMaze.getMaze() , false , false , 0 , 0 );
+			placeQuadrant( topLeftMaze.getMaze() , false , true , 0 , quadSize - 1 );
+			placeQuadrant( topLeftMaze.getMaze() , true , false , quadSize - 1 , 0 );
+			placeQuadrant( topLeftMaze.getMaze() , true , true , quadSize - 1 , quadSize - 1 );
 			
 			// Generate solution paths for the remaining 3 quadrants in the SYMMETRICAL maze based on mirrored versions of the 1st quadrant (TOP LEFT)
-			TRSolution = mirrorArrayListHorizontal( TLSolution );
-			BRSolution = mirrorArrayListHorizontalAndVertical( TLSolution );
-			BLSolution = mirrorArrayListVertical( TLSolution );
+			TLSolution = placeSolution( topLeftSolution , false , false , 0 , 0 );
+			TRSolution = placeSolution( topLeftSolution , false , true , 0 , quadSize - 1 );
+			BLSolution = placeSolution( topLeftSolution , true , false , quadSize - 1 , 0 );
+			BRSolution = placeSolution( topLeftSolution , true , true , quadSize - 1 , quadSize - 1 );
 		 
 		}
 		
-		// Fix the offsets of each quadrant's solution paths in the ArrayLists
-		// Since the Solution paths are relative to the quadrants, when the quadrants are stitched together to make a larger maze
-		// The solution paths must be edited accordingly to fit their respective quadrant
-		// Otherwise all solution paths will remain in the top left quadrant
-		// Only the Top Right, Bottom Left and Bottom Right solutions need to be modified
-		solutionPathAddOffset( TRSolution , 0 , quadSize - 1 );
-		solutionPathAddOffset( BRSolution , quadSize - 1 , quadSize - 1 );
-		solutionPathAddOffset( BLSolution , quadSize - 1 , 0 );
-		 
-		// Join all quadrants into maze
-		// NOTE: the middle borders are crunched together 
-		for( int i = 0 ; i < quadSize ; i++ ) {
-			
-			for( int j = 0 ; j < quadSize ; j++ ) {
-				
-				// Top left quad
-				cells[ i ][ j ] = topLeftQuad[ i ][ j ];
-				
-				// Top right quad
-				cells[ i ][ j + quadSize - 1 ] = topRightQuad[ i ][ j ];
-				
-				// Bottom left quad
-				cells[ i + quadSize - 1 ][ j ] = bottomLeftQuad[ i ][ j ];
-				
-				// Bottom right quad
-				cells[ i + quadSize - 1 ][ j + quadSize - 1 ] = bottomRightQuad[ i ][ j ];
-				
-			}
-			
-		}
-		
-		/* Debug ArrayList mirroring and offset of solution paths 
-	 
-		Integer[] node = new Integer[2];
-		for( int i = 0 ; i < BRSolution.size(); i++ ) {
-			node = BRSolution.get(i);
-			cells[ node[ 0 ] ][ node[ 1 ] ] = MazeConstants.PATH;
-		}
-		
-		*/
-		 
-		
 		// Generate wall outline for the entire maze (not necessary by default, since quads already have borders)
 		// createBorders();
 		 
@@ -304,13 +269,28 @@ public class MazeGenerator {
 	}
 	
 	/**
-	 * Get the entire maze's structure as a 2D array of integers (default format)
+	 * Get the maze's cells, coins and traps
+	 * 
+	 * The grid is not copied, so this is the way to read (or crop, see MazeGrid.cellView) the maze while a game is running.
+	 * 
+	 * @return The maze's grid
+	 */
+	public MazeGrid getGrid() {
+		
+		return grid;
+		
+	}
+	
+	/**
+	 * Get the entire maze's structure as a 2D array of integers
+	 * 
+	 * NOTE! The array is a copy of the maze, changing it does not change the maze. Use getGrid() to read the maze without copying it.
 	 * 
 	 * @return The maze's 2D array of integers
 	 */
 	public int[][] getMaze() {
 		
-		return cells;
+		return toArray( grid.cellView() );
 		
 	}
 	
@@ -358,7 +338,7 @@ public class MazeGenerator {
 	 */
 	public char[][] getMazeChar() {
 		
-		return intToChar2DArray( this.cells );
+		return intToChar2DArray( getMaze() );
 		
 	}
 	
@@ -399,7 +379,7 @@ public class MazeGenerator {
 	 */
 	public int[] getCroppedBoundaries( int x , int y , int xLimit , int yLimit ) {
 		
-		if( this.cells == null ) {
+		if( this.grid == null ) {
 			
 			throw new NullPointerException("Maze array is not initialized.");
 			
@@ -411,68 +391,8 @@ public class MazeGenerator {
 			
 		}
 		 
-		// Make sure at least one neighboring cell is visible in each direction from the player
-		if( xLimit < 1 ) {
-			xLimit = 1;
-		}
-		
-		if( yLimit < 1 ) {
-			yLimit = 1;
-		}
-		 
-		// Make sure the boundaries of the crop rectangle do not violate the boundaries of the maze
-		
-		// Limit the left boundary to the first element in the maze array if it attempts to go out of bounds
-		int leftLimit = y - yLimit;
-		// Limit the right boundary to the last element in the maze array if it attempts to go out of bounds
-		int rightLimit = y + yLimit;
-		
-		if( leftLimit < 0 ) { leftLimit = 0; }
-		if( rightLimit >= mazeSize ) { rightLimit = mazeSize - 1; } 
-		
-		// Limit the top boundary to the first element in the maze array  
-		int topLimit = x - xLimit;
-		if( topLimit < 0 ) { topLimit = 0; }
-		
-		 
-		// Limit the bottom boundary to the last element in the maze array
-		int bottomLimit = x + xLimit;
-		if( bottomLimit >= mazeSize ) { bottomLimit = mazeSize - 1; }
-	 
-		// Adjustments - always show the set amount of rows and columns even if you are near a border of the maze
-		// This is done by expanding one side when the other is shorter than expected.
-		if( y - leftLimit < yLimit ) {
-			
-			rightLimit += yLimit - (y - leftLimit);
-			
-		}
-		
-		if( rightLimit - y < yLimit ) {
-			
-			leftLimit -= yLimit - (rightLimit - y);
-			
-		}
-		
-		if( x - topLimit < xLimit ) {
-			
-			bottomLimit += xLimit - (x - topLimit);
-			
-		}
-		
-		if( bottomLimit - x < xLimit ) {
-			
-			topLimit -= xLimit - (bottomLimit - x);
-			
-		}
-		 
-		
-		
-		// An array of 4 integers indicating the boundaries of the maze which should be rendered
-		// Since the X property defines the row , use the top and bottom limits to define that first
-		// Then use the left and right limits to define the column within the row
-		int[] result = new int[] { topLimit , bottomLimit , leftLimit , rightLimit };
-		
-		return result;
+		// The same calculation is used by clients that crop the maze locally
+		return Viewport.boundaries( mazeSize , x , y , xLimit , yLimit );
 		 
 		
 	}
@@ -522,55 +442,28 @@ public class MazeGenerator {
 	 */
 	public int[][] getCroppedMaze( int[] boundaries ) {
 		
-		int rows = (boundaries[1] - boundaries[0]) + 1;
-		int cols = (boundaries[3] - boundaries[2]) + 1;
-		
-		int[][] cropped = new int[ rows ][ cols ];
-
-				
-		int tr = 0;
-		int tc = 0;
-		for( int i = boundaries[ 0 ] ; i <= boundaries[ 1 ] ; i++ ) {
-			 			  
-		  	 for( int j = boundaries[ 2 ] ; j <= boundaries[ 3 ] ; j++ ) {
-		  		 
-		  		 cropped[ tr ][ tc ] = cells[ i ][ j ];
-		  		
-		  		 tc++;
-		  		 
-		  	 }
-		  	 
-		  	tc = 0;
-		  	tr++;
-		  
-		}
-		
-		return cropped;
+		return toArray( grid.cellView( boundaries ) );
 		
 	}
 	
 	/**
-	 * Generate a 2D array of booleans used to express the cells in the maze which have coins to collect.
-	 * Element where value is true means there is a coin in that cell. False if there isn't one
+	 * Spread coins on the cells of the maze which are walkable. Any coins from before are taken away.
 	 * 
 	 * NOTE! Coins only spawn on cells which are walkable (or set as path if the maze has solution printing)
 	 * 
-	 * NOTE! Java initializes boolean arrays to false by default, so no need to set that manually
-	 * 
 	 * @param interval The rate of dispersion of the coins 
 	 * @param randomize Set to true if you want to use a random check to see if a coin should be spawned in a given cell
 	 */
 	public void generateCoins( int interval , boolean randomize ) {
 		
-		if( cells == null ) {
+		if( grid == null ) {
 			return;
 		}
 		
-		int r = cells.length;
-		int c = cells[ 0 ].length;
+		int r = grid.getRows();
+		int c = grid.getColumns();
 		
-		// Create coins on the maze to collect
-		coins = new boolean[ r ][ c ];
+		grid.clearCoins();
 		
 		// Make sure the interval is not negative
 		if( interval < 0 ) { interval = 0; }
@@ -582,7 +475,9 @@ public class MazeGenerator {
 			
 			for( int j = 0 ; j < c ; j++ ) {
 				
-				if( cells[ i ][ j ] == MazeConstants.WALKABLE || cells[ i ][ j ] == MazeConstants.PATH ) {
+				int cell = grid.get( i , j );
+				
+				if( cell == MazeConstants.WALKABLE || cell == MazeConstants.PATH ) {
 					
 					counter++;
 					
@@ -593,13 +488,13 @@ public class MazeGenerator {
 							random = randInt( 0 , 10 );
 							if( random < 5 ) {
 								
-								coins[ i ][ j ] = true;
+								grid.setCoin( i , j , true );
 								
 							}
 							
 						} else {
 						
-							coins[ i ][ j ] = true;
+							grid.setCoin( i , j , true );
 						
 						}
 						
@@ -618,14 +513,13 @@ public class MazeGenerator {
 	/**
 	 * Get the 2D boolean array specifying where the coins are
 	 * 
-	 * IMPORTANT! It is possible that the coins array can be null if it was not initialized.
-	 * Therefore always check for a null reference when using this getter.
+	 * NOTE! The array is a copy of the coins, changing it does not change the maze. Use getGrid() to read the coins without copying them.
 	 * 
 	 * @return 2D array of booleans with the same size as the maze
 	 */
 	public boolean[][] getCoins() {
 		 
-		return coins;
+		return toBooleanArray( grid.coinView() );
 		
 	}
 	
@@ -636,133 +530,86 @@ public class MazeGenerator {
 	 */
 	public int countCoins() {
 		
-		if( coins == null ) {
-			return 0;
-		}
-		
-		int r = coins.length;
-		int c = coins[ 0 ].length;
-		
-		int count = 0;
-		
-		for( int i = 0 ; i < r ; i++ ) {
-			
-			for( int j = 0 ; j < c ; j++ ) {
-				
-				if( coins[ i ][ j ] == true ) {
-					count++;
-				}
-				
-			}
-			
-		}
-		
-		return count;
+		return grid.countCoins();
 		
 	}
 	
 	/**
 	 * Get the coins in the maze only limited to the cropped rectangle generated by getCroppedBoundaries()
 	 * 
-	 * NOTE: This method does not alter the original coins array in any way.
+	 * NOTE: This method does not alter the original coins in any way.
 	 * 
 	 * @param boundaries The array of 4 integers specifying the boundaries of the maze
 	 * @return The cropped 2D array derived from the entire coins array 
 	 */
 	public boolean[][] getCroppedCoins( int[] boundaries ) {
 		
-		int rows = (boundaries[1] - boundaries[0]) + 1;
-		int cols = (boundaries[3] - boundaries[2]) + 1;
-		
-		boolean[][] cropped = new boolean[ rows ][ cols ];
-
-		int tr = 0;
-		int tc = 0;
-		for( int i = boundaries[ 0 ] ; i <= boundaries[ 1 ] ; i++ ) {
-			 			  
-		  	 for( int j = boundaries[ 2 ] ; j <= boundaries[ 3 ] ; j++ ) {
-		  		 
-		  		 cropped[ tr ][ tc ] = coins[ i ][ j ];
-		  		
-		  		 tc++;
-		  		 
-		  	 }
-		  	 
-		  	tc = 0;
-		  	tr++;
-		  
-		}
-		
-		return cropped;
+		return toBooleanArray( grid.coinView( boundaries ) );
 		
 	}
 	
 	/**
-	 * Take a coin away from the coins array 
-	 * The element will still remain in the array, but the state of the element will change to false if the coin has been collected.
+	 * Take a coin away from the maze
 	 * 
 	 * This method is useful on the server to add to the coin counter of the player.
 	 * 
-	 * @param x The row in the maze (& coin array)
-	 * @param y The column in the maze (& coin array)
+	 * @param x The row in the maze
+	 * @param y The column in the maze
 	 * @return True if the coin has been collected, False otherwise.
 	 */
 	public boolean collectCoin( int x , int y ) {
 		
-		// If the coins array is null or the x,y parameters are out of bounds or the element in the coins array is not a coin
-		if( coins == null || x < 0 || x >= coins.length || y < 0 || y >= coins[ 0 ].length || coins[ x ][ y ] == false ) {
+		// If the x,y parameters are out of bounds
+		if( x < 0 || x >= mazeSize || y < 0 || y >= mazeSize ) {
 			
 			return false;
 			
 		}
 		
-		// Remove the coin from the array
-		coins[ x ][ y ] = false;
-		
-		// Return true to indicate that coin has been taken
-		return true;
+		// Remove the coin and return true to indicate that coin has been taken (false if there was none)
+		return grid.takeCoin( x , y );
 		
 	}
 	
 	/**
-	 * Get the ArrayList of Integer pairs containing the solution path for the TOP LEFT quadrant
+	 * Get the solution path for the TOP LEFT quadrant
 	 * 
-	 * @return The ArrayList of Integer pairs
+	 * @return The cells on the path from START to FINISH, each packed as row * getMazeSize() + column
 	 */
-	public ArrayList<Integer[]> getTopLeftSolution() {
+	public int[] getTopLeftSolution() {
 		
 		return TLSolution;
 		
 	}
 	
 	/**
-	 * Get the ArrayList of Integer pairs containing the solution path for the TOP RIGHT quadrant
+	 * Get the solution path for the TOP RIGHT quadrant
 	 * 
-	 * @return The ArrayList of Integer pairs
+	 * @return The cells on the path from START to FINISH, each packed as row * getMazeSize() + column
 	 */
-	public ArrayList<Integer[]> getTopRightSolution() {
+	public int[] getTopRightSolution() {
 		
 		return TRSolution;
 		
 	}
 
 	/**
-	 * Get the ArrayList of Integer pairs containing the solution path for the BOTTOM LEFT quadrant
+	 * Get the solution path for the BOTTOM LEFT quadrant
 	 * 
-	 * @return The ArrayList of Integer pairs
+	 * @return The cells on the path from START to FINISH, each packed as row * getMazeSize() + column
 	 */
-	public ArrayList<Integer[]> getBottomLeftSolution() {
+	public int[] getBottomLeftSolution() {
 		
 		return BLSolution;
 		
 	}
 	
 	/**
-	 * Get the ArrayList of Integer pairs containing the solution path for the BOTTOM RIGHT quadrant
+	 * Get the solution path for the BOTTOM RIGHT quadrant
 	 * 
-	 * @return The ArrayList of Integer pairs
+	 * @return The cells on the path from START to FINISH, each packed as row * getMazeSize() + column
 	 */
-	public ArrayList<Integer[]> getBottomRightSolution() {
+	public int[] getBottomRightSolution() {
 		
 		return BRSolution;
 		
@@ -802,13 +649,13 @@ public class MazeGenerator {
 		for( int i = 0 ; i < mazeSize ; i++ ) {
 			
 			// Top horizontal line
-			cells[ i ][ 0 ] = MazeConstants.WALL;
+			grid.set( i , 0 , MazeConstants.WALL );
 			// Bottom horizontal line
-			cells[ i ][ mazeSize - 1 ] = MazeConstants.WALL;
+			grid.set( i , mazeSize - 1 , MazeConstants.WALL );
 			// Left vertical line
-			cells[ 0 ][ i ] = MazeConstants.WALL;
+			grid.set( 0 , i , MazeConstants.WALL );
 			// Right vertical line
-			cells[ mazeSize - 1 ][ i ] = MazeConstants.WALL;
+			grid.set( mazeSize - 1 , i , MazeConstants.WALL );
 			
 		}
 	 
@@ -817,26 +664,26 @@ public class MazeGenerator {
 	
 	protected void convergeFinish() {
 		
-		if( cells == null ) {
+		if( grid == null ) {
 			return;
 		}
 		
 		// If the center of the maze is a wall you can not convert it to a finish point, because it indicates that the borders still exist
-		if( cells[ quadSize - 1 ][ quadSize - 1 ] == MazeConstants.WALL ) {
+		if( grid.get( quadSize - 1 , quadSize - 1 ) == MazeConstants.WALL ) {
 			return;
 		}
 		
 		// Make the center of the maze the finish point
-		cells[ quadSize - 1 ][ quadSize - 1 ] = MazeConstants.FINISH;
+		grid.set( quadSize - 1 , quadSize - 1 , MazeConstants.FINISH );
 		
 		// Top Left
-		cells[ quadSize - 2 ][ quadSize - 2 ] = MazeConstants.WALKABLE;
+		grid.set( quadSize - 2 , quadSize - 2 , MazeConstants.WALKABLE );
 		// Top Right
-		cells[ quadSize - 2 ][ quadSize ] = MazeConstants.WALKABLE;
+		grid.set( quadSize - 2 , quadSize , MazeConstants.WALKABLE );
 		// Bottom Left
-		cells[ quadSize ][ quadSize - 2 ] = MazeConstants.WALKABLE;
+		grid.set( quadSize , quadSize - 2 , MazeConstants.WALKABLE );
 		// Bottom Right
-		cells[ quadSize ][ quadSize ] = MazeConstants.WALKABLE;
+		grid.set( quadSize , quadSize , MazeConstants.WALKABLE );
 		
 	}
 	
@@ -928,103 +775,107 @@ public class MazeGenerator {
 	}
 	
 	/**
-	 * Mirror an ArrayList of Integer pairs containing x and y coordinates horizontally, vertically or both at the same time.
-	 * 
-	 * This method is used to mirror the solution paths for the maze quadrants.
+	 * Copy a quadrant into its place in the maze, mirrored if needed.
 	 * 
-	 * Each element in the ArrayList is a Integer[] array with 2 elements.
-	 * The first element contains the row and the second element the column.
+	 * The quadrant is mirrored while it is copied, so no mirrored copy of it is made first.
 	 * 
-	 * This method returns a new ArrayList and does not alter the original one.
-	 * 
-	 * @param data The original arrayList 
-	 * @param method Set to 0 if you want to mirror horizontally, 1 for vertical and 2 for both at the same time
-	 * @return The new mirrored ArrayList of Integer pairs
+	 * @param quad The quadrant's cells
+	 * @param flipRows Set to TRUE to mirror the quadrant vertically (the last row goes on top)
+	 * @param flipColumns Set to TRUE to mirror the quadrant horizontally (the last column goes on the left)
+	 * @param rowOffset The row in the maze where the quadrant's first row goes
+	 * @param colOffset The column in the maze where the quadrant's first column goes
 	 */
-	protected ArrayList<Integer[]> mirrorArrayList( ArrayList<Integer[]> data , int method ) {
-		
-		ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-		
-		int size = data.size();
-		
-		if( size == 0 ) {
-			
-			return result;
-			
-		}
+	protected void placeQuadrant( int[][] quad , boolean flipRows , boolean flipColumns , int rowOffset , int colOffset ) {
 		
-		// index 0 = row , index 1 = column
-		Integer[] node;
-		Integer[] current;
+		int size = quad.length;
 		
 		for( int i = 0 ; i < size ; i++ ) {
 			
-			node = new Integer[ 2 ];
-			current = data.get( i );
+			int[] line = quad[ flipRows ? size - 1 - i : i ];
 			
-			if( method == 0 ) {
+			for( int j = 0 ; j < size ; j++ ) {
 				
-				node[ 0 ] = current[ 0 ];
-				node[ 1 ] = this.quadSize - current[ 1 ] - 1;
-				
-			} else if( method == 1 ) {
-				
-				node[ 0 ] = this.quadSize - current[ 0 ] - 1;
-				node[ 1 ] = current[ 1 ];
-				
-			} else {
-				
-				node[ 0 ] = this.quadSize - current[ 0 ] - 1;
-				node[ 1 ] = this.quadSize - current[ 1 ] - 1;
+				grid.set( i + rowOffset , j + colOffset , line[ flipColumns ? size - 1 - j : j ] );
 				
 			}
 			
-			result.add( node );
-			
 		}
 		
-		return result;
-		
 	}
 	
 	/**
-	 * Mirror the contents of an ArrayList with Integer pair elements horizontally
+	 * Convert a quadrant's solution path to cells of the maze, mirrored and moved the same way as placeQuadrant()
+	 * 
+	 * This is done to calibrate the solution paths after each quadrant has been added to its correct position in the maze.
 	 * 
-	 * @param data The ArrayList to mirror
-	 * @return The newly mirrored ArrayList
+	 * @param solution The quadrant's solution
+	 * @param flipRows Set to TRUE if the quadrant was mirrored vertically
+	 * @param flipColumns Set to TRUE if the quadrant was mirrored horizontally
+	 * @param rowOffset The row offset
+	 * @param colOffset The column offset
+	 * @return The path's cells, each packed as row * mazeSize + column
 	 */
-	protected ArrayList<Integer[]> mirrorArrayListHorizontal( ArrayList<Integer[]> data ) {
+	protected int[] placeSolution( MazeSolution solution , boolean flipRows , boolean flipColumns , int rowOffset , int colOffset ) {
 		
-		return mirrorArrayList( data , 0 );
+		int[] result = new int[ solution.length() ];
+		
+		for( int i = 0 ; i < result.length ; i++ ) {
+			
+			int row = solution.getRow( i );
+			int col = solution.getColumn( i );
+			
+			if( flipRows ) { row = quadSize - 1 - row; }
+			if( flipColumns ) { col = quadSize - 1 - col; }
+			
+			result[ i ] = ( row + rowOffset ) * mazeSize + col + colOffset;
+			
+		}
+		
+		return result;
 		
 	}
 	
 	/**
-	 * Mirror the contents of an ArrayList with Integer pair elements vertically
-	 * 
-	 * @param data The ArrayList to mirror
-	 * @return The newly mirrored ArrayList
+	 * Copy a view of the maze into a new 2D array of integers
 	 */
-	protected ArrayList<Integer[]> mirrorArrayListVertical( ArrayList<Integer[]> data ) {
+	private static int[][] toArray( GridView view ) {
 		
-		return mirrorArrayList( data , 1 );
+		int[][] result = new int[ view.getRows() ][ view.getColumns() ];
+		
+		for( int i = 0 ; i < result.length ; i++ ) {
+			
+			for( int j = 0 ; j < result[ i ].length ; j++ ) {
+				
+				result[ i ][ j ] = view.get( i , j );
+				
+			}
+			
+		}
+		
+		return result;
 		
 	}
 	
 	/**
-	 * Mirror the contents of an ArrayList with Integer pair elements both horizontally and vertically
-	 * 
-	 * This method uses one pass only
-	 * 
-	 * @param data The ArrayList to mirror
-	 * @return The newly mirrored ArrayList
+	 * Copy a view of the maze into a new 2D array of booleans (true where the cell is not 0)
 	 */
-	protected ArrayList<Integer[]> mirrorArrayListHorizontalAndVertical( ArrayList<Integer[]> data ) {
+	private static boolean[][] toBooleanArray( GridView view ) {
 		
-		return mirrorArrayList( data , 2 );
+		boolean[][] result = new boolean[ view.getRows() ][ view.getColumns() ];
+		
+		for( int i = 0 ; i < result.length ; i++ ) {
+			
+			for( int j = 0 ; j < result[ i ].length ; j++ ) {
+				
+				result[ i ][ j ] = view.get( i , j ) != 0;
+				
+			}
+			
+		}
+		
+		return result;
 		
 	}
-
 	
 	// ------------------------------------------------------------------------------------------------------------------------------------
 	// ---------------------------------------------------------- PRIVATE METHODS ---------------------------------------------------------
@@ -1046,15 +897,15 @@ public class MazeGenerator {
 		
 		// Give each START and FINISH a unique ID 
 		// Order: top left , top right , bottom left , bottom right
-		cells[ 1  ][ 1 ] = MazeConstants.START_P1;
-		cells[ 1 ][ mazeSize - 2 ] = MazeConstants.START_P2;
-		cells[ mazeSize - 2 ][ 1 ] = MazeConstants.START_P3;
-		cells[ mazeSize - 2 ][ mazeSize - 2 ] = MazeConstants.START_P4;
+		grid.set( 1 , 1 , MazeConstants.START_P1 );
+		grid.set( 1 , mazeSize - 2 , MazeConstants.START_P2 );
+		grid.set( mazeSize - 2 , 1 , MazeConstants.START_P3 );
+		grid.set( mazeSize - 2 , mazeSize - 2 , MazeConstants.START_P4 );
 		
-		cells[ quadSize - 2 ][ quadSize - 2 ] = MazeConstants.FINISH_P1;
-		cells[ quadSize - 2 ][ quadSize ] = MazeConstants.FINISH_P2;
-		cells[ quadSize ][ quadSize - 2 ] = MazeConstants.FINISH_P3;
-		cells[ quadSize ][ quadSize ] = MazeConstants.FINISH_P4;
+		grid.set( quadSize - 2 , quadSize - 2 , MazeConstants.FINISH_P1 );
+		grid.set( quadSize - 2 , quadSize , MazeConstants.FINISH_P2 );
+		grid.set( quadSize , quadSize - 2 , MazeConstants.FINISH_P3 );
+		grid.set( quadSize , quadSize , MazeConstants.FINISH_P4 );
 		
 	}
 	
@@ -1072,9 +923,9 @@ public class MazeGenerator {
 		for( int i = 0 ; i < mazeSize; i++ ) {
 			
 			// If the current cell in the middle line (horizontal) is a wall and its neighbors above and below are not walls, remove the wall
-			if( cells[ quadSize - 1 ][ i ] == MazeConstants.WALL && cells[ quadSize ][ i ] != MazeConstants.WALL && cells[ quadSize - 2 ][ i ] != MazeConstants.WALL ) {
+			if( grid.get( quadSize - 1 , i ) == MazeConstants.WALL && grid.get( quadSize , i ) != MazeConstants.WALL && grid.get( quadSize - 2 , i ) != MazeConstants.WALL ) {
 				
-				cells[ quadSize - 1 ][ i ] = MazeConstants.WALKABLE;
+				grid.set( quadSize - 1 , i , MazeConstants.WALKABLE );
 				
 			}
 			
@@ -1094,9 +945,9 @@ public class MazeGenerator {
 		for( int i = 0 ; i < mazeSize; i++ ) {
 			
 			// If the current cell in the middle line (vertical) is a wall and its neighbors left and right are not walls, remove the wall
-			if( cells[ i ][ quadSize - 1 ] == MazeConstants.WALL && cells[ i ][ quadSize ] != MazeConstants.WALL && cells[ i ][ quadSize - 2 ] != MazeConstants.WALL ) {
+			if( grid.get( i , quadSize - 1 ) == MazeConstants.WALL && grid.get( i , quadSize ) != MazeConstants.WALL && grid.get( i , quadSize - 2 ) != MazeConstants.WALL ) {
 				
-				cells[ i ][ quadSize - 1 ] = MazeConstants.WALKABLE;
+				grid.set( i , quadSize - 1 , MazeConstants.WALKABLE );
 				
 			}
 			
@@ -1104,60 +955,98 @@ public class MazeGenerator {
 		
 	}
 	
-	/**
-	 * Add an offset to each position pair in a quadrant's solution path (ArrayList)
-	 * 
-	 * This is done to calibrate the solution paths after each quadrant has been added to its correct position in the maze.
-	 * 
-	 * WARNING! This method overwrites the contents of the arrayList supplied in the data parameter!
-	 * 
-	 * @param data The quadrant's solution path ArrayList
-	 * @param offsetX The row offset
-	 * @param offsetY The column offset
-	 */
-	private static void solutionPathAddOffset( ArrayList<Integer[]> data , int offsetX , int offsetY ) {
+	public static String convertMazeToString( int[][] data , char rowDelimiter , char colDelimiter ) {
+		 
+		StringBuilder result = new StringBuilder();
 		
-		int size = data.size();
+		if( data == null ) {
+			return "";
+		}
 		
-		if( size == 0 ) {
+		int rows = data.length;
+		int cols = data[ 0 ].length;
+	 
+		for( int i = 0 ; i < rows ; i++ ) {
 			
-			return;
+			for( int j = 0 ; j < cols ; j++ ) {
+				
+				result.append(data[ i ][ j ]);
+				
+				// Add column delimiter to every element except the last one
+				if( j < cols - 1 ) {
+					
+					result.append( colDelimiter );
+					
+				}
+				
+			}
+			
+			// Add row delimiter at the end to every row except the last one 
+			if( i < rows - 1 ) {
+				
+				result.append( rowDelimiter );
+				
+			}
 			
 		}
 		
-		Integer[] current;
-		Integer[] newnode;
+		return result.toString();
 		
-		for( int i = 0 ; i < size ; i++ ) {
-			
-			newnode = new Integer[2];
-			current = data.get( i );
+	}
+	
+	/**
+	 * The same as convertMazeToString( int[][] , char , char ), read from a view of the maze (see MazeGrid.cellView)
+	 */
+	public static String convertMazeToString( GridView data , char rowDelimiter , char colDelimiter ) {
+		 
+		int rows = data.getRows();
+		int cols = data.getColumns();
+		
+		StringBuilder result = new StringBuilder( rows * cols * 2 );
+	 
+		for( int i = 0 ; i < rows ; i++ ) {
 			
-			newnode[ 0 ] = current[ 0 ] + offsetX;
-			newnode[ 1 ] = current[ 1 ] + offsetY;
+			for( int j = 0 ; j < cols ; j++ ) {
+				
+				result.append( data.get( i , j ) );
+				
+				// Add column delimiter to every element except the last one
+				if( j < cols - 1 ) {
+					
+					result.append( colDelimiter );
+					
+				}
+				
+			}
 			
-			data.set( i , newnode );
+			// Add row delimiter at the end to every row except the last one 
+			if( i < rows - 1 ) {
+				
+				result.append( rowDelimiter );
+				
+			}
 			
 		}
 		
+		return result.toString();
+		
 	}
 	
-	public static String convertMazeToString( int[][] data , char rowDelimiter , char colDelimiter ) {
-		 
-		StringBuilder result = new StringBuilder();
+	/**
+	 * The same as convertCoinsToString( boolean[][] , char , char ), read from a view of the coins (see MazeGrid.coinView)
+	 */
+	public static String convertCoinsToString( GridView data , char rowDelimiter , char colDelimiter ) {
 		
-		if( data == null ) {
-			return "";
-		}
+		int rows = data.getRows();
+		int cols = data.getColumns();
+		
+		StringBuilder result = new StringBuilder( rows * cols * 2 );
 		
-		int rows = data.length;
-		int cols = data[ 0 ].length;
-	 
 		for( int i = 0 ; i < rows ; i++ ) {
 			
 			for( int j = 0 ; j < cols ; j++ ) {
 				
-				result.append(data[ i ][ j ]);
+				result.append( data.get( i , j ) != 0 ? 1 : 0 );
 				
 				// Add column delimiter to every element except the last one
 				if( j < cols - 1 ) {
@@ -1222,4 +1111,111 @@ public class MazeGenerator {
 	}
 	
 	
+	/**
+	 * A generated quadrant and its solution
+	 */
+	private static class Candidate {
+		
+		private final ProceduralMaze maze;
+		private final MazeSolution solution;
+		
+		private Candidate( ProceduralMaze maze , MazeSolution solution ) {
+			
+			this.maze = maze;
+			this.solution = solution;
+			
+		}
+		
+	}
+	
+	/**
+	 * Generate a quadrant whose solution path is within MazeConstants.MAX_SOLUTION_DIFFERENCE of a target length.
+	 * 
+	 * Instead of generating one candidate after another until one is fair, one candidate is generated on each thread of the pool
+	 * at a time. The first fair candidate wins and the other searches stop (the ones that have not started are cancelled, the 
+	 * ones running stop after generating or solving their current candidate), so the time to find a fair quadrant drops with the number of cores.
+	 */
+	private static class QuadrantSearch extends RecursiveTask<Candidate> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int quadSize;
+		private final int targetLength;
+		private final boolean ensureFairness;
+		
+		// The first fair candidate found by any of the searches
+		private final AtomicReference<Candidate> found = new AtomicReference<Candidate>();
+		
+		private QuadrantSearch( int quadSize , int targetLength , boolean ensureFairness ) {
+			
+			this.quadSize = quadSize;
+			this.targetLength = targetLength;
+			this.ensureFairness = ensureFairness;
+			
+		}
+		
+		@Override
+		protected Candidate compute() {
+			
+			// Without fairness the first candidate is kept anyway, so there is nothing to search for in parallel
+			int searches = ensureFairness ? Math.max( 1 , GENERATORS.getParallelism() ) : 1;
+			
+			ForkJoinTask<?>[] others = new ForkJoinTask<?>[ searches - 1 ];
+			
+			for( int i = 0 ; i < others.length ; i++ ) {
+				
+				others[ i ] = new RecursiveAction() {
+					
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						
+						search();
+						
+					}
+					
+				}.fork();
+				
+			}
+			
+			search();
+			
+			// Cancel the losers, the ones already running see the result after their current candidate
+			for( ForkJoinTask<?> other : others ) {
+				
+				other.cancel( false );
+				
+			}
+			
+			return found.get();
+			
+		}
+		
+		/**
+		 * Generate candidates until one of the searches has found a fair one
+		 */
+		private void search() {
+			
+			while( found.get() == null ) {
+				
+				ProceduralMaze maze = new ProceduralMaze( quadSize , quadSize );
+				
+				// Another search may have won while this candidate was generated
+				if( found.get() != null ) { return; }
+				
+				MazeSolution solution = maze.solve();
+				
+				if( !ensureFairness || Math.abs( targetLength - solution.length() ) <= MazeConstants.MAX_SOLUTION_DIFFERENCE ) {
+					
+					found.compareAndSet( null , new Candidate( maze , solution ) );
+					
+				}
+				
+			}
+			
+		}
+		
+	}
+	
 }
@@ -0,0 +1,331 @@
+package server.mazegeneration;
+
+import protocol.GridView;
+
+/**
+ * The cells of a maze stored in flat primitive arrays, row by row: one byte per cell for its type (see MazeConstants)
+ * and one bit per cell for the coins and the traps.
+ *
+ * A 1999x1999 maze takes about 4.5MB this way (an int[][] of cells and a boolean[][] of coins took about 20MB), and
+ * neighboring cells are next to each other in memory. The parts of the maze that are sent to the players are read
+ * through views (see GridView), which are never copied.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class MazeGrid {
+
+	private final int rows;
+	private final int columns;
+
+	private final byte[] cells;
+	private final long[] coins;
+	private final long[] traps;
+
+	/**
+	 * Create a grid where every cell is a WALL (0), without coins or traps
+	 *
+	 * @param rows The number of rows
+	 * @param columns The number of columns
+	 */
+	public MazeGrid( int rows , int columns ) {
+
+		this.rows = rows;
+		this.columns = columns;
+
+		cells = new byte[ rows * columns ];
+		coins = new long[ ( rows * columns + 63 ) >>> 6 ];
+		traps = new long[ coins.length ];
+
+	}
+
+	public int getRows() {
+
+		return rows;
+
+	}
+
+	public int getColumns() {
+
+		return columns;
+
+	}
+
+	/**
+	 * Get the type of a cell
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @return The cell's type (see MazeConstants)
+	 */
+	public int get( int row , int col ) {
+
+		return cells[ row * columns + col ];
+
+	}
+
+	/**
+	 * Change the type of a cell
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @param value The cell's new type (see MazeConstants)
+	 */
+	public void set( int row , int col , int value ) {
+
+		cells[ row * columns + col ] = (byte) value;
+
+	}
+
+	/**
+	 * Check if there is a coin in a cell
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @return True if there is a coin to collect
+	 */
+	public boolean hasCoin( int row , int col ) {
+
+		return isSet( coins , row * columns + col );
+
+	}
+
+	/**
+	 * Put a coin in a cell or take it away
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @param coin True to put a coin in the cell
+	 */
+	public void setCoin( int row , int col , boolean coin ) {
+
+		set( coins , row * columns + col , coin );
+
+	}
+
+	/**
+	 * Take the coin from a cell if there is one
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @return True if there was a coin to take
+	 */
+	public boolean takeCoin( int row , int col ) {
+
+		int index = row * columns + col;
+
+		if( !isSet( coins , index ) ) {
+
+			return false;
+
+		}
+
+		set( coins , index , false );
+
+		return true;
+
+	}
+
+	/**
+	 * How many coins have not been collected yet
+	 *
+	 * @return The number of coins left
+	 */
+	public int countCoins() {
+
+		int count = 0;
+
+		for( int i = 0 ; i < coins.length ; i++ ) {
+
+			count += Long.bitCount( coins[ i ] );
+
+		}
+
+		return count;
+
+	}
+
+	/**
+	 * Take away every coin
+	 */
+	public void clearCoins() {
+
+		for( int i = 0 ; i < coins.length ; i++ ) {
+
+			coins[ i ] = 0;
+
+		}
+
+	}
+
+	/**
+	 * Check if there is a trap in a cell
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @return True if a trap has been placed in the cell
+	 */
+	public boolean hasTrap( int row , int col ) {
+
+		return isSet( traps , row * columns + col );
+
+	}
+
+	/**
+	 * Place a trap in a cell or remove it
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @param trap True to place a trap in the cell
+	 */
+	public void setTrap( int row , int col , boolean trap ) {
+
+		set( traps , row * columns + col , trap );
+
+	}
+
+	/**
+	 * Get a read-only view of the cells inside the boundaries generated by MazeGenerator.getCroppedBoundaries()
+	 *
+	 * @param boundaries The array of 4 integers (top , bottom , left , right , inclusive)
+	 * @return The view of the cells' types
+	 */
+	public GridView cellView( int[] boundaries ) {
+
+		return new CellView( boundaries[ 0 ] , boundaries[ 2 ] , boundaries[ 1 ] - boundaries[ 0 ] + 1 , boundaries[ 3 ] - boundaries[ 2 ] + 1 );
+
+	}
+
+	/**
+	 * Get a read-only view of every cell in the maze
+	 *
+	 * @return The view of the cells' types
+	 */
+	public GridView cellView() {
+
+		return new CellView( 0 , 0 , rows , columns );
+
+	}
+
+	/**
+	 * Get a read-only view of the coins inside the boundaries generated by MazeGenerator.getCroppedBoundaries()
+	 *
+	 * @param boundaries The array of 4 integers (top , bottom , left , right , inclusive)
+	 * @return The view of the coins (1 where there is a coin, 0 otherwise)
+	 */
+	public GridView coinView( int[] boundaries ) {
+
+		return new CoinView( boundaries[ 0 ] , boundaries[ 2 ] , boundaries[ 1 ] - boundaries[ 0 ] + 1 , boundaries[ 3 ] - boundaries[ 2 ] + 1 );
+
+	}
+
+	/**
+	 * Get a read-only view of the coins in the whole maze
+	 *
+	 * @return The view of the coins (1 where there is a coin, 0 otherwise)
+	 */
+	public GridView coinView() {
+
+		return new CoinView( 0 , 0 , rows , columns );
+
+	}
+
+	private static boolean isSet( long[] bits , int index ) {
+
+		return ( bits[ index >>> 6 ] & ( 1L << index ) ) != 0;
+
+	}
+
+	private static void set( long[] bits , int index , boolean value ) {
+
+		if( value ) {
+
+			bits[ index >>> 6 ] |= 1L << index;
+
+		} else {
+
+			bits[ index >>> 6 ] &= ~( 1L << index );
+
+		}
+
+	}
+
+	/**
+	 * A rectangle of the maze's cells
+	 */
+	private class CellView implements GridView {
+
+		private final int top, left, viewRows, viewColumns;
+
+		private CellView( int top , int left , int viewRows , int viewColumns ) {
+
+			this.top = top;
+			this.left = left;
+			this.viewRows = viewRows;
+			this.viewColumns = viewColumns;
+
+		}
+
+		@Override
+		public int getRows() {
+
+			return viewRows;
+
+		}
+
+		@Override
+		public int getColumns() {
+
+			return viewColumns;
+
+		}
+
+		@Override
+		public int get( int row , int col ) {
+
+			return cells[ ( top + row ) * columns + left + col ];
+
+		}
+
+	}
+
+	/**
+	 * A rectangle of the maze's coins
+	 */
+	private class CoinView implements GridView {
+
+		private final int top, left, viewRows, viewColumns;
+
+		private CoinView( int top , int left , int viewRows , int viewColumns ) {
+
+			this.top = top;
+			this.left = left;
+			this.viewRows = viewRows;
+			this.viewColumns = viewColumns;
+
+		}
+
+		@Override
+		public int getRows() {
+
+			return viewRows;
+
+		}
+
+		@Override
+		public int getColumns() {
+
+			return viewColumns;
+
+		}
+
+		@Override
+		public int get( int row , int col ) {
+
+			return isSet( coins , ( top + row ) * columns + left + col ) ? 1 : 0;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,159 @@
+package server.mazegeneration;
+
+import java.util.ArrayList;
+
+/**
+ * The solution of a grid maze found by ProceduralMaze.solve()
+ *
+ * The cells are packed into single integers (row * columns + column) so the path and the distances are plain int arrays
+ * instead of lists of Integer pairs.
+ *
+ * @author Iliya Liksov
+ *
+ */
+public class MazeSolution {
+
+	private final int rows, columns;
+
+	// The cells on the solution path, from the START point to the FINISH point (empty if there is no solution)
+	private final int[] path;
+
+	// The solver's grid: the number of steps from the START point to every cell, with a border of one cell around the maze
+	// (negative for walls and cells that can't be reached)
+	private final int[] grid;
+
+	// The distance field without the border, only made if it is asked for
+	private int[] distances;
+
+	protected MazeSolution( int rows , int columns , int[] path , int[] grid ) {
+
+		this.rows = rows;
+		this.columns = columns;
+		this.path = path;
+		this.grid = grid;
+
+	}
+
+	/**
+	 * Get the number of cells on the solution path, including the START and FINISH points
+	 *
+	 * @return The length of the path, 0 if the maze has no solution
+	 */
+	public int length() {
+
+		return path.length;
+
+	}
+
+	/**
+	 * Get the cells on the solution path in order, packed as row * getColumns() + column
+	 *
+	 * NOTE! The array is not copied, do not change it.
+	 *
+	 * @return The packed cells of the path
+	 */
+	public int[] getPath() {
+
+		return path;
+
+	}
+
+	/**
+	 * Get the distance field of the maze: the number of steps from the START point to every cell, packed as row * getColumns() + column
+	 *
+	 * NOTE! The array is not copied, do not change it.
+	 *
+	 * @return The distances, -1 for walls and cells that can't be reached
+	 */
+	public synchronized int[] getDistances() {
+
+		if( distances == null ) {
+
+			distances = new int[ rows * columns ];
+
+			for( int i = 0 ; i < rows ; i++ ) {
+
+				for( int j = 0 ; j < columns ; j++ ) {
+
+					distances[ i * columns + j ] = getDistance( i , j );
+
+				}
+
+			}
+
+		}
+
+		return distances;
+
+	}
+
+	/**
+	 * Get the number of steps from the START point to a cell
+	 *
+	 * @param row The row in the maze
+	 * @param col The column in the maze
+	 * @return The distance, -1 if the cell can't be reached
+	 */
+	public int getDistance( int row , int col ) {
+
+		int distance = grid[ ( row + 1 ) * ( columns + 2 ) + col + 1 ];
+
+		return distance < 0 ? -1 : distance;
+
+	}
+
+	/**
+	 * Get the number of columns the cells are packed with
+	 *
+	 * @return The number of columns in the maze
+	 */
+	public int getColumns() {
+
+		return columns;
+
+	}
+
+	/**
+	 * Get the row of a cell on the solution path
+	 *
+	 * @param i The position on the path (0 is the START point)
+	 * @return The row in the maze
+	 */
+	public int getRow( int i ) {
+
+		return path[ i ] / columns;
+
+	}
+
+	/**
+	 * Get the column of a cell on the solution path
+	 *
+	 * @param i The position on the path (0 is the START point)
+	 * @return The column in the maze
+	 */
+	public int getColumn( int i ) {
+
+		return path[ i ] % columns;
+
+	}
+
+	/**
+	 * Convert the solution path to an ArrayList of Integer pairs (row and column), in order from START to FINISH
+	 *
+	 * @return The new ArrayList
+	 */
+	public ArrayList<Integer[]> toList() {
+
+		ArrayList<Integer[]> result = new ArrayList<Integer[]>( path.length );
+
+		for( int i = 0 ; i < path.length ; i++ ) {
+
+			result.add( new Integer[] { getRow( i ) , getColumn( i ) } );
+
+		}
+
+		return result;
+
+	}
+
+}
@@ -1,6 +1,8 @@
 package server.mazegeneration;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Create a randomized rectangular grid maze with one single solution.
@@ -14,6 +16,9 @@ public class ProceduralMaze {
     
 	
     int[][] maze;    
+    
+    // A cell the solver can't walk on (a WALL or the border around the maze)
+    private static final int BLOCKED = -2;
  
     private int rows;       // number of rows of cells in maze, including a wall around edges
     private int columns;    // number of columns of cells in maze, including a wall around edges
@@ -112,6 +117,9 @@ public class ProceduralMaze {
      * order.  If tearing down a wall would not create a loop
      * in the maze, then tear it down.  Otherwise, leave it in place.
      * 
+     * The rooms that are already connected are tracked in a DisjointSet (Kruskal's algorithm with random wall weights),
+     * so each wall is checked in near-constant time and the whole maze is carved in near-linear time.
+     * 
      */
     private void generateMaze() {
     	
@@ -124,6 +132,7 @@ public class ProceduralMaze {
         
         int i,j;
         
+        int roomColumns = ( columns - 1 ) / 2;	// number of rooms on each row of rooms
         int emptyCt = 0; // number of rooms
         int wallCt = 0;  // number of walls
         
@@ -147,7 +156,7 @@ public class ProceduralMaze {
             for ( j = 1 ; j < columns-1 ; j += 2 ) {
             	 
                 emptyCt++;
-                maze[ i ][ j ] = -emptyCt;  // each room is represented by a different negative number
+                maze[ i ][ j ] = MazeConstants.WALKABLE;
                 
                 // Record info about wall below this room
                 if ( i < rows-2 ) {   
@@ -170,35 +179,25 @@ public class ProceduralMaze {
             }
             
         }
+        
+        // Each room is a set of its own at first (room index = room row * roomColumns + room column)
+        DisjointSet rooms = new DisjointSet( emptyCt );
+        ThreadLocalRandom random = ThreadLocalRandom.current();
     
         int r;
         
-        for ( i = wallCt - 1 ; i > 0 ; i-- ) {
+        // Stop as soon as every room is connected, the remaining walls would all make loops
+        for ( i = wallCt - 1 ; i >= 0 && rooms.getSets() > 1 ; i-- ) {
         	
         	// Choose a random cell that is a WALL and attempt to remove it and convert the cell to WALKABLE
-            r = (int) ( Math.random() * i ); 
+            r = random.nextInt( i + 1 ); 
           
-            tearDown( wallrow[ r ] , wallcol[ r ] );
+            tearDown( rooms , roomColumns , wallrow[ r ] , wallcol[ r ] );
             
             wallrow[ r ] = wallrow[ i ];
             wallcol[ r ] = wallcol[ i ];
             
         }
-        
-    	// Set any cell with a negative value as WALKABLE
-        for ( i = 1 ; i < rows - 1 ; i++ ) {  
-        	
-            for ( j = 1 ; j < columns - 1 ; j++ ) {
-            	
-                if ( maze[ i ][ j ] < 0 ) {
-                	
-                    maze[ i ][ j ] = MazeConstants.WALKABLE;
-                    
-                }
-                
-            }
-            
-        }
          
     }
     
@@ -208,110 +207,65 @@ public class ProceduralMaze {
     * Tearing down a wall joins two "rooms" into one "room".  
     * (Rooms begin to look like corridors as they grow.)  
     * 
-    * When a wall is torn down, the room codes on one side are converted to 
-    * match those on the other side, so all the cells in a room have the same code.   
-    * 
-    * NOTE! If the room codes on both sides of a wall already have the same code, 
+    * NOTE! If the rooms on both sides of a wall are already in the same set, 
     * then tearing down that wall would create a loop, so the wall is left in place.
     * 
+    * @param rooms The sets of connected rooms
+    * @param roomColumns The number of rooms on each row of rooms
     * @param row The row index in the maze
     * @param col The column index in the maze
     */
-   private void tearDown( int row , int col ) {
+   private void tearDown( DisjointSet rooms , int roomColumns , int row , int col ) {
 	    
 	    boolean isOdd = row % 2 == 1 ? true : false;
+	    
+	    int a, b;
 	   
 	    // row is odd; wall separates rooms horizontally
-        if ( isOdd && maze[row][col-1] != maze[row][col+1] ) {
+        if ( isOdd ) {
              
-            fill(row, col-1, maze[row][col-1], maze[row][col+1]);
-            maze[row][col] = maze[row][col+1];
-         
+            a = room( roomColumns , row , col-1 );
+            b = room( roomColumns , row , col+1 );
            
         }
         
         // row is even; wall separates rooms vertically
-        else if ( !isOdd && maze[row-1][col] != maze[row+1][col] ) {
+        else {
              
-            fill(row-1, col, maze[row-1][col], maze[row+1][col]);
-            maze[row][col] = maze[row+1][col];
-        
+            a = room( roomColumns , row-1 , col );
+            b = room( roomColumns , row+1 , col );
           
         }
         
+        if ( rooms.union( a , b ) ) {
+        	
+        	maze[ row ][ col ] = MazeConstants.WALKABLE;
+        	
+        }
+        
     }
    	
    	/**
-   	 * called by tearDown() to change "room codes".
+   	 * Get the index of the room at a cell
    	 * 
-   	 * @param row The row index in the maze
-   	 * @param col The column index in the maze
-   	 * @param replace The room code to search for
-   	 * @param replaceWith The room code to replace this cell with
+   	 * @param roomColumns The number of rooms on each row of rooms
+   	 * @param row The row index in the maze (odd)
+   	 * @param col The column index in the maze (odd)
+   	 * @return The room's index in the DisjointSet
    	 */
-    private void fill( int row , int col , int replace , int replaceWith ) {
+    private static int room( int roomColumns , int row , int col ) {
     	 
-    	// If this cell in the maze doesn't have the room code we are searching for, exit method 
-        if ( maze[ row ][ col ] != replace ) {
-        	
-        	return;
-        	
-        }
-        
-        // Replace this cell's room code with the new one
-        maze[ row ][ col ] = replaceWith;
-        
-        // Continue recursively in all directions
-        fill( row+1 , col , replace , replaceWith );	// One row down , same column
-        fill( row-1 , col , replace , replaceWith );	// One row up , same column
-        fill( row , col+1 , replace , replaceWith );	// Same row , next column
-        fill( row , col-1 , replace , replaceWith );	// Same row , previous column
+    	return ( row / 2 ) * roomColumns + ( col / 2 );
          
     }
   
     
-    /**
-     * Private method used to copy the contents of a 2D Array to a new one.
-     * 
-     * @param data The 2D Array to copy
-     * @return The new 2D Array
-     */
-    private static int[][] copyArray( int[][] data ) {
-    	 
-    	if( data == null ) {
-    		
-    		return data;
-    		
-    	}
-    	
-    	int rows = data.length;
-    	int cols = data[ 0 ].length;
-    	
-    	int[][] result = new int[ rows ][ cols ];
-    	
-    	for( int i = 0 ; i < rows ; i++ ) {
-    		
-    		for( int j = 0 ; j < cols ; j++ ) {
-    			
-    			result[ i ][ j ] = data[ i ][ j ];
-    			
-    		}
-    		
-    	}
-    	
-    	return result;
-    	
-    }
-    
     /**
      * Generate an ArrayList of Integer pairs with the solution path for this maze.
      * 
      * Each integer pair contains the row and column for that cell. 
      * 
-     * By default the elements in the list are in order respective to the solution path.
-     * 
-     * This method makes a temporary copy of the maze's structure and applies the solveMazeUtil method to find the path.
-     * It then traverses the maze again and adds each solution path cell to the list, including the START and FINISH points.
+     * The elements in the list are in order respective to the solution path, from the START point to the FINISH point.
      * 
      * This method does NOT alter the original maze structure.
      * 
@@ -319,54 +273,26 @@ public class ProceduralMaze {
      */
     public static ArrayList<Integer[]> generateSolution( int[][] arr , int sx , int sy , int ex , int ey) {
     	
-    	ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-    	
-    	if( arr.length == 0 ) { return result; }
-    	
-    	int[][] temp = copyArray( arr );
-    	//int[][] temp = this.maze.clone(); - DEBUG ONLY ; This will keep the same reference from the class instance
-    	
-    	// Solve this maze for the temporary copy of the maze array
-    	// This is done so that the original maze array does not get altered
-    	// solved will be true when a solution is found. False otherwise
-    	boolean solved = solveMazeUtil( temp , sx , sy , ex , ey );
-    	
-    	// If there is no solution found
-    	if( !solved ) {
-    		
-    		return result;
-    		
-    	}
-    	
-    	int rows = arr.length;
-    	int columns = arr[0].length;
+    	if( arr.length == 0 ) { return new ArrayList<Integer[]>(); }
     	
-    	// Cycle through the cells in the maze and add any cell that is part of the solution path to the 
-    	for ( int i = 0 ; i < rows ; i++ ) { 
-        	
-            for ( int j = 0 ; j < columns ; j++ ) {
-            	
-            	// If this cell is a PATH (therefore WALKABLE, but adjusted by the solution algorithm) OR a START or FINISH point, add it to the solution path list
-            	if( temp[i][j] == MazeConstants.START || temp[i][j] == MazeConstants.FINISH || temp[i][j] == MazeConstants.PATH ||
-            		temp[i][j] == MazeConstants.FINISH_P1 || temp[i][j] == MazeConstants.FINISH_P2 || temp[i][j] == MazeConstants.FINISH_P3 || temp[i][j] == MazeConstants.FINISH_P4 ||
-            		temp[i][j] == MazeConstants.START_P1 || temp[i][j] == MazeConstants.START_P2 || temp[i][j] == MazeConstants.START_P3 || temp[i][j] == MazeConstants.START_P4
-            	) {
-             
-            		result.add( new Integer[] { i , j } );
-            		
-            	}
-            	
-            }
+    	return solve( arr , sx , sy , ex , ey ).toList();
     	
-    	}
+    }
+    
+    protected ArrayList<Integer[]> generateSolution() {
     	
-    	return result;
+    	return solve().toList();
     	
     }
     
-    protected ArrayList<Integer[]> generateSolution() {
+    /**
+     * Solve this maze from its START point (top left) to its FINISH point (bottom right)
+     * 
+     * @return The solution path and the distance field of the maze
+     */
+    protected MazeSolution solve() {
     	
-    	return generateSolution( this.maze , 1 , 1 , rows - 2 , columns - 2 );
+    	return solve( this.maze , 1 , 1 , rows - 2 , columns - 2 );
     	
     }
  
@@ -374,59 +300,109 @@ public class ProceduralMaze {
     /**
      * Generate a solution for a grid maze
      * 
-     * This is a static Utility method which will work on any maze that has a start and finish point defined and follows the MazeConstants structure.
+     * This is a static Utility method which will work on any maze that follows the MazeConstants structure (any cell that is not a WALL can be walked on).
      * 
-     * NOTE! This method overwrites the structure of the data parameter given. 
-     * Therefore if you use this to solve a maze, you should pass a copy of the original maze's data structure.
+     * This method does NOT alter the structure of the data parameter given.
      * 
-     * This method is recursive and it spreads in all directions from a specified point attempting to locate a walkable path.
-     * Each node that has been visited is given a flag VISITED to make sure it is ignored in the next phase of the solver.
-     * Once the solver has reached the finish point, it has constructed the walkable path cells with the index specified in MazeConstants.PATH.
+     * The solver is an iterative breadth-first search from the starting point over the cells packed as row * columns + column,
+     * so it doesn't recurse (no stack overflow on large mazes) and finds the shortest path (the only path in a perfect maze).
+     * It records the number of steps to every cell it reaches (the distance field), then walks back from the finish point
+     * one step at a time to collect the path.
 	 *
      * @param data The maze's cells 2D array of integers 
      * @param row The starting point's row (where the player will begin)
      * @param col The starting point's column 
      * @param finishX The finish point's row
      * @param finishY The finish point's column
-     * @return True if a solution has been found , False otherwise
+     * @return The solution (with an empty path if the finish can't be reached)
      */
-    protected static boolean solveMazeUtil( int[][] data , int row , int col , int finishX , int finishY ) {
+    public static MazeSolution solve( int[][] data , int row , int col , int finishX , int finishY ) {
+    	
+    	int rows = data.length;
+    	int columns = data[ 0 ].length;
+    	
+    	// The search runs on a flat copy of the grid with a border of walls around it, so a neighbor is always 
+    	// one step away in the array and never out of bounds: -2 for walls, -1 for cells not reached yet, the distance otherwise
+    	int width = columns + 2;
+    	int[] grid = new int[ ( rows + 2 ) * width ];
+    	Arrays.fill( grid , BLOCKED );
+    	
+    	for( int i = 0 ; i < rows ; i++ ) {
+    		
+    		int[] line = data[ i ];
+    		int at = ( i + 1 ) * width + 1;
+    		
+    		for( int j = 0 ; j < columns ; j++ ) {
+    			
+    			if( line[ j ] != MazeConstants.WALL ) {
+    				grid[ at + j ] = -1;
+    			}
+    			
+    		}
+    		
+    	}
+    	
+    	int start = ( row + 1 ) * width + col + 1;
+    	int finish = ( finishX + 1 ) * width + finishY + 1;
+    	
+    	if( grid[ start ] == -1 ) {
+    		
+    		// Every cell is queued at most once, so the queue is a plain array
+    		int[] queue = new int[ rows * columns ];
+    		int head = 0;
+    		int tail = 0;
+    		
+    		grid[ start ] = 0;
+    		queue[ tail++ ] = start;
+    		
+    		while( head < tail ) {
+    			
+    			int cell = queue[ head++ ];
+    			int next = grid[ cell ] + 1;
+    			
+    			// Spread to the neighbors in all four directions that are not walls and have not been reached yet
+    			if( grid[ cell - width ] == -1 ) { grid[ cell - width ] = next; queue[ tail++ ] = cell - width; }
+    			if( grid[ cell - 1 ] == -1 ) { grid[ cell - 1 ] = next; queue[ tail++ ] = cell - 1; }
+    			if( grid[ cell + width ] == -1 ) { grid[ cell + width ] = next; queue[ tail++ ] = cell + width; }
+    			if( grid[ cell + 1 ] == -1 ) { grid[ cell + 1 ] = next; queue[ tail++ ] = cell + 1; }
+    			
+    		}
+    		
+    	}
+    	
+    	// If there is no solution found
+    	if( grid[ finish ] < 0 ) {
+    		
+    		return new MazeSolution( rows , columns , new int[ 0 ] , grid );
+    		
+    	}
+    	
+    	// Walk back from the finish point, always to a neighbor one step closer to the start
+    	int[] path = new int[ grid[ finish ] + 1 ];
+    	int cell = finish;
+    	
+    	for( int i = path.length - 1 ; i >= 0 ; i-- ) {
+    		
+    		path[ i ] = ( cell / width - 1 ) * columns + ( cell % width - 1 );
+    		
+    		if( i == 0 ) { break; }
+    		
+    		int previous = i - 1;
+    		
+    		if( grid[ cell - width ] == previous ) {
+    			cell -= width;
+    		} else if( grid[ cell - 1 ] == previous ) {
+    			cell -= 1;
+    		} else if( grid[ cell + width ] == previous ) {
+    			cell += width;
+    		} else {
+    			cell += 1;
+    		}
+    		
+    	}
+    	
+    	return new MazeSolution( rows , columns , path , grid );
     	
-        // Try to solve the maze by continuing current path from position
-        // (row,col).  Return true if a solution is found.  The maze is
-        // considered to be solved if the path reaches the finish position (lower right cell by default).
-     
-        if ( data[row][col] == MazeConstants.WALKABLE || data[row][col] == MazeConstants.START || data[row][col] == MazeConstants.FINISH ) {
-        	
-        	data[row][col] = MazeConstants.PATH;      // add this cell to the path
-         
-            if ( row == finishX && col == finishY ) {
-            	
-                return true;  // path has reached goal
-                
-            }
-            
-             
-            
-            // Extend the current cell in all four directions and attempt to solve maze recursively
-            if (
-            	solveMazeUtil( data , row-1 , col , finishX , finishY ) || 
-            	solveMazeUtil( data , row , col-1 , finishX , finishY ) || 
-            	solveMazeUtil( data , row+1 , col , finishX , finishY ) || 
-            	solveMazeUtil( data , row , col+1 , finishX , finishY ) 
-            ) {
-                
-            	return true;
-                
-            }
-            
-            // maze can't be solved from this cell, so backtrack out of the cell
-            data[row][col] = MazeConstants.VISITED;   // mark cell as having been visited
-           
-        }
-        
-        return false;
-        
     }
     
     /**